@@ -3,6 +3,7 @@ package ngsep.alignments;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -10,11 +11,13 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionImpl;
 import ngsep.genome.ReferenceGenomeFMIndex;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
+import ngsep.sequences.BidirectionalFMIndex;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.KmerHitsCluster;
 import ngsep.sequences.KmersExtractor;
@@ -25,25 +28,40 @@ import ngsep.sequences.UngappedSearchHit;
 
 public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 	
+	public static final int DEFAULT_MAX_INDEL_LENGTH = 10;
+	// Maximum number of hits of a seed to be used to build alignments
+	private static final int MAX_HITS_SEED = 50;
+	// Initial capacity of the pairwise aligners. Matrices grow as needed
+	private static final int ALIGNERS_INITIAL_CAPACITY = 200;
+	
 	private int kmerLength;
 	private int maxAlnsPerRead;
 	private ReferenceGenomeFMIndex fMIndex;
 	
 	private Map<String, List<GenomicRegion>> knownSTRs;
 	
-	private Set<CharSequence> repetitiveKmers = new HashSet<CharSequence>();
+	// Cache of hits of k-mers shared by all threads. Null if k-mers can not be encoded
+	private KmerHitsCache kmerHitsCache;
 	
 	private boolean runFullAlignment = true;
 	private boolean onlyPositiveStrand = false;
+	private int maxIndelLength = DEFAULT_MAX_INDEL_LENGTH;
+	private boolean smemSeeding = false;
+	
+	// Pairwise aligners reused by each thread
+	private ThreadLocal<PairwiseAlignmentAffineGap> alignersFullRead = ThreadLocal.withInitial(()->createAlignerFullRead(ALIGNERS_INITIAL_CAPACITY));
+	private ThreadLocal<PairwiseAlignmentAffineGap> alignersLeftTR = ThreadLocal.withInitial(()->createAlignerLeftTR(ALIGNERS_INITIAL_CAPACITY));
+	private ThreadLocal<PairwiseAlignmentAffineGap> alignersRightTR = ThreadLocal.withInitial(()->createAlignerRightTR(ALIGNERS_INITIAL_CAPACITY));
 	
 	// Statistics
-	private int fewMismatchesAlns = 0;
-	private int completeAlns = 0;
+	private AtomicInteger fewMismatchesAlns = new AtomicInteger();
+	private AtomicInteger completeAlns = new AtomicInteger();
 	
 	public FMIndexReadAlignmentAlgorithm(ReferenceGenomeFMIndex fMIndex, int kmerLength, int maxAlnsPerRead) {
 		this.fMIndex = fMIndex;
 		this.kmerLength = kmerLength;
 		this.maxAlnsPerRead = maxAlnsPerRead;
+		setKmerHitsCacheCapacity(KmerHitsCache.DEFAULT_CAPACITY);
 	}
 	public ReferenceGenomeFMIndex getFMIndex() {
 		return fMIndex;
@@ -58,12 +76,57 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 	public void setKnownSTRs(Map<String, List<GenomicRegion>> knownSTRs) {
 		this.knownSTRs = knownSTRs;
 	}
+	/**
+	 * @return int Maximum indel length used to calculate banded alignments of complete reads
+	 */
+	public int getMaxIndelLength() {
+		return maxIndelLength;
+	}
+	/**
+	 * Changes the maximum indel length used to calculate banded alignments of complete reads.
+	 * Alignments that could leave the band are calculated again with the full dynamic programming matrices
+	 * @param maxIndelLength Maximum expected indel length. A negative value disables banded alignments
+	 */
+	public void setMaxIndelLength(int maxIndelLength) {
+		this.maxIndelLength = maxIndelLength;
+	}
+	/**
+	 * @return KmerHitsCache Cache of the hits of frequent k-mers. Null if the cache is disabled
+	 */
+	public KmerHitsCache getKmerHitsCache() {
+		return kmerHitsCache;
+	}
+	/**
+	 * Changes the maximum number of k-mers stored in the cache of k-mer hits.
+	 * The cache is disabled if the given capacity is zero or if the k-mer length is larger than KmerHitsCache.MAX_KMER_LENGTH
+	 * @param capacity Maximum number of k-mers stored in the cache
+	 */
+	public void setKmerHitsCacheCapacity(int capacity) {
+		if(capacity>0 && kmerLength<=KmerHitsCache.MAX_KMER_LENGTH) kmerHitsCache = new KmerHitsCache(kmerLength, capacity, KmerHitsCache.DEFAULT_MIN_HITS);
+		else kmerHitsCache = null;
+	}
+	/**
+	 * @return boolean true if alignments are seeded with super-maximal exact matches (SMEMs) instead of k-mers
+	 */
+	public boolean isSmemSeeding() {
+		return smemSeeding;
+	}
+	/**
+	 * Changes the seeding strategy. If SMEM seeding is enabled, the genome index must be bidirectional.
+	 * The exact matches are located once and their hits are projected to the k-mers contained in each match.
+	 * Matches shorter than the k-mer length or with too many hits are discarded
+	 * @param smemSeeding true to seed alignments with SMEMs, false to search each k-mer independently
+	 */
+	public void setSmemSeeding(boolean smemSeeding) {
+		if(smemSeeding && !fMIndex.isBidirectional()) throw new IllegalArgumentException("SMEM seeding requires a bidirectional genome index");
+		this.smemSeeding = smemSeeding;
+	}
 	public int getCompleteAlns() {
-		return completeAlns;
+		return completeAlns.get();
 	}
 	
 	public int getFewMismatchesAlns() {
-		return fewMismatchesAlns;
+		return fewMismatchesAlns.get();
 	}
 	
 	@Override
@@ -103,7 +166,7 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 				for (ReadAlignment aln:alnsR) aln.setNegativeStrand(true);
 				alignments.addAll(alnsR);
 			}
-		} else fewMismatchesAlns++;
+		} else fewMismatchesAlns.incrementAndGet();
 		
 		//System.out.println("Read: "+read.getName()+" total alignments: "+alignments.size());
 		for(ReadAlignment aln:alignments) {
@@ -127,12 +190,15 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 	 */
 	private List<ReadAlignment> kmerBasedSingleStrandInexactSearchAlgorithm (String query) 
 	{
-		Map<Integer,String> kmersMap = KmersExtractor.extractKmersAsMap(query, kmerLength, kmerLength, true, false, true);
+		String [] kmers = KmersExtractor.extractKmers(query, kmerLength, kmerLength, 0, query.length(), true, false, true);
 		List<ReadAlignment> finalAlignments =  new ArrayList<>();
-		//System.out.println("Read: "+query+" length "+query.length()+" kmers: "+kmersMap.size());
-		int kmersCount=kmersMap.size();
+		int kmersCount=0;
+		for(String kmer:kmers) if(kmer!=null) kmersCount++;
+		//System.out.println("Read: "+query+" length "+query.length()+" kmers: "+kmersCount);
 		if(kmersCount==0) return finalAlignments;
-		List<UngappedSearchHit> initialKmerHits = searchKmers (kmersMap);
+		List<UngappedSearchHit> initialKmerHits;
+		if(smemSeeding) initialKmerHits = searchSMEMs(query, kmers);
+		else initialKmerHits = searchKmers (kmers);
 		List<KmerHitsCluster> clusteredKmerHits = clusterKmerHits(query, initialKmerHits);
 		if(clusteredKmerHits.size()==0) return finalAlignments;
 		//System.out.println("Initial kmer hits: "+initialKmerHits.size()+" Clusters: "+clusteredKmerHits.size());
@@ -160,17 +226,25 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 	 * @param kmers to search
 	 * @return List of alignments of each kmer. The read number of each alignment contains the kmer number.
 	 */
-	private List<UngappedSearchHit> searchKmers(Map<Integer,String> kmersMap) {
+	private List<UngappedSearchHit> searchKmers(String [] kmers) {
 		List<UngappedSearchHit> answer = new ArrayList<>();
-		for (int start:kmersMap.keySet()) {
-			String kmer = kmersMap.get(start);
-			CharSequence kmerP = KmersExtractor.pack(kmer);
-			if(repetitiveKmers.contains(kmerP)) continue;
-			List<UngappedSearchHit> kmerHits=fMIndex.exactSearch(kmer);
-			//System.out.println("Kmer: "+kmer+" hits: "+kmerHits.size());
-			if(kmerHits.size()>50) {
-				repetitiveKmers.add(kmerP);
-				continue;
+		for (int start=0;start<kmers.length;start++) {
+			String kmer = kmers[start];
+			if(kmer==null) continue;
+			long code = -1;
+			List<UngappedSearchHit> kmerHits = null;
+			if(kmerHitsCache!=null) {
+				code = kmerHitsCache.encode(kmer);
+				kmerHits = kmerHitsCache.get(code, kmer);
+			}
+			if(kmerHits==null) {
+				kmerHits=fMIndex.exactSearch(kmer);
+				//System.out.println("Kmer: "+kmer+" hits: "+kmerHits.size());
+				if(kmerHits.size()>MAX_HITS_SEED) {
+					if(kmerHitsCache!=null) kmerHitsCache.putRepetitive(code);
+					continue;
+				}
+				if(kmerHitsCache!=null) kmerHitsCache.put(code, kmerHits);
 			}
 			for(UngappedSearchHit hit:kmerHits) {
 				hit.setQueryIdx(start);
@@ -180,6 +254,39 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 		return answer;
 	}
 
+	/**
+	 * Calculates the SMEMs of the given query and translates the hits of each SMEM to hits of the k-mers contained in the SMEM
+	 * @param query to search
+	 * @param kmers k-mers of the query indexed by start position
+	 * @return List of hits of the k-mers. The query index of each hit is the start of the k-mer
+	 */
+	private List<UngappedSearchHit> searchSMEMs(String query, String [] kmers) {
+		List<UngappedSearchHit> answer = new ArrayList<>();
+		// Hits already added for each k-mer. Overlapping SMEMs can share k-mers and hits
+		Map<Integer,Set<Long>> kmerHitsAdded = new HashMap<>();
+		List<BidirectionalFMIndex.Match> smems = fMIndex.findSMEMs(query, kmerLength);
+		for(BidirectionalFMIndex.Match smem:smems) {
+			if(smem.getSize()>MAX_HITS_SEED) continue;
+			List<UngappedSearchHit> smemHits = null;
+			for(int start=smem.getQueryStart();start+kmerLength<=smem.getQueryEnd();start++) {
+				String kmer = (start<kmers.length)?kmers[start]:null;
+				if(kmer==null) continue;
+				if(smemHits==null) smemHits = fMIndex.locate(query, smem);
+				Set<Long> added = kmerHitsAdded.computeIfAbsent(start, k->new HashSet<>());
+				int offset = start-smem.getQueryStart();
+				for(UngappedSearchHit smemHit:smemHits) {
+					int subjectStart = smemHit.getStart()+offset;
+					if(!added.add((((long)smemHit.getSequenceIdx())<<32) | subjectStart)) continue;
+					UngappedSearchHit hit = new UngappedSearchHit(kmer, smemHit.getSequenceIdx(), subjectStart);
+					hit.setSequenceName(smemHit.getSequenceName());
+					hit.setQueryIdx(start);
+					answer.add(hit);
+				}
+			}
+		}
+		return answer;
+	}
+
 	private List<KmerHitsCluster> clusterKmerHits(String query, List<UngappedSearchHit> initialKmerHits) {
 		List<KmerHitsCluster> clusters = new ArrayList<>();
 		Map<Integer,List<UngappedSearchHit>> hitsBySubjectIdx = new LinkedHashMap<Integer, List<UngappedSearchHit>>();
@@ -251,8 +358,9 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 		if(refSeq == null) return null;
 		
 		//System.out.println("Aligning reference from "+first+" to "+last+ " to query. length: "+refSeq.length());
-		completeAlns++;
-		PairwiseAlignmentAffineGap alignerFullRead = createAlignerFullRead(Math.max(query.length(), refSeq.length()));
+		completeAlns.incrementAndGet();
+		PairwiseAlignmentAffineGap alignerFullRead = alignersFullRead.get();
+		alignerFullRead.setMaxIndelLength(maxIndelLength);
 		String [] rawAln = alignerFullRead.getAlignment(query, refSeq.toString());
 		int mismatches = countMismatches(rawAln);
 		if(mismatches>0.1*query.length()) return null;
@@ -387,7 +495,7 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 				String readSegment = read.substring(0,endReadSegment);
 				//System.out.println(refSeq);
 				//System.out.println(readSegment);
-				PairwiseAlignmentAffineGap alignerSTRsLeft = createAlignerLeftTR(Math.max(readSegment.length(), refSeq.length()));
+				PairwiseAlignmentAffineGap alignerSTRsLeft = alignersLeftTR.get();
 				String [] alignmentLeft = alignerSTRsLeft.getAlignment(readSegment, refSeq.toString());
 				leftMismatches = countMismatches(alignmentLeft);
 				encodedLeftAln = ReadAlignment.encodePairwiseAlignment(alignmentLeft);
@@ -408,7 +516,7 @@ public class FMIndexReadAlignmentAlgorithm implements ReadAlignmentAlgorithm {
 				String readSegment = read.substring(startReadSegment);
 				//System.out.println(refSeq);
 				//System.out.println(readSegment);
-				PairwiseAlignmentAffineGap alignerSTRsRight = createAlignerRightTR(Math.max(readSegment.length(), refSeq.length()));
+				PairwiseAlignmentAffineGap alignerSTRsRight = alignersRightTR.get();
 				String [] alignmentRight = alignerSTRsRight.getAlignment(readSegment, refSeq.toString());
 				rightMismatches = countMismatches(alignmentRight);
 				encodedRightAln = ReadAlignment.encodePairwiseAlignment(alignmentRight);
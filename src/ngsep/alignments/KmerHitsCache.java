@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ngsep.sequences.AbstractLimitedSequence;
+import ngsep.sequences.DNASequence;
+import ngsep.sequences.UngappedSearchHit;
+
+/**
+ * Bounded cache of the hits of DNA k-mers to a reference genome, shared by the threads aligning reads.
+ * K-mers are identified by their 2-bit codes. The cache is a direct mapped table in which each k-mer can only be stored
+ * in the slot given by the hash of its code. New k-mers replace the k-mers stored in the same slot.
+ * Only k-mers with at least a minimum number of hits are stored, because these are the most expensive to search
+ * and the most frequently seen in the reads. K-mers can also be stored as repetitive without hits
+ */
+public class KmerHitsCache {
+
+	public static final int DEFAULT_CAPACITY = 65536;
+	public static final int DEFAULT_MIN_HITS = 2;
+	/**
+	 * Maximum k-mer length that can be encoded in a long number
+	 */
+	public static final int MAX_KMER_LENGTH = 31;
+
+	private final int kmerLength;
+	private final int minHits;
+	private final int hashBits;
+	private final AtomicReferenceArray<CachedKmer> table;
+
+	// Statistics
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	/**
+	 * Creates a new cache
+	 * @param kmerLength Length of the k-mers. It should be at most MAX_KMER_LENGTH
+	 * @param capacity Maximum number of k-mers stored. It is rounded up to a power of two
+	 * @param minHits Minimum number of hits of a k-mer to be stored
+	 */
+	public KmerHitsCache(int kmerLength, int capacity, int minHits) {
+		if(kmerLength<1 || kmerLength>MAX_KMER_LENGTH) throw new IllegalArgumentException("K-mer length "+kmerLength+" not supported. It must be between 1 and "+MAX_KMER_LENGTH);
+		if(capacity<1) throw new IllegalArgumentException("The capacity of the cache must be a positive number. Value: "+capacity);
+		this.kmerLength = kmerLength;
+		this.minHits = minHits;
+		int bits = 1;
+		while(bits<30 && (1<<bits)<capacity) bits++;
+		hashBits = bits;
+		table = new AtomicReferenceArray<>(1<<bits);
+	}
+
+	/**
+	 * @return int Length of the k-mers stored in this cache
+	 */
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	/**
+	 * @return int Maximum number of k-mers stored in this cache
+	 */
+	public int getCapacity() {
+		return table.length();
+	}
+
+	/**
+	 * @return int Number of k-mers currently stored in this cache. It is never larger than the capacity
+	 */
+	public int getSize() {
+		int size = 0;
+		for(int i=0;i<table.length();i++) {
+			if(table.get(i)!=null) size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Calculates the code of the given k-mer
+	 * @param kmer DNA k-mer with the length of this cache
+	 * @return long 2-bit code of the k-mer. -1 if the k-mer can not be stored in this cache
+	 */
+	public long encode(String kmer) {
+		if(kmer.length()!=kmerLength || !DNASequence.isDNA(kmer)) return -1;
+		return AbstractLimitedSequence.getHash(kmer, 0, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
+	}
+
+	/**
+	 * Looks for the hits of the k-mer with the given code
+	 * @param code of the k-mer calculated with the method encode
+	 * @param kmer Sequence of the k-mer. Used as query of the returned hits
+	 * @return List<UngappedSearchHit> New hits of the k-mer. An empty list if the k-mer is repetitive. Null if the k-mer is not in the cache
+	 */
+	public List<UngappedSearchHit> get(long code, String kmer) {
+		lookups.incrementAndGet();
+		if(code<0) return null;
+		CachedKmer entry = table.get(getSlot(code));
+		if(entry == null || entry.code!=code) return null;
+		cacheHits.incrementAndGet();
+		List<UngappedSearchHit> answer = new ArrayList<>(entry.sequenceIdxs.length);
+		for(int i=0;i<entry.sequenceIdxs.length;i++) {
+			UngappedSearchHit hit = new UngappedSearchHit(kmer, entry.sequenceIdxs[i], entry.starts[i]);
+			hit.setSequenceName(entry.sequenceNames[i]);
+			answer.add(hit);
+		}
+		return answer;
+	}
+
+	/**
+	 * Stores the hits of the k-mer with the given code if it has at least the minimum number of hits
+	 * @param code of the k-mer calculated with the method encode
+	 * @param hits of the k-mer
+	 */
+	public void put(long code, List<UngappedSearchHit> hits) {
+		if(code<0 || hits.size()<minHits) return;
+		int n = hits.size();
+		CachedKmer entry = new CachedKmer(code, n);
+		for(int i=0;i<n;i++) {
+			UngappedSearchHit hit = hits.get(i);
+			entry.sequenceIdxs[i] = hit.getSequenceIdx();
+			entry.starts[i] = hit.getStart();
+			entry.sequenceNames[i] = hit.getSequenceName();
+		}
+		table.set(getSlot(code), entry);
+	}
+
+	/**
+	 * Stores the k-mer with the given code as repetitive. Later calls to get will return an empty list
+	 * @param code of the k-mer calculated with the method encode
+	 */
+	public void putRepetitive(long code) {
+		if(code<0) return;
+		table.set(getSlot(code), new CachedKmer(code, 0));
+	}
+
+	private int getSlot(long code) {
+		return (int)((code * 0x9E3779B97F4A7C15L) >>> (64-hashBits));
+	}
+
+	/**
+	 * @return long Number of k-mers searched in the cache
+	 */
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return long Number of k-mers found in the cache
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return double Fraction of the k-mers searched that were found in the cache
+	 */
+	public double getHitRate() {
+		long l = lookups.get();
+		if(l==0) return 0;
+		return (double)cacheHits.get()/l;
+	}
+
+	private static class CachedKmer {
+		private final long code;
+		private final int [] sequenceIdxs;
+		private final int [] starts;
+		private final String [] sequenceNames;
+
+		public CachedKmer(long code, int numHits) {
+			this.code = code;
+			sequenceIdxs = new int [numHits];
+			starts = new int [numHits];
+			sequenceNames = new String [numHits];
+		}
+	}
+}
@@ -19,6 +19,7 @@
  *******************************************************************************/
 package ngsep.alignments;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -30,6 +31,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.sequences.UngappedSearchHit;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.HammingSequenceDistanceMeasure;
+import ngsep.sequences.KmerHitsChainer;
 import ngsep.sequences.KmerHitsCluster;
 import ngsep.sequences.KmersExtractor;
 import ngsep.sequences.KmersMapAnalyzer;
@@ -46,10 +48,14 @@ public class MinimizersTableReadAlignmentAlgorithm implements ReadAlignmentAlgor
 	private Logger log = Logger.getLogger(MinimizersTableReadAlignmentAlgorithm.class.getName());
 	private int maxLengthFullPairwiseAlignment = 4000;
 	private int maxLengthEndsPairwiseAlignment = 500;
-	private PairwiseAlignmentAffineGap alignerCenter = new PairwiseAlignmentAffineGap(maxLengthFullPairwiseAlignment+1);
+	// The matrices of the aligners grow as needed. Each thread owns an instance of this class
+	private PairwiseAlignmentAffineGap alignerCenter = new PairwiseAlignmentAffineGap(maxLengthEndsPairwiseAlignment);
 	private PairwiseAlignmentAffineGap alignerStart = new PairwiseAlignmentAffineGap(maxLengthEndsPairwiseAlignment);
 	private PairwiseAlignmentAffineGap alignerEnd = new PairwiseAlignmentAffineGap(maxLengthEndsPairwiseAlignment);
 	private int maxAlnsPerRead = 3;
+	// Co-linear chaining of the hits to each sequence. If false, hits are clustered by predicted position
+	private boolean chainHits = true;
+	private KmerHitsChainer chainer = new KmerHitsChainer();
 	private ReferenceGenome genome;
 	private MinimizersTable minimizersTable;
 	private boolean onlyPositiveStrand = false;
@@ -74,12 +80,38 @@ public class MinimizersTableReadAlignmentAlgorithm implements ReadAlignmentAlgor
 	public void setMaxAlnsPerRead(int maxAlnsPerRead) {
 		this.maxAlnsPerRead = maxAlnsPerRead;
 	}
+	
+	public boolean isChainHits() {
+		return chainHits;
+	}
+
+	public void setChainHits(boolean chainHits) {
+		this.chainHits = chainHits;
+	}
+	
+	/**
+	 * @return long Total number of cells of the dynamic programming matrices calculated to build alignments
+	 */
+	public long getCalculatedCells() {
+		return alignerStart.getCalculatedCells()+alignerCenter.getCalculatedCells()+alignerEnd.getCalculatedCells();
+	}
 
 	public void loadGenome(ReferenceGenome genome, int kmerLength, int windowLength) {
+		loadGenome(genome, kmerLength, windowLength, 1);
+	}
+	/**
+	 * Builds the minimizers table of the given genome
+	 * @param genome Reference genome
+	 * @param kmerLength Length of the k-mers to calculate minimizers
+	 * @param windowLength Number of consecutive k-mers to select each minimizer
+	 * @param numThreads Number of threads used to build the table
+	 */
+	public void loadGenome(ReferenceGenome genome, int kmerLength, int windowLength, int numThreads) {
 		this.genome = genome;
 		int n = genome.getNumSequences();
 		log.info("Calculating kmers distribution");
 		KmersExtractor extractor = new KmersExtractor();
+		extractor.setCanonical(true);
 		extractor.processQualifiedSequences(genome.getSequencesList());
 		KmersMapAnalyzer analyzer = new KmersMapAnalyzer(extractor.getKmersMap(), true);
 		log.info("Creating minimizers table for genome with "+n+" sequences loaded from file: "+genome.getFilename());
@@ -87,14 +119,33 @@ public class MinimizersTableReadAlignmentAlgorithm implements ReadAlignmentAlgor
 		minimizersTable = new MinimizersTable(kmerLength, windowLength);
 		minimizersTable.setKeepSingletons(true);
 		minimizersTable.setLog(log);
-		for (int i=0;i<n;i++) {
-			minimizersTable.addSequence(i, genome.getSequenceCharacters(i));
-		}
+		minimizersTable.addSequences(genome.getSequencesList(), numThreads);
 		minimizersTable.calculateDistributionHits().printDistribution(System.out);
 		log.info("Calculated minimizers. Total: "+minimizersTable.size());
 	}
 	
 	
+	/**
+	 * Loads a minimizers table prebuilt for the given genome. See GenomeMinimizersIndexer
+	 * @param genome Reference genome
+	 * @param minimizersTableFile File with the minimizers table of the genome
+	 * @throws IOException If the file can not be read or if the table was not built for the given genome
+	 */
+	public void loadGenome(ReferenceGenome genome, String minimizersTableFile) throws IOException {
+		log.info("Loading minimizers table from file: "+minimizersTableFile);
+		MinimizersTable table = MinimizersTable.load(minimizersTableFile);
+		int n = genome.getNumSequences();
+		if(table.getNumberOfSequences()!=n) throw new IOException("The minimizers table in file "+minimizersTableFile+" was built for a genome with "+table.getNumberOfSequences()+" sequences. Loaded genome has "+n+" sequences");
+		for(int i=0;i<n;i++) {
+			QualifiedSequence seq = genome.getSequenceByIndex(i);
+			if(table.getSequenceLength(i)!=seq.getLength()) throw new IOException("The minimizers table in file "+minimizersTableFile+" was not built for the loaded genome. Length of sequence "+seq.getName()+" in the table: "+table.getSequenceLength(i)+" in the genome: "+seq.getLength());
+		}
+		table.setLog(log);
+		this.genome = genome;
+		this.minimizersTable = table;
+		log.info("Loaded minimizers table. Total minimizers: "+table.size()+" k-mer length: "+table.getKmerLength()+" window length: "+table.getWindowLength());
+	}
+	
 	public MinimizersTable getMinimizersTable() {
 		return minimizersTable;
 	}
@@ -144,6 +195,10 @@ public class MinimizersTableReadAlignmentAlgorithm implements ReadAlignmentAlgor
 		for (int sequenceIdx:hitsByReference.keySet()) {
 			int sequenceLength = genome.getSequenceByIndex(sequenceIdx).getLength();
 			List<UngappedSearchHit> totalHitsSubject = hitsByReference.get(sequenceIdx);
+			if(chainHits) {
+				clusters.addAll(buildChainClusters(queryLength, sequenceLength, totalHitsSubject));
+				continue;
+			}
 			Collections.sort(totalHitsSubject, (h1,h2)->h1.getStart()-h2.getStart());
 			KmerHitsCluster cluster = null;
 			for(UngappedSearchHit hit:totalHitsSubject) {
@@ -190,6 +245,34 @@ public class MinimizersTableReadAlignmentAlgorithm implements ReadAlignmentAlgor
 	}
 
 	
+	/**
+	 * Builds clusters from the best co-linear chains of the given hits
+	 * @param queryLength Length of the query
+	 * @param subjectLength Length of the subject sequence
+	 * @param hits K-mer hits of the query to the subject sequence
+	 * @return List<KmerHitsCluster> Clusters with the hits of each chain having enough hits
+	 */
+	private List<KmerHitsCluster> buildChainClusters(int queryLength, int subjectLength, List<UngappedSearchHit> hits) {
+		List<UngappedSearchHit> selectedHits = new ArrayList<>(hits.size());
+		for(UngappedSearchHit hit:hits) {
+			if(hit.getWeight()>=0.01) selectedHits.add(hit);
+		}
+		List<KmerHitsCluster> clusters = new ArrayList<>();
+		for(List<UngappedSearchHit> chain:chainer.findChains(selectedHits)) {
+			KmerHitsCluster cluster = new KmerHitsCluster(queryLength, subjectLength, chain.get(0));
+			for(int i=1;i<chain.size();i++) {
+				if(cluster.addKmerHit(chain.get(i), 0)) continue;
+				//The accumulated shift of the chain is larger than the query. The chain is split
+				addChainCluster(clusters, cluster, queryLength);
+				cluster = new KmerHitsCluster(queryLength, subjectLength, chain.get(i));
+			}
+			addChainCluster(clusters, cluster, queryLength);
+		}
+		return clusters;
+	}
+	private void addChainCluster(List<KmerHitsCluster> clusters, KmerHitsCluster cluster, int queryLength) {
+		if(cluster.getNumDifferentKmers()>=0.01*queryLength) clusters.add(cluster);
+	}
 
 	public void printClusters(List<KmerHitsCluster> clusters) {
 		System.out.println("Clusters: "+clusters.size());
@@ -150,7 +150,35 @@ public class ReadAlignment implements GenomicRegion {
 		this.setFlags(flags);
 		updateAlleleCallsInfo();
 	}
-	
+
+	/**
+	 * Creates a copy of the given alignment. Later changes to either alignment do not affect the other
+	 * @param other Alignment to copy
+	 */
+	public ReadAlignment(ReadAlignment other) {
+		this.sequenceIndex = other.sequenceIndex;
+		this.sequenceName = other.sequenceName;
+		this.first = other.first;
+		this.last = other.last;
+		this.flags = other.flags;
+		this.alignmentQuality = other.alignmentQuality;
+		this.mateSequenceName = other.mateSequenceName;
+		this.mateFirst = other.mateFirst;
+		this.inferredInsertSize = other.inferredInsertSize;
+		this.numMismatches = other.numMismatches;
+		if(other.alignment!=null) this.alignment = Arrays.copyOf(other.alignment, other.alignment.length);
+		this.readLength = other.readLength;
+		if(other.readName!=null) this.readName = Arrays.copyOf(other.readName, other.readName.length);
+		this.readCharacters = other.readCharacters;
+		if(other.qualityScores!=null) this.qualityScores = Arrays.copyOf(other.qualityScores, other.qualityScores.length);
+		this.readNumber = other.readNumber;
+		this.basesToIgnoreCloseToIndel = other.basesToIgnoreCloseToIndel;
+		this.basesToIgnoreStart = other.basesToIgnoreStart;
+		this.basesToIgnoreEnd = other.basesToIgnoreEnd;
+		this.readGroup = other.readGroup;
+		updateAlleleCallsInfo();
+	}
+
 	/**
 	 * @return the sequenceIndex
 	 */
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ngsep.sequences.RawRead;
+
+/**
+ * Bounded cache of the alignments of read sequences, shared by the threads aligning reads.
+ * It allows to align only once reads with exactly the same sequence, which are common in GBS and amplicon libraries.
+ * The cache is a direct mapped table in which each sequence can only be stored in the slot given by its hash code.
+ * New sequences replace the sequences stored in the same slot. Stored alignments are never modified.
+ * Each call to get returns new copies having the name and quality scores of the given read
+ */
+public class ReadAlignmentsCache {
+
+	public static final int DEFAULT_CAPACITY = 131072;
+
+	private final int hashBits;
+	private final AtomicReferenceArray<CachedRead> table;
+
+	// Statistics
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	/**
+	 * Creates a new cache
+	 * @param capacity Maximum number of read sequences stored. It is rounded up to a power of two
+	 */
+	public ReadAlignmentsCache(int capacity) {
+		if(capacity<1) throw new IllegalArgumentException("The capacity of the cache must be a positive number. Value: "+capacity);
+		int bits = 1;
+		while(bits<30 && (1<<bits)<capacity) bits++;
+		hashBits = bits;
+		table = new AtomicReferenceArray<>(1<<bits);
+	}
+
+	/**
+	 * @return int Maximum number of read sequences stored in this cache
+	 */
+	public int getCapacity() {
+		return table.length();
+	}
+
+	/**
+	 * Looks for the alignments of a read with the same sequence as the given read
+	 * @param read to search
+	 * @return List<ReadAlignment> New alignments with the name and quality scores of the given read.
+	 * An empty list if the sequence was stored as unmapped. Null if the sequence is not in the cache
+	 */
+	public List<ReadAlignment> get(RawRead read) {
+		lookups.incrementAndGet();
+		String sequence = read.getSequenceString();
+		CachedRead entry = table.get(getSlot(sequence));
+		if(entry == null || !entry.sequence.equals(sequence)) return null;
+		cacheHits.incrementAndGet();
+		List<ReadAlignment> answer = new ArrayList<>(entry.alignments.length);
+		if(entry.alignments.length==0) return answer;
+		String qual = read.getQualityScores();
+		String reverseQS;
+		if(qual == null || qual.length()!=sequence.length()) {
+			qual = RawRead.generateFixedQSString('5', sequence.length());
+			reverseQS = qual;
+		} else {
+			reverseQS = new StringBuilder(qual).reverse().toString();
+		}
+		for(ReadAlignment stored:entry.alignments) {
+			ReadAlignment aln = new ReadAlignment(stored);
+			aln.setReadName(read.getName());
+			if(!aln.isNegativeStrand()) aln.setQualityScores(qual);
+			else aln.setQualityScores(reverseQS);
+			answer.add(aln);
+		}
+		return answer;
+	}
+
+	/**
+	 * Stores copies of the alignments of the given read
+	 * @param read Aligned read
+	 * @param alignments of the read. An empty list indicates that the read could not be aligned
+	 */
+	public void put(RawRead read, List<ReadAlignment> alignments) {
+		String sequence = read.getSequenceString();
+		CachedRead entry = new CachedRead(sequence, alignments.size());
+		for(int i=0;i<entry.alignments.length;i++) entry.alignments[i] = new ReadAlignment(alignments.get(i));
+		table.set(getSlot(sequence), entry);
+	}
+
+	private int getSlot(String sequence) {
+		return (sequence.hashCode() * 0x9E3779B9) >>> (32-hashBits);
+	}
+
+	/**
+	 * @return long Number of reads searched in the cache
+	 */
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return long Number of reads found in the cache
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return double Fraction of the reads searched that were found in the cache
+	 */
+	public double getHitRate() {
+		long l = lookups.get();
+		if(l==0) return 0;
+		return (double)cacheHits.get()/l;
+	}
+
+	private static class CachedRead {
+		private final String sequence;
+		private final ReadAlignment [] alignments;
+
+		public CachedRead(String sequence, int numAlignments) {
+			this.sequence = sequence;
+			alignments = new ReadAlignment [numAlignments];
+		}
+	}
+}
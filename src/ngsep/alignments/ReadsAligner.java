@@ -20,6 +20,7 @@
 package ngsep.alignments;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
@@ -27,8 +28,11 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 
 import ngsep.alignments.io.ReadAlignmentFileWriter;
@@ -40,7 +44,10 @@ import ngsep.main.ProgressNotifier;
 import ngsep.main.ThreadPoolManager;
 import ngsep.main.io.ParseUtils;
 import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.FMIndex;
+import ngsep.sequences.FMIndexSingleSequence;
 import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.MinimizersTable;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.sequences.RawRead;
@@ -66,10 +73,18 @@ public class ReadsAligner {
 	public static final int DEF_MIN_INSERT_LENGTH=0;
 	public static final int DEF_MAX_INSERT_LENGTH=1000;
 	public static final int DEF_NUM_THREADS=1;
+	public static final int DEF_SORT_MEMORY=512;
+	public static final int DEF_COMPRESSION_THREADS=1;
+	public static final int DEF_COMPRESSION_LEVEL=ReadAlignmentFileWriter.DEF_COMPRESSION_LEVEL;
+	public static final int DEF_DUPLICATES_CACHE_SIZE=ReadAlignmentsCache.DEFAULT_CAPACITY;
 	
 
 	public static final int MAX_SPACE_BETWEEN_KMERS = 50;
 	
+	//Number of reads sent to each alignment task
+	private static final int BATCH_SIZE_SHORT_READS = 1000;
+	private static final int BATCH_SIZE_LONG_READS = 10;
+	
 	// Logging and progress
 	private Logger log = Logger.getLogger(ReadsAligner.class.getName());
 	private ProgressNotifier progressNotifier = null;
@@ -79,6 +94,7 @@ public class ReadsAligner {
 	private String inputFile2 = null;
 	private String outputFile = null;
 	private String fmIndexFile = null;
+	private String minimizersTableFile = null;
 	private String knownSTRsFile = null;
 	private String sampleId = DEF_SAMPLE_ID;
 	private ReadAlignment.Platform platform = DEF_PLATFORM;
@@ -91,13 +107,23 @@ public class ReadsAligner {
 	
 	
 	private int numThreads = DEF_NUM_THREADS;
+	private boolean sortByCoordinate = false;
+	private int sortMemory = DEF_SORT_MEMORY;
+	private int compressionThreads = DEF_COMPRESSION_THREADS;
+	private int compressionLevel = DEF_COMPRESSION_LEVEL;
+	private boolean skipValidation = false;
+	private boolean smemSeeding = false;
+	private boolean collapseDuplicates = false;
+	private int duplicatesCacheSize = DEF_DUPLICATES_CACHE_SIZE;
 	
 	// Model attributes
 	private ReferenceGenome genome;
 	private ReferenceGenomeFMIndex fMIndex=null;
 	private FMIndexReadAlignmentAlgorithm shortReadsAligner;
-	//The process will handle as many long read aligners as number of threads
-	private List<MinimizersTableReadAlignmentAlgorithm> longReadsAligners = new ArrayList<MinimizersTableReadAlignmentAlgorithm>();
+	//Each thread owns a long reads aligner. All aligners share the same minimizers table
+	private ThreadLocal<MinimizersTableReadAlignmentAlgorithm> longReadsAligners;
+	//Alignments of reads already aligned. Null if duplicated reads are aligned independently
+	private ReadAlignmentsCache duplicatesCache;
 	
 	private ThreadPoolManager pool;
 	
@@ -160,6 +186,13 @@ public class ReadsAligner {
 		this.fmIndexFile = fmIndexFile;
 	}
 
+	public String getMinimizersTableFile() {
+		return minimizersTableFile;
+	}
+	public void setMinimizersTableFile(String minimizersTableFile) {
+		this.minimizersTableFile = minimizersTableFile;
+	}
+
 	public String getOutputFile() {
 		return outputFile;
 	}
@@ -261,6 +294,106 @@ public class ReadsAligner {
 	public void setNumThreads(String value) {
 		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
+	
+	public boolean isSortByCoordinate() {
+		return sortByCoordinate;
+	}
+	public void setSortByCoordinate(boolean sortByCoordinate) {
+		this.sortByCoordinate = sortByCoordinate;
+	}
+	public void setSortByCoordinate(Boolean sortByCoordinate) {
+		this.setSortByCoordinate(sortByCoordinate.booleanValue());
+	}
+	
+	/**
+	 * @return int Memory in megabytes used to keep alignments while they are sorted
+	 */
+	public int getSortMemory() {
+		return sortMemory;
+	}
+	public void setSortMemory(int sortMemory) {
+		if(sortMemory<=0) throw new IllegalArgumentException("The memory to sort alignments must be a positive number. Value: "+sortMemory);
+		this.sortMemory = sortMemory;
+	}
+	public void setSortMemory(String value) {
+		setSortMemory((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getCompressionThreads() {
+		return compressionThreads;
+	}
+	public void setCompressionThreads(int compressionThreads) {
+		if(compressionThreads<=0) throw new IllegalArgumentException("The number of compression threads must be a positive number. Value: "+compressionThreads);
+		this.compressionThreads = compressionThreads;
+	}
+	public void setCompressionThreads(String value) {
+		setCompressionThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel<0 || compressionLevel>9) throw new IllegalArgumentException("Invalid compression level: "+compressionLevel+". It must be between 0 and 9");
+		this.compressionLevel = compressionLevel;
+	}
+	public void setCompressionLevel(String value) {
+		setCompressionLevel((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public boolean isSkipValidation() {
+		return skipValidation;
+	}
+	public void setSkipValidation(boolean skipValidation) {
+		this.skipValidation = skipValidation;
+	}
+	public void setSkipValidation(Boolean skipValidation) {
+		this.setSkipValidation(skipValidation.booleanValue());
+	}
+	
+	public boolean isSmemSeeding() {
+		return smemSeeding;
+	}
+	public void setSmemSeeding(boolean smemSeeding) {
+		this.smemSeeding = smemSeeding;
+	}
+	public void setSmemSeeding(Boolean smemSeeding) {
+		this.setSmemSeeding(smemSeeding.booleanValue());
+	}
+	
+	public boolean isCollapseDuplicates() {
+		return collapseDuplicates;
+	}
+	public void setCollapseDuplicates(boolean collapseDuplicates) {
+		this.collapseDuplicates = collapseDuplicates;
+	}
+	public void setCollapseDuplicates(Boolean collapseDuplicates) {
+		this.setCollapseDuplicates(collapseDuplicates.booleanValue());
+	}
+	
+	public int getDuplicatesCacheSize() {
+		return duplicatesCacheSize;
+	}
+	public void setDuplicatesCacheSize(int duplicatesCacheSize) {
+		if(duplicatesCacheSize<1) throw new IllegalArgumentException("The size of the cache of duplicated reads must be a positive number. Value: "+duplicatesCacheSize);
+		this.duplicatesCacheSize = duplicatesCacheSize;
+	}
+	public void setDuplicatesCacheSize(String value) {
+		setDuplicatesCacheSize((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	/**
+	 * @return int Total number of reads processed in the last run
+	 */
+	public int getTotalReads() {
+		return totalReads;
+	}
+	/**
+	 * @return int Number of reads aligned in the last run
+	 */
+	public int getReadsAligned() {
+		return readsAligned;
+	}
 	public static void main(String[] args) throws Exception 
 	{
 		ReadsAligner instance = new ReadsAligner();
@@ -275,7 +408,7 @@ public class ReadsAligner {
 		
 		QualifiedSequenceList sequences = genome.getSequencesMetadata();
 		if (platform.isLongReads()) {
-			createFirstLongReadAligner();
+			createLongReadsAligners();
 		} else {
 			if (fMIndex!=null) {
 				log.info("Aligning reads using built index with "+fMIndex.getSequencesMetadata().size()+" sequences");
@@ -284,17 +417,17 @@ public class ReadsAligner {
 				fMIndex = ReferenceGenomeFMIndex.load(genome, fmIndexFile);
 			} else {
 				log.info("Calculating FM-index from genome file: "+genome.getFilename());
-				fMIndex = new ReferenceGenomeFMIndex(genome, log);
+				if(smemSeeding) fMIndex = new ReferenceGenomeFMIndex(genome, FMIndexSingleSequence.DEFAULT_SUFFIX_FRACTION, 1, FMIndex.DEFAULT_MAX_CHUNK_LENGTH, true, log);
+				else fMIndex = new ReferenceGenomeFMIndex(genome, log);
 			}
 			createFMIndexReadsAligner();
+			if(collapseDuplicates) duplicatesCache = new ReadAlignmentsCache(duplicatesCacheSize);
 		}
 		
 		boolean longReads = platform.isLongReads();
-		pool = new ThreadPoolManager(numThreads, longReads?100:10000);
+		pool = new ThreadPoolManager(numThreads, 2*getMaxBatchesInFlight());
 		boolean paired = false;
-		PrintStream out = System.out;
-		if(outputFile!=null) out = new PrintStream(outputFile); 
-		try (ReadAlignmentFileWriter writer = new ReadAlignmentFileWriter(sequences, out)){
+		try (ReadAlignmentFileWriter writer = createOutputWriter(sequences)){
 			writer.setSampleInfo(sampleId, platform);
 			if(!longReads && inputFile!=null && inputFile2!=null) {
 				log.info("Aligning paired end reads from files: "+inputFile + " and "+inputFile2);
@@ -320,8 +453,24 @@ public class ReadsAligner {
 		printStatistics(paired);
 		
 	}
+	private ReadAlignmentFileWriter createOutputWriter(QualifiedSequenceList sequences) throws IOException {
+		ReadAlignmentFileWriter writer;
+		if(outputFile==null) writer = new ReadAlignmentFileWriter(sequences, System.out);
+		else if (sortByCoordinate) writer = new ReadAlignmentFileWriter(sequences, new File(outputFile));
+		else writer = new ReadAlignmentFileWriter(sequences, new PrintStream(outputFile));
+		if(sortByCoordinate) writer.setSortByCoordinate(1024L*1024*sortMemory);
+		writer.setCompressionThreads(compressionThreads);
+		writer.setCompressionLevel(compressionLevel);
+		writer.setValidateRecords(!skipValidation);
+		return writer;
+	}
+	
 	private void createFMIndexReadsAligner() {
 		shortReadsAligner = new FMIndexReadAlignmentAlgorithm(fMIndex,kmerLength,maxAlnsPerRead);
+		if(smemSeeding) {
+			if(fMIndex.isBidirectional()) shortReadsAligner.setSmemSeeding(true);
+			else log.warning("The FM-index is not bidirectional. Alignments will be seeded with k-mers. Build the index with the option -b of GenomeIndexer to use SMEM seeding");
+		}
 		if(knownSTRsFile!=null && !knownSTRsFile.isEmpty())
 			try {
 				shortReadsAligner.loadSTRsFile(knownSTRsFile);
@@ -339,6 +488,7 @@ public class ReadsAligner {
 		out.println("Output file:"+ outputFile);
 		if (genome!=null) out.println("Reference genome loaded from file: "+genome.getFilename());
 		if (fmIndexFile!=null) out.println("FM index file "+fmIndexFile);
+		if (minimizersTableFile!=null) out.println("Minimizers table file "+minimizersTableFile);
 		out.println("Sample id: "+ sampleId);
 		out.println("Platform: "+ platform);
 		out.println("K-mer length: "+ kmerLength);
@@ -352,6 +502,11 @@ public class ReadsAligner {
 			out.println("Proper limits for paired-end alignment. Minimum: "+ minInsertLength+" maximum: "+maxInsertLength);
 		}
 		out.println("Number of threads: "+ numThreads);
+		if(sortByCoordinate) out.println("Sort alignments by coordinate using up to "+sortMemory+" MB");
+		out.println("Output compression level: "+compressionLevel+" threads: "+compressionThreads);
+		if(skipValidation) out.println("Skip validation of output records");
+		if(smemSeeding) out.println("Seed alignments of short reads with super-maximal exact matches");
+		if(collapseDuplicates) out.println("Align once reads with the same sequence. Sequences stored: "+duplicatesCacheSize);
 		log.info(os.toString());
 	}
 	
@@ -368,23 +523,12 @@ public class ReadsAligner {
 		if(inputFormat == INPUT_FORMAT_FASTQ) {
 			try (FastqFileReader reader = new FastqFileReader(readsFile)) {
 				reader.setSequenceType(DNAMaskedSequence.class);
-				Iterator<RawRead> it = reader.iterator();
-				for(int i=1;it.hasNext();i++) {
-					RawRead read = it.next();
-					final int readNumber = i;
-					pool.queueTask( () -> processSingleRead(readNumber, read, writer));
-				}
+				alignReads(reader.iterator(), null, writer);
 			}
 		} else if(inputFormat== INPUT_FORMAT_FASTA) {
 			try (FastaFileReader reader = new FastaFileReader(readsFile)) {
 				reader.setSequenceType(DNAMaskedSequence.class);
-				Iterator<QualifiedSequence> it = reader.iterator();
-				for(int i=1;it.hasNext();i++) {
-					QualifiedSequence seq = it.next();
-					RawRead read = new RawRead(seq.getName(), seq.getCharacters(),null);
-					final int readNumber = i;
-					pool.queueTask( () -> processSingleRead(readNumber, read, writer));
-				}
+				alignReads(new RawReadsFastaIterator(reader.iterator()), null, writer);
 			}
 		}
 	}
@@ -392,23 +536,12 @@ public class ReadsAligner {
 		if(inputFormat == INPUT_FORMAT_FASTQ) {
 			try (FastqFileReader reader = new FastqFileReader(in)) {
 				reader.setSequenceType(DNAMaskedSequence.class);
-				Iterator<RawRead> it = reader.iterator();
-				for(int i=1;it.hasNext();i++) {
-					RawRead read = it.next();
-					final int readNumber = i;
-					pool.queueTask( () -> processSingleRead(readNumber, read, writer));
-				}
+				alignReads(reader.iterator(), null, writer);
 			}
 		}  else if(inputFormat== INPUT_FORMAT_FASTA) {
 			try (FastaFileReader reader = new FastaFileReader(in)) {
 				reader.setSequenceType(DNAMaskedSequence.class);
-				Iterator<QualifiedSequence> it = reader.iterator();
-				for(int i=1;it.hasNext();i++) {
-					QualifiedSequence seq = it.next();
-					RawRead read = new RawRead(seq.getName(), seq.getCharacters(),null);
-					final int readNumber = i;
-					pool.queueTask( () -> processSingleRead(readNumber, read, writer));
-				}
+				alignReads(new RawReadsFastaIterator(reader.iterator()), null, writer);
 			}
 		}
 	}
@@ -428,18 +561,82 @@ public class ReadsAligner {
 			 FastqFileReader reader2 = new FastqFileReader(readsFile2)) {
 			reader1.setSequenceType(DNAMaskedSequence.class);
 			reader2.setSequenceType(DNAMaskedSequence.class);
-			Iterator<RawRead> it1 = reader1.iterator();
-			Iterator<RawRead> it2 = reader2.iterator();
-			for(int i=1;it1.hasNext() && it2.hasNext();i++) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				final int readNumber = i;
-				pool.queueTask(()->processPairedEndRead(readNumber, read1, read2, writer));
+			alignReads(reader1.iterator(), reader2.iterator(), writer);
+		}
+	}
+	
+	/**
+	 * Runs the alignment pipeline over the given reads. The calling thread reads batches of reads,
+	 * the pool threads align complete batches and a single writer thread saves the alignments
+	 * of each batch following the order of the input reads. 
+	 * @param it1 Iterator over single reads or over the first reads of each pair
+	 * @param it2 Iterator over the second reads of each pair. Null for single reads
+	 * @param writer to save the alignments
+	 * @throws InterruptedException If the process is cancelled or interrupted
+	 */
+	private void alignReads(Iterator<RawRead> it1, Iterator<RawRead> it2, ReadAlignmentFileWriter writer) throws InterruptedException {
+		int batchSize = platform.isLongReads()?BATCH_SIZE_LONG_READS:BATCH_SIZE_SHORT_READS;
+		if(it2!=null) batchSize/=2;
+		int maxBatchesInFlight = getMaxBatchesInFlight();
+		Semaphore batchesInFlight = new Semaphore(maxBatchesInFlight);
+		AlignmentsWriterThread writerThread = new AlignmentsWriterThread(writer, batchesInFlight);
+		writerThread.start();
+		int numBatches = 0;
+		InterruptedException cancelled = null;
+		try {
+			ReadsBatch batch = new ReadsBatch(numBatches, 1, it2!=null);
+			for(int i=1;it1.hasNext() && (it2==null || it2.hasNext());i++) {
+				batch.addReads(it1.next(), (it2!=null)?it2.next():null);
+				if(batch.size()==batchSize) {
+					queueBatch(batch, writerThread, batchesInFlight);
+					numBatches++;
+					batch = new ReadsBatch(numBatches, i+1, it2!=null);
+				}
+			}
+			if(batch.size()>0) {
+				queueBatch(batch, writerThread, batchesInFlight);
+				numBatches++;
+			}
+		} catch (InterruptedException e) {
+			//The pool is also cancelled if the writer fails. In that case the error of the writer is reported
+			cancelled = e;
+		} finally {
+			writerThread.finish(numBatches);
+			writerThread.join();
+		}
+		if(writerThread.getError()!=null) throw writerThread.getError();
+		if(cancelled!=null) throw cancelled;
+	}
+	private int getMaxBatchesInFlight() {
+		return 4*numThreads;
+	}
+
+	private void queueBatch(ReadsBatch batch, AlignmentsWriterThread writerThread, Semaphore batchesInFlight) throws InterruptedException {
+		batchesInFlight.acquire();
+		try {
+			pool.queueTask(()->processBatch(batch, writerThread));
+		} catch (InterruptedException e) {
+			batchesInFlight.release();
+			throw e;
+		}
+	}
+	
+	private void processBatch(ReadsBatch batch, AlignmentsWriterThread writerThread) {
+		try {
+			for(int i=0;i<batch.size();i++) {
+				List<ReadAlignment> alns;
+				if(batch.reads2!=null) alns = processPairedEndRead(batch, batch.reads1.get(i), batch.reads2.get(i));
+				else alns = processSingleRead(batch, batch.reads1.get(i));
+				batch.alignments.add(alns);
 			}
+		} catch (Throwable e) {
+			//The batch must always reach the writer, otherwise the writer waits for it forever
+			batch.error = (e instanceof RuntimeException)?(RuntimeException)e:new RuntimeException(e);
 		}
+		writerThread.submit(batch);
 	}
 	
-	private void processSingleRead(int readNumber, RawRead read, ReadAlignmentFileWriter writer) {
+	private List<ReadAlignment> processSingleRead(ReadsBatch batch, RawRead read) {
 		List<ReadAlignment> alns = alignRead(read, true);
 		//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
 		int numAlns = alns.size();
@@ -448,16 +645,13 @@ public class ReadsAligner {
 		} else if (alns.size()==0) {
 			alns.add(createUnmappedAlignment(read, false, false));
 		}
-		synchronized (writer) {
-			for(ReadAlignment aln:alns) writer.write(aln);
-			totalReads++;
-			if(numAlns>0) readsAligned++;
-			if(numAlns==1) uniqueAlignments++;
-		}
-		checkProgress(readNumber);
+		batch.totalReads++;
+		if(numAlns>0) batch.readsAligned++;
+		if(numAlns==1) batch.uniqueAlignments++;
+		return alns;
 	}
 	
-	private void processPairedEndRead (int readNumber, RawRead read1, RawRead read2, ReadAlignmentFileWriter writer) {
+	private List<ReadAlignment> processPairedEndRead (ReadsBatch batch, RawRead read1, RawRead read2) {
 		List<ReadAlignment> alns1 = alignRead(read1,false);
 		for(ReadAlignment aln:alns1) aln.setFirstOfPair(true);
 		List<ReadAlignment> alns2 = alignRead(read2,false);
@@ -531,16 +725,27 @@ public class ReadsAligner {
 				if(pairAlns.size()==1) numUnique=2;
 			}
 		}
-		synchronized (writer) {
-			for(ReadAlignment aln:alns) writer.write(aln);
-			totalReads+=2;
-			readsAligned+=numMapped;
-			if(proper) numProperPairs+=2;
-			else if (asPair) numNonProperPairs+=2;
-			else numAlignedSingle+=numMapped;
-			uniqueAlignments+=numUnique;
+		batch.totalReads+=2;
+		batch.readsAligned+=numMapped;
+		if(proper) batch.numProperPairs+=2;
+		else if (asPair) batch.numNonProperPairs+=2;
+		else batch.numAlignedSingle+=numMapped;
+		batch.uniqueAlignments+=numUnique;
+		return alns;
+	}
+	
+	private void saveBatch(ReadsBatch batch, ReadAlignmentFileWriter writer) {
+		if(batch.error!=null) throw batch.error;
+		for(int i=0;i<batch.size();i++) {
+			for(ReadAlignment aln:batch.alignments.get(i)) writer.write(aln);
+			checkProgress(batch.firstReadNumber+i);
 		}
-		checkProgress(readNumber);
+		totalReads+=batch.totalReads;
+		readsAligned+=batch.readsAligned;
+		numProperPairs+=batch.numProperPairs;
+		numNonProperPairs+=batch.numNonProperPairs;
+		numAlignedSingle+=batch.numAlignedSingle;
+		uniqueAlignments+=batch.uniqueAlignments;
 	}
 	
 	private void checkProgress (int readNumber) {
@@ -738,41 +943,49 @@ public class ReadsAligner {
 	public List<ReadAlignment> alignRead(RawRead read, boolean assignSecondaryStatus) {
 		List<ReadAlignment> alignments;
 		if(platform.isLongReads()) {
-			MinimizersTableReadAlignmentAlgorithm longReadsAligner = requestLongReadsAligner();
-			synchronized (longReadsAligner) {
-				alignments = longReadsAligner.alignRead(read);
+			if(longReadsAligners==null) {
+				try {
+					createLongReadsAligners();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
 			}
+			alignments = longReadsAligners.get().alignRead(read);
 		} else {
+			if(duplicatesCache!=null) {
+				alignments = duplicatesCache.get(read);
+				if(alignments!=null) return alignments;
+			}
 			if(shortReadsAligner==null) createFMIndexReadsAligner();
 			alignments = shortReadsAligner.alignRead(read);
 		}
-		return filterAlignments(alignments, assignSecondaryStatus);
-	}
-	private int lastReadsAlignerIndex = 0;
-	private MinimizersTableReadAlignmentAlgorithm requestLongReadsAligner() {
-		if(longReadsAligners.size()==0) {
-			createFirstLongReadAligner();
-			return longReadsAligners.get(0);
-		} else if (longReadsAligners.size()<numThreads) {
-			MinimizersTableReadAlignmentAlgorithm aligner = new MinimizersTableReadAlignmentAlgorithm();
-			MinimizersTableReadAlignmentAlgorithm first = longReadsAligners.get(0);
-			aligner.setLog(log);
-			aligner.setMaxAlnsPerRead(maxAlnsPerRead);
-			aligner.setMinimizersTable(genome, first.getMinimizersTable());
-			longReadsAligners.add(aligner);
-			lastReadsAlignerIndex=longReadsAligners.size()-1;
-			return aligner;
+		alignments = filterAlignments(alignments, assignSecondaryStatus);
+		if(duplicatesCache!=null) duplicatesCache.put(read, alignments);
+		return alignments;
+	}
+	private void createLongReadsAligners() throws IOException {
+		MinimizersTableReadAlignmentAlgorithm firstAligner = createLongReadsAligner();
+		if(minimizersTableFile!=null) {
+			firstAligner.loadGenome(genome, minimizersTableFile);
+			MinimizersTable table = firstAligner.getMinimizersTable();
+			if(table.getKmerLength()!=kmerLength || table.getWindowLength()!=windowLength) {
+				log.warning("Using k-mer length "+table.getKmerLength()+" and window length "+table.getWindowLength()+" of the minimizers table instead of the given values "+kmerLength+" and "+windowLength);
+			}
+		} else {
+			firstAligner.loadGenome (genome, kmerLength, windowLength, numThreads);
 		}
-		lastReadsAlignerIndex++;
-		if(lastReadsAlignerIndex==longReadsAligners.size()) lastReadsAlignerIndex=0;
-		return longReadsAligners.get(lastReadsAlignerIndex);
+		MinimizersTable minimizersTable = firstAligner.getMinimizersTable();
+		longReadsAligners = ThreadLocal.withInitial(()-> {
+			MinimizersTableReadAlignmentAlgorithm aligner = createLongReadsAligner();
+			aligner.setMinimizersTable(genome, minimizersTable);
+			return aligner;
+		});
 	}
-	private void createFirstLongReadAligner() {
-		MinimizersTableReadAlignmentAlgorithm longReadsAligner = new MinimizersTableReadAlignmentAlgorithm();
-		longReadsAligner.setLog(log);
-		longReadsAligner.setMaxAlnsPerRead(maxAlnsPerRead);
-		longReadsAligner.loadGenome (genome, kmerLength, windowLength);
-		longReadsAligners.add(longReadsAligner);
+	private MinimizersTableReadAlignmentAlgorithm createLongReadsAligner() {
+		MinimizersTableReadAlignmentAlgorithm aligner = new MinimizersTableReadAlignmentAlgorithm();
+		aligner.setLog(log);
+		aligner.setMaxAlnsPerRead(maxAlnsPerRead);
+		return aligner;
 	}
 	
 	
@@ -802,7 +1015,10 @@ public class ReadsAligner {
 		if(shortReadsAligner!=null) {
 			out.println("Reads with less than 2 mismatches: "+shortReadsAligner.getFewMismatchesAlns());
 			out.println("Complete alignments tried: "+shortReadsAligner.getCompleteAlns());
+			KmerHitsCache cache = shortReadsAligner.getKmerHitsCache();
+			if(cache!=null) out.println("K-mer searches: "+cache.getLookups()+" Found in cache: "+cache.getCacheHits()+" Hit rate: "+fmt.format(100.0*cache.getHitRate())+"%");
 		}
+		if(duplicatesCache!=null) out.println("Reads searched in the cache of duplicates: "+duplicatesCache.getLookups()+" Found: "+duplicatesCache.getCacheHits()+" Percentage: "+fmt.format(100.0*duplicatesCache.getHitRate())+"%");
 		
 		out.println("Total reads: "+totalReads);
 		out.println("Reads aligned: "+readsAligned);
@@ -816,4 +1032,116 @@ public class ReadsAligner {
 		log.info(os.toString());
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Group of consecutive input reads processed by a single alignment task
+	 */
+	private static class ReadsBatch {
+		private final int batchNumber;
+		private final int firstReadNumber;
+		private final List<RawRead> reads1 = new ArrayList<>();
+		private final List<RawRead> reads2;
+		private final List<List<ReadAlignment>> alignments = new ArrayList<>();
+		private RuntimeException error = null;
+		// Statistics of the batch
+		private int totalReads = 0;
+		private int readsAligned = 0;
+		private int numProperPairs = 0;
+		private int numNonProperPairs = 0;
+		private int numAlignedSingle = 0;
+		private int uniqueAlignments=0;
+		
+		public ReadsBatch(int batchNumber, int firstReadNumber, boolean paired) {
+			this.batchNumber = batchNumber;
+			this.firstReadNumber = firstReadNumber;
+			reads2 = paired?new ArrayList<>():null;
+		}
+		public void addReads (RawRead read1, RawRead read2) {
+			reads1.add(read1);
+			if(reads2!=null) reads2.add(read2);
+		}
+		public int size() {
+			return reads1.size();
+		}
+	}
+	
+	/**
+	 * Thread that receives aligned batches in any order and saves them following the order of the input reads
+	 */
+	private class AlignmentsWriterThread extends Thread {
+		private final ReadAlignmentFileWriter writer;
+		private final Semaphore batchesInFlight;
+		//Reorder buffer with aligned batches waiting for previous batches
+		private final Map<Integer, ReadsBatch> alignedBatches = new HashMap<>();
+		private int nextBatch = 0;
+		private int totalBatches = -1;
+		private RuntimeException error = null;
+		
+		public AlignmentsWriterThread(ReadAlignmentFileWriter writer, Semaphore batchesInFlight) {
+			this.writer = writer;
+			this.batchesInFlight = batchesInFlight;
+		}
+		public RuntimeException getError() {
+			return error;
+		}
+		public synchronized void submit(ReadsBatch batch) {
+			alignedBatches.put(batch.batchNumber, batch);
+			notifyAll();
+		}
+		/**
+		 * Informs that no more batches will be submitted
+		 * @param totalBatches Total number of batches submitted
+		 */
+		public synchronized void finish(int totalBatches) {
+			this.totalBatches = totalBatches;
+			notifyAll();
+		}
+		private synchronized ReadsBatch takeNextBatch() throws InterruptedException {
+			while (!alignedBatches.containsKey(nextBatch)) {
+				if(totalBatches>=0 && nextBatch>=totalBatches) return null;
+				wait();
+			}
+			ReadsBatch batch = alignedBatches.remove(nextBatch);
+			nextBatch++;
+			return batch;
+		}
+		@Override
+		public void run() {
+			try {
+				ReadsBatch batch;
+				while((batch = takeNextBatch())!=null) {
+					//After an error, batches are only consumed to release the reader
+					if(error==null) {
+						try {
+							saveBatch(batch, writer);
+						} catch (Throwable e) {
+							error = (e instanceof RuntimeException)?(RuntimeException)e:new RuntimeException(e);
+							pool.setCancelled(true);
+						}
+					}
+					batchesInFlight.release();
+				}
+			} catch (InterruptedException e) {
+				error = new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Adapts an iterator of fasta sequences to an iterator of reads without quality scores
+	 */
+	private static class RawReadsFastaIterator implements Iterator<RawRead> {
+		private final Iterator<QualifiedSequence> it;
+		public RawReadsFastaIterator(Iterator<QualifiedSequence> it) {
+			this.it = it;
+		}
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+		@Override
+		public RawRead next() {
+			QualifiedSequence seq = it.next();
+			return new RawRead(seq.getName(), seq.getCharacters(),null);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Sorts alignment records by coordinate using a bounded amount of memory.
+ * Records are kept in memory until their estimated size reaches the memory budget. Then, they are sorted
+ * and saved to a temporary BAM file with fast compression. At the end, the temporary files are merged
+ * into the final output. Records with the same coordinate keep the order in which they were added,
+ * which is the same order produced by sorting the complete file with htsjdk (picard SortSam)
+ */
+public class AlignmentsCoordinateSorter implements Closeable {
+
+	public static final long DEFAULT_MEMORY_BUDGET = 512L*1024*1024;
+	/**
+	 * Default maximum number of temporary files merged at the same time
+	 */
+	public static final int DEFAULT_MAX_MERGE_FILES = 128;
+	/**
+	 * Approximate size of a record in memory without the read name and the arrays of bases and qualities
+	 */
+	private static final int RECORD_OVERHEAD_BYTES = 400;
+	private static final int SPILL_COMPRESSION_LEVEL = 1;
+
+	private final SAMFileHeader header;
+	private final long memoryBudget;
+	private final File tmpDirectory;
+	private final SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+
+	private List<SAMRecord> records = new ArrayList<>();
+	private long recordsBytes = 0;
+	private List<File> spillFiles = new ArrayList<>();
+	private int maxMergeFiles = DEFAULT_MAX_MERGE_FILES;
+
+	/**
+	 * Creates a new sorter
+	 * @param header of the alignments. The sort order should be coordinate
+	 * @param memoryBudget Maximum number of bytes used to store records in memory
+	 * @param tmpDirectory Directory to save temporary files. If null, the default temporary directory is used
+	 */
+	public AlignmentsCoordinateSorter(SAMFileHeader header, long memoryBudget, File tmpDirectory) {
+		if(memoryBudget<=0) throw new IllegalArgumentException("The memory budget for sorting must be a positive number. Value: "+memoryBudget);
+		this.header = header;
+		this.memoryBudget = memoryBudget;
+		this.tmpDirectory = tmpDirectory;
+	}
+
+	/**
+	 * @return int Number of temporary files created so far
+	 */
+	public int getNumberOfSpillFiles() {
+		return spillFiles.size();
+	}
+
+	/**
+	 * @return int Maximum number of temporary files merged at the same time
+	 */
+	public int getMaxMergeFiles() {
+		return maxMergeFiles;
+	}
+
+	/**
+	 * Changes the maximum number of temporary files merged at the same time. If more files are created,
+	 * groups of files are merged into intermediate files before producing the final output
+	 * @param maxMergeFiles New maximum number of files. It must be at least 2
+	 */
+	public void setMaxMergeFiles(int maxMergeFiles) {
+		if(maxMergeFiles<2) throw new IllegalArgumentException("The maximum number of files to merge must be at least 2. Value: "+maxMergeFiles);
+		this.maxMergeFiles = maxMergeFiles;
+	}
+
+	/**
+	 * Adds a new record to sort
+	 * @param record to add
+	 */
+	public void add(SAMRecord record) {
+		records.add(record);
+		recordsBytes += estimateSize(record);
+		if(recordsBytes>=memoryBudget) spillToDisk();
+	}
+
+	private long estimateSize(SAMRecord record) {
+		return RECORD_OVERHEAD_BYTES + 2*record.getReadLength() + 2*record.getReadName().length();
+	}
+
+	private void spillToDisk() {
+		if(records.size()==0) return;
+		Collections.sort(records, comparator);
+		File file = createSpillFile();
+		spillFiles.add(file);
+		try (SAMFileWriter writer = createSpillWriter(file)) {
+			for(SAMRecord record:records) writer.addAlignment(record);
+		}
+		records.clear();
+		recordsBytes = 0;
+	}
+
+	private File createSpillFile() {
+		try {
+			File file = File.createTempFile("ngsepSort", ".bam", tmpDirectory);
+			file.deleteOnExit();
+			return file;
+		} catch (IOException e) {
+			throw new RuntimeIOException("Can not create temporary file to sort alignments", e);
+		}
+	}
+
+	private SAMFileWriter createSpillWriter(File file) {
+		return new SAMFileWriterFactory().setCompressionLevel(SPILL_COMPRESSION_LEVEL).makeBAMWriter(header, true, file);
+	}
+
+	/**
+	 * Writes the records added so far sorted by coordinate. Merges the temporary files if needed
+	 * @param writer to save the sorted records. It should be created with the sort order set to coordinate
+	 */
+	public void writeSorted(SAMFileWriter writer) {
+		if(spillFiles.size()==0) {
+			Collections.sort(records, comparator);
+			for(SAMRecord record:records) writer.addAlignment(record);
+			records.clear();
+			recordsBytes = 0;
+			return;
+		}
+		spillToDisk();
+		try {
+			while(spillFiles.size()>maxMergeFiles) mergeSpillFilesRound();
+			merge(spillFiles, writer);
+		} finally {
+			deleteSpillFiles();
+		}
+	}
+
+	/**
+	 * Replaces each group of consecutive temporary files by one file with the merged records.
+	 * Merging consecutive files keeps the order of records with the same coordinate
+	 */
+	private void mergeSpillFilesRound() {
+		List<File> mergedFiles = new ArrayList<>();
+		try {
+			for(int i=0;i<spillFiles.size();i+=maxMergeFiles) {
+				List<File> group = spillFiles.subList(i, Math.min(spillFiles.size(), i+maxMergeFiles));
+				if(group.size()==1) {
+					mergedFiles.add(group.get(0));
+					continue;
+				}
+				File file = createSpillFile();
+				mergedFiles.add(file);
+				try (SAMFileWriter writer = createSpillWriter(file)) {
+					merge(group, writer);
+				}
+				for(File groupFile:group) groupFile.delete();
+			}
+		} catch (RuntimeException e) {
+			for(File file:mergedFiles) file.delete();
+			throw e;
+		}
+		spillFiles = mergedFiles;
+	}
+
+	private void merge(List<File> files, SAMFileWriter writer) {
+		SamReaderFactory factory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT);
+		List<SamReader> readers = new ArrayList<>(files.size());
+		try {
+			PriorityQueue<MergeSource> queue = new PriorityQueue<>(files.size());
+			for(int i=0;i<files.size();i++) {
+				SamReader reader = factory.open(files.get(i));
+				readers.add(reader);
+				MergeSource source = new MergeSource(i, reader.iterator());
+				if(source.advance()) queue.add(source);
+			}
+			while(queue.size()>0) {
+				MergeSource source = queue.poll();
+				writer.addAlignment(source.current);
+				if(source.advance()) queue.add(source);
+			}
+		} finally {
+			for(SamReader reader:readers) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					throw new RuntimeIOException("Can not close temporary file with sorted alignments", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards the records not written and deletes the temporary files
+	 */
+	@Override
+	public void close() {
+		records.clear();
+		recordsBytes = 0;
+		deleteSpillFiles();
+	}
+
+	private void deleteSpillFiles() {
+		for(File file:spillFiles) file.delete();
+		spillFiles.clear();
+	}
+
+	private class MergeSource implements Comparable<MergeSource> {
+		private final int index;
+		private final SAMRecordIterator iterator;
+		private SAMRecord current;
+
+		public MergeSource(int index, SAMRecordIterator iterator) {
+			this.index = index;
+			this.iterator = iterator;
+		}
+		public boolean advance() {
+			if(!iterator.hasNext()) {
+				current = null;
+				return false;
+			}
+			current = iterator.next();
+			return true;
+		}
+		@Override
+		public int compareTo(MergeSource other) {
+			int cmp = comparator.compare(current, other.current);
+			if(cmp!=0) return cmp;
+			return index - other.index;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndexer;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.ProgressLoggerInterface;
+import htsjdk.samtools.util.RuntimeIOException;
+import ngsep.main.io.ParallelBGZFOutputStream;
+
+/**
+ * Writer of BAM files that encodes records in the calling thread and compresses BGZF blocks in parallel.
+ * If requested, the BAM index is built while writing. Records waiting for the addresses of their blocks
+ * are kept until the blocks are written
+ */
+public class ParallelBAMFileWriter implements SAMFileWriter {
+
+	private static final byte [] BAM_MAGIC = {'B','A','M',1};
+	
+	private final SAMFileHeader header;
+	private final ParallelBGZFOutputStream stream;
+	private final BAMRecordCodec codec;
+	private BAMIndexer indexer = null;
+	private final ArrayDeque<PendingRecord> pendingIndex = new ArrayDeque<>();
+	private ProgressLoggerInterface progressLogger = null;
+
+	/**
+	 * Creates a new writer
+	 * @param header of the file
+	 * @param out Stream to write the compressed data
+	 * @param compressionLevel Level of compression (0-9)
+	 * @param numThreads Number of threads compressing blocks
+	 * @param indexFile File to save the BAM index. If null, the index is not created.
+	 * The header should have coordinate sort order to build the index
+	 */
+	public ParallelBAMFileWriter(SAMFileHeader header, OutputStream out, int compressionLevel, int numThreads, File indexFile) {
+		this.header = header;
+		stream = new ParallelBGZFOutputStream(out, compressionLevel, numThreads);
+		writeHeader();
+		codec = new BAMRecordCodec(header);
+		codec.setOutputStream(stream);
+		if(indexFile!=null) {
+			if(header.getSortOrder()!=SAMFileHeader.SortOrder.coordinate) throw new IllegalArgumentException("Alignments must be sorted by coordinate to create an index");
+			indexer = new BAMIndexer(indexFile, header);
+		}
+	}
+
+	private void writeHeader() {
+		StringWriter headerText = new StringWriter();
+		new SAMTextHeaderCodec().encode(headerText, header);
+		BinaryCodec binaryCodec = new BinaryCodec(stream);
+		binaryCodec.writeBytes(BAM_MAGIC);
+		binaryCodec.writeString(headerText.toString(), true, false);
+		SAMSequenceDictionary dictionary = header.getSequenceDictionary();
+		binaryCodec.writeInt(dictionary.size());
+		for(SAMSequenceRecord sequence:dictionary.getSequences()) {
+			binaryCodec.writeString(sequence.getSequenceName(), true, true);
+			binaryCodec.writeInt(sequence.getSequenceLength());
+		}
+		try {
+			//The first alignment starts a new block as done by htsjdk
+			stream.flush();
+		} catch (IOException e) {
+			throw new RuntimeIOException("Can not write BAM header", e);
+		}
+	}
+
+	@Override
+	public void addAlignment(SAMRecord alignment) {
+		alignment.setHeaderStrict(header);
+		long start = stream.getPosition();
+		codec.encode(alignment);
+		if(indexer!=null) {
+			pendingIndex.add(new PendingRecord(alignment, start, stream.getPosition()));
+			processPendingIndex();
+		} else {
+			stream.releaseBlockAddresses(stream.getBlocksWritten());
+		}
+		if(progressLogger!=null) progressLogger.record(alignment);
+	}
+
+	private void processPendingIndex() {
+		long blocksWritten = stream.getBlocksWritten();
+		while(pendingIndex.size()>0 && (pendingIndex.peek().end>>>16)<=blocksWritten) {
+			PendingRecord next = pendingIndex.poll();
+			long startOffset = stream.getVirtualOffset(next.start);
+			long endOffset = stream.getVirtualOffset(next.end);
+			next.record.setFileSource(new SAMFileSource(null, new BAMFileSpan(new Chunk(startOffset, endOffset))));
+			indexer.processAlignment(next.record);
+		}
+		//Only the addresses of the blocks of pending records are needed
+		if(pendingIndex.size()>0) stream.releaseBlockAddresses(pendingIndex.peek().start>>>16);
+		else stream.releaseBlockAddresses(blocksWritten);
+	}
+
+	@Override
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	@Override
+	public void setProgressLogger(ProgressLoggerInterface progressLogger) {
+		this.progressLogger = progressLogger;
+	}
+
+	@Override
+	public void close() {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			throw new RuntimeIOException("Can not write BAM file", e);
+		}
+		if(indexer!=null) {
+			processPendingIndex();
+			indexer.finish();
+		}
+	}
+
+	private static class PendingRecord {
+		private final SAMRecord record;
+		private final long start;
+		private final long end;
+		public PendingRecord(SAMRecord record, long start, long end) {
+			this.record = record;
+			this.start = start;
+			this.end = end;
+		}
+	}
+}
@@ -19,7 +19,11 @@
  *******************************************************************************/
 package ngsep.alignments.io;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.util.List;
 
@@ -32,7 +36,9 @@ import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SAMValidationError;
+import htsjdk.samtools.util.RuntimeIOException;
 import ngsep.alignments.ReadAlignment;
+import ngsep.main.io.ParallelBGZFOutputStream;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
@@ -43,12 +49,35 @@ import ngsep.sequences.QualifiedSequenceList;
  */
 public class ReadAlignmentFileWriter implements Closeable {
 	
+	public static final int DEF_COMPRESSION_LEVEL = ParallelBGZFOutputStream.DEFAULT_COMPRESSION_LEVEL;
+	
 	private SAMFileWriter writer=null;
 	private SAMFileHeader samFileHeader;
 	private String sampleId;
 	private PrintStream out;
+	private File outputFile;
+	private AlignmentsCoordinateSorter sorter = null;
+	private int compressionThreads = 1;
+	private int compressionLevel = DEF_COMPRESSION_LEVEL;
+	private boolean validateRecords = true;
 
 	public ReadAlignmentFileWriter (QualifiedSequenceList sequences, PrintStream out)
+	{
+		this(sequences);
+		this.out = out;
+	}
+	/**
+	 * Creates a writer of alignments to the given file. If the alignments are sorted by coordinate,
+	 * an index is also created for the file
+	 * @param sequences Reference sequences
+	 * @param outputFile BAM file to write
+	 */
+	public ReadAlignmentFileWriter (QualifiedSequenceList sequences, File outputFile)
+	{
+		this(sequences);
+		this.outputFile = outputFile;
+	}
+	private ReadAlignmentFileWriter (QualifiedSequenceList sequences)
 	{
 		samFileHeader = new SAMFileHeader();
 		SAMSequenceDictionary sequenceDictionary = new SAMSequenceDictionary();
@@ -57,12 +86,87 @@ public class ReadAlignmentFileWriter implements Closeable {
 			sequenceDictionary.addSequence(sequenceRecord);
 		}
 		samFileHeader.setSequenceDictionary(sequenceDictionary);
-		this.out = out;
+	}
+	
+	/**
+	 * Sorts the alignments by coordinate before writing them. Must be called before writing the first alignment.
+	 * Alignments are kept in memory up to the given budget and then saved to temporary files that are merged when the writer is closed
+	 * @param memoryBudget Maximum number of bytes used to keep alignments in memory
+	 */
+	public void setSortByCoordinate(long memoryBudget) {
+		if(writer!=null || sorter!=null) throw new IllegalStateException("The sort order can not be changed after writing alignments");
+		samFileHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		File tmpDirectory = null;
+		if(outputFile!=null) tmpDirectory = outputFile.getAbsoluteFile().getParentFile();
+		sorter = new AlignmentsCoordinateSorter(samFileHeader, memoryBudget, tmpDirectory);
+	}
+	
+	public boolean isSortByCoordinate() {
+		return sorter!=null;
+	}
+	
+	/**
+	 * @return int Number of threads used to compress the output
+	 */
+	public int getCompressionThreads() {
+		return compressionThreads;
+	}
+	/**
+	 * Changes the number of threads used to compress the output. If more than one thread is used,
+	 * alignments are encoded by the thread calling the write method and blocks of the output are compressed in parallel
+	 * @param compressionThreads Number of threads to compress the output
+	 */
+	public void setCompressionThreads(int compressionThreads) {
+		if(compressionThreads<1) throw new IllegalArgumentException("The number of compression threads must be a positive number. Value: "+compressionThreads);
+		this.compressionThreads = compressionThreads;
+	}
+	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	/**
+	 * @param compressionLevel Level of compression of the output (0-9)
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel<0 || compressionLevel>9) throw new IllegalArgumentException("Invalid compression level: "+compressionLevel+". It must be between 0 and 9");
+		this.compressionLevel = compressionLevel;
+	}
+	
+	public boolean isValidateRecords() {
+		return validateRecords;
+	}
+	/**
+	 * @param validateRecords Tells if each record should be validated before writing it. Errors are reported in the standard output
+	 */
+	public void setValidateRecords(boolean validateRecords) {
+		this.validateRecords = validateRecords;
+	}
+	
+	private SAMFileWriter createWriter() {
+		boolean presorted = sorter!=null;
+		if(compressionThreads>1) {
+			if(outputFile==null) return new ParallelBAMFileWriter(samFileHeader, out, compressionLevel, compressionThreads, null);
+			File indexFile = presorted?getIndexFile(outputFile):null;
+			try {
+				return new ParallelBAMFileWriter(samFileHeader, new BufferedOutputStream(new FileOutputStream(outputFile)), compressionLevel, compressionThreads, indexFile);
+			} catch (FileNotFoundException e) {
+				throw new RuntimeIOException("Can not create output file "+outputFile, e);
+			}
+		}
+		SAMFileWriterFactory factory = new SAMFileWriterFactory().setCompressionLevel(compressionLevel);
+		if(outputFile!=null) return factory.setCreateIndex(presorted).makeBAMWriter(samFileHeader, presorted, outputFile);
+		return factory.makeBAMWriter(samFileHeader, presorted, out);
+	}
+	
+	private static File getIndexFile(File bamFile) {
+		String name = bamFile.getName();
+		if(name.endsWith(".bam")) name = name.substring(0,name.length()-4);
+		return new File(bamFile.getAbsoluteFile().getParentFile(), name+".bai");
 	}
 	
 	public void write(ReadAlignment readAlignment)
 	{
-		if(writer == null) writer= new SAMFileWriterFactory().makeBAMWriter(samFileHeader, false, out);
+		if(writer == null && sorter==null) writer= createWriter();
 		SAMRecord samRecord= new SAMRecord(samFileHeader);
 		samRecord.setReadName(readAlignment.getReadName());
 		samRecord.setFlags(readAlignment.getFlags());
@@ -100,14 +204,23 @@ public class ReadAlignmentFileWriter implements Closeable {
 		samRecord.setAttribute(SAMTag.NM.toString(), Integer.valueOf(readAlignment.getNumMismatches()));
 		
 		//System.out.println("Bases: "+samRecord.getReadString()+" qual: "+samRecord.getBaseQualityString());
-		List<SAMValidationError> errors= samRecord.isValid();
-		if(errors!=null) System.out.println("errors: "+errors.size()+errors.get(0));
-		writer.addAlignment(samRecord);
+		if(validateRecords) {
+			List<SAMValidationError> errors= samRecord.isValid();
+			if(errors!=null) System.out.println("errors: "+errors.size()+errors.get(0));
+		}
+		if(sorter!=null) sorter.add(samRecord);
+		else writer.addAlignment(samRecord);
 		//System.out.println("Saved record ");	
 	}
 	public void close() {
-		writer.close();
-		out.close();
+		try {
+			if(writer == null) writer = createWriter();
+			if(sorter!=null) sorter.writeSorted(writer);
+			writer.close();
+		} finally {
+			if(sorter!=null) sorter.close();
+			if(out!=null) out.close();
+		}
 	}
 	public void setSampleInfo(String sampleId, ReadAlignment.Platform platform) {
 		this.sampleId = sampleId;
@@ -121,7 +121,7 @@ public class ConsensusBuilderBidirectionalSimple implements ConsensusBuilder {
 		return alignRead(aligner, subjectIdx, subject, read, uniqueCodesSubject, minQueryCoverage);
 	}
 	public static ReadAlignment alignRead(MinimizersTableReadAlignmentAlgorithm aligner, int subjectIdx, CharSequence subject, CharSequence read, Map<Long, Integer> uniqueCodesSubject, double minQueryCoverage) {
-		Map<Integer, Long> codesQuery = KmersExtractor.extractDNAKmerCodes(read, KMER_LENGTH_LOCAL_ALN, 0, read.length());
+		long [] codesQuery = KmersExtractor.extractDNAKmerCodesArray(read, KMER_LENGTH_LOCAL_ALN, 0, read.length());
 		//System.out.println("Number of unique k-mers read: "+uniqueKmersRead.size());
 		List<UngappedSearchHit> initialKmerHits = alignKmerCodes(-1,subject.length(), uniqueCodesSubject, codesQuery);
 		if(initialKmerHits.size()==0) return null;
@@ -142,10 +142,11 @@ public class ConsensusBuilderBidirectionalSimple implements ConsensusBuilder {
 		//System.out.println("Number of clusters: "+clusters.size()+" best cluster kmers: "+bestCluster.getNumDifferentKmers()+" first "+bestCluster.getFirst()+" last "+bestCluster.getLast());
 		return aligner.buildCompleteAlignment(subjectIdx, subject, read, bestCluster);
 	}
-	private static List<UngappedSearchHit> alignKmerCodes(int subjectIdx, int subjectLength, Map<Long, Integer> uniqueCodesSubject, Map<Integer, Long> codesQuery) {
+	private static List<UngappedSearchHit> alignKmerCodes(int subjectIdx, int subjectLength, Map<Long, Integer> uniqueCodesSubject, long [] codesQuery) {
 		List<UngappedSearchHit> initialKmerHits = new ArrayList<UngappedSearchHit>();
-		for(int i:codesQuery.keySet()) {
-			Long codeRead = codesQuery.get(i);
+		for(int i=0;i<codesQuery.length;i++) {
+			long codeRead = codesQuery[i];
+			if(codeRead<0) continue;
 			Integer subjectPos = uniqueCodesSubject.get(codeRead);
 			if(subjectPos==null) continue;
 			CharSequence kmerRead = new String(AbstractLimitedSequence.getSequence(codeRead, KMER_LENGTH_LOCAL_ALN, DNASequence.EMPTY_DNA_SEQUENCE));
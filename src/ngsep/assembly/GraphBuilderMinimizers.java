@@ -73,6 +73,7 @@ public class GraphBuilderMinimizers implements GraphBuilder {
 		extractor.setLog(log);
 		//The conditional avoids creating twice the large array in ShortArrayKmersMapImpl
 		if(extractor.getKmerLength()!=kmerLength) extractor.setKmerLength(kmerLength);
+		extractor.setCanonical(true);
 		extractor.initializeMap();
 		long totalLength =  0;
 		int finishTime = sequences.size();
@@ -107,18 +108,7 @@ public class GraphBuilderMinimizers implements GraphBuilder {
 		table.setLog(log);
 		//table.setMaxAbundanceMinimizer(Math.max(100, 5*modeDepth));
 		//int firstIdNoGraph = sequences.size();
-		ThreadPoolExecutor poolMinimizers = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-		for(int seqId = 0; seqId < sequences.size(); seqId++) {
-			QualifiedSequence qseq = sequences.get(seqId);
-			CharSequence seq = qseq.getCharacters();
-			if(numThreads==1) {
-				addSequenceToTable(table, seqId, seq);
-			} else {
-				final int i = seqId;
-				poolMinimizers.execute(()->addSequenceToTable(table, i, seq));
-			}
-		}
-		waitToFinish(finishTime, poolMinimizers);
+		table.addSequences(sequences, numThreads);
 		usedMemory = runtime.totalMemory()-runtime.freeMemory();
 		usedMemory/=1000000000;
 		long time2 = System.currentTimeMillis();
@@ -157,17 +147,13 @@ public class GraphBuilderMinimizers implements GraphBuilder {
 		extractor.countSequenceKmers(seq);
 		if ((seqId+1)%1000==0) log.info("Kmers extracted for "+(seqId+1)+" sequences.");
 	}
-	public void addSequenceToTable(MinimizersTable table, int seqId, CharSequence seq) {
-		table.addSequence(seqId, seq);
-		if ((seqId+1)%1000==0) log.info("Processed "+(seqId+1)+" sequences. Total minimizers: "+table.size()+" total entries: "+table.getTotalEntries());
-	}
 	
 	private void processSequence(KmerHitsAssemblyEdgesFinder finder, MinimizersTable table, int seqId, CharSequence seq, double compressionFactor) {
-		Map<Integer, Long> codesForward = KmersExtractor.extractDNAKmerCodes(seq.toString(), kmerLength, 0, seq.length());
-		Map<Integer,List<UngappedSearchHit>> hitsForward = table.match(seqId, seq.length(), codesForward);
-		String complement = DNAMaskedSequence.getReverseComplement(seq).toString();
-		Map<Integer, Long> codesReverse = KmersExtractor.extractDNAKmerCodes(complement, kmerLength, 0, complement.length());
-		Map<Integer,List<UngappedSearchHit>> hitsReverse = table.match(seqId, complement.length(), codesReverse);
+		long [] codesForward = KmersExtractor.extractDNAKmerCodesArray(seq, kmerLength, 0, seq.length());
+		Map<Integer,List<UngappedSearchHit>> hitsForward = table.match(seqId, codesForward);
+		CharSequence complement = DNAMaskedSequence.getReverseComplement(seq);
+		long [] codesReverse = KmersExtractor.extractDNAKmerCodesArray(complement, kmerLength, 0, complement.length());
+		Map<Integer,List<UngappedSearchHit>> hitsReverse = table.match(seqId, codesReverse);
 		finder.updateGraphWithKmerHitsMap(seqId, seq.length(), codesForward, codesReverse, hitsForward, hitsReverse, compressionFactor, kmerLength);
 		AssemblyGraph graph = finder.getGraph();
 		if(seqId == idxDebug) log.info("Edges start: "+graph.getEdges(graph.getVertex(seqId, true)).size()+" edges end: "+graph.getEdges(graph.getVertex(seqId, false)).size()+" Embedded: "+graph.getEmbeddedBySequenceId(seqId));
@@ -1,6 +1,7 @@
 package ngsep.assembly;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -63,7 +64,7 @@ public class KmerHitsAssemblyEdgesFinder {
 		this.expectedAssemblyLength = expectedAssemblyLength;
 	}
 
-	public void updateGraphWithKmerHitsMap(int queryIdx, int queryLength, Map<Integer, Long> queryCodesF, Map<Integer, Long> queryCodesR, Map<Integer, List<UngappedSearchHit>> hitsForward, Map<Integer, List<UngappedSearchHit>> hitsReverse, double compressionFactor, int kmerLength ) {
+	public void updateGraphWithKmerHitsMap(int queryIdx, int queryLength, long [] queryCodesF, long [] queryCodesR, Map<Integer, List<UngappedSearchHit>> hitsForward, Map<Integer, List<UngappedSearchHit>> hitsReverse, double compressionFactor, int kmerLength ) {
 		List<UngappedSearchHit> selfHits = hitsForward.get(queryIdx);
 		int selfHitsCount = (selfHits!=null)?selfHits.size():1;
 		int minHits = (int) Math.max(selfHitsCount*minProportionOverlap,DEF_MIN_HITS);
@@ -137,24 +138,21 @@ public class KmerHitsAssemblyEdgesFinder {
 		*/
 		return true;
 	}
-	private Map<Integer, Map<Integer,Long>> codesCache = new HashMap<Integer, Map<Integer,Long>>();
+	private Map<Integer, long []> codesCache = new HashMap<Integer, long []>();
 	private long processedAssemblyLength = 0;
-	private void processClusters(int queryIdx, int queryLength, boolean queryRC, Map<Integer, Long> queryCodes, List<KmerHitsCluster> clusters, double compressionFactor, int kmerLength) {
+	private void processClusters(int queryIdx, int queryLength, boolean queryRC, long [] queryCodes, List<KmerHitsCluster> clusters, double compressionFactor, int kmerLength) {
 		for(KmerHitsCluster cluster:clusters) {
 			//if(numKmers<minHits) continue;
-			Map<Integer,Long> subjectCodes = codesCache.get(cluster.getSubjectIdx());
+			long [] subjectCodes = codesCache.get(cluster.getSubjectIdx());
+			int subjectCodesStart = cluster.getSubjectEvidenceStart();
 			if(subjectCodes==null) {
 				QualifiedSequence subjectSequence = graph.getSequence(cluster.getSubjectIdx());
-				subjectCodes = KmersExtractor.extractDNAKmerCodes(subjectSequence.getCharacters().toString(), kmerLength, cluster.getSubjectEvidenceStart(), cluster.getSubjectEvidenceEnd());
+				subjectCodes = KmersExtractor.extractDNAKmerCodesArray(subjectSequence.getCharacters(), kmerLength, subjectCodesStart, cluster.getSubjectEvidenceEnd());
 			} else {
-				Map<Integer,Long> selectedCodes = new HashMap<Integer, Long>();
-				for(int i:subjectCodes.keySet()) {
-					if(i>=cluster.getSubjectEvidenceStart() && i<=cluster.getSubjectEvidenceEnd()) selectedCodes.put(i, subjectCodes.get(i));
-				}
-				subjectCodes = selectedCodes;
+				subjectCodes = Arrays.copyOfRange(subjectCodes, subjectCodesStart, Math.min(subjectCodes.length, cluster.getSubjectEvidenceEnd()+1));
 			}
 			int subjectLength = graph.getSequenceLength(cluster.getSubjectIdx());
-			if(queryCodes!=null) cluster.completeMissingHits(subjectCodes,queryCodes);
+			if(queryCodes!=null) cluster.completeMissingHits(subjectCodes, subjectCodesStart, queryCodes);
 			long normalizedCount = queryLength*kmerLength/subjectLength;
 			int numKmers = cluster.getNumDifferentKmers();
 			normalizedCount*=numKmers;
@@ -0,0 +1,82 @@
+package ngsep.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import ngsep.alignments.io.ParallelBAMFileWriter;
+
+/**
+ * Measures the throughput of writing BAM files with the serial htsjdk writer and with the writer compressing blocks in parallel.
+ * Records are loaded in memory from an existing BAM file. Throughput is reported in MB per second of uncompressed BAM records
+ * Usage: BAMWriterBenchmark <inputBAM> <outputBAM> <numThreads>
+ */
+public class BAMWriterBenchmark {
+
+	private static final int [] COMPRESSION_LEVELS = {1, 5, 9};
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		String inputFile = args[0];
+		String outputFile = args[1];
+		int numThreads = Integer.parseInt(args[2]);
+		BAMWriterBenchmark instance = new BAMWriterBenchmark();
+		instance.run(inputFile, outputFile, numThreads, System.out);
+	}
+
+	public void run(String inputFile, String outputFile, int numThreads, PrintStream out) throws IOException {
+		SAMFileHeader header;
+		List<SAMRecord> records = new ArrayList<>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(new File(inputFile))) {
+			header = reader.getFileHeader();
+			for(SAMRecord record:reader) records.add(record);
+		}
+		double megabytes = getUncompressedBytes(header, records)/1e6;
+		File file = new File(outputFile);
+		out.println("Loaded "+records.size()+" records. Uncompressed size: "+String.format("%.1f", megabytes)+" MB");
+		for(int level:COMPRESSION_LEVELS) {
+			for(int round=0;round<ROUNDS;round++) {
+				long time = System.nanoTime();
+				try (SAMFileWriter writer = new SAMFileWriterFactory().setCompressionLevel(level).makeBAMWriter(header, true, file)) {
+					for(SAMRecord record:records) writer.addAlignment(record);
+				}
+				double serialSeconds = (System.nanoTime()-time)/1e9;
+				long serialSize = file.length();
+				time = System.nanoTime();
+				try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+					 SAMFileWriter writer = new ParallelBAMFileWriter(header, os, level, numThreads, null)) {
+					for(SAMRecord record:records) writer.addAlignment(record);
+				}
+				double parallelSeconds = (System.nanoTime()-time)/1e9;
+				long parallelSize = file.length();
+				out.println("Level "+level+" round "+(round+1)+" MB/s htsjdk: "+String.format("%.1f", megabytes/serialSeconds)+" parallel ("+numThreads+" threads): "+String.format("%.1f", megabytes/parallelSeconds)+" output MB htsjdk: "+String.format("%.2f", serialSize/1e6)+" parallel: "+String.format("%.2f", parallelSize/1e6));
+			}
+		}
+	}
+
+	private long getUncompressedBytes(SAMFileHeader header, List<SAMRecord> records) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		BAMRecordCodec codec = new BAMRecordCodec(header);
+		codec.setOutputStream(os);
+		long total = 0;
+		for(SAMRecord record:records) {
+			codec.encode(record);
+			total+=os.size();
+			os.reset();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,69 @@
+package ngsep.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+import ngsep.sequences.FMIndexSingleSequence;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.io.FastaSequencesHandler;
+
+/**
+ * Microbenchmark of exact searches over a single FM-index chunk.
+ * Builds the index for up to maxLength bp of the given fasta file and measures the time
+ * to calculate ranges (backward search) and to locate hits of random k-mers sampled from the indexed sequence
+ * Usage: FMIndexExactSearchBenchmark <fasta> <maxLength> <k> <numQueries>
+ */
+public class FMIndexExactSearchBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String fastaFile = args[0];
+		int maxLength = Integer.parseInt(args[1]);
+		int k = Integer.parseInt(args[2]);
+		int numQueries = Integer.parseInt(args[3]);
+		FMIndexExactSearchBenchmark instance = new FMIndexExactSearchBenchmark();
+		instance.run(fastaFile, maxLength, k, numQueries, System.out);
+	}
+
+	public void run(String fastaFile, int maxLength, int k, int numQueries, PrintStream out) throws IOException {
+		String sequence = loadSequence(fastaFile, maxLength);
+		out.println("Indexed sequence length: "+sequence.length());
+		long time = System.nanoTime();
+		FMIndexSingleSequence index = new FMIndexSingleSequence(sequence);
+		out.println("Index built in "+String.format("%.1f",(System.nanoTime()-time)/1e9)+" seconds");
+		Random random = new Random(42);
+		String [] queries = new String[numQueries];
+		for(int i=0;i<numQueries;i++) {
+			int start = random.nextInt(sequence.length()-k);
+			queries[i] = sequence.substring(start, start+k);
+		}
+		for(int round=0;round<3;round++) {
+			time = System.nanoTime();
+			long rows = 0;
+			for(String query:queries) {
+				int [] range = index.getRange(query);
+				if(range!=null) rows+=range[1]-range[0]+1;
+			}
+			double rangeSeconds = (System.nanoTime()-time)/1e9;
+			time = System.nanoTime();
+			long hits = 0;
+			for(String query:queries) hits+=index.exactSearch(query).size();
+			double locateSeconds = (System.nanoTime()-time)/1e9;
+			out.println("Round "+(round+1)+" k: "+k+" queries: "+numQueries+" rows: "+rows+" range time (s): "+String.format("%.3f",rangeSeconds)+" queries/s: "+String.format("%.0f",numQueries/rangeSeconds)+" hits: "+hits+" locate time (s): "+String.format("%.3f",locateSeconds));
+		}
+	}
+
+	private String loadSequence(String fastaFile, int maxLength) throws IOException {
+		FastaSequencesHandler handler = new FastaSequencesHandler();
+		QualifiedSequenceList sequences = handler.loadSequences(fastaFile);
+		StringBuilder sequence = new StringBuilder();
+		for(QualifiedSequence seq:sequences) {
+			CharSequence characters = seq.getCharacters();
+			int n = Math.min(characters.length(), maxLength-sequence.length());
+			sequence.append(characters, 0, n);
+			if(sequence.length()>=maxLength) break;
+		}
+		return sequence.toString();
+	}
+}
@@ -0,0 +1,86 @@
+package ngsep.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ngsep.genome.ReferenceGenome;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.FMIndex;
+import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.RawRead;
+import ngsep.sequences.io.FastqFileReader;
+
+/**
+ * Measures the tradeoff between size and search speed of the tables of prefix intervals of the FM-index.
+ * Queries are the k-mers searched by the short reads aligner in the reads and their reverse complements.
+ * For each length of the table, reports the time to build the tables, their size, and the time per query
+ * to count the occurrences of each k-mer (backward search only) and to locate them (complete exact search)
+ * Usage: FMIndexPrefixTableBenchmark <genomeFasta> <index> <readsFastq> <kmerLength> <minTableLength> <maxTableLength>
+ */
+public class FMIndexPrefixTableBenchmark {
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		ReferenceGenome genome = new ReferenceGenome(args[0]);
+		FMIndex index = FMIndex.load(genome.getSequencesList(), args[1]);
+		int kmerLength = Integer.parseInt(args[3]);
+		List<String> queries = new ArrayList<>();
+		try (FastqFileReader reader = new FastqFileReader(args[2])) {
+			reader.setSequenceType(DNAMaskedSequence.class);
+			Iterator<RawRead> it = reader.iterator();
+			while(it.hasNext()) {
+				String seq = it.next().getSequenceString();
+				queries.addAll(KmersExtractor.extractKmersAsMap(seq, kmerLength, kmerLength, true, false, true).values());
+				String reverse = DNAMaskedSequence.getReverseComplement(seq).toString();
+				queries.addAll(KmersExtractor.extractKmersAsMap(reverse, kmerLength, kmerLength, true, false, true).values());
+			}
+		}
+		int minLength = Integer.parseInt(args[4]);
+		int maxLength = Integer.parseInt(args[5]);
+		FMIndexPrefixTableBenchmark instance = new FMIndexPrefixTableBenchmark();
+		instance.run(index, queries, minLength, maxLength, System.out);
+	}
+
+	public void run(FMIndex index, List<String> queries, int minLength, int maxLength, PrintStream out) {
+		int numIndexes = index.getNumberOfInternalIndexes();
+		out.println("Queries: "+queries.size()+" Internal indexes: "+numIndexes);
+		out.println("TableLength\tBuildSeconds\tTableMB\tCountNsPerQuery\tSearchNsPerQuery\tHits");
+		index.buildPrefixTables(0);
+		//Warm up
+		for(String query:queries) {
+			index.count(query);
+			index.exactSearch(query);
+		}
+		runQueries(index, queries, 0, 0, out);
+		for(int length=minLength;length<=maxLength;length++) {
+			long time = System.nanoTime();
+			index.buildPrefixTables(length);
+			double buildSeconds = (System.nanoTime()-time)/1e9;
+			runQueries(index, queries, length, buildSeconds, out);
+			//Release the table before building the next one
+			index.buildPrefixTables(0);
+		}
+	}
+
+	private void runQueries(FMIndex index, List<String> queries, int length, double buildSeconds, PrintStream out) {
+		long countTime = Long.MAX_VALUE;
+		long searchTime = Long.MAX_VALUE;
+		long hits = 0;
+		for(int round=0;round<ROUNDS;round++) {
+			long time = System.nanoTime();
+			long total = 0;
+			for(String query:queries) total+=index.count(query);
+			countTime = Math.min(countTime, System.nanoTime()-time);
+			time = System.nanoTime();
+			hits = 0;
+			for(String query:queries) hits+=index.exactSearch(query).size();
+			searchTime = Math.min(searchTime, System.nanoTime()-time);
+			if(total<hits) throw new RuntimeException("Inconsistent counts. Counted: "+total+" located: "+hits);
+		}
+		double tableMB = length>0?8.0*(1L<<(2*length))*index.getNumberOfInternalIndexes()/1e6:0;
+		out.println(length+"\t"+String.format("%.2f", buildSeconds)+"\t"+String.format("%.1f", tableMB)+"\t"+String.format("%.1f", (double)countTime/queries.size())+"\t"+String.format("%.1f", (double)searchTime/queries.size())+"\t"+hits);
+	}
+}
@@ -0,0 +1,58 @@
+package ngsep.benchmark;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+
+import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.KmersMap;
+
+/**
+ * Measures the time to count the k-mers of a fasta file with increasing numbers of threads.
+ * For each number of threads reports the time, the number of distinct k-mers and whether the
+ * distribution of abundances is equal to the distribution obtained with a single thread
+ * Usage: KmersCountingBenchmark <sequencesFasta> <kmerLength> <maxThreads>
+ */
+public class KmersCountingBenchmark {
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int kmerLength = Integer.parseInt(args[1]);
+		int maxThreads = Integer.parseInt(args[2]);
+		KmersCountingBenchmark instance = new KmersCountingBenchmark();
+		instance.run(args[0], kmerLength, maxThreads, System.out);
+	}
+
+	public void run(String filename, int kmerLength, int maxThreads, PrintStream out) throws Exception {
+		out.println("File: "+filename+" K-mer length: "+kmerLength);
+		out.println("Threads\tSeconds\tKmers\tSameDistribution");
+		//Warm up
+		count(filename, kmerLength, 1);
+		double [] expected = null;
+		for(int t=1;t<=maxThreads;t*=2) {
+			long bestTime = Long.MAX_VALUE;
+			KmersMap map = null;
+			for(int round=0;round<ROUNDS;round++) {
+				//Release the previous map before counting again
+				map = null;
+				long time = System.nanoTime();
+				map = count(filename, kmerLength, t);
+				bestTime = Math.min(bestTime, System.nanoTime()-time);
+			}
+			double [] distribution = map.calculateAbundancesDistribution().getDistribution();
+			if(expected==null) expected = distribution;
+			out.println(t+"\t"+String.format("%.2f", bestTime/1e9)+"\t"+map.size()+"\t"+Arrays.equals(expected, distribution));
+		}
+	}
+
+	private KmersMap count(String filename, int kmerLength, int numThreads) throws Exception {
+		KmersExtractor extractor = new KmersExtractor();
+		extractor.getLog().setLevel(Level.WARNING);
+		extractor.setKmerLength(kmerLength);
+		extractor.setInputFormat(KmersExtractor.INPUT_FORMAT_FASTA);
+		extractor.setNumThreads(numThreads);
+		extractor.processFile(filename);
+		return extractor.getKmersMap();
+	}
+}
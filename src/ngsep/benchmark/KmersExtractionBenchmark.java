@@ -0,0 +1,74 @@
+package ngsep.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.io.FastaSequencesHandler;
+
+/**
+ * Compares the time and the memory allocated per read by the methods extracting k-mers and k-mer codes from sequences.
+ * Codes are extracted for every position as done by the minimizers table and the assembler.
+ * K-mers are extracted every k positions as done by the short reads aligner.
+ * Allocated bytes are measured for the current thread with the management extensions of the JVM
+ * Usage: KmersExtractionBenchmark <readsFasta> <kmerLength>
+ */
+public class KmersExtractionBenchmark {
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		FastaSequencesHandler handler = new FastaSequencesHandler();
+		QualifiedSequenceList sequences = handler.loadSequences(args[0]);
+		List<String> reads = new ArrayList<>(sequences.size());
+		for(int i=0;i<sequences.size();i++) reads.add(sequences.get(i).getCharacters().toString());
+		int kmerLength = Integer.parseInt(args[1]);
+		KmersExtractionBenchmark instance = new KmersExtractionBenchmark();
+		instance.run(reads, kmerLength, System.out);
+	}
+
+	public void run(List<String> reads, int kmerLength, PrintStream out) {
+		out.println("Reads: "+reads.size()+" K-mer length: "+kmerLength);
+		out.println("Method\tNsPerRead\tBytesPerRead\tKmers");
+		runMethod("CodesMap", reads, (r)->KmersExtractor.extractDNAKmerCodes(r, kmerLength, 0, r.length()).size(), out);
+		runMethod("CodesArray", reads, (r)->countCodes(KmersExtractor.extractDNAKmerCodesArray(r, kmerLength, 0, r.length())), out);
+		runMethod("KmersMap", reads, (r)->KmersExtractor.extractKmersAsMap(r, kmerLength, kmerLength, true, false, true).size(), out);
+		runMethod("KmersArray", reads, (r)->countKmers(KmersExtractor.extractKmers(r, kmerLength, kmerLength, 0, r.length(), true, false, true)), out);
+	}
+
+	private void runMethod(String name, List<String> reads, ToLongFunction<String> method, PrintStream out) {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		//Warm up
+		for(String read:reads) method.applyAsLong(read);
+		long bestTime = Long.MAX_VALUE;
+		long bytes = 0;
+		long kmers = 0;
+		for(int round=0;round<ROUNDS;round++) {
+			long bytesBefore = bean.getThreadAllocatedBytes(threadId);
+			long time = System.nanoTime();
+			kmers = 0;
+			for(String read:reads) kmers+=method.applyAsLong(read);
+			bestTime = Math.min(bestTime, System.nanoTime()-time);
+			bytes = bean.getThreadAllocatedBytes(threadId)-bytesBefore;
+		}
+		int n = reads.size();
+		out.println(name+"\t"+String.format("%.1f", (double)bestTime/n)+"\t"+String.format("%.1f", (double)bytes/n)+"\t"+kmers);
+	}
+
+	private static long countCodes(long [] codes) {
+		long count = 0;
+		for(long code:codes) if(code>=0) count++;
+		return count;
+	}
+
+	private static long countKmers(String [] kmers) {
+		long count = 0;
+		for(String kmer:kmers) if(kmer!=null) count++;
+		return count;
+	}
+}
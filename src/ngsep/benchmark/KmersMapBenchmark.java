@@ -0,0 +1,79 @@
+package ngsep.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.DefaultKmersMapImpl;
+import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.KmersMap;
+import ngsep.sequences.LongCodeDNAKmersMapImpl;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.io.FastaSequencesHandler;
+
+/**
+ * Compares the time and the retained heap memory of the k-mer maps available for k-mers longer than 15bp.
+ * K-mers of both strands of each sequence are counted. The default map stores packed k-mers as keys of a hash map.
+ * The long code map stores the 2-bit codes of the k-mers in primitive arrays.
+ * Retained memory is estimated as the difference in used heap after garbage collection
+ * Usage: KmersMapBenchmark <sequencesFasta> <kmerLength>
+ */
+public class KmersMapBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		FastaSequencesHandler handler = new FastaSequencesHandler();
+		QualifiedSequenceList sequences = handler.loadSequences(args[0]);
+		List<String> reads = new ArrayList<>(sequences.size());
+		for(int i=0;i<sequences.size();i++) reads.add(sequences.get(i).getCharacters().toString());
+		int kmerLength = Integer.parseInt(args[1]);
+		KmersMapBenchmark instance = new KmersMapBenchmark();
+		instance.run(reads, kmerLength, System.out);
+	}
+
+	public void run(List<String> reads, int kmerLength, PrintStream out) {
+		out.println("Sequences: "+reads.size()+" K-mer length: "+kmerLength);
+		out.println("Map\tSeconds\tKmers\tBytesPerKmer");
+		//Warm up
+		count(new LongCodeDNAKmersMapImpl((byte)kmerLength), reads, kmerLength);
+		runMap("Default", new DefaultKmersMapImpl(), reads, kmerLength, out);
+		runMap("LongCode", new LongCodeDNAKmersMapImpl((byte)kmerLength), reads, kmerLength, out);
+	}
+
+	private void runMap(String name, KmersMap map, List<String> reads, int kmerLength, PrintStream out) {
+		long memoryBefore = getUsedMemory();
+		long time = System.nanoTime();
+		count(map, reads, kmerLength);
+		time = System.nanoTime()-time;
+		long memory = getUsedMemory()-memoryBefore;
+		int size = map.size();
+		out.println(name+"\t"+String.format("%.2f", time/1e9)+"\t"+size+"\t"+String.format("%.1f", (double)memory/size));
+	}
+
+	private void count(KmersMap map, List<String> reads, int kmerLength) {
+		for(String read:reads) {
+			countSequence(map, read, kmerLength);
+			countSequence(map, DNAMaskedSequence.getReverseComplement(read).toString(), kmerLength);
+		}
+	}
+
+	private void countSequence(KmersMap map, String sequence, int kmerLength) {
+		if(sequence.length()<kmerLength) return;
+		if(map instanceof LongCodeDNAKmersMapImpl) {
+			LongCodeDNAKmersMapImpl codesMap = (LongCodeDNAKmersMapImpl) map;
+			for(long code:KmersExtractor.extractDNAKmerCodesArray(sequence, kmerLength, 0, sequence.length())) {
+				if(code>=0) codesMap.addCodeOccurance(code);
+			}
+			return;
+		}
+		for(String kmer:KmersExtractor.extractKmers(sequence, kmerLength, 1, 0, sequence.length(), false, false, false)) {
+			if(kmer!=null) map.addOcurrance(KmersExtractor.pack(kmer));
+		}
+	}
+
+	private static long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i=0;i<3;i++) System.gc();
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+}
@@ -0,0 +1,71 @@
+package ngsep.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import ngsep.alignments.MinimizersTableReadAlignmentAlgorithm;
+import ngsep.alignments.ReadAlignment;
+import ngsep.genome.ReferenceGenome;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.RawRead;
+import ngsep.sequences.io.FastaSequencesHandler;
+
+/**
+ * Compares the selection of regions for base-level alignment of long reads by co-linear chaining of the minimizer hits
+ * against the clustering of hits by predicted position.
+ * For each method reports the time per read, the number of cells of the dynamic programming matrices
+ * calculated per read, the number of aligned reads and the total number of alignments
+ * Usage: LongReadsChainingBenchmark <genomeFasta> <minimizersTable> <readsFasta>
+ */
+public class LongReadsChainingBenchmark {
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		ReferenceGenome genome = new ReferenceGenome(args[0]);
+		MinimizersTableReadAlignmentAlgorithm aligner = new MinimizersTableReadAlignmentAlgorithm();
+		aligner.loadGenome(genome, args[1]);
+		FastaSequencesHandler handler = new FastaSequencesHandler();
+		QualifiedSequenceList sequences = handler.loadSequences(args[2]);
+		List<RawRead> reads = new ArrayList<>(sequences.size());
+		for(int i=0;i<sequences.size();i++) {
+			reads.add(new RawRead(sequences.get(i).getName(), sequences.get(i).getCharacters().toString(), null));
+		}
+		LongReadsChainingBenchmark instance = new LongReadsChainingBenchmark();
+		instance.run(aligner, reads, System.out);
+	}
+
+	public void run(MinimizersTableReadAlignmentAlgorithm aligner, List<RawRead> reads, PrintStream out) {
+		out.println("Reads: "+reads.size());
+		out.println("Method\tMsPerRead\tCellsPerRead\tAlignedReads\tAlignments");
+		aligner.setChainHits(false);
+		runMethod("Clustering", aligner, reads, out);
+		aligner.setChainHits(true);
+		runMethod("Chaining", aligner, reads, out);
+	}
+
+	private void runMethod(String name, MinimizersTableReadAlignmentAlgorithm aligner, List<RawRead> reads, PrintStream out) {
+		//Warm up
+		for(RawRead read:reads) aligner.alignRead(read);
+		long bestTime = Long.MAX_VALUE;
+		long cells = 0;
+		int alignedReads = 0;
+		int alignments = 0;
+		for(int round=0;round<ROUNDS;round++) {
+			long cellsBefore = aligner.getCalculatedCells();
+			long time = System.nanoTime();
+			alignedReads = 0;
+			alignments = 0;
+			for(RawRead read:reads) {
+				List<ReadAlignment> alns = aligner.alignRead(read);
+				if(alns.size()>0) alignedReads++;
+				alignments+=alns.size();
+			}
+			bestTime = Math.min(bestTime, System.nanoTime()-time);
+			cells = aligner.getCalculatedCells()-cellsBefore;
+		}
+		int n = reads.size();
+		out.println(name+"\t"+String.format("%.2f", bestTime/1e6/n)+"\t"+String.format("%.0f", (double)cells/n)+"\t"+alignedReads+"\t"+alignments);
+	}
+}
@@ -0,0 +1,60 @@
+package ngsep.benchmark;
+
+import java.io.PrintStream;
+import java.util.logging.Level;
+
+import ngsep.sequences.MinimizersTable;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.io.FastaSequencesHandler;
+
+/**
+ * Measures the time to build the minimizers table of a set of sequences with different numbers of threads.
+ * For each number of threads, the table is built from scratch and the best time of a few rounds is reported,
+ * together with the speedup relative to the first number of threads in the list
+ * Usage: MinimizersTableBuildBenchmark <sequencesFasta> <kmerLength> <windowLength> <numThreads1,numThreads2,...>
+ */
+public class MinimizersTableBuildBenchmark {
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		FastaSequencesHandler handler = new FastaSequencesHandler();
+		QualifiedSequenceList sequences = handler.loadSequences(args[0]);
+		int kmerLength = Integer.parseInt(args[1]);
+		int windowLength = Integer.parseInt(args[2]);
+		String [] items = args[3].split(",");
+		int [] threads = new int [items.length];
+		for(int i=0;i<items.length;i++) threads[i] = Integer.parseInt(items[i]);
+		MinimizersTableBuildBenchmark instance = new MinimizersTableBuildBenchmark();
+		instance.run(sequences, kmerLength, windowLength, threads, System.out);
+	}
+
+	public void run(QualifiedSequenceList sequences, int kmerLength, int windowLength, int [] threads, PrintStream out) {
+		long totalLength = 0;
+		for(int i=0;i<sequences.size();i++) totalLength+=sequences.get(i).getLength();
+		out.println("Sequences: "+sequences.size()+" Total length: "+totalLength+" Available processors: "+Runtime.getRuntime().availableProcessors());
+		out.println("Threads\tSeconds\tSpeedup\tMinimizers\tEntries");
+		//Warm up
+		buildTable(sequences, kmerLength, windowLength, threads[0]);
+		double baseSeconds = 0;
+		for(int i=0;i<threads.length;i++) {
+			double seconds = Double.MAX_VALUE;
+			MinimizersTable table = null;
+			for(int round=0;round<ROUNDS;round++) {
+				long time = System.nanoTime();
+				table = buildTable(sequences, kmerLength, windowLength, threads[i]);
+				seconds = Math.min(seconds, (System.nanoTime()-time)/1e9);
+			}
+			if(i==0) baseSeconds = seconds;
+			out.println(threads[i]+"\t"+String.format("%.2f", seconds)+"\t"+String.format("%.2f", baseSeconds/seconds)+"\t"+table.size()+"\t"+table.getTotalEntries());
+		}
+	}
+
+	private MinimizersTable buildTable(QualifiedSequenceList sequences, int kmerLength, int windowLength, int numThreads) {
+		MinimizersTable table = new MinimizersTable(kmerLength, windowLength);
+		table.setKeepSingletons(true);
+		table.getLog().setLevel(Level.WARNING);
+		table.addSequences(sequences, numThreads);
+		return table;
+	}
+}
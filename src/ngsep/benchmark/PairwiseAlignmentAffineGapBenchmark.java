@@ -0,0 +1,97 @@
+package ngsep.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import ngsep.sequences.PairwiseAlignmentAffineGap;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.io.FastaSequencesHandler;
+
+/**
+ * Measures the throughput of the affine gap alignment of simulated reads against reference windows,
+ * as performed for complete reads by the short reads aligner. Compares the full alignment with a new aligner
+ * for each read, the full alignment reusing the aligner, and the banded alignment reusing the aligner.
+ * Also verifies that the banded alignments are the same as the full alignments
+ * Usage: PairwiseAlignmentAffineGapBenchmark <fasta> <numAlignments> <readLength> <maxIndelLength>
+ */
+public class PairwiseAlignmentAffineGapBenchmark {
+
+	private static final int WINDOW_PADDING = 3;
+	private static final double MISMATCH_RATE = 0.02;
+	private static final double INDEL_PROBABILITY = 0.3;
+
+	public static void main(String[] args) throws Exception {
+		String fastaFile = args[0];
+		int numAlignments = Integer.parseInt(args[1]);
+		int readLength = Integer.parseInt(args[2]);
+		int maxIndelLength = Integer.parseInt(args[3]);
+		PairwiseAlignmentAffineGapBenchmark instance = new PairwiseAlignmentAffineGapBenchmark();
+		instance.run(fastaFile, numAlignments, readLength, maxIndelLength, System.out);
+	}
+
+	public void run(String fastaFile, int numAlignments, int readLength, int maxIndelLength, PrintStream out) throws IOException {
+		String [][] pairs = simulatePairs(fastaFile, numAlignments, readLength, maxIndelLength);
+		out.println("Simulated "+pairs.length+" reads of length "+readLength+" with indels up to "+maxIndelLength+" bp");
+		for(int round=0;round<3;round++) {
+			long time = System.nanoTime();
+			String [][] fullAlns = new String[pairs.length][];
+			for(int i=0;i<pairs.length;i++) {
+				PairwiseAlignmentAffineGap aligner = createAligner(Math.max(pairs[i][0].length(), pairs[i][1].length()), -1);
+				fullAlns[i] = aligner.getAlignment(pairs[i][0], pairs[i][1]);
+			}
+			double newAlignerSeconds = (System.nanoTime()-time)/1e9;
+			PairwiseAlignmentAffineGap aligner = createAligner(readLength, -1);
+			time = System.nanoTime();
+			for(int i=0;i<pairs.length;i++) aligner.getAlignment(pairs[i][0], pairs[i][1]);
+			double reusedSeconds = (System.nanoTime()-time)/1e9;
+			aligner = createAligner(readLength, maxIndelLength);
+			int differences = 0;
+			time = System.nanoTime();
+			for(int i=0;i<pairs.length;i++) {
+				String [] aln = aligner.getAlignment(pairs[i][0], pairs[i][1]);
+				if(!Arrays.equals(aln, fullAlns[i])) differences++;
+			}
+			double bandedSeconds = (System.nanoTime()-time)/1e9;
+			out.println("Round "+(round+1)+" alignments/s full new aligner: "+String.format("%.0f", pairs.length/newAlignerSeconds)+" full reused: "+String.format("%.0f", pairs.length/reusedSeconds)+" banded reused: "+String.format("%.0f", pairs.length/bandedSeconds)+" band overflows: "+aligner.getBandOverflows()+" differences: "+differences);
+		}
+	}
+
+	private PairwiseAlignmentAffineGap createAligner(int capacity, int maxIndelLength) {
+		PairwiseAlignmentAffineGap aligner = new PairwiseAlignmentAffineGap(capacity);
+		aligner.setForceStart2(false);
+		aligner.setForceEnd2(false);
+		aligner.setMaxIndelLength(maxIndelLength);
+		return aligner;
+	}
+
+	private String [][] simulatePairs(String fastaFile, int numAlignments, int readLength, int maxIndelLength) throws IOException {
+		FastaSequencesHandler handler = new FastaSequencesHandler();
+		QualifiedSequenceList sequences = handler.loadSequences(fastaFile);
+		StringBuilder genome = new StringBuilder();
+		for(QualifiedSequence seq:sequences) genome.append(seq.getCharacters());
+		Random random = new Random(42);
+		String [][] pairs = new String[numAlignments][2];
+		int windowLength = readLength + maxIndelLength + 2*WINDOW_PADDING;
+		for(int i=0;i<numAlignments;i++) {
+			int start = random.nextInt(genome.length()-windowLength);
+			String window = genome.substring(start, start+windowLength);
+			StringBuilder read = new StringBuilder(window.substring(WINDOW_PADDING));
+			if(maxIndelLength>0 && random.nextDouble()<INDEL_PROBABILITY) {
+				int indelLength = 1+random.nextInt(maxIndelLength);
+				int pos = readLength/4+random.nextInt(readLength/2);
+				if(random.nextBoolean()) read.delete(pos, pos+indelLength);
+				else for(int j=0;j<indelLength;j++) read.insert(pos, "ACGT".charAt(random.nextInt(4)));
+			}
+			read.setLength(readLength);
+			for(int j=0;j<readLength;j++) {
+				if(random.nextDouble()<MISMATCH_RATE) read.setCharAt(j, "ACGT".charAt(random.nextInt(4)));
+			}
+			pairs[i][0] = read.toString();
+			pairs[i][1] = window.substring(0, readLength+2*WINDOW_PADDING);
+		}
+		return pairs;
+	}
+}
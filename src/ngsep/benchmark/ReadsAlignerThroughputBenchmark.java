@@ -0,0 +1,70 @@
+package ngsep.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import ngsep.alignments.ReadsAligner;
+import ngsep.genome.ReferenceGenome;
+import ngsep.genome.ReferenceGenomeFMIndex;
+
+/**
+ * Measures the throughput of the short reads aligner in reads per second for different numbers of threads.
+ * Also verifies that the output is the same regardless of the number of threads
+ * Usage: ReadsAlignerThroughputBenchmark <genome> <fmIndexFile> <readsFile> [readsFile2] <numThreads>...
+ * Read files are identified by the .fq, .fastq or .gz extensions.
+ */
+public class ReadsAlignerThroughputBenchmark {
+
+	private Logger log = Logger.getLogger(ReadsAlignerThroughputBenchmark.class.getName());
+	private ReferenceGenome genome;
+	private ReferenceGenomeFMIndex fMIndex;
+	private String readsFile;
+	private String readsFile2;
+
+	public static void main(String[] args) throws Exception {
+		ReadsAlignerThroughputBenchmark instance = new ReadsAlignerThroughputBenchmark();
+		int i = 0;
+		instance.genome = new ReferenceGenome(args[i++]);
+		instance.fMIndex = ReferenceGenomeFMIndex.load(instance.genome, args[i++]);
+		instance.readsFile = args[i++];
+		if(isReadsFile(args[i])) instance.readsFile2 = args[i++];
+		int [] numThreads = new int [args.length-i];
+		for(int j=0;i<args.length;i++,j++) numThreads[j] = Integer.parseInt(args[i]);
+		instance.run(numThreads, System.out);
+	}
+	private static boolean isReadsFile(String arg) {
+		return arg.endsWith(".fq") || arg.endsWith(".fastq") || arg.endsWith(".gz");
+	}
+
+	public void run(int [] numThreads, PrintStream out) throws IOException {
+		byte [] referenceOutput = null;
+		out.println("Threads\tReads\tSeconds\tReadsPerSecond\tSameOutput");
+		for(int t:numThreads) {
+			File outFile = File.createTempFile("alnBenchmark", ".bam");
+			try {
+				ReadsAligner aligner = new ReadsAligner();
+				aligner.setLog(log);
+				aligner.setGenome(genome);
+				aligner.setFmIndex(fMIndex);
+				aligner.setInputFile(readsFile);
+				aligner.setInputFile2(readsFile2);
+				aligner.setOutputFile(outFile.getAbsolutePath());
+				aligner.setNumThreads(t);
+				long time = System.nanoTime();
+				aligner.run();
+				double seconds = (System.nanoTime()-time)/1e9;
+				byte [] output = Files.readAllBytes(outFile.toPath());
+				if(referenceOutput==null) referenceOutput = output;
+				boolean same = Arrays.equals(referenceOutput, output);
+				int reads = aligner.getTotalReads();
+				out.println(""+t+"\t"+reads+"\t"+String.format("%.2f", seconds)+"\t"+String.format("%.1f", reads/seconds)+"\t"+same);
+			} finally {
+				outFile.delete();
+			}
+		}
+	}
+}
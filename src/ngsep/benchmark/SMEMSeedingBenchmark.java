@@ -0,0 +1,105 @@
+package ngsep.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ngsep.genome.ReferenceGenome;
+import ngsep.genome.ReferenceGenomeFMIndex;
+import ngsep.sequences.BidirectionalFMIndex;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.RawRead;
+import ngsep.sequences.UngappedSearchHit;
+import ngsep.sequences.io.FastqFileReader;
+
+/**
+ * Compares the seeding of short reads searching k-mers in the FM-index with the seeding calculating super-maximal exact matches (SMEMs)
+ * with a bidirectional FM-index. For each read and its reverse complement, k-mers are extracted as done by the reads aligner.
+ * Reports per read the number of seeds searched, the number of extensions of patterns in the index, the number of hits located
+ * and the time spent by each strategy. Extensions of k-mers are counted as one per character of each searched k-mer.
+ * The index must be built with the option to include the reversed genome
+ * Usage: SMEMSeedingBenchmark <genomeFasta> <bidirectionalIndex> <readsFastq> <kmerLength>
+ */
+public class SMEMSeedingBenchmark {
+
+	private static final int MAX_HITS_SEED = 50;
+
+	public static void main(String[] args) throws Exception {
+		ReferenceGenome genome = new ReferenceGenome(args[0]);
+		ReferenceGenomeFMIndex index = ReferenceGenomeFMIndex.load(genome, args[1]);
+		if(!index.isBidirectional()) throw new IOException("The index in file "+args[1]+" is not bidirectional");
+		List<String> reads = new ArrayList<>();
+		try (FastqFileReader reader = new FastqFileReader(args[2])) {
+			reader.setSequenceType(DNAMaskedSequence.class);
+			Iterator<RawRead> it = reader.iterator();
+			while(it.hasNext()) {
+				String seq = it.next().getSequenceString();
+				reads.add(seq);
+				reads.add(DNAMaskedSequence.getReverseComplement(seq).toString());
+			}
+		}
+		int kmerLength = Integer.parseInt(args[3]);
+		SMEMSeedingBenchmark instance = new SMEMSeedingBenchmark();
+		instance.run(index, reads, kmerLength, System.out);
+	}
+
+	public void run(ReferenceGenomeFMIndex index, List<String> queries, int kmerLength, PrintStream out) {
+		int n = queries.size()/2;
+		out.println("Loaded "+n+" reads. K-mer length: "+kmerLength);
+		//Warm up
+		runKmers(index, queries, kmerLength);
+		runSMEMs(index, queries, kmerLength);
+
+		long time = System.nanoTime();
+		long [] kmerStats = runKmers(index, queries, kmerLength);
+		double kmerSeconds = (System.nanoTime()-time)/1e9;
+		BidirectionalFMIndex bidirectional = index.getBidirectionalIndex();
+		long extensionsBefore = bidirectional.getExtensions();
+		time = System.nanoTime();
+		long [] smemStats = runSMEMs(index, queries, kmerLength);
+		double smemSeconds = (System.nanoTime()-time)/1e9;
+		long smemExtensions = bidirectional.getExtensions()-extensionsBefore;
+		out.println("Strategy\tSeeds/read\tExtensions/read\tHits/read\tRepetitiveSeeds/read\tMicroseconds/read");
+		out.println("K-mers\t"+format(kmerStats[0],n)+"\t"+format(kmerStats[1],n)+"\t"+format(kmerStats[2],n)+"\t"+format(kmerStats[3],n)+"\t"+format((long)(kmerSeconds*1e6),n));
+		out.println("SMEMs\t"+format(smemStats[0],n)+"\t"+format(smemExtensions,n)+"\t"+format(smemStats[2],n)+"\t"+format(smemStats[3],n)+"\t"+format((long)(smemSeconds*1e6),n));
+	}
+
+	private long [] runKmers(ReferenceGenomeFMIndex index, List<String> queries, int kmerLength) {
+		long [] stats = new long[4];
+		for(String query:queries) {
+			String [] kmers = KmersExtractor.extractKmers(query, kmerLength, kmerLength, 0, query.length(), true, false, true);
+			for(String kmer:kmers) {
+				if(kmer==null) continue;
+				List<UngappedSearchHit> hits = index.exactSearch(kmer);
+				stats[0]++;
+				stats[1]+=kmer.length();
+				if(hits.size()>MAX_HITS_SEED) stats[3]++;
+				else stats[2]+=hits.size();
+			}
+		}
+		return stats;
+	}
+
+	private long [] runSMEMs(ReferenceGenomeFMIndex index, List<String> queries, int kmerLength) {
+		long [] stats = new long[4];
+		for(String query:queries) {
+			List<BidirectionalFMIndex.Match> smems = index.findSMEMs(query, kmerLength);
+			for(BidirectionalFMIndex.Match smem:smems) {
+				stats[0]++;
+				if(smem.getSize()>MAX_HITS_SEED) {
+					stats[3]++;
+					continue;
+				}
+				stats[2]+=index.locate(query, smem).size();
+			}
+		}
+		return stats;
+	}
+
+	private String format(long total, int n) {
+		return String.format("%.2f", (double)total/n);
+	}
+}
@@ -0,0 +1,137 @@
+package ngsep.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.LongCodeDNAKmersMapImpl;
+import ngsep.sequences.QualifiedSequence;
+
+/**
+ * Measures the memory saved by the singleton filter of KmersExtractor and the accuracy of the counts.
+ * Reads are simulated from a random genome with substitution errors at each of the given rates. K-mers are counted
+ * without and with the filter. The filter is built with the number of distinct k-mers counted without the filter.
+ * For k-mers observed at least twice, reports how many keep the exact count, how many have one extra occurrence
+ * because of a false positive of the filter and how many have other errors. Also reports the singletons stored
+ * because of false positives. Retained memory is estimated as the difference in used heap after garbage collection
+ * Usage: SingletonFilterBenchmark <genomeLength> <coverage> <readLength> <kmerLength> <falsePositiveRate> <errorRates>
+ * The error rates are separated by commas
+ */
+public class SingletonFilterBenchmark {
+
+	private static final String BASES = "ACGT";
+
+	public static void main(String[] args) throws Exception {
+		int genomeLength = Integer.parseInt(args[0]);
+		int coverage = Integer.parseInt(args[1]);
+		int readLength = Integer.parseInt(args[2]);
+		int kmerLength = Integer.parseInt(args[3]);
+		double falsePositiveRate = Double.parseDouble(args[4]);
+		String [] items = args[5].split(",");
+		double [] errorRates = new double[items.length];
+		for(int i=0;i<items.length;i++) errorRates[i] = Double.parseDouble(items[i]);
+		SingletonFilterBenchmark instance = new SingletonFilterBenchmark();
+		instance.run(genomeLength, coverage, readLength, kmerLength, falsePositiveRate, errorRates, System.out);
+	}
+
+	public void run(int genomeLength, int coverage, int readLength, int kmerLength, double falsePositiveRate, double [] errorRates, PrintStream out) {
+		Random random = new Random(42);
+		String genome = simulateGenome(random, genomeLength);
+		int numReads = (int)((long)genomeLength*coverage/readLength);
+		out.println("Genome: "+genomeLength+" Reads: "+numReads+" Read length: "+readLength+" K-mer length: "+kmerLength+" False positive rate: "+falsePositiveRate);
+		out.println("ErrorRate\tDistinct\tSingletons\tExactMB\tFilterMB\tExactSeconds\tFilterSeconds\tStored\tStoredFilter\tRepeatedExact\tRepeatedPlusOne\tRepeatedOther\tFPSingletons");
+		//Warm up
+		List<QualifiedSequence> warmup = simulateReads(random, genome, numReads/10, readLength, 0.01);
+		count(warmup, kmerLength, 0, falsePositiveRate);
+		count(warmup, kmerLength, 1000000, falsePositiveRate);
+		for(double errorRate:errorRates) {
+			List<QualifiedSequence> reads = simulateReads(random, genome, numReads, readLength, errorRate);
+			long memory = getUsedMemory();
+			long time = System.nanoTime();
+			LongCodeDNAKmersMapImpl exact = count(reads, kmerLength, 0, falsePositiveRate);
+			double exactTime = (System.nanoTime()-time)/1e9;
+			double exactMemory = (getUsedMemory()-memory)/1e6;
+			memory = getUsedMemory();
+			time = System.nanoTime();
+			LongCodeDNAKmersMapImpl filtered = count(reads, kmerLength, exact.size(), falsePositiveRate);
+			double filterTime = (System.nanoTime()-time)/1e9;
+			double filterMemory = (getUsedMemory()-memory)/1e6;
+			//Compare counts of each distinct k-mer
+			long [] stats = new long[5];
+			LongCodeDNAKmersMapImpl visited = new LongCodeDNAKmersMapImpl((byte)kmerLength);
+			for(QualifiedSequence read:reads) {
+				String forward = read.getCharacters().toString();
+				compare(forward, kmerLength, exact, filtered, visited, stats);
+				compare(DNAMaskedSequence.getReverseComplement(forward).toString(), kmerLength, exact, filtered, visited, stats);
+			}
+			out.print(errorRate+"\t"+exact.size()+"\t"+stats[0]+"\t"+String.format("%.1f", exactMemory)+"\t"+String.format("%.1f", filterMemory));
+			out.print("\t"+String.format("%.2f", exactTime)+"\t"+String.format("%.2f", filterTime)+"\t"+exact.size()+"\t"+filtered.size());
+			out.println("\t"+stats[1]+"\t"+stats[2]+"\t"+stats[3]+"\t"+stats[4]);
+		}
+	}
+
+	private LongCodeDNAKmersMapImpl count(List<QualifiedSequence> reads, int kmerLength, int filterKmers, double falsePositiveRate) {
+		KmersExtractor extractor = new KmersExtractor();
+		extractor.getLog().setLevel(Level.WARNING);
+		extractor.setKmerLength(kmerLength);
+		if(filterKmers>0) {
+			extractor.setSingletonFilter(true);
+			extractor.setSingletonFilterKmers(filterKmers);
+			extractor.setSingletonFilterFPRate(falsePositiveRate);
+		}
+		extractor.processQualifiedSequences(reads);
+		return (LongCodeDNAKmersMapImpl) extractor.getKmersMap();
+	}
+
+	/**
+	 * Updates the statistics with the k-mers of the given sequence not visited before
+	 * @param stats Singletons, repeated k-mers with exact counts, with one extra occurrence and with other counts
+	 * and singletons stored in the filtered map
+	 */
+	private void compare(String sequence, int kmerLength, LongCodeDNAKmersMapImpl exact, LongCodeDNAKmersMapImpl filtered, LongCodeDNAKmersMapImpl visited, long [] stats) {
+		for(long code:KmersExtractor.extractDNAKmerCodesArray(sequence, kmerLength, 0, sequence.length())) {
+			if(code<0 || visited.getCount(code)>0) continue;
+			visited.addCodeOccurance(code);
+			int count = exact.getCount(code);
+			int filteredCount = filtered.getCount(code);
+			if(count==1) {
+				stats[0]++;
+				if(filteredCount>0) stats[4]++;
+			} else if (filteredCount==count) stats[1]++;
+			else if (filteredCount==count+1) stats[2]++;
+			else stats[3]++;
+		}
+	}
+
+	private String simulateGenome(Random random, int length) {
+		StringBuilder genome = new StringBuilder(length);
+		for(int i=0;i<length;i++) genome.append(BASES.charAt(random.nextInt(4)));
+		return genome.toString();
+	}
+
+	private List<QualifiedSequence> simulateReads(Random random, String genome, int numReads, int readLength, double errorRate) {
+		List<QualifiedSequence> reads = new ArrayList<>(numReads);
+		for(int i=0;i<numReads;i++) {
+			int start = random.nextInt(genome.length()-readLength+1);
+			char [] read = genome.substring(start, start+readLength).toCharArray();
+			for(int j=0;j<readLength;j++) {
+				//Substitution to a different base
+				if(random.nextDouble()<errorRate) read[j] = BASES.charAt((BASES.indexOf(read[j])+1+random.nextInt(3))%4);
+			}
+			String sequence = new String(read);
+			if(random.nextBoolean()) sequence = DNAMaskedSequence.getReverseComplement(sequence).toString();
+			reads.add(new QualifiedSequence("read"+i, sequence));
+		}
+		return reads;
+	}
+
+	private static long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i=0;i<3;i++) System.gc();
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+}
@@ -23,7 +23,10 @@ import java.io.IOException;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.sequences.FMIndex;
+import ngsep.sequences.FMIndexSingleSequence;
 
 /**
  * Program that build the FM-index related to a genome
@@ -32,7 +35,10 @@ import ngsep.main.ProgressNotifier;
  */
 public class GenomeIndexer {
 	// Constants for default values
-	
+	public static final int DEF_SUFFIX_FRACTION = FMIndexSingleSequence.DEFAULT_SUFFIX_FRACTION;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_MAX_CHUNK_LENGTH = FMIndex.DEFAULT_MAX_CHUNK_LENGTH;
+	public static final int DEF_PREFIX_TABLE_LENGTH = 0;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(GenomeIndexer.class.getName());
@@ -41,6 +47,12 @@ public class GenomeIndexer {
 	// Parameters
 	private String inputFile = null;
 	private String outputFile = null;
+	private String textIndexFile = null;
+	private int suffixFraction = DEF_SUFFIX_FRACTION;
+	private int numThreads = DEF_NUM_THREADS;
+	private int maxChunkLength = DEF_MAX_CHUNK_LENGTH;
+	private boolean bidirectional = false;
+	private int prefixTableLength = DEF_PREFIX_TABLE_LENGTH;
 	
 	
 	// Get and set methods
@@ -72,6 +84,63 @@ public class GenomeIndexer {
 	public void setOutputFile(String outputFile) {
 		this.outputFile = outputFile;
 	}
+	
+	public String getTextIndexFile() {
+		return textIndexFile;
+	}
+	public void setTextIndexFile(String textIndexFile) {
+		this.textIndexFile = textIndexFile;
+	}
+	
+	public int getSuffixFraction() {
+		return suffixFraction;
+	}
+	public void setSuffixFraction(int suffixFraction) {
+		this.suffixFraction = suffixFraction;
+	}
+	public void setSuffixFraction(String value) {
+		setSuffixFraction((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getMaxChunkLength() {
+		return maxChunkLength;
+	}
+	public void setMaxChunkLength(int maxChunkLength) {
+		this.maxChunkLength = maxChunkLength;
+	}
+	public void setMaxChunkLength(String value) {
+		setMaxChunkLength((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public boolean isBidirectional() {
+		return bidirectional;
+	}
+	public void setBidirectional(boolean bidirectional) {
+		this.bidirectional = bidirectional;
+	}
+	public void setBidirectional(Boolean bidirectional) {
+		setBidirectional(bidirectional.booleanValue());
+	}
+	
+	public int getPrefixTableLength() {
+		return prefixTableLength;
+	}
+	public void setPrefixTableLength(int prefixTableLength) {
+		this.prefixTableLength = prefixTableLength;
+	}
+	public void setPrefixTableLength(String value) {
+		setPrefixTableLength((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 
 	public static void main(String[] args) throws Exception  {
 		GenomeIndexer instance = new GenomeIndexer();
@@ -82,19 +151,45 @@ public class GenomeIndexer {
 	public void run () throws IOException {
 		if (inputFile==null) throw new IOException("The reference genome is a required parameter");
 		if (outputFile==null) throw new IOException("The path of the output file is a required parameter");
-		createIndex (inputFile,outputFile);
+		if (suffixFraction<1) throw new IOException("The sampling rate of the suffix array must be a positive number");
+		if (numThreads<1) throw new IOException("The number of threads must be a positive number");
+		if (maxChunkLength<1) throw new IOException("The maximum length of the genome segments must be a positive number");
+		if (prefixTableLength<0 || prefixTableLength>FMIndexSingleSequence.MAX_PREFIX_TABLE_LENGTH) throw new IOException("The length of the k-mers of the prefix table must be between 0 and "+FMIndexSingleSequence.MAX_PREFIX_TABLE_LENGTH);
+		if (textIndexFile!=null) convertIndex(inputFile, textIndexFile, outputFile);
+		else createIndex (inputFile,outputFile);
 	}
 
 	public void createIndex(String genomeFile, String outputFile) throws IOException {
 		log.info("Loading genome from file "+genomeFile);
 		ReferenceGenome genome = new ReferenceGenome(genomeFile);
-		log.info("Building index for genome in file "+genomeFile);
+		log.info("Building "+(bidirectional?"bidirectional ":"")+"index for genome in file "+genomeFile);
 		long time = System.currentTimeMillis();
-		ReferenceGenomeFMIndex fMIndex= new ReferenceGenomeFMIndex(genome, log);
+		ReferenceGenomeFMIndex fMIndex= new ReferenceGenomeFMIndex(genome, suffixFraction, numThreads, maxChunkLength, bidirectional, log);
+		if(prefixTableLength>0) {
+			log.info("Building tables of prefix intervals for k-mers of length "+prefixTableLength);
+			fMIndex.buildPrefixTables(prefixTableLength);
+		}
 		double seconds = (System.currentTimeMillis()-time);
 		seconds /=1000;
 		log.info("Built index in "+seconds+" seconds. Saving in "+outputFile);
 		fMIndex.save(outputFile);
 		log.info("Process completed");
 	}
+	
+	/**
+	 * Converts an index saved in the text format of previous versions to the current binary format
+	 * @param genomeFile Fasta file with the indexed genome
+	 * @param textIndexFile Index in text format
+	 * @param outputFile Output file for the index in binary format
+	 * @throws IOException If the files can not be read or written
+	 */
+	public void convertIndex(String genomeFile, String textIndexFile, String outputFile) throws IOException {
+		log.info("Loading genome from file "+genomeFile);
+		ReferenceGenome genome = new ReferenceGenome(genomeFile);
+		log.info("Loading index from file "+textIndexFile);
+		ReferenceGenomeFMIndex fMIndex = ReferenceGenomeFMIndex.load(genome, textIndexFile);
+		log.info("Saving index in binary format in "+outputFile);
+		fMIndex.save(outputFile);
+		log.info("Process completed");
+	}
 }
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import ngsep.alignments.ReadsAligner;
+import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
+import ngsep.main.ProgressNotifier;
+import ngsep.sequences.MinimizersTable;
+
+/**
+ * Program that builds the minimizers table used to align long reads to a genome
+ */
+public class GenomeMinimizersIndexer {
+	// Constants for default values
+	public static final int DEF_KMER_LENGTH = ReadsAligner.DEF_KMER_LENGTH;
+	public static final int DEF_WINDOW_LENGTH = ReadsAligner.DEF_WINDOW_LENGTH;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final String DEF_OUTPUT_SUFFIX = ".mzt";
+	
+	// Logging and progress
+	private Logger log = Logger.getLogger(GenomeMinimizersIndexer.class.getName());
+	private ProgressNotifier progressNotifier=null;
+	
+	// Parameters
+	private String inputFile = null;
+	private String outputFile = null;
+	private int kmerLength = DEF_KMER_LENGTH;
+	private int windowLength = DEF_WINDOW_LENGTH;
+	private int numThreads = DEF_NUM_THREADS;
+	
+	// Get and set methods
+	
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+
+	public String getInputFile() {
+		return inputFile;
+	}
+	public void setInputFile(String inputFile) {
+		this.inputFile = inputFile;
+	}
+
+	public String getOutputFile() {
+		return outputFile;
+	}
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+	}
+	
+	public int getKmerLength() {
+		return kmerLength;
+	}
+	public void setKmerLength(int kmerLength) {
+		this.kmerLength = kmerLength;
+	}
+	public void setKmerLength(String value) {
+		setKmerLength((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getWindowLength() {
+		return windowLength;
+	}
+	public void setWindowLength(int windowLength) {
+		this.windowLength = windowLength;
+	}
+	public void setWindowLength(String value) {
+		setWindowLength((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public static void main(String[] args) throws Exception  {
+		GenomeMinimizersIndexer instance = new GenomeMinimizersIndexer();
+		CommandsDescriptor.getInstance().loadOptions(instance, args);
+		instance.run();
+	}
+	
+	public void run () throws IOException {
+		if (inputFile==null) throw new IOException("The reference genome is a required parameter");
+		if (kmerLength<1 || kmerLength>31) throw new IOException("The k-mer length must be a number between 1 and 31");
+		if (windowLength<1) throw new IOException("The window length must be a positive number");
+		if (numThreads<1) throw new IOException("The number of threads must be a positive number");
+		String output = outputFile;
+		if (output==null) output = inputFile+DEF_OUTPUT_SUFFIX;
+		createTable(inputFile, output);
+	}
+
+	public void createTable(String genomeFile, String outputFile) throws IOException {
+		log.info("Loading genome from file "+genomeFile);
+		ReferenceGenome genome = new ReferenceGenome(genomeFile);
+		int n = genome.getNumSequences();
+		log.info("Building minimizers table for genome with "+n+" sequences. K-mer length: "+kmerLength+" window length: "+windowLength+" threads: "+numThreads);
+		long time = System.currentTimeMillis();
+		MinimizersTable table = new MinimizersTable(kmerLength, windowLength);
+		table.setKeepSingletons(true);
+		table.setLog(log);
+		table.addSequences(genome.getSequencesList(), numThreads);
+		double seconds = (System.currentTimeMillis()-time);
+		seconds /=1000;
+		log.info("Built minimizers table in "+seconds+" seconds. Total minimizers: "+table.size()+" total entries: "+table.getTotalEntries()+". Saving in "+outputFile);
+		table.save(outputFile);
+		log.info("Process completed");
+	}
+}
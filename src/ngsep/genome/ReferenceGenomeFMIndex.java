@@ -23,7 +23,9 @@ import java.io.IOException;
 import java.util.List;
 import java.util.logging.Logger;
 
+import ngsep.sequences.BidirectionalFMIndex;
 import ngsep.sequences.FMIndex;
+import ngsep.sequences.FMIndexSingleSequence;
 import ngsep.sequences.UngappedSearchHit;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
@@ -44,17 +46,47 @@ public class ReferenceGenomeFMIndex {
 	}
 	
 	public ReferenceGenomeFMIndex (ReferenceGenome genome, Logger log) {
+		this(genome, FMIndexSingleSequence.DEFAULT_SUFFIX_FRACTION, 1, FMIndex.DEFAULT_MAX_CHUNK_LENGTH, log);
+	}
+	
+	/**
+	 * Builds the index for the given genome
+	 * @param genome to index
+	 * @param suffixFraction One of each suffixFraction genome positions will be stored in the partial suffix array
+	 * @param numThreads Number of threads to build internal indexes
+	 * @param maxChunkLength Maximum length of the genome segments indexed by each internal index
+	 * @param log to report progress
+	 */
+	public ReferenceGenomeFMIndex (ReferenceGenome genome, int suffixFraction, int numThreads, int maxChunkLength, Logger log) {
+		this(genome, suffixFraction, numThreads, maxChunkLength, false, log);
+	}
+	
+	/**
+	 * Builds the index for the given genome
+	 * @param genome to index
+	 * @param suffixFraction One of each suffixFraction genome positions will be stored in the partial suffix array
+	 * @param numThreads Number of threads to build internal indexes
+	 * @param maxChunkLength Maximum length of the genome segments indexed by each internal index
+	 * @param bidirectional Tells if the index of the reversed genome should also be built to calculate SMEMs
+	 * @param log to report progress
+	 */
+	public ReferenceGenomeFMIndex (ReferenceGenome genome, int suffixFraction, int numThreads, int maxChunkLength, boolean bidirectional, Logger log) {
 		sequencesMetadata = genome.getSequencesMetadata();
 		internalIndex = new FMIndex();
 		internalIndex.setMaxHitsQuery(50);
+		internalIndex.setSuffixFraction(suffixFraction);
+		internalIndex.setNumThreads(numThreads);
+		internalIndex.setMaxChunkLength(maxChunkLength);
+		internalIndex.setBuildBidirectional(bidirectional);
 		QualifiedSequenceList sequences = genome.getSequencesList();
 		internalIndex.loadQualifiedSequences(sequences, log);
 	}
 
 	/**
-	 * Loads an instance of the FMIndex from a serialized binary file
+	 * Loads an instance of the FMIndex from a file. Binary files are mapped to memory.
+	 * Files with the text format of previous versions are loaded in memory
 	 * @param genome Indexed genome
-	 * @param filename Binary file with the serialization of an FMIndex
+	 * @param filename File with the FMIndex
 	 * @return FMIndex serialized in the given file
 	 * @throws IOException If there were errors reading the file
 	 */
@@ -72,7 +104,7 @@ public class ReferenceGenomeFMIndex {
 	}
 	
 	/**
-	 * Saves this FM-Index as a serializable object
+	 * Saves this FM-Index in binary format
 	 * @param filename
 	 * @throws IOException
 	 */
@@ -114,6 +146,52 @@ public class ReferenceGenomeFMIndex {
 	public List<UngappedSearchHit> exactSearch (String searchSequence) {
 		return internalIndex.exactSearch(searchSequence);
 	}
+	/**
+	 * @return int Length of the k-mers of the tables of prefix intervals. Zero if the tables are not available
+	 */
+	public int getPrefixTableLength() {
+		return internalIndex.getPrefixTableLength();
+	}
+	/**
+	 * Builds the tables with the ranges of rows of the index starting with each DNA k-mer of the given length.
+	 * These tables speed up searches but use 8*4^k bytes for each segment of the genome
+	 * @param length of the k-mers. Zero removes the current tables
+	 */
+	public void buildPrefixTables(int length) {
+		internalIndex.buildPrefixTables(length);
+	}
+	/**
+	 * @return boolean true if this index includes the index of the reversed genome needed to calculate SMEMs
+	 */
+	public boolean isBidirectional() {
+		return internalIndex.getBidirectionalIndex()!=null;
+	}
+	/**
+	 * @return BidirectionalFMIndex Bidirectional view of this index. Null if the index is not bidirectional
+	 */
+	public BidirectionalFMIndex getBidirectionalIndex() {
+		return internalIndex.getBidirectionalIndex();
+	}
+	/**
+	 * Calculates the super-maximal exact matches (SMEMs) of the given sequence
+	 * @param searchSequence sequence to search
+	 * @param minLength Minimum length of the matches
+	 * @return List<BidirectionalFMIndex.Match> SMEMs sorted by start position within the sequence
+	 */
+	public List<BidirectionalFMIndex.Match> findSMEMs(String searchSequence, int minLength) {
+		BidirectionalFMIndex index = internalIndex.getBidirectionalIndex();
+		if(index==null) throw new IllegalStateException("The FM-index is not bidirectional. Build the index with the option to calculate SMEMs");
+		return index.findSMEMs(searchSequence, minLength);
+	}
+	/**
+	 * Locates in the genome the occurrences of the given match
+	 * @param searchSequence sequence used to calculate the match
+	 * @param match Exact match calculated for the given sequence
+	 * @return List<UngappedSearchHit> Hits of the match within the genome
+	 */
+	public List<UngappedSearchHit> locate(String searchSequence, BidirectionalFMIndex.Match match) {
+		return internalIndex.locate(searchSequence, match);
+	}
 	/**
 	 * Return the sequence with the given name
 	 * @param sequenceName Name of the sequence to search
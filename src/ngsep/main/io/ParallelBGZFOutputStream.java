@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream writing data in the blocked gzip format (BGZF) used by BAM files.
+ * Data is accumulated in blocks that are compressed concurrently by a pool of threads.
+ * Compressed blocks are written in the same order in which data was written to this stream.
+ * Positions of the data are reported as block numbers and offsets within the blocks. The address of each block
+ * in the compressed output becomes available once all previous blocks are written. Addresses are kept
+ * until they are released by the method releaseBlockAddresses
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+
+	/**
+	 * Maximum number of uncompressed bytes per block. Makes sure that a block stored without compression fits in a BGZF block
+	 */
+	public static final int MAX_BLOCK_DATA = 0xff00;
+	public static final int DEFAULT_COMPRESSION_LEVEL = 5;
+	/**
+	 * BGZF end of file marker (empty block)
+	 */
+	private static final byte [] EOF_BLOCK = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+	private static final int BLOCK_HEADER_LENGTH = 18;
+	private static final int BLOCK_FOOTER_LENGTH = 8;
+	private static final int MAX_BLOCK_SIZE = 65536;
+	private static final int TIMEOUT_SECONDS = 30;
+
+	private final OutputStream out;
+	private final int compressionLevel;
+	private final ExecutorService pool;
+	private final int maxBlocksInFlight;
+	private final ArrayDeque<Future<byte []>> blocksInFlight = new ArrayDeque<>();
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<Deflater> storeDeflaters;
+	// Deflaters created by the compression threads. They are ended when the stream is closed
+	private final List<Deflater> createdDeflaters = new ArrayList<>();
+
+	private byte [] buffer = new byte[MAX_BLOCK_DATA];
+	private int bufferLength = 0;
+	private long numBlocks = 0;
+	// Addresses of the blocks written and not released, plus the address of the next block
+	private long [] blockAddresses = new long[1024];
+	private int numAddresses = 1;
+	// Number of the block having the first address
+	private long firstAddressBlock = 0;
+	private long blocksWritten = 0;
+	private boolean closed = false;
+
+	/**
+	 * Creates a new stream
+	 * @param out Stream to write the compressed blocks
+	 * @param compressionLevel Level of compression (0-9)
+	 * @param numThreads Number of threads compressing blocks
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, int compressionLevel, int numThreads) {
+		if(compressionLevel<0 || compressionLevel>9) throw new IllegalArgumentException("Invalid compression level: "+compressionLevel+". It must be between 0 and 9");
+		if(numThreads<1) throw new IllegalArgumentException("The number of compression threads must be a positive number. Value: "+numThreads);
+		this.out = out;
+		this.compressionLevel = compressionLevel;
+		this.maxBlocksInFlight = 4*numThreads;
+		this.pool = Executors.newFixedThreadPool(numThreads, (r)-> {
+			Thread t = new Thread(r, "BGZFCompressor");
+			t.setDaemon(true);
+			return t;
+		});
+		deflaters = ThreadLocal.withInitial(()->createDeflater(compressionLevel));
+		storeDeflaters = ThreadLocal.withInitial(()->createDeflater(Deflater.NO_COMPRESSION));
+	}
+
+	private Deflater createDeflater(int level) {
+		Deflater deflater = new Deflater(level, true);
+		synchronized (createdDeflaters) {
+			createdDeflaters.add(deflater);
+		}
+		return deflater;
+	}
+
+	/**
+	 * @return int Level of compression
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[bufferLength++] = (byte) b;
+		if(bufferLength==buffer.length) submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len>0) {
+			int n = Math.min(len, buffer.length-bufferLength);
+			System.arraycopy(b, off, buffer, bufferLength, n);
+			bufferLength+=n;
+			off+=n;
+			len-=n;
+			if(bufferLength==buffer.length) submitBlock();
+		}
+	}
+
+	/**
+	 * Finishes the current block, so the next data starts a new block. Waits for the blocks in flight to be written
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(bufferLength>0) submitBlock();
+		while(blocksInFlight.size()>0) writeNextBlock();
+		out.flush();
+	}
+
+	/**
+	 * @return long Current position encoded as the number of the block in the 48 most significant bits
+	 * and the offset within the block in the 16 least significant bits
+	 */
+	public long getPosition() {
+		return (numBlocks<<16) | bufferLength;
+	}
+
+	/**
+	 * @return long Number of blocks already written to the underlying stream
+	 */
+	public long getBlocksWritten() {
+		return blocksWritten;
+	}
+
+	/**
+	 * Returns the address in the compressed output of the given block.
+	 * @param blockNumber Number of the block. It must be at most equal to the number of blocks written
+	 * and its address should not be released
+	 * @return long Address of the first byte of the block
+	 */
+	public long getBlockAddress(long blockNumber) {
+		if(blockNumber>blocksWritten) throw new IllegalArgumentException("Block "+blockNumber+" has not been written yet. Blocks written: "+blocksWritten);
+		if(blockNumber<firstAddressBlock) throw new IllegalArgumentException("The address of block "+blockNumber+" was released. First block with address: "+firstAddressBlock);
+		return blockAddresses[(int)(blockNumber-firstAddressBlock)];
+	}
+
+	/**
+	 * Discards the addresses of the written blocks before the given block.
+	 * Addresses and virtual offsets of positions within these blocks can not be requested afterwards
+	 * @param blockNumber Number of the first block whose address should be kept
+	 */
+	public void releaseBlockAddresses(long blockNumber) {
+		int n = (int)(Math.min(blockNumber, blocksWritten)-firstAddressBlock);
+		if(n<=0) return;
+		numAddresses-=n;
+		System.arraycopy(blockAddresses, n, blockAddresses, 0, numAddresses);
+		firstAddressBlock+=n;
+	}
+
+	/**
+	 * Translates a position given by the method getPosition to a virtual offset in the compressed output
+	 * @param position Block number and offset within the block
+	 * @return long Virtual offset as used in BAM indexes
+	 */
+	public long getVirtualOffset(long position) {
+		return (getBlockAddress(position>>>16)<<16) | (position & 0xFFFF);
+	}
+
+	private void submitBlock() throws IOException {
+		final byte [] data = buffer;
+		final int length = bufferLength;
+		blocksInFlight.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(data, length);
+			}
+		}));
+		numBlocks++;
+		buffer = new byte[MAX_BLOCK_DATA];
+		bufferLength = 0;
+		while(blocksInFlight.size()>=maxBlocksInFlight || (blocksInFlight.size()>0 && blocksInFlight.peek().isDone())) {
+			writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		byte [] block;
+		try {
+			block = blocksInFlight.poll().get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		} catch (ExecutionException e) {
+			throw new IOException("Error compressing BGZF block", e.getCause());
+		}
+		out.write(block);
+		blocksWritten++;
+		if(numAddresses==blockAddresses.length) blockAddresses = Arrays.copyOf(blockAddresses, 2*blockAddresses.length);
+		blockAddresses[numAddresses] = blockAddresses[numAddresses-1]+block.length;
+		numAddresses++;
+	}
+
+	private byte [] compressBlock(byte [] data, int length) {
+		byte [] compressed = new byte[MAX_BLOCK_SIZE];
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int compressedLength = deflater.deflate(compressed, BLOCK_HEADER_LENGTH, MAX_BLOCK_SIZE-BLOCK_HEADER_LENGTH-BLOCK_FOOTER_LENGTH);
+		if(!deflater.finished()) {
+			//Data does not compress. Store it without compression
+			deflater = storeDeflaters.get();
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			compressedLength = deflater.deflate(compressed, BLOCK_HEADER_LENGTH, MAX_BLOCK_SIZE-BLOCK_HEADER_LENGTH-BLOCK_FOOTER_LENGTH);
+			if(!deflater.finished()) throw new IllegalStateException("Uncompressed block does not fit in a BGZF block. Data length: "+length);
+		}
+		int blockSize = BLOCK_HEADER_LENGTH+compressedLength+BLOCK_FOOTER_LENGTH;
+		//Header
+		compressed[0] = 31;
+		compressed[1] = (byte)139;
+		compressed[2] = 8;
+		compressed[3] = 4;
+		compressed[9] = (byte)255;
+		compressed[10] = 6;
+		compressed[12] = 'B';
+		compressed[13] = 'C';
+		compressed[14] = 2;
+		writeInt16(compressed, 16, blockSize-1);
+		//Footer
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		writeInt32(compressed, blockSize-8, (int)crc.getValue());
+		writeInt32(compressed, blockSize-4, length);
+		return Arrays.copyOf(compressed, blockSize);
+	}
+
+	private static void writeInt16(byte [] array, int pos, int value) {
+		array[pos] = (byte)value;
+		array[pos+1] = (byte)(value>>>8);
+	}
+
+	private static void writeInt32(byte [] array, int pos, int value) {
+		writeInt16(array, pos, value);
+		writeInt16(array, pos+2, value>>>16);
+	}
+
+	/**
+	 * Writes the pending data and the end of file marker. Then, closes the underlying stream
+	 * and releases the resources used by the compression threads
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		try {
+			flush();
+			out.write(EOF_BLOCK);
+			out.close();
+		} finally {
+			shutdownPool();
+		}
+	}
+
+	/**
+	 * Stops the compression threads and ends the deflaters once no thread can use them
+	 */
+	private void shutdownPool() throws IOException {
+		//Blocks still in flight if writing failed
+		for(Future<byte []> block:blocksInFlight) block.cancel(false);
+		blocksInFlight.clear();
+		pool.shutdown();
+		try {
+			if(!pool.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)) throw new IOException("Timeout waiting for BGZF compression threads to finish");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
+		}
+		synchronized (createdDeflaters) {
+			for(Deflater deflater:createdDeflaters) deflater.end();
+			createdDeflaters.clear();
+		}
+	}
+}
@@ -65,7 +65,7 @@ public class Distribution {
 	public void processDatapoint(double weigth, double value) {
 		double valueW = weigth*value;
 		sum+=valueW;
-		sumSquare+=(valueW*valueW);
+		sumSquare+=(valueW*value);
 		count+=weigth;
 		
 		if(value < minValueData ) minValueData = value;
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bidirectional view of an FM-index having for each internal index the FM-index of the reversed sequence.
+ * A pattern is represented by the interval of rows in the forward index of the suffixes starting with the pattern
+ * and the interval of rows in the reverse index of the suffixes starting with the reversed pattern.
+ * Both intervals have the same size. Patterns can then be extended by one character at either end
+ * with a constant number of rank queries. This allows to calculate the super-maximal exact matches (SMEMs) of a query
+ * with one forward and one backward sweep from each starting position, as described by Li (2012)
+ */
+public class BidirectionalFMIndex {
+
+	private final List<FMIndexSingleSequence> forwardIndexes;
+	private final List<FMIndexSingleSequence> reverseIndexes;
+	private final int maxAlphabetSize;
+	private final LongAdder extensions = new LongAdder();
+
+	// Buffers with the tally counts used by each thread
+	private final ThreadLocal<int [][]> countsBuffers;
+
+	BidirectionalFMIndex(List<FMIndexSingleSequence> forwardIndexes, List<FMIndexSingleSequence> reverseIndexes) {
+		if(forwardIndexes.size()!=reverseIndexes.size()) throw new IllegalArgumentException("Different number of forward and reverse indexes. Forward: "+forwardIndexes.size()+" reverse: "+reverseIndexes.size());
+		this.forwardIndexes = forwardIndexes;
+		this.reverseIndexes = reverseIndexes;
+		int max = 0;
+		for(FMIndexSingleSequence index:forwardIndexes) max = Math.max(max, index.getAlphabetSize());
+		maxAlphabetSize = max;
+		countsBuffers = ThreadLocal.withInitial(()->new int[2][maxAlphabetSize]);
+	}
+
+	/**
+	 * @return int Number of internal indexes
+	 */
+	public int getNumberOfInternalIndexes() {
+		return forwardIndexes.size();
+	}
+
+	/**
+	 * @return long Number of extensions of patterns performed so far by this index
+	 */
+	public long getExtensions() {
+		return extensions.sum();
+	}
+
+	/**
+	 * Calculates the bidirectional intervals of the pattern made of the given character
+	 * @param c Character to search
+	 * @return int [] Three entries per internal index: first row in the forward index, first row in the reverse index and number of rows
+	 */
+	public int [] getInterval(char c) {
+		int n = forwardIndexes.size();
+		int [] answer = new int [3*n];
+		for(int i=0;i<n;i++) {
+			FMIndexSingleSequence forward = forwardIndexes.get(i);
+			int code = forward.getAlphabetIndex(c);
+			if(code<0) continue;
+			int first = forward.getFirstRow(code);
+			int size = (code+1<forward.getAlphabetSize()?forward.getFirstRow(code+1):forward.getNumberOfRows())-first;
+			answer[3*i] = first;
+			answer[3*i+1] = first;
+			answer[3*i+2] = size;
+		}
+		return answer;
+	}
+
+	/**
+	 * Calculates the intervals of the pattern obtained adding the given character before the pattern represented by the given intervals
+	 * @param intervals of the pattern as calculated by getInterval
+	 * @param c Character to add
+	 * @return int [] Intervals of the extended pattern
+	 */
+	public int [] extendBackward(int [] intervals, char c) {
+		return extend(intervals, c, forwardIndexes, 0);
+	}
+
+	/**
+	 * Calculates the intervals of the pattern obtained adding the given character after the pattern represented by the given intervals
+	 * @param intervals of the pattern as calculated by getInterval
+	 * @param c Character to add
+	 * @return int [] Intervals of the extended pattern
+	 */
+	public int [] extendForward(int [] intervals, char c) {
+		return extend(intervals, c, reverseIndexes, 1);
+	}
+
+	/**
+	 * Extends the pattern using the bwt of the given indexes.
+	 * @param intervals Current intervals
+	 * @param c Character to add
+	 * @param indexes Indexes used to extend the pattern. Forward indexes extend backwards and reverse indexes extend forward
+	 * @param searchOffset Offset of the interval of the given indexes within the three entries of each internal index
+	 * @return int [] New intervals
+	 */
+	private int [] extend(int [] intervals, char c, List<FMIndexSingleSequence> indexes, int searchOffset) {
+		extensions.increment();
+		int n = indexes.size();
+		int otherOffset = 1-searchOffset;
+		int [] answer = new int [3*n];
+		int [][] counts = countsBuffers.get();
+		for(int i=0;i<n;i++) {
+			int size = intervals[3*i+2];
+			if(size==0) continue;
+			FMIndexSingleSequence index = indexes.get(i);
+			int code = index.getAlphabetIndex(c);
+			if(code<0) continue;
+			int first = intervals[3*i+searchOffset];
+			int last = first+size-1;
+			index.getTallyCounts(first-1, counts[0]);
+			index.getTallyCounts(last, counts[1]);
+			int newSize = counts[1][code]-counts[0][code];
+			if(newSize==0) continue;
+			// Occurrences of the pattern followed by the end of the sequence sort first in the other index
+			int otherFirst = intervals[3*i+otherOffset];
+			int specialRow = index.getRowSpecialCharacter();
+			if(specialRow>=first && specialRow<=last) otherFirst++;
+			for(int b=0;b<code;b++) otherFirst+=counts[1][b]-counts[0][b];
+			answer[3*i+searchOffset] = index.getFirstRow(code)+counts[0][code];
+			answer[3*i+otherOffset] = otherFirst;
+			answer[3*i+2] = newSize;
+		}
+		return answer;
+	}
+
+	/**
+	 * @param intervals of a pattern
+	 * @return long Total number of occurrences of the pattern
+	 */
+	public static long getSize(int [] intervals) {
+		long size = 0;
+		for(int i=2;i<intervals.length;i+=3) size+=intervals[i];
+		return size;
+	}
+
+	/**
+	 * Calculates the super-maximal exact matches (SMEMs) of the given query. A SMEM is an exact match between the query
+	 * and the indexed sequences that can not be extended in either direction and that is not contained in another exact match
+	 * Characters that are not DNA bases (ACGT) are never included in the matches
+	 * Sequences sharing an internal index are concatenated. Hence, matches can span the end of one sequence and the start of the next one.
+	 * Occurrences spanning concatenated sequences are discarded when the match is located
+	 * @param query Sequence to search
+	 * @param minLength Minimum length of the matches to report
+	 * @return List<Match> SMEMs of at least the given length sorted by start in the query
+	 */
+	public List<Match> findSMEMs(CharSequence query, int minLength) {
+		List<Match> allMatches = new ArrayList<>();
+		int x = 0;
+		int len = query.length();
+		while(x<len) {
+			x = findSMEMs(query, x, allMatches);
+		}
+		List<Match> answer = new ArrayList<>(allMatches.size());
+		for(Match m:allMatches) {
+			if(m.getLength()>=minLength) answer.add(m);
+		}
+		Collections.sort(answer, (m1,m2)->(m1.queryStart!=m2.queryStart)?m1.queryStart-m2.queryStart:m1.queryEnd-m2.queryEnd);
+		//Remove duplicates found from different starting points
+		for(int i=answer.size()-1;i>0;i--) {
+			Match m1 = answer.get(i-1);
+			Match m2 = answer.get(i);
+			if(m1.queryStart==m2.queryStart && m1.queryEnd==m2.queryEnd) answer.remove(i);
+		}
+		return answer;
+	}
+
+	/**
+	 * Finds the SMEMs overlapping the given position of the query
+	 * @param query Sequence to search
+	 * @param x Position of the query to process
+	 * @param matches List to add the matches
+	 * @return int Next position of the query to process
+	 */
+	private int findSMEMs(CharSequence query, int x, List<Match> matches) {
+		int len = query.length();
+		char c = query.charAt(x);
+		if(!isBase(c)) return x+1;
+		int [] intervals = getInterval(c);
+		long size = getSize(intervals);
+		if(size==0) return x+1;
+		//Forward extension keeping the intervals that change size
+		List<Match> current = new ArrayList<>();
+		int i;
+		for(i=x+1;i<len;i++) {
+			c = query.charAt(i);
+			if(!isBase(c)) {
+				current.add(new Match(x, i, intervals, size));
+				break;
+			}
+			int [] next = extendForward(intervals, c);
+			long nextSize = getSize(next);
+			if(nextSize!=size) {
+				current.add(new Match(x, i, intervals, size));
+				if(nextSize==0) break;
+			}
+			intervals = next;
+			size = nextSize;
+		}
+		if(i==len) current.add(new Match(x, len, intervals, size));
+		//Longest matches first
+		Collections.reverse(current);
+		int answer = current.get(0).queryEnd;
+		List<Match> previous = current;
+		int firstNewMatch = matches.size();
+		//Backward extension. Matches that can not be extended are SMEMs if they are not contained in longer matches
+		for(i=x-1;i>=-1;i--) {
+			c = (i>=0)?query.charAt(i):0;
+			boolean extensible = i>=0 && isBase(c);
+			current = new ArrayList<>();
+			for(Match m:previous) {
+				int [] next = null;
+				long nextSize = 0;
+				if(extensible) {
+					next = extendBackward(m.intervals, c);
+					nextSize = getSize(next);
+				}
+				if(nextSize==0) {
+					if(current.size()==0 && (matches.size()==firstNewMatch || i+1<matches.get(matches.size()-1).queryStart)) {
+						matches.add(m);
+					}
+				} else if (current.size()==0 || nextSize!=current.get(current.size()-1).size) {
+					current.add(new Match(i, m.queryEnd, next, nextSize));
+				}
+			}
+			if(current.size()==0) break;
+			previous = current;
+		}
+		return answer;
+	}
+
+	private static boolean isBase(char c) {
+		return c=='A' || c=='C' || c=='G' || c=='T';
+	}
+
+	/**
+	 * Exact match between a segment of a query and the indexed sequences
+	 */
+	public static class Match {
+		private final int queryStart;
+		private final int queryEnd;
+		private final int [] intervals;
+		private final long size;
+		private Match(int queryStart, int queryEnd, int[] intervals, long size) {
+			this.queryStart = queryStart;
+			this.queryEnd = queryEnd;
+			this.intervals = intervals;
+			this.size = size;
+		}
+		/**
+		 * @return int First position of the query included in the match (0-based)
+		 */
+		public int getQueryStart() {
+			return queryStart;
+		}
+		/**
+		 * @return int Position of the query after the last position of the match
+		 */
+		public int getQueryEnd() {
+			return queryEnd;
+		}
+		public int getLength() {
+			return queryEnd-queryStart;
+		}
+		/**
+		 * @return long Number of occurrences of the match in the indexed sequences
+		 */
+		public long getSize() {
+			return size;
+		}
+		/**
+		 * @param indexNumber Number of the internal index
+		 * @return int First row of the forward internal index with occurrences of the match
+		 */
+		int getFirstRow(int indexNumber) {
+			return intervals[3*indexNumber];
+		}
+		/**
+		 * @param indexNumber Number of the internal index
+		 * @return int Number of occurrences of the match in the given internal index
+		 */
+		int getSize(int indexNumber) {
+			return intervals[3*indexNumber+2];
+		}
+	}
+}
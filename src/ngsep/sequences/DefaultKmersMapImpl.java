@@ -13,6 +13,18 @@ import ngsep.math.Distribution;
 public class DefaultKmersMapImpl implements KmersMap {
 
 	private Map<CharSequence, Short> kmersMap = new HashMap<>();
+	private KmersBloomFilter singletonFilter = null;
+	
+	public KmersBloomFilter getSingletonFilter() {
+		return singletonFilter;
+	}
+	/**
+	 * @param singletonFilter Filter used to store k-mers from their second occurrence, starting with count two.
+	 * If null, every k-mer is stored
+	 */
+	public void setSingletonFilter(KmersBloomFilter singletonFilter) {
+		this.singletonFilter = singletonFilter;
+	}
 	@Override
 	public int size() {
 		return kmersMap.size();
@@ -35,7 +47,10 @@ public class DefaultKmersMapImpl implements KmersMap {
 	public void addOcurrance(CharSequence kmer) {
 		Short count = kmersMap.get(kmer);
 		if(count == null) {
-			count = 0;
+			//The filter is only needed for k-mers not stored yet
+			if(singletonFilter!=null && !singletonFilter.add(kmer)) return;
+			//The first occurrence was only added to the filter
+			count = (short)((singletonFilter!=null)?1:0);
 		}
 		if(count < Short.MAX_VALUE) count ++;
 		kmersMap.put(kmer, count);
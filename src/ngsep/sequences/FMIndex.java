@@ -19,20 +19,30 @@
  *******************************************************************************/
 package ngsep.sequences;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
+import ngsep.main.ThreadPoolManager;
 import ngsep.main.io.ConcatGZIPInputStream;
 
 /**
@@ -42,12 +52,52 @@ import ngsep.main.io.ConcatGZIPInputStream;
  */
 public class FMIndex
 {
+	/**
+	 * Magic bytes identifying files with the binary format
+	 */
+	private static final byte [] BINARY_FORMAT_MAGIC = "NGSEPFMI".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Current version of the binary format
+	 */
+	public static final int BINARY_FORMAT_VERSION = 1;
+	
+	/**
+	 * Default maximum length of the concatenated sequences indexed by each internal index
+	 */
+	public static final int DEFAULT_MAX_CHUNK_LENGTH = 100000000;
+	// Limit imposed by the maximum size of the arrays used to build each internal index
+	private static final int MAX_SUPPORTED_CHUNK_LENGTH = Integer.MAX_VALUE - 16;
+	// Estimated peak memory in bytes per base needed to build an internal index
+	private static final long BUILD_BYTES_PER_BASE = 8;
+	
 	private QualifiedSequenceList sequencesWithNames;
 	private List<Integer> sequenceLengths = new ArrayList<>();
 	private List<FMIndexSingleSequence> internalIndexes = new ArrayList<>();
+	// Indexes of the reversed internal sequences. Empty if the index is not bidirectional
+	private List<FMIndexSingleSequence> reverseIndexes = new ArrayList<>();
 	private List<CombinedMultisequenceFMIndexMetadata> internalMetadata = new ArrayList<>();
+	private BidirectionalFMIndex bidirectionalIndex = null;
+	private boolean buildBidirectional = false;
 	private int maxHitsQuery = 100000;
+	private int suffixFraction = FMIndexSingleSequence.DEFAULT_SUFFIX_FRACTION;
+	private int numThreads = 1;
+	private int maxChunkLength = DEFAULT_MAX_CHUNK_LENGTH;
 
+	/**
+	 * @return int One of each suffixFraction positions of the sequence are stored in the partial suffix array
+	 */
+	public int getSuffixFraction() {
+		return suffixFraction;
+	}
+	/**
+	 * Changes the sampling rate of the partial suffix arrays of the indexes built by this object.
+	 * Larger values reduce the memory footprint of the index but increase the time to locate each hit
+	 * @param suffixFraction One of each suffixFraction positions of the sequence will be stored in the partial suffix array
+	 */
+	public void setSuffixFraction(int suffixFraction) {
+		if(suffixFraction<1) throw new IllegalArgumentException("The sampling rate of the suffix array must be a positive number. Value: "+suffixFraction);
+		this.suffixFraction = suffixFraction;
+	}
 	public int getMaxHitsQuery() {
 		return maxHitsQuery;
 	}
@@ -55,54 +105,196 @@ public class FMIndex
 		this.maxHitsQuery = maxHitsQuery;
 		for(FMIndexSingleSequence internalIndex:internalIndexes) internalIndex.setMaxHitsQuery(maxHitsQuery);
 	}
+	/**
+	 * @return int Number of threads used to build internal indexes
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+	/**
+	 * Changes the number of threads used to build internal indexes. The number of internal indexes
+	 * built at the same time is also limited by the memory available in the virtual machine 
+	 * @param numThreads Maximum number of internal indexes to build at the same time
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be a positive number. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	/**
+	 * @return int Maximum length of the concatenated sequences indexed by each internal index
+	 */
+	public int getMaxChunkLength() {
+		return maxChunkLength;
+	}
+	/**
+	 * Changes the maximum length of the concatenated sequences indexed by each internal index.
+	 * Larger chunks reduce the number of internal indexes queried for each search but increase the memory needed to build each index.
+	 * Sequences longer than this value are indexed in their own internal index
+	 * @param maxChunkLength Maximum length of each internal index
+	 */
+	public void setMaxChunkLength(int maxChunkLength) {
+		if(maxChunkLength<1 || maxChunkLength>MAX_SUPPORTED_CHUNK_LENGTH) throw new IllegalArgumentException("The maximum length of internal indexes must be a number between 1 and "+MAX_SUPPORTED_CHUNK_LENGTH+". Value: "+maxChunkLength);
+		this.maxChunkLength = maxChunkLength;
+	}
+	/**
+	 * @return boolean true if the indexes built by this object include the indexes of the reversed sequences
+	 */
+	public boolean isBuildBidirectional() {
+		return buildBidirectional;
+	}
+	/**
+	 * Tells if this object should also build the indexes of the reversed sequences to allow bidirectional searches.
+	 * Reverse indexes do not store sampled suffixes but they roughly double the size of the bwt
+	 * @param buildBidirectional true if reverse indexes should be built
+	 */
+	public void setBuildBidirectional(boolean buildBidirectional) {
+		this.buildBidirectional = buildBidirectional;
+	}
+	/**
+	 * @return BidirectionalFMIndex Bidirectional view of this index. Null if this index does not have reverse indexes
+	 */
+	public BidirectionalFMIndex getBidirectionalIndex() {
+		return bidirectionalIndex;
+	}
+	/**
+	 * @return int Number of internal indexes. Each internal index covers a segment of the indexed sequences
+	 */
+	public int getNumberOfInternalIndexes() {
+		return internalIndexes.size();
+	}
+	/**
+	 * @return int Length of the k-mers of the tables of prefix intervals of the internal indexes. Zero if the tables are not available
+	 */
+	public int getPrefixTableLength() {
+		return internalIndexes.size()>0?internalIndexes.get(0).getPrefixTableLength():0;
+	}
+	/**
+	 * Builds for each internal index the table with the ranges of rows starting with each DNA k-mer of the given length.
+	 * Tables are saved with the index and allow to start searches with one lookup rather than one extension per character.
+	 * Each table uses 8*4^k bytes
+	 * @param length of the k-mers. Zero removes the current tables
+	 */
+	public void buildPrefixTables(int length) {
+		for(FMIndexSingleSequence index:internalIndexes) index.buildPrefixTable(length);
+	}
 	/**
 	 * Loads the sequences in the given list to allow searches from these sequences
 	 * @param sequences to add to the index. Each QualifiedSequence object in the list should have a name and its characters
 	 */
 	public void loadQualifiedSequences (List<QualifiedSequence> sequences, Logger log) {
-		Runtime runtime = Runtime.getRuntime();
 		if(sequences instanceof QualifiedSequenceList) sequencesWithNames = (QualifiedSequenceList)sequences;
 		else {
 			sequencesWithNames = new QualifiedSequenceList();
 			sequencesWithNames.addAll(sequences);
 		}
-		StringBuffer internalSequence = new StringBuffer();
+		//Distribute the sequences in internal indexes
 		CombinedMultisequenceFMIndexMetadata internalIdxMetadata = new CombinedMultisequenceFMIndexMetadata();
-		int nI=0;
+		int maxInternalLength = 0;
 		int i=0;
 		for(QualifiedSequence seq:sequences) {
-			String next = seq.getCharacters().toString();
-			if(nI>0 && internalSequence.length() + next.length() > 100000000) {
-				if(log!=null) log.info("Building index for "+nI+" sequences. Internal sequence length: "+internalSequence.length());
-				long time = System.currentTimeMillis();
-				FMIndexSingleSequence index = new FMIndexSingleSequence(internalSequence);
-				index.setMaxHitsQuery(maxHitsQuery);
-				double usedMemory = runtime.totalMemory()-runtime.freeMemory();
-				usedMemory/=1000000000;
-				if(log!=null) log.info("Built index in "+((double)(System.currentTimeMillis()-time)/1000.0)+" seconds. RAM (Gb): "+usedMemory);
-				internalIndexes.add(index);
+			int nextLength = seq.getLength();
+			if(internalIdxMetadata.getFirstInputSequenceIdx()>=0 && internalIdxMetadata.getTotalLength() + nextLength > maxChunkLength) {
 				internalMetadata.add(internalIdxMetadata);
-				internalSequence = new StringBuffer();
 				internalIdxMetadata = new CombinedMultisequenceFMIndexMetadata();
-				nI=0;
 			}
-			internalSequence.append(next);
-			internalIdxMetadata.addInputSequence(i, seq.getLength());
-			sequenceLengths.add(seq.getLength());
-			nI++;
+			internalIdxMetadata.addInputSequence(i, nextLength);
+			maxInternalLength = Math.max(maxInternalLength, internalIdxMetadata.getTotalLength());
+			sequenceLengths.add(nextLength);
 			i++;
 		}
-		if(nI>0) {
-			if(log!=null) log.info("Building index for "+nI+" sequences. Internal sequence length: "+internalSequence.length());
-			long time = System.currentTimeMillis();
-			FMIndexSingleSequence index = new FMIndexSingleSequence(internalSequence);
-			index.setMaxHitsQuery(maxHitsQuery);
-			double usedMemory = runtime.totalMemory()-runtime.freeMemory();
-			usedMemory/=1000000000;
-			if(log!=null) log.info("Built index in "+((double)(System.currentTimeMillis()-time)/1000.0)+" seconds. RAM (Gb): "+usedMemory);
-			internalIndexes.add(index);
-			internalMetadata.add(internalIdxMetadata);
+		if(internalIdxMetadata.getFirstInputSequenceIdx()>=0) internalMetadata.add(internalIdxMetadata);
+		int n = internalMetadata.size();
+		FMIndexSingleSequence [] indexes = new FMIndexSingleSequence[buildBidirectional?2*n:n];
+		int maxIndexesInFlight = Math.min(numThreads, indexes.length);
+		if(maxIndexesInFlight>1) {
+			int memoryLimit = getMaxIndexesInMemory(maxInternalLength);
+			if(memoryLimit<maxIndexesInFlight && log!=null) log.info("Building up to "+memoryLimit+" internal indexes at the same time because of memory limits. Use more memory to build "+maxIndexesInFlight+" indexes at the same time");
+			maxIndexesInFlight = Math.min(maxIndexesInFlight, memoryLimit);
 		}
+		if(maxIndexesInFlight<=1) {
+			for(int j=0;j<indexes.length;j++) indexes[j] = buildInternalIndex(sequences, j, log);
+		} else {
+			if(log!=null) log.info("Building "+indexes.length+" internal indexes using "+maxIndexesInFlight+" threads");
+			try {
+				buildInternalIndexesParallel(sequences, indexes, maxIndexesInFlight, log);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		internalIndexes.addAll(Arrays.asList(indexes).subList(0, n));
+		if(buildBidirectional) {
+			reverseIndexes.addAll(Arrays.asList(indexes).subList(n, 2*n));
+			bidirectionalIndex = new BidirectionalFMIndex(internalIndexes, reverseIndexes);
+		}
+	}
+	
+	/**
+	 * Estimates the number of internal indexes that can be built at the same time with the memory available
+	 * @param internalLength Maximum length of the internal sequences
+	 * @return int Number of indexes that can be built at the same time. At least one
+	 */
+	private int getMaxIndexesInMemory(int internalLength) {
+		Runtime runtime = Runtime.getRuntime();
+		long available = runtime.maxMemory() - (runtime.totalMemory()-runtime.freeMemory());
+		long perIndex = BUILD_BYTES_PER_BASE*(long)internalLength;
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, available / Math.max(1, perIndex)));
+	}
+	
+	private void buildInternalIndexesParallel(List<QualifiedSequence> sequences, FMIndexSingleSequence [] indexes, int maxIndexesInFlight, Logger log) throws InterruptedException {
+		int n = indexes.length;
+		ThreadPoolManager pool = new ThreadPoolManager(maxIndexesInFlight, n);
+		//Each permit represents the memory needed to build one internal index
+		Semaphore indexesInFlight = new Semaphore(maxIndexesInFlight);
+		Throwable [] errors = new Throwable[1];
+		for(int j=0;j<n && errors[0]==null;j++) {
+			int idx = j;
+			indexesInFlight.acquire();
+			pool.queueTask(()-> {
+				try {
+					indexes[idx] = buildInternalIndex(sequences, idx, log);
+				} catch (RuntimeException | Error e) {
+					synchronized (errors) {
+						if(errors[0]==null) errors[0] = e;
+					}
+				} finally {
+					indexesInFlight.release();
+				}
+			});
+		}
+		//Wait for all the indexes to finish
+		indexesInFlight.acquire(maxIndexesInFlight);
+		pool.terminatePool();
+		if(errors[0] instanceof RuntimeException) throw (RuntimeException) errors[0];
+		if(errors[0] instanceof Error) throw (Error) errors[0];
+	}
+	
+	/**
+	 * Builds the internal index with the given number
+	 * @param sequences Indexed sequences
+	 * @param indexNumber Number of the internal index. Numbers after the number of internal sequences
+	 * correspond to the indexes of the reversed internal sequences
+	 * @param log to report progress
+	 * @return FMIndexSingleSequence internal index
+	 */
+	private FMIndexSingleSequence buildInternalIndex(List<QualifiedSequence> sequences, int indexNumber, Logger log) {
+		Runtime runtime = Runtime.getRuntime();
+		int n = internalMetadata.size();
+		boolean reverse = indexNumber>=n;
+		CombinedMultisequenceFMIndexMetadata metadata = internalMetadata.get(reverse?indexNumber-n:indexNumber);
+		int firstSequence = metadata.getFirstInputSequenceIdx();
+		int nI = metadata.getLastInputSequenceIdx()-firstSequence+1;
+		StringBuilder internalSequence = new StringBuilder(metadata.getTotalLength());
+		for(int j=0;j<nI;j++) internalSequence.append(sequences.get(firstSequence+j).getCharacters());
+		if(reverse) internalSequence.reverse();
+		if(log!=null) log.info("Building "+(reverse?"reverse ":"")+"index for "+nI+" sequences. Internal sequence length: "+internalSequence.length());
+		long time = System.currentTimeMillis();
+		//Reverse indexes are only used to extend matches. Hence, they do not need sampled suffixes
+		FMIndexSingleSequence index = new FMIndexSingleSequence(internalSequence, FMIndexSingleSequence.DEFAULT_TALLY_DISTANCE, reverse?Integer.MAX_VALUE:suffixFraction);
+		index.setMaxHitsQuery(maxHitsQuery);
+		double usedMemory = runtime.totalMemory()-runtime.freeMemory();
+		usedMemory/=1000000000;
+		if(log!=null) log.info("Built index in "+((double)(System.currentTimeMillis()-time)/1000.0)+" seconds. RAM (Gb): "+usedMemory);
+		return index;
 	}
 	/**
 	 * Searches the given sequence against this FMindex.
@@ -129,32 +321,69 @@ public class FMIndex
 			CombinedMultisequenceFMIndexMetadata metadata = internalMetadata.get(i);
 			if(!metadata.overlapWithIndexes(firstIndex, lastIndex)) continue;
 			Set<Integer> matches = idxSeq.exactSearch(query);
-			for (int internalPosMatch:matches) 
-			{
-				int [] realData = metadata.getSequenceIdxAndStart(internalPosMatch);
-				if(realData==null) continue;
-				int sequenceIdx = realData[0];
-				int sequenceStart = realData[1];
-				if(sequenceIdx>=sequenceLengths.size()) throw new RuntimeException("Problem with internal index answer: "+realData[0]+"-"+realData[1]+". Absolute: "+internalPosMatch+" total length: "+metadata.getTotalLength()+" first idx: "+metadata.getFirstInputSequenceIdx()+" last idx: "+metadata.getLastInputSequenceIdx());
-				//Match to other sequences sharing internal index with queried sequence
-				if(sequenceIdx<firstIndex) continue;
-				if(sequenceIdx>lastIndex) continue;
-				int start = internalPosMatch-sequenceStart;
-				int sequenceLength = sequenceLengths.get(sequenceIdx); 
-				int queryLength = query.length();
-				int last = start + queryLength - 1;
-				//Match with artificial concatenation between sequences
-				if(last>=sequenceLength) continue;
-				
-				//ReadAlignment alignment = new ReadAlignment(seqName, first, last, searchLength, 0);
-				UngappedSearchHit hit = new UngappedSearchHit(query, sequenceIdx, start);
-				if(sequencesWithNames!=null) hit.setSequenceName(sequencesWithNames.get(sequenceIdx).getName());
-				hits.add(hit);
-				if(hits.size()>=maxHitsQuery) break;
-			}
+			addHits(query, metadata, matches, firstIndex, lastIndex, hits);
 		}
 		return hits;
 	}
+	/**
+	 * Counts the occurrences of the given sequence without locating them
+	 * This search is case sensitive.
+	 * @param query Sequence to search
+	 * @return long Number of occurrences of the query, including occurrences spanning concatenated sequences
+	 */
+	public long count (String query) {
+		long count = 0;
+		for(FMIndexSingleSequence index:internalIndexes) {
+			int [] range = index.getRange(query);
+			if(range!=null) count+=range[1]-range[0]+1;
+		}
+		return count;
+	}
+	/**
+	 * Retrieves the locations of the given exact match calculated with the bidirectional index
+	 * @param query Sequence used to calculate the match
+	 * @param match Exact match of a segment of the query
+	 * @return List<UngappedSearchHit> hits of the match. The query of each hit is the matching segment
+	 * and the query index is the start of the match within the query
+	 */
+	public List<UngappedSearchHit> locate (String query, BidirectionalFMIndex.Match match) {
+		List<UngappedSearchHit> hits = new ArrayList<>();
+		String matchSequence = query.substring(match.getQueryStart(), match.getQueryEnd());
+		for (int i=0;i<internalIndexes.size() && hits.size()<maxHitsQuery;i++) {
+			int size = match.getSize(i);
+			if(size==0) continue;
+			int firstRow = match.getFirstRow(i);
+			Set<Integer> matches = internalIndexes.get(i).getSequenceIndexes(firstRow, firstRow+size-1);
+			addHits(matchSequence, internalMetadata.get(i), matches, 0, sequenceLengths.size(), hits);
+		}
+		for(UngappedSearchHit hit:hits) hit.setQueryIdx(match.getQueryStart());
+		return hits;
+	}
+	private void addHits(String query, CombinedMultisequenceFMIndexMetadata metadata, Set<Integer> matches, int firstIndex, int lastIndex, List<UngappedSearchHit> hits) {
+		for (int internalPosMatch:matches) 
+		{
+			int [] realData = metadata.getSequenceIdxAndStart(internalPosMatch);
+			if(realData==null) continue;
+			int sequenceIdx = realData[0];
+			int sequenceStart = realData[1];
+			if(sequenceIdx>=sequenceLengths.size()) throw new RuntimeException("Problem with internal index answer: "+realData[0]+"-"+realData[1]+". Absolute: "+internalPosMatch+" total length: "+metadata.getTotalLength()+" first idx: "+metadata.getFirstInputSequenceIdx()+" last idx: "+metadata.getLastInputSequenceIdx());
+			//Match to other sequences sharing internal index with queried sequence
+			if(sequenceIdx<firstIndex) continue;
+			if(sequenceIdx>lastIndex) continue;
+			int start = internalPosMatch-sequenceStart;
+			int sequenceLength = sequenceLengths.get(sequenceIdx); 
+			int queryLength = query.length();
+			int last = start + queryLength - 1;
+			//Match with artificial concatenation between sequences
+			if(last>=sequenceLength) continue;
+			
+			//ReadAlignment alignment = new ReadAlignment(seqName, first, last, searchLength, 0);
+			UngappedSearchHit hit = new UngappedSearchHit(query, sequenceIdx, start);
+			if(sequencesWithNames!=null) hit.setSequenceName(sequencesWithNames.get(sequenceIdx).getName());
+			hits.add(hit);
+			if(hits.size()>=maxHitsQuery) break;
+		}
+	}
 	/**
 	 * Return the sequence with the given name
 	 * @param sequenceName Name of the sequence to search
@@ -181,12 +410,52 @@ public class FMIndex
 		return characters.subSequence(first-1, last);
 		
 	}	
+	/**
+	 * Saves this index in the binary format. Indexes saved with this method can be loaded
+	 * mapping the file to memory with almost no startup time
+	 * @param filename Name of the output file
+	 * @throws IOException If the file can not be written
+	 */
 	public void save (String filename) throws IOException {
+		try(OutputStream os = new BufferedOutputStream(new FileOutputStream(filename),1000000);
+			DataOutputStream out = new DataOutputStream(os)) {
+			saveBinary(out);
+		}
+	}
+	/**
+	 * Saves this index in the gzip compressed text format used by previous versions
+	 * @param filename Name of the output file
+	 * @throws IOException If the file can not be written
+	 */
+	public void saveText (String filename) throws IOException {
 		try(OutputStream os = new GZIPOutputStream(new FileOutputStream(filename));
 			PrintStream out = new PrintStream(os)) {
 			save(out);
 		}
 	}
+	private void saveBinary (DataOutputStream out) throws IOException {
+		int prefixTableLength = getPrefixTableLength();
+		out.write(BINARY_FORMAT_MAGIC);
+		out.writeInt(BINARY_FORMAT_VERSION);
+		out.writeInt(maxHitsQuery);
+		out.writeInt(internalIndexes.size());
+		for (CombinedMultisequenceFMIndexMetadata metadata:internalMetadata) {
+			metadata.saveBinary(out);
+		}
+		for(FMIndexSingleSequence index:internalIndexes) {
+			index.saveBinary(out);
+		}
+		out.writeInt(reverseIndexes.size());
+		for(FMIndexSingleSequence index:reverseIndexes) {
+			index.saveBinary(out);
+		}
+		out.writeInt(prefixTableLength);
+		if(prefixTableLength>0) {
+			for(FMIndexSingleSequence index:internalIndexes) {
+				index.savePrefixTableBinary(out);
+			}
+		}
+	}
 	public void save (PrintStream out) {
 		out.println("#COMPOUNDINDEX\t"+maxHitsQuery);
 		for (CombinedMultisequenceFMIndexMetadata metadata:internalMetadata) {
@@ -201,10 +470,83 @@ public class FMIndex
 			//i++;
 		}
 	}
+	/**
+	 * Loads an index from the given file. The binary format is mapped to memory. The text format
+	 * of previous versions is still supported but it is completely loaded in memory
+	 * @param sequences Indexed sequences
+	 * @param indexFile File with the index
+	 * @return FMIndex loaded index
+	 * @throws IOException If the file can not be read
+	 */
 	public static FMIndex load (QualifiedSequenceList sequences, String indexFile) throws IOException {
 		FMIndex index = new FMIndex();
 		index.sequencesWithNames = sequences;
 		for(QualifiedSequence seq:sequences) index.sequenceLengths.add(seq.getLength());
+		if(isBinaryFormat(indexFile)) index.loadBinary(indexFile);
+		else index.loadText(indexFile);
+		return index;
+	}
+	/**
+	 * Checks if the given file has the binary format
+	 * @param indexFile to check
+	 * @return boolean true if the file starts with the magic bytes of the binary format
+	 * @throws IOException If the file can not be read
+	 */
+	public static boolean isBinaryFormat(String indexFile) throws IOException {
+		byte [] start = new byte[BINARY_FORMAT_MAGIC.length];
+		try (FileInputStream fis = new FileInputStream(indexFile)) {
+			int n = fis.readNBytes(start, 0, start.length);
+			return n == start.length && Arrays.equals(start, BINARY_FORMAT_MAGIC);
+		}
+	}
+	private void loadBinary (String indexFile) throws IOException {
+		//Mapped buffers remain valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFile), StandardOpenOption.READ)) {
+			long position = BINARY_FORMAT_MAGIC.length;
+			ByteBuffer header = read(channel, position, 12);
+			position += 12;
+			int version = header.getInt();
+			if(version!=BINARY_FORMAT_VERSION) throw new IOException("Unsupported FM-index format version "+version+". This version of NGSEP supports version "+BINARY_FORMAT_VERSION);
+			maxHitsQuery = header.getInt();
+			int numIndexes = header.getInt();
+			for(int i=0;i<numIndexes;i++) {
+				CombinedMultisequenceFMIndexMetadata metadata = CombinedMultisequenceFMIndexMetadata.loadBinary(channel, position);
+				position+=metadata.getBinaryLength();
+				internalMetadata.add(metadata);
+			}
+			for(int i=0;i<numIndexes;i++) {
+				FMIndexSingleSequence internalIndex = FMIndexSingleSequence.map(channel, position);
+				position+=internalIndex.getBinaryLength();
+				internalIndexes.add(internalIndex);
+			}
+			//Reverse indexes followed by the tables of prefix intervals
+			int numReverse = read(channel, position, 4).getInt();
+			position+=4;
+			if(numReverse>0 && numReverse!=numIndexes) throw new IOException("Inconsistent number of reverse indexes. Expected: "+numIndexes+" given: "+numReverse);
+			for(int i=0;i<numReverse;i++) {
+				FMIndexSingleSequence reverseIndex = FMIndexSingleSequence.map(channel, position);
+				position+=reverseIndex.getBinaryLength();
+				reverseIndexes.add(reverseIndex);
+			}
+			if(numReverse>0) bidirectionalIndex = new BidirectionalFMIndex(internalIndexes, reverseIndexes);
+			int prefixTableLength = read(channel, position, 4).getInt();
+			position+=4;
+			if(prefixTableLength>0) {
+				for(FMIndexSingleSequence internalIndex:internalIndexes) {
+					position+=internalIndex.mapPrefixTable(channel, position, prefixTableLength);
+				}
+			}
+		}
+	}
+	private static ByteBuffer read (FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer answer = ByteBuffer.allocate(length);
+		while(answer.hasRemaining()) {
+			if(channel.read(answer, position+answer.position())<0) throw new IOException("Unexpected end of file reading index");
+		}
+		answer.flip();
+		return answer;
+	}
+	private void loadText (String indexFile) throws IOException {
 		try (FileInputStream fis = new FileInputStream(indexFile);
 			 ConcatGZIPInputStream gzis = new ConcatGZIPInputStream(fis);
 			 InputStreamReader isr = new InputStreamReader(gzis);
@@ -213,7 +555,7 @@ public class FMIndex
 			if(line==null) throw new IOException("Empty index file");
 			if(!line.startsWith("#COMPOUNDINDEX")) throw new IOException("#COMPOUNDINDEX section not found. Line: "+line);
 			String [] items = line.split("\t");
-			index.maxHitsQuery = Integer.parseInt(items[1]);
+			maxHitsQuery = Integer.parseInt(items[1]);
 			line = reader.readLine();
 			while (line!=null && !line.equals("#INTERNALINDEXES")) {
 				items = line.split("\t");
@@ -222,19 +564,18 @@ public class FMIndex
 				for(int i=1;i<items.length;i+=2) {
 					metadata.addInputSequence(Integer.parseInt(items[i]), Integer.parseInt(items[i+1]));
 				}
-				index.internalMetadata.add(metadata);
+				internalMetadata.add(metadata);
 				line = reader.readLine();
 			}
 			if(line == null) throw new IOException("Unexpected end of file reading metadata.");
 			while(true) {
 				FMIndexSingleSequence internalIndex = FMIndexSingleSequence.load(reader);
 				if(internalIndex==null) break;
-				System.out.println("Loaded internal index: "+index.internalIndexes.size());
-				index.internalIndexes.add(internalIndex);			
+				System.out.println("Loaded internal index: "+internalIndexes.size());
+				internalIndexes.add(internalIndex);			
 			}
-			if(index.internalMetadata.size()!=index.internalIndexes.size())  throw new IOException("Inconsistent metadata and internal indexes. Metadata entries: "+index.internalMetadata.size()+" indexes: "+index.internalIndexes.size());
+			if(internalMetadata.size()!=internalIndexes.size())  throw new IOException("Inconsistent metadata and internal indexes. Metadata entries: "+internalMetadata.size()+" indexes: "+internalIndexes.size());
 		}
-		return index;
 	}
 }
 class CombinedMultisequenceFMIndexMetadata {
@@ -302,4 +643,33 @@ class CombinedMultisequenceFMIndexMetadata {
 		out.println();
 	}
 	
+	public void saveBinary (DataOutputStream out) throws IOException {
+		out.writeInt(idxs.size());
+		for(int i=0;i<idxs.size();i++) {
+			out.writeInt(idxs.get(i));
+			out.writeInt(lengths.get(i));
+		}
+	}
+	
+	public long getBinaryLength() {
+		return 4L+8L*idxs.size();
+	}
+	
+	public static CombinedMultisequenceFMIndexMetadata loadBinary (FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		if(channel.read(buffer, position)<4) throw new IOException("Unexpected end of file reading metadata");
+		int n = buffer.getInt(0);
+		buffer = ByteBuffer.allocate(8*n);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position+4+buffer.position())<0) throw new IOException("Unexpected end of file reading metadata");
+		}
+		buffer.flip();
+		CombinedMultisequenceFMIndexMetadata metadata = new CombinedMultisequenceFMIndexMetadata();
+		for(int i=0;i<n;i++) {
+			int idx = buffer.getInt();
+			metadata.addInputSequence(idx, buffer.getInt());
+		}
+		return metadata;
+	}
+	
 }
@@ -20,11 +20,17 @@
 package ngsep.sequences;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -36,61 +42,74 @@ import java.util.TreeSet;
  * @author Jorge Duitama
  * @author Juan Camilo Bojaca
  */
-public class FMIndexSingleSequence implements Serializable {
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 5981359942407474671L;
+public class FMIndexSingleSequence {
 
 	/** Character to BWT */
 	public static final char SPECIAL_CHARACTER = 0;
-	private static final int DEFAULT_TALLY_DISTANCE = 100;
-	private static final int DEFAULT_SUFFIX_FRACTION = 50;
+	public static final int DEFAULT_TALLY_DISTANCE = 100;
+	public static final int DEFAULT_SUFFIX_FRACTION = 50;
+	// Number of 64 bit words of the sampled rows bit vector for which one rank is stored (one cache line)
+	private static final int SAMPLED_ROWS_RANK_BLOCK = 8;
 
-	// Start position in the original sequence of some rows of the BW matrix
-	// representing a partial suffix array
-	private Map<Integer, Integer> partialSuffixArray = new HashMap<>();
+	// Number of ints in the fixed header of the binary format
+	private static final int BINARY_HEADER_INTS = 8;
+	/**
+	 * Maximum length of the k-mers of the table of prefix intervals
+	 */
+	public static final int MAX_PREFIX_TABLE_LENGTH = 14;
+	private static final String PREFIX_TABLE_ALPHABET = "ACGT";
+	// 2-bit code of each character in the table of prefix intervals. -1 for other characters
+	private static final byte [] PREFIX_TABLE_CODES = new byte[128];
+	static {
+		Arrays.fill(PREFIX_TABLE_CODES, (byte)-1);
+		for(int i=0;i<PREFIX_TABLE_ALPHABET.length();i++) PREFIX_TABLE_CODES[PREFIX_TABLE_ALPHABET.charAt(i)] = (byte)i;
+	}
 
-	// Ranks in the bwt for each character in the alphabet for some of the rows in
-	// the BW matrix
-	private int[][] tallyIndexes;
+	// Bit vector marking the rows of the BW matrix included in the partial suffix array
+	private LongBuffer sampledRows;
+	// Number of sampled rows before each block of SAMPLED_ROWS_RANK_BLOCK words of the bit vector
+	private IntBuffer sampledRowsRanks;
+	// Start position in the original sequence of the sampled rows, ordered by row
+	private IntBuffer sampledSuffixPositions;
 
-	// 1 of each tallyDistance is saved
+	// Distance between rows of the tally table used by previous versions. Kept for compatibility of the text format
 	private int tallyDistance;
 
 	// 1/suffixFraction indexes are saved
 	private int suffixFraction;
 
-	// Burrows Wheeler transform
-	private byte [] bwt;
+	// Burrows Wheeler transform packed with interleaved occurrence counts
+	private PackedBurrowsWheelerTransform bwt;
 	private int rowBWTSpecialCharacter;
 
+	// Inferred alphabet of the sequence ordered lexicographical
+	private String alphabet;
+	
+	// Index in the alphabet of each character. -1 for characters not in the alphabet
+	private int [] alphabetIndexes;
+	
+	// The following arrays are indexed by the index of each character in the alphabet
 	//For each character tells the number of times it appears
-	private Map<Character, Integer> characterCounts;
+	private int [] characterCounts;
 	// For each character tells the first time it appears in the left column of the
 	// BW matrix
-	private Map<Character, Integer> firstRowsInMatrix;
+	private int [] firstRowsInMatrix;
 
 	// For each character tells the last time it appears in the left column of the
 	// BW matrix
-	private Map<Character, Integer> lastRowsInMatrix;
+	private int [] lastRowsInMatrix;
 	
 	//Maximum hits to return per query
 	private int maxHitsQuery = 100000;
 	
-	
-
-	// Inferred alphabet of the sequence ordered lexicographical
-	private String alphabet;
-	
-	private Map<Character, Integer> alphabetIndexes;
+	// Length of the DNA k-mers of the table of prefix intervals. Zero if the table is not available
+	private int prefixTableLength = 0;
+	// First and last rows of the BW matrix starting with each DNA k-mer, indexed by the 2-bit code of the k-mer
+	private IntBuffer prefixFirstRows;
+	private IntBuffer prefixLastRows;
 
 	//Used for loading
 	private FMIndexSingleSequence () {
-		characterCounts = new HashMap<Character, Integer>();
-		firstRowsInMatrix = new HashMap<Character, Integer>();
-		lastRowsInMatrix = new HashMap<Character, Integer>();
-		alphabetIndexes = new HashMap<Character, Integer>();
 		
 	}
 	public FMIndexSingleSequence(CharSequence sequence) {
@@ -119,62 +138,74 @@ public class FMIndexSingleSequence implements Serializable {
 	 * @return Length of the sequence represented by this FMIndex
 	 */
 	public int getSequenceLength() {
-		return bwt.length-1;
+		return bwt.length()-1;
 	}
 
 	private void calculate(CharSequence sequence) {
 		countCharacters (sequence);
 		buildCharacterFirstAndLastRows();
-		SuffixArrayGenerator suffixArrayGenerator = new DC3SuffixArrayGenerator(sequence);
+		SuffixArrayGenerator suffixArrayGenerator = new SAISSuffixArrayGenerator(sequence);
+		//SuffixArrayGenerator suffixArrayGenerator = new DC3SuffixArrayGenerator(sequence);
 		//SuffixArrayGenerator suffixArrayGenerator = new CollectionsSortSuffixArrayGenerator(sequence);
 		int [] sa = suffixArrayGenerator.getSuffixArray();
 		//System.out.println("First pos SA: "+sa[0]+" "+sa[1]+" "+sa[2] );
 		buildBWT(sequence, sa);
 		createPartialSuffixArray(sa);
-		buildTally();
 		//printIndexInfo();
 	}
 
 	private void countCharacters(CharSequence sequence) {
-		characterCounts = new HashMap<Character, Integer>();
+		int [] counts = new int [256];
 		for(int i=0;i<sequence.length();i++) {
 			char c = sequence.charAt(i);
-			characterCounts.compute(c, (k, v) -> (v == null) ? 1 : v+1);
+			if(c==SPECIAL_CHARACTER || c>=counts.length) throw new IllegalArgumentException("Character with code "+((int)c)+" at position "+i+" can not be indexed");
+			counts[c]++;
 		}
-		Set<Character> sortedAlphabet = new TreeSet<Character>();
-		sortedAlphabet.addAll(characterCounts.keySet());
 		StringBuilder alphB = new StringBuilder();
-		for(char c:sortedAlphabet) alphB.append(c);
-		alphabet = alphB.toString();
-		alphabetIndexes = new HashMap<>();
-		for(int i=0;i<alphabet.length();i++) alphabetIndexes.put(alphabet.charAt(i), i);
+		for(int c=0;c<counts.length;c++) if(counts[c]>0) alphB.append((char)c);
+		setAlphabet(alphB.toString());
+		for(int i=0;i<alphabet.length();i++) characterCounts[i] = counts[alphabet.charAt(i)];
+	}
+	
+	private void setAlphabet(String alphabet) {
+		this.alphabet = alphabet;
+		alphabetIndexes = new int [256];
+		Arrays.fill(alphabetIndexes, -1);
+		for(int i=0;i<alphabet.length();i++) alphabetIndexes[alphabet.charAt(i)] = i;
+		characterCounts = new int [alphabet.length()];
+		firstRowsInMatrix = new int [alphabet.length()];
+		lastRowsInMatrix = new int [alphabet.length()];
 	}
 
 	private void buildCharacterFirstAndLastRows() {
-		firstRowsInMatrix = new HashMap<>();
-		lastRowsInMatrix = new HashMap<>();
-		
-		firstRowsInMatrix.put(SPECIAL_CHARACTER, 0);
-		lastRowsInMatrix.put(SPECIAL_CHARACTER, 0);
 		int totalChars = 1;
 		for(int i=0;i<alphabet.length();i++) {
-			char c = alphabet.charAt(i);
-			firstRowsInMatrix.put(c, totalChars);
-	    	totalChars += characterCounts.get(c);
-	    	lastRowsInMatrix.put(c, totalChars - 1);
+			firstRowsInMatrix[i] = totalChars;
+	    	totalChars += characterCounts[i];
+	    	lastRowsInMatrix[i] = totalChars - 1;
 		}
 	}
 	
+	/**
+	 * Returns the index in the alphabet of the given character 
+	 * @param c Character to search
+	 * @return int index of the character. -1 if the character does not belong to the alphabet
+	 */
+	int getAlphabetIndex(char c) {
+		if(c>=alphabetIndexes.length) return -1;
+		return alphabetIndexes[c];
+	}
+	
 	private void printIndexInfo() {
 		System.out.println("Alphabet: "+alphabet);
-		System.out.println("BWT: "+new String(bwt));
-		System.out.println("Partial array: "+partialSuffixArray);
-		System.out.println("First rows: "+firstRowsInMatrix);
-		System.out.println("Last rows: "+lastRowsInMatrix);
+		System.out.println("BWT: "+new String(getBWTCharacters()));
+		System.out.println("Partial array rows: "+sampledSuffixPositions.limit());
+		System.out.println("First rows: "+Arrays.toString(firstRowsInMatrix));
+		System.out.println("Last rows: "+Arrays.toString(lastRowsInMatrix));
 	}
 	
 	private void buildBWT(CharSequence sequence, int [] sa) {
-		bwt = new byte[sequence.length() + 1];
+		byte [] bwt = new byte[sequence.length() + 1];
 	
 		if(sa[0]!=sequence.length()) throw new RuntimeException("Suffix array should have "+sequence.length()+" as first entry");
 		//assert sa[0]==sequence.length();
@@ -188,39 +219,75 @@ public class FMIndexSingleSequence implements Serializable {
 			}
 			j++;
 		}
+		this.bwt = PackedBurrowsWheelerTransform.pack(bwt, alphabet, rowBWTSpecialCharacter);
 	}
-
-	private void buildTally() {
-		int tallyRows = bwt.length / tallyDistance;
-		if (bwt.length % tallyDistance > 0) tallyRows++;
-		
-		final int[] arr = new int[alphabet.length()];
-		tallyIndexes = new int[tallyRows][alphabet.length()];
-		
-
-		int j = 0;
-		for (int i = 0; i < bwt.length; i++) {
-			char c = (char)bwt[i];
-			if (c != SPECIAL_CHARACTER) {
-				int indexC = alphabetIndexes.get(c);
-				arr[indexC]++;
-			}
-			if (i % tallyDistance == 0) {
-				System.arraycopy(arr, 0, tallyIndexes[j], 0, arr.length);
-				j++;
-			}
-		}
+	
+	/**
+	 * @return byte [] characters of the Burrows Wheeler transform
+	 */
+	private byte [] getBWTCharacters() {
+		byte [] answer = new byte [bwt.length()];
+		for(int i=0;i<answer.length;i++) answer[i] = getBWTCharacter(i);
+		return answer;
+	}
+	
+	private byte getBWTCharacter(int row) {
+		int code = bwt.getCode(row);
+		if(code<0) return SPECIAL_CHARACTER;
+		return (byte)alphabet.charAt(code);
 	}
 
 	private void createPartialSuffixArray(int [] sa) {
-		partialSuffixArray = new HashMap<>();
-		partialSuffixArray.put(0, sa[0]);
 		//Partial suffix array module should be calculated on the suffix values (real sequence positions)
+		int n = 2;
 		for (int i = 1; i < sa.length-1; i ++) {
+			if(sa[i]%suffixFraction==0) n++;
+		}
+		long [] bits = new long [getNumberOfWords(sa.length)];
+		int [] positions = new int[n];
+		int j = 0;
+		for (int i = 0; i < sa.length; i ++) {
 			int value = sa[i];
-			if(value%suffixFraction==0) partialSuffixArray.put(i, sa[i]);
+			if(i==0 || i==sa.length-1 || value%suffixFraction==0) {
+				bits[i>>>6] |= 1L<<(i&63);
+				positions[j] = value;
+				j++;
+			}
 		}
-		partialSuffixArray.put(sa.length-1, sa[sa.length-1]);
+		sampledRows = LongBuffer.wrap(bits);
+		sampledRowsRanks = IntBuffer.wrap(calculateRanks(bits));
+		sampledSuffixPositions = IntBuffer.wrap(positions);
+	}
+	private static int getNumberOfWords(int bits) {
+		return (bits+63)>>>6;
+	}
+	private static int getNumberOfRanks(int words) {
+		return (words+SAMPLED_ROWS_RANK_BLOCK-1)/SAMPLED_ROWS_RANK_BLOCK;
+	}
+	private static int [] calculateRanks(long [] bits) {
+		int [] ranks = new int [getNumberOfRanks(bits.length)];
+		int count = 0;
+		for(int i=0;i<bits.length;i++) {
+			if(i%SAMPLED_ROWS_RANK_BLOCK==0) ranks[i/SAMPLED_ROWS_RANK_BLOCK] = count;
+			count+=Long.bitCount(bits[i]);
+		}
+		return ranks;
+	}
+	
+	/**
+	 * Retrieves the value of the partial suffix array for the given row
+	 * @param row of the BW matrix
+	 * @return int Start in the sequence of the suffix in the given row. -1 if the row is not sampled
+	 */
+	private int getSampledSuffix(int row) {
+		int wordIdx = row>>>6;
+		long word = sampledRows.get(wordIdx);
+		long mask = 1L<<(row&63);
+		if((word & mask)==0) return -1;
+		int blockIdx = wordIdx/SAMPLED_ROWS_RANK_BLOCK;
+		int rank = sampledRowsRanks.get(blockIdx) + Long.bitCount(word & (mask-1));
+		for(int i=blockIdx*SAMPLED_ROWS_RANK_BLOCK;i<wordIdx;i++) rank+=Long.bitCount(sampledRows.get(i));
+		return sampledSuffixPositions.get(rank);
 	}
 
 	/**
@@ -252,20 +319,30 @@ public class FMIndexSingleSequence implements Serializable {
 	 */
 	public int[] getRange(String query) {
 		if(query.length()==0) return null;
-		char actualChar = query.charAt(query.length() - 1);
-
-		Integer rowS = firstRowsInMatrix.get(actualChar);
-		Integer rowF = lastRowsInMatrix.get(actualChar);
-		//System.out.println("Char: "+actualChar+" Range: "+rowS+"-"+rowF);
-		if (rowS == null || rowF == null || rowS == -1 || rowF == -1) {
-			return null;
+		int rowS;
+		int rowF;
+		int j;
+		int prefixCode = (prefixTableLength>0)?getPrefixCode(query):-1;
+		if(prefixCode>=0) {
+			//Range of the last k-mer of the query taken from the table
+			rowS = prefixFirstRows.get(prefixCode);
+			rowF = prefixLastRows.get(prefixCode);
+			if (rowS > rowF) return null;
+			j = query.length()-prefixTableLength-1;
+		} else {
+			int code = getAlphabetIndex(query.charAt(query.length() - 1));
+			if (code < 0) return null;
+			rowS = firstRowsInMatrix[code];
+			rowF = lastRowsInMatrix[code];
+			j = query.length() - 2;
 		}
-		for (int j = query.length() - 2; j >= 0; j--) {
-			actualChar = query.charAt(j);
-			if (alphabet.indexOf(actualChar) < 0)
-				return null;
-			rowS = lfMapping(actualChar, rowS, true);
-			rowF = lfMapping(actualChar, rowF, false);
+		//System.out.println("Char: "+actualChar+" Range: "+rowS+"-"+rowF);
+		for (; j >= 0; j--) {
+			int code = getAlphabetIndex(query.charAt(j));
+			if (code < 0) return null;
+			// First row: characters before rowS. Last row: characters up to rowF
+			rowS = firstRowsInMatrix[code] + ((rowS>0)?bwt.rank(code, rowS-1):0);
+			rowF = firstRowsInMatrix[code] + bwt.rank(code, rowF) - 1;
 			if (rowS > rowF) {
 				return null;
 			}
@@ -274,6 +351,82 @@ public class FMIndexSingleSequence implements Serializable {
 
 		return new int[] { rowS, rowF };
 	}
+	
+	/**
+	 * Calculates the code of the last k-mer of the given query in the table of prefix intervals
+	 * @param query to encode
+	 * @return int 2-bit code of the last k-mer. -1 if the query is shorter than the k-mers of the table or if the k-mer has characters different than ACGT
+	 */
+	private int getPrefixCode(String query) {
+		int start = query.length()-prefixTableLength;
+		if(start<0) return -1;
+		int code = 0;
+		for(int i=start;i<query.length();i++) {
+			char c = query.charAt(i);
+			if(c>=PREFIX_TABLE_CODES.length || PREFIX_TABLE_CODES[c]<0) return -1;
+			int b = PREFIX_TABLE_CODES[c];
+			code = (code<<2) | b;
+		}
+		return code;
+	}
+	
+	/**
+	 * @return int Length of the k-mers of the table of prefix intervals. Zero if this index does not have the table
+	 */
+	public int getPrefixTableLength() {
+		return prefixTableLength;
+	}
+	
+	/**
+	 * Builds a table with the ranges of rows of the BW matrix starting with each DNA k-mer of the given length.
+	 * Searches of queries ending with a DNA k-mer start from the range in the table rather than performing
+	 * one backward extension per character of the k-mer. The table uses 2*4^k ints
+	 * @param length of the k-mers. Zero removes the current table
+	 */
+	public void buildPrefixTable(int length) {
+		if(length<0 || length>MAX_PREFIX_TABLE_LENGTH) throw new IllegalArgumentException("Invalid length for the table of prefix intervals: "+length+". It must be between 0 and "+MAX_PREFIX_TABLE_LENGTH);
+		if(length==0) {
+			prefixTableLength = 0;
+			prefixFirstRows = null;
+			prefixLastRows = null;
+			return;
+		}
+		int n = getNumberOfPrefixes(length);
+		int [] firstRows = new int [n];
+		int [] lastRows = new int [n];
+		//K-mers not found keep an empty range
+		Arrays.fill(lastRows, -1);
+		int [] alphabetCodes = new int [PREFIX_TABLE_ALPHABET.length()];
+		for(int b=0;b<alphabetCodes.length;b++) alphabetCodes[b] = getAlphabetIndex(PREFIX_TABLE_ALPHABET.charAt(b));
+		int [][] countsBuffers = new int [2*length][alphabet.length()];
+		fillPrefixTable(0, 0, 0, bwt.length()-1, length, alphabetCodes, countsBuffers, firstRows, lastRows);
+		prefixFirstRows = IntBuffer.wrap(firstRows);
+		prefixLastRows = IntBuffer.wrap(lastRows);
+		prefixTableLength = length;
+	}
+	private void fillPrefixTable(int code, int depth, int rowS, int rowF, int length, int [] alphabetCodes, int [][] countsBuffers, int [] firstRows, int [] lastRows) {
+		if(depth==length) {
+			firstRows[code] = rowS;
+			lastRows[code] = rowF;
+			return;
+		}
+		//One pass over the bwt calculates the ranges of the four extensions
+		int [] countsBefore = countsBuffers[2*depth];
+		int [] countsLast = countsBuffers[2*depth+1];
+		bwt.rankAll(rowS-1, countsBefore);
+		bwt.rankAll(rowF, countsLast);
+		for(int b=0;b<alphabetCodes.length;b++) {
+			int alphabetCode = alphabetCodes[b];
+			if(alphabetCode<0) continue;
+			int nextS = firstRowsInMatrix[alphabetCode] + countsBefore[alphabetCode];
+			int nextF = firstRowsInMatrix[alphabetCode] + countsLast[alphabetCode] - 1;
+			if(nextS>nextF) continue;
+			fillPrefixTable(code | (b<<(2*depth)), depth+1, nextS, nextF, length, alphabetCodes, countsBuffers, firstRows, lastRows);
+		}
+	}
+	private static int getNumberOfPrefixes(int length) {
+		return 1<<(2*length);
+	}
 
 	/**
 	 * Provides the start indexes in the original sequence corresponding to the given start 
@@ -287,12 +440,12 @@ public class FMIndexSingleSequence implements Serializable {
 		// sequence
 		for (int i = firstRow; i <= lastRow && startIndexes.size()<maxHitsQuery; i++) {
 			int row = i;
-			Integer begin = partialSuffixArray.get(row);
+			int begin = getSampledSuffix(row);
 			int steps;
-			for (steps = 0; begin == null; steps++) {
-				//System.out.println("Next row: "+row+" bwt: "+((char)bwt[row])+" steps: "+steps);
+			for (steps = 0; begin < 0; steps++) {
+				//System.out.println("Next row: "+row+" bwt: "+((char)getBWTCharacter(row))+" steps: "+steps);
 				row = lfMapping(row);
-				begin = partialSuffixArray.get(row);
+				begin = getSampledSuffix(row);
 			}
 			begin += steps;
 			startIndexes.add(begin);
@@ -310,59 +463,55 @@ public class FMIndexSingleSequence implements Serializable {
 		if(c==SPECIAL_CHARACTER) {
 			return (row>=rowBWTSpecialCharacter)?1:0;
 		}
-		int r = 0;
-
-		int a = row / tallyDistance;
-		int b = a + 1;
-
-		if (row - a * tallyDistance < b * tallyDistance - row || tallyIndexes.length <= b) {
-			// Recalculate from top record
-			r = tallyIndexes[a][alphabet.indexOf(c)];
-
-			for (int j = a * tallyDistance + 1; j <= row; j++) {
-				char cA = (char)bwt[j];
-				if (cA == c)
-					r++;
-			}
-		} else {
-			// Recalculate from bottom record
-			r = tallyIndexes[b][alphabet.indexOf(c)];
-			for (int j = b * tallyDistance; j > row; j--) {
-				char cA = (char)bwt[j];
-				if (cA == c)
-					r--;
-			}
-		}
-		return r;
+		int code = getAlphabetIndex(c);
+		if(code<0) return 0;
+		return bwt.rank(code, row);
 	}
 
 	/**
-	 * Finds the row corresponding to the given character in the given row of the
-	 * index, according to the tally indexes in that row
-	 * 
-	 * @param c Character to query
-	 * @param row of the index to query
-	 * @param firstIndexAfter If true, calculates the rank of the character at or after the row
-	 * @return int Row of the FM-index of the rank of the given character according
-	 *         to the tally indexes at the given row
+	 * @return int Number of characters of the alphabet of this index
 	 */
-	private int lfMapping(char c, int row, boolean firstIndexAfter) {
-
-		int rank = getTallyCount(c, row);
-		// add1 is true when actualChar is different of bwt[rowS] because in this case,
-		// the last appearance of actualChar before rowS is outside the range defined by
-		// rowS, rowF
-		boolean add1 = firstIndexAfter && (bwt[row] != c);
-		// System.out.println("char: "+c+" row: "+row+" rank: "+rank+" first c: "+firstRowsInMatrix.get(c));
-		int newRank = firstRowsInMatrix.get(c) + rank - 1;
-		if (add1) newRank++;
-		return newRank;
+	int getAlphabetSize() {
+		return alphabet.length();
 	}
-
+	/**
+	 * @return int Number of rows of the BW matrix, including the row starting with the special character
+	 */
+	int getNumberOfRows() {
+		return bwt.length();
+	}
+	/**
+	 * @param code Index in the alphabet of a character
+	 * @return int First row of the BW matrix starting with the given character
+	 */
+	int getFirstRow(int code) {
+		return firstRowsInMatrix[code];
+	}
+	/**
+	 * @return int Row of the BW matrix having the special character in the bwt
+	 */
+	int getRowSpecialCharacter() {
+		return rowBWTSpecialCharacter;
+	}
+	/**
+	 * Counts the occurrences of each character of the alphabet in the bwt up to the given row
+	 * @param row Last row to count (included)
+	 * @param counts Array to store the counts, indexed by alphabet index
+	 */
+	void getTallyCounts(int row, int [] counts) {
+		bwt.rankAll(row, counts);
+	}
+	
+	/**
+	 * Calculates the row of the BW matrix having as first character the character of the bwt in the given row
+	 * @param row of the index to query
+	 * @return int Row of the FM-index of the rank of the character in the bwt at the given row
+	 */
 	private int lfMapping(int row) {
-		char c = (char)bwt[row];
-		// System.out.println(""+c);
-		return lfMapping(c, row, false);
+		int code = bwt.getCode(row);
+		//The special character is the first character of the first row
+		if(code<0) return 0;
+		return firstRowsInMatrix[code] + bwt.rank(code, row) - 1;
 	}
 	
 	public static void main(String[] args) {
@@ -388,25 +537,26 @@ public class FMIndexSingleSequence implements Serializable {
 	}
 	
 	public void save (PrintStream out) {
-		out.println("#INDEX\t"+alphabet+"\t"+suffixFraction+"\t"+tallyDistance+"\t"+rowBWTSpecialCharacter+"\t"+maxHitsQuery+"\t"+bwt.length);
+		int bwtLength = bwt.length();
+		out.println("#INDEX\t"+alphabet+"\t"+suffixFraction+"\t"+tallyDistance+"\t"+rowBWTSpecialCharacter+"\t"+maxHitsQuery+"\t"+bwtLength);
 		for (int i=0;i<alphabet.length();i++) {
 			char c = alphabet.charAt(i);
-			out.println(""+c+"\t"+characterCounts.get(c)+"\t"+firstRowsInMatrix.get(c)+"\t"+lastRowsInMatrix.get(c)+"\t"+alphabetIndexes.get(c));
+			out.println(""+c+"\t"+characterCounts[i]+"\t"+firstRowsInMatrix[i]+"\t"+lastRowsInMatrix[i]+"\t"+i);
 		}
 		out.println("#PartialSuffixArray");
-		for(int key:partialSuffixArray.keySet()) {
-			int value = partialSuffixArray.get(key);
-			out.println(""+key+"\t"+value);
+		for(int row=0;row<bwtLength;row++) {
+			int value = getSampledSuffix(row);
+			if(value>=0) out.println(""+row+"\t"+value);
 		}
 		out.println("#BWT");
 		StringBuffer buffer = new StringBuffer(10000);
 		int i=0;
-		while(i<bwt.length) {
-			buffer.append((char)bwt[i]);
+		while(i<bwtLength) {
+			buffer.append((char)getBWTCharacter(i));
 			i++;
-			if(i%10000==0 || i==bwt.length) {
+			if(i%10000==0 || i==bwtLength) {
 				out.println(buffer.toString());
-				if(i<bwt.length) buffer = new StringBuffer(10000);
+				if(i<bwtLength) buffer = new StringBuffer(10000);
 			}
 		}
 		out.println("#END");
@@ -417,7 +567,7 @@ public class FMIndexSingleSequence implements Serializable {
 		if(!line.startsWith("#INDEX")) throw new IOException("#INDEX header not found. Line: "+line);
 		String [] items = line.split("\t");
 		FMIndexSingleSequence index = new FMIndexSingleSequence();
-		index.alphabet = items[1];
+		index.setAlphabet(items[1]);
 		index.suffixFraction = Integer.parseInt(items[2]);
 		index.tallyDistance = Integer.parseInt(items[3]);
 		index.rowBWTSpecialCharacter = Integer.parseInt(items[4]);
@@ -430,35 +580,179 @@ public class FMIndexSingleSequence implements Serializable {
 			if(line==null) throw new IOException("Unexpected end of file reading character counts.");
 			items = line.split("\t");
 			if(items[0].length()!=1 || c!=items[0].charAt(0)) throw new IOException("Inconsistency found reading line for character "+c+". Line: "+line);
-			index.characterCounts.put(c, Integer.parseInt(items[1]));
-			index.firstRowsInMatrix.put(c, Integer.parseInt(items[2]));
-			index.lastRowsInMatrix.put(c, Integer.parseInt(items[3]));
-			index.alphabetIndexes.put(c, Integer.parseInt(items[4]));
+			index.characterCounts[i] = Integer.parseInt(items[1]);
+			index.firstRowsInMatrix[i] = Integer.parseInt(items[2]);
+			index.lastRowsInMatrix[i] = Integer.parseInt(items[3]);
 		}
 		line = reader.readLine();
 		if(line==null) throw new IOException("Unexpected end of file reading suffix array.");
 		if(!line.startsWith("#PartialSuffixArray")) throw new IOException("#PartialSuffixArray section not found. Line: "+line);
 		line = reader.readLine();
+		//Previous versions saved the partial suffix array without order
+		List<Long> sampledSuffixes = new ArrayList<>();
 		while (line!=null && !line.equals("#BWT")) {
 			items = line.split("\t");
-			index.partialSuffixArray.put(Integer.parseInt(items[0]), Integer.parseInt(items[1]));
+			sampledSuffixes.add(((long)Integer.parseInt(items[0]))<<32 | Integer.parseInt(items[1]));
 			line = reader.readLine();
 		}
 		if(line == null) throw new IOException("Unexpected end of file reading suffix array.");
-		index.bwt = new byte[bwtLength];
+		Collections.sort(sampledSuffixes);
+		long [] bits = new long [getNumberOfWords(bwtLength)];
+		int [] positions = new int [sampledSuffixes.size()];
+		for(int i=0;i<positions.length;i++) {
+			long entry = sampledSuffixes.get(i);
+			int row = (int)(entry>>32);
+			bits[row>>>6] |= 1L<<(row&63);
+			positions[i] = (int)entry;
+		}
+		index.sampledRows = LongBuffer.wrap(bits);
+		index.sampledRowsRanks = IntBuffer.wrap(calculateRanks(bits));
+		index.sampledSuffixPositions = IntBuffer.wrap(positions);
+		byte [] bwt = new byte[bwtLength];
 		line = reader.readLine();
 		int i=0;
 		while (line!=null && !line.equals("#END")) {
 			for(int j=0;j<line.length();j++) {
 				if(i>=bwtLength)  throw new IOException("Inconsistent bwt length: "+bwtLength);
-				index.bwt[i] = (byte) line.charAt(j);
+				bwt[i] = (byte) line.charAt(j);
 				i++;
 			}
 			line = reader.readLine();
 		}
 		if(line == null) throw new IOException("Unexpected end of file reading bwt.");
-		index.buildTally();
+		index.bwt = PackedBurrowsWheelerTransform.pack(bwt, index.alphabet, index.rowBWTSpecialCharacter);
 		return index;
 		
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Saves this index in the binary format that can be loaded with the method map 
+	 * @param out Stream to write the index
+	 * @throws IOException If the index can not be written
+	 */
+	public void saveBinary (DataOutputStream out) throws IOException {
+		int alphabetSize = alphabet.length();
+		out.writeInt(alphabetSize);
+		out.writeInt(suffixFraction);
+		out.writeInt(tallyDistance);
+		out.writeInt(rowBWTSpecialCharacter);
+		out.writeInt(maxHitsQuery);
+		out.writeInt(bwt.length());
+		out.writeInt(sampledSuffixPositions.limit());
+		out.writeInt(bwt.getNumberOfLongs());
+		for (int i=0;i<alphabetSize;i++) out.writeByte(alphabet.charAt(i));
+		for (int i=0;i<alphabetSize;i++) {
+			out.writeInt(characterCounts[i]);
+			out.writeInt(firstRowsInMatrix[i]);
+			out.writeInt(lastRowsInMatrix[i]);
+		}
+		int words = sampledRows.limit();
+		for(int i=0;i<words;i++) out.writeLong(sampledRows.get(i));
+		writeInts(out, sampledRowsRanks);
+		writeInts(out, sampledSuffixPositions);
+		bwt.save(out);
+	}
+	
+	/**
+	 * Saves the table of prefix intervals in binary format
+	 * @param out Stream to write the table
+	 * @throws IOException If the table can not be written
+	 */
+	void savePrefixTableBinary (DataOutputStream out) throws IOException {
+		writeInts(out, prefixFirstRows);
+		writeInts(out, prefixLastRows);
+	}
+	
+	/**
+	 * Maps to memory the table of prefix intervals saved in binary format
+	 * @param channel opened over the binary file
+	 * @param position within the file where the table starts
+	 * @param length of the k-mers of the table
+	 * @return long Number of bytes used by the table
+	 * @throws IOException If the table can not be read
+	 */
+	long mapPrefixTable (FileChannel channel, long position, int length) throws IOException {
+		if(length<1 || length>MAX_PREFIX_TABLE_LENGTH) throw new IOException("Invalid length for the table of prefix intervals: "+length);
+		long bytes = 4L*getNumberOfPrefixes(length);
+		if(position+2*bytes>channel.size()) throw new IOException("Unexpected end of file reading table of prefix intervals");
+		prefixFirstRows = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).asIntBuffer();
+		prefixLastRows = channel.map(FileChannel.MapMode.READ_ONLY, position+bytes, bytes).asIntBuffer();
+		prefixTableLength = length;
+		return 2*bytes;
+	}
+	
+	private static void writeInts(DataOutputStream out, IntBuffer values) throws IOException {
+		int n = values.limit();
+		for(int i=0;i<n;i++) out.writeInt(values.get(i));
+	}
+	
+	/**
+	 * Calculates the number of bytes used by this index in the binary format
+	 * @return long Number of bytes used by this index
+	 */
+	long getBinaryLength() {
+		long alphabetSize = alphabet.length();
+		long sampledSuffixes = sampledSuffixPositions.limit();
+		int words = getNumberOfWords(bwt.length());
+		long sampledRowsLength = 8L*words + 4L*getNumberOfRanks(words);
+		return 4L*BINARY_HEADER_INTS + 13L*alphabetSize + sampledRowsLength + 4L*sampledSuffixes + 8L*bwt.getNumberOfLongs();
+	}
+	
+	/**
+	 * Loads an index saved in binary format mapping to memory the data structures
+	 * of the index rather than copying them to the heap
+	 * @param channel opened over the binary file
+	 * @param position within the file where the index starts
+	 * @return FMIndexSingleSequence loaded index
+	 * @throws IOException If the index can not be read
+	 */
+	public static FMIndexSingleSequence map (FileChannel channel, long position) throws IOException {
+		IntBuffer header = read(channel, position, 4*BINARY_HEADER_INTS).asIntBuffer();
+		position+=4*BINARY_HEADER_INTS;
+		FMIndexSingleSequence index = new FMIndexSingleSequence();
+		int alphabetSize = header.get(0);
+		index.suffixFraction = header.get(1);
+		index.tallyDistance = header.get(2);
+		index.rowBWTSpecialCharacter = header.get(3);
+		index.maxHitsQuery = header.get(4);
+		int bwtLength = header.get(5);
+		int sampledSuffixes = header.get(6);
+		// Number of longs of the packed bwt
+		int bwtDataLength = header.get(7);
+		if(alphabetSize<=0 || bwtLength<=0 || sampledSuffixes<=0 || bwtDataLength<=0) throw new IOException("Corrupted index header");
+		ByteBuffer alphabetInfo = read(channel, position, 13*alphabetSize);
+		position+=13*alphabetSize;
+		StringBuilder alphB = new StringBuilder();
+		for(int i=0;i<alphabetSize;i++) alphB.append((char)(alphabetInfo.get() & 0xFF));
+		index.setAlphabet(alphB.toString());
+		for(int i=0;i<alphabetSize;i++) {
+			index.characterCounts[i] = alphabetInfo.getInt();
+			index.firstRowsInMatrix[i] = alphabetInfo.getInt();
+			index.lastRowsInMatrix[i] = alphabetInfo.getInt();
+		}
+		int words = getNumberOfWords(bwtLength);
+		index.sampledRows = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L*words).asLongBuffer();
+		position+=8L*words;
+		int ranks = getNumberOfRanks(words);
+		index.sampledRowsRanks = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*ranks).asIntBuffer();
+		position+=4L*ranks;
+		index.sampledSuffixPositions = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*sampledSuffixes).asIntBuffer();
+		position+=4L*sampledSuffixes;
+		if(position+8L*bwtDataLength>channel.size()) throw new IOException("Unexpected end of file reading bwt");
+		LongBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L*bwtDataLength).asLongBuffer();
+		try {
+			index.bwt = PackedBurrowsWheelerTransform.load(bwtLength, alphabetSize, index.rowBWTSpecialCharacter, data);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupted index. "+e.getMessage(),e);
+		}
+		return index;
+	}
+	private static ByteBuffer read (FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer answer = ByteBuffer.allocate(length);
+		while(answer.hasRemaining()) {
+			if(channel.read(answer, position+answer.position())<0) throw new IOException("Unexpected end of file reading index");
+		}
+		answer.flip();
+		return answer;
+	}
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds co-linear chains of k-mer hits between a query and a single subject sequence.
+ * A hit can follow another hit in a chain only if it starts after the other hit both in the query and in the subject,
+ * within a maximum distance. Following minimap2, chaining a hit to a predecessor adds the weighted number of new bases
+ * matched by the hit, which is the minimum between the k-mer length and the distances to the predecessor
+ * in the query and in the subject. The gap between the two hits is penalized according to the difference between
+ * both distances, which is the shift between the diagonals of the two hits.
+ * Hits are processed by subject position and the predecessors of each hit are searched only among
+ * a bounded number of previous hits. Hence, chaining n hits takes linear time after sorting
+ */
+public class KmerHitsChainer {
+
+	public static final double DEF_GAP_PENALTY = 0.01;
+	public static final int DEF_MAX_GAP = 5000;
+	public static final int DEF_MAX_PREDECESSORS = 50;
+	public static final int DEF_MAX_CHAINS = 5;
+	public static final double DEF_MIN_RELATIVE_SCORE = 0.2;
+
+	private double gapPenalty = DEF_GAP_PENALTY;
+	private int maxGap = DEF_MAX_GAP;
+	private int maxPredecessors = DEF_MAX_PREDECESSORS;
+	private int maxChains = DEF_MAX_CHAINS;
+	private double minRelativeScore = DEF_MIN_RELATIVE_SCORE;
+
+	public double getGapPenalty() {
+		return gapPenalty;
+	}
+	/**
+	 * Changes the penalty of gaps between consecutive hits. A gap shifting the diagonal by l bases
+	 * between hits of length k is penalized with gapPenalty*k*l+0.5*log2(l)
+	 * @param gapPenalty Penalty per base of diagonal shift, relative to the k-mer length
+	 */
+	public void setGapPenalty(double gapPenalty) {
+		if(gapPenalty<0) throw new IllegalArgumentException("The gap penalty must be a non negative number. Value: "+gapPenalty);
+		this.gapPenalty = gapPenalty;
+	}
+	public int getMaxGap() {
+		return maxGap;
+	}
+	/**
+	 * Changes the maximum distance between consecutive hits of a chain
+	 * @param maxGap Maximum distance both in the query and in the subject
+	 */
+	public void setMaxGap(int maxGap) {
+		if(maxGap<1) throw new IllegalArgumentException("The maximum gap between hits must be a positive number. Value: "+maxGap);
+		this.maxGap = maxGap;
+	}
+	public int getMaxPredecessors() {
+		return maxPredecessors;
+	}
+	/**
+	 * Changes the number of previous hits in subject order considered as predecessors of each hit
+	 * @param maxPredecessors Maximum number of predecessors to check
+	 */
+	public void setMaxPredecessors(int maxPredecessors) {
+		if(maxPredecessors<1) throw new IllegalArgumentException("The maximum number of predecessors must be a positive number. Value: "+maxPredecessors);
+		this.maxPredecessors = maxPredecessors;
+	}
+	public int getMaxChains() {
+		return maxChains;
+	}
+	public void setMaxChains(int maxChains) {
+		if(maxChains<1) throw new IllegalArgumentException("The maximum number of chains must be a positive number. Value: "+maxChains);
+		this.maxChains = maxChains;
+	}
+	public double getMinRelativeScore() {
+		return minRelativeScore;
+	}
+	/**
+	 * Changes the minimum score of a chain relative to the score of the best chain
+	 * @param minRelativeScore Fraction of the score of the best chain
+	 */
+	public void setMinRelativeScore(double minRelativeScore) {
+		if(minRelativeScore<0 || minRelativeScore>1) throw new IllegalArgumentException("The minimum relative score of chains must be a number between 0 and 1. Value: "+minRelativeScore);
+		this.minRelativeScore = minRelativeScore;
+	}
+
+	/**
+	 * Calculates the best chains of the given hits. Each hit is included at most in one chain
+	 * @param hits K-mer hits of a query to a single subject sequence
+	 * @return List<List<UngappedSearchHit>> Chains sorted by decreasing score.
+	 * Hits within each chain are sorted by query and subject position
+	 */
+	public List<List<UngappedSearchHit>> findChains(List<UngappedSearchHit> hits) {
+		List<List<UngappedSearchHit>> answer = new ArrayList<>();
+		int n = hits.size();
+		if(n==0) return answer;
+		UngappedSearchHit [] anchors = hits.toArray(new UngappedSearchHit[n]);
+		Arrays.sort(anchors, (h1,h2)->(h1.getStart()!=h2.getStart())?h1.getStart()-h2.getStart():h1.getQueryIdx()-h2.getQueryIdx());
+		double [] scores = new double[n];
+		int [] predecessors = new int[n];
+		for(int i=0;i<n;i++) {
+			UngappedSearchHit hit = anchors[i];
+			int kmerLength = hit.getQuery().length();
+			double weight = hit.getWeight();
+			scores[i] = weight*kmerLength;
+			predecessors[i] = -1;
+			for(int j=i-1;j>=0 && j>=i-maxPredecessors;j--) {
+				int subjectDistance = hit.getStart()-anchors[j].getStart();
+				if(subjectDistance>maxGap) break;
+				int queryDistance = hit.getQueryIdx()-anchors[j].getQueryIdx();
+				if(subjectDistance==0 || queryDistance<=0 || queryDistance>maxGap) continue;
+				//Overlapping hits only add the bases not matched by the predecessor
+				double matched = weight*Math.min(kmerLength, Math.min(queryDistance, subjectDistance));
+				double chainedScore = scores[j] + matched - calculateGapPenalty(kmerLength, Math.abs(queryDistance-subjectDistance));
+				if(chainedScore>scores[i]) {
+					scores[i] = chainedScore;
+					predecessors[i] = j;
+				}
+			}
+		}
+		//Backtrack chains from the hits with the largest scores
+		Integer [] order = new Integer[n];
+		for(int i=0;i<n;i++) order[i] = i;
+		Arrays.sort(order, (i1,i2)->Double.compare(scores[i2], scores[i1]));
+		boolean [] used = new boolean[n];
+		List<HitsChain> chains = new ArrayList<>();
+		double maxScore = 0;
+		for(int i:order) {
+			if(used[i]) continue;
+			if(scores[i]<minRelativeScore*maxScore) break;
+			List<UngappedSearchHit> chain = new ArrayList<>();
+			int j = i;
+			while(j>=0 && !used[j]) {
+				used[j] = true;
+				chain.add(anchors[j]);
+				j = predecessors[j];
+			}
+			//Chains reaching hits of previous chains only keep the score of their own hits
+			double score = scores[i] - (j>=0?scores[j]:0);
+			maxScore = Math.max(maxScore, score);
+			if(score<minRelativeScore*maxScore) continue;
+			Collections.reverse(chain);
+			chains.add(new HitsChain(chain, score));
+		}
+		Collections.sort(chains, (c1,c2)->Double.compare(c2.score, c1.score));
+		for(int i=0;i<chains.size() && i<maxChains;i++) answer.add(chains.get(i).hits);
+		return answer;
+	}
+
+	private double calculateGapPenalty(int kmerLength, int diagonalShift) {
+		if(diagonalShift==0) return 0;
+		return gapPenalty*kmerLength*diagonalShift + 0.5*Math.log(diagonalShift)/Math.log(2);
+	}
+
+	private static class HitsChain {
+		private final List<UngappedSearchHit> hits;
+		private final double score;
+
+		public HitsChain(List<UngappedSearchHit> hits, double score) {
+			this.hits = hits;
+			this.score = score;
+		}
+	}
+}
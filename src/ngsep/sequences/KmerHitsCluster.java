@@ -1,6 +1,7 @@
 package ngsep.sequences;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -473,13 +474,30 @@ public class KmerHitsCluster {
 		if(cluster2.getQueryEvidenceEnd()-cluster2.getQueryEvidenceStart()>=minQueryCoverage*queryLength) answer.add(cluster2);
 		return answer;
 	}
-	public void completeMissingHits(Map<Integer,Long> subjectCodes, Map<Integer, Long> queryCodes) {
-		
-		Map<Long,List<Integer>> subjectCodesPos = new HashMap<Long, List<Integer>>();
-		for(int i:subjectCodes.keySet()) {
-			long code = subjectCodes.get(i);
-			List<Integer> posList = subjectCodesPos.computeIfAbsent(code, v->new ArrayList<Integer>());
-			posList.add(i);
+	/**
+	 * Adds hits for k-mers shared by the query and the subject between consecutive hits of this cluster
+	 * @param subjectCodes Codes of the k-mers of a segment of the subject as calculated by KmersExtractor.extractDNAKmerCodesArray
+	 * @param subjectCodesStart Position in the subject of the first code
+	 * @param queryCodes Codes of the k-mers starting at each position of the query
+	 */
+	public void completeMissingHits(long [] subjectCodes, int subjectCodesStart, long [] queryCodes) {
+		//Open addressing map from each code to its first position in the subject. Positions of the same code are chained in ascending order
+		int n = subjectCodes.length;
+		int bits = 4;
+		while(bits<30 && (1<<bits)<2*n) bits++;
+		long [] slotCodes = new long [1<<bits];
+		Arrays.fill(slotCodes, -1);
+		int [] slotFirstPositions = new int [1<<bits];
+		int [] slotCounts = new int [1<<bits];
+		int [] nextPositions = new int [n];
+		for(int i=n-1;i>=0;i--) {
+			long code = subjectCodes[i];
+			if(code<0) continue;
+			int slot = findSlot(slotCodes, code);
+			nextPositions[i] = (slotCodes[slot]>=0)?slotFirstPositions[slot]:-1;
+			slotCodes[slot] = code;
+			slotFirstPositions[slot] = i;
+			slotCounts[slot]++;
 		}
 		int lastQueryStart = -1;
 		int lastSubjectStart = -1;
@@ -495,28 +513,29 @@ public class KmerHitsCluster {
 			if(lastHit!=null && diffC<10 && diffQ<100 && diffS>0) {
 				int j=lastSubjectStart+1;
 				for(int i=lastQueryStart+1;i<queryStart;i++) {
-					Long code = queryCodes.get(i);
-					if(code == null) continue;
-					List<Integer> posList = subjectCodesPos.get(code);
-					if(posList==null) continue;
-					Integer selectedPos = null;
-					if(posList.size()<10) {
-						for(int k:posList) {
-							if(k>=j && k<j+10) {
-								selectedPos = k;
+					long code = (i<queryCodes.length)?queryCodes[i]:-1;
+					if(code < 0) continue;
+					int slot = findSlot(slotCodes, code);
+					if(slotCodes[slot]<0) continue;
+					int selectedPos = -1;
+					if(slotCounts[slot]<10) {
+						for(int k=slotFirstPositions[slot];k>=0;k=nextPositions[k]) {
+							int pos = subjectCodesStart+k;
+							if(pos>=j && pos<j+10) {
+								selectedPos = pos;
 								break;
 							}
 						}
 					} else {
 						for(int k=j;k<j+10;k++) {
-							Long codeS = subjectCodes.get(k);
-							if(codeS!=null && codeS.longValue() == code.longValue()) {
+							int idx = k-subjectCodesStart;
+							if(idx>=0 && idx<n && subjectCodes[idx]==code) {
 								selectedPos = k;
 								break;
 							}
 						}
 					}
-					if(selectedPos==null) {
+					if(selectedPos<0) {
 						j++;
 						continue;
 					} else {
@@ -536,5 +555,11 @@ public class KmerHitsCluster {
 			lastHit = hit;
 		}
 	}
+	private static int findSlot(long [] slotCodes, long code) {
+		int mask = slotCodes.length-1;
+		int slot = (int)((code*0x9E3779B97F4A7C15L)>>>(64-Integer.numberOfTrailingZeros(slotCodes.length)));
+		while(slotCodes[slot]>=0 && slotCodes[slot]!=code) slot = (slot+1) & mask;
+		return slot;
+	}
 	
 }
\ No newline at end of file
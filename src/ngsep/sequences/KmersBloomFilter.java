@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Bloom filter of k-mers. K-mers maps use this filter to store k-mers only from their second occurrence,
+ * avoiding to store most of the k-mers produced by sequencing errors, which are observed only once.
+ * The bits of each k-mer are located within one block of 512 bits, which requires only one cache miss per k-mer
+ * but increases the false positive rate by about a third with respect to a standard filter of the same size.
+ * Bits are set atomically. Hence, k-mers can be added by multiple threads at the same time
+ */
+public class KmersBloomFilter {
+
+	private static final VarHandle BITS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int BLOCK_WORDS = 8;
+	private static final int BLOCK_BITS = 9;
+	private static final int BLOCK_BITS_MASK = (1<<BLOCK_BITS)-1;
+
+	private final long [] bits;
+	private final long numBits;
+	private final long numBlocks;
+	private final int numHashFunctions;
+
+	/**
+	 * Creates a new filter with the number of bits and hash functions that minimize the false positive rate
+	 * @param expectedKmers Expected number of distinct k-mers to add
+	 * @param falsePositiveRate Probability of reporting a k-mer as already seen when it is added for the first time
+	 */
+	public KmersBloomFilter(long expectedKmers, double falsePositiveRate) {
+		if(expectedKmers<=0) throw new IllegalArgumentException("The expected number of k-mers must be a positive number. Value: "+expectedKmers);
+		if(falsePositiveRate<=0 || falsePositiveRate>=1) throw new IllegalArgumentException("The false positive rate must be a number between 0 and 1. Value: "+falsePositiveRate);
+		double ln2 = Math.log(2);
+		double optimalBits = -expectedKmers*Math.log(falsePositiveRate)/(ln2*ln2);
+		numBlocks = Math.max(1, (long)Math.ceil(optimalBits/64/BLOCK_WORDS));
+		if(numBlocks>(Integer.MAX_VALUE-8)/BLOCK_WORDS) throw new IllegalArgumentException("Too many k-mers to build a filter with false positive rate "+falsePositiveRate+". Value: "+expectedKmers);
+		bits = new long[(int)numBlocks*BLOCK_WORDS];
+		numBits = 64L*bits.length;
+		numHashFunctions = (int)Math.max(1, Math.round(ln2*numBits/expectedKmers));
+	}
+
+	public long getNumBits() {
+		return numBits;
+	}
+
+	public int getNumHashFunctions() {
+		return numHashFunctions;
+	}
+
+	/**
+	 * Adds the k-mer with the given code
+	 * @param code of a DNA k-mer
+	 * @return boolean true if the k-mer was possibly added before. false if this is the first time that the k-mer is added
+	 */
+	public boolean add(long code) {
+		return addHash(LongCodeDNAKmersMapImpl.mix(code));
+	}
+
+	/**
+	 * Tells if the k-mer with the given code was possibly added before
+	 * @param code of a DNA k-mer
+	 * @return boolean true if the k-mer was possibly added. false if the k-mer was not added
+	 */
+	public boolean contains(long code) {
+		long hash = LongCodeDNAKmersMapImpl.mix(code);
+		int block = (int)Long.remainderUnsigned(hash, numBlocks);
+		long blockHash = Long.rotateLeft(hash, 32);
+		int increment = (int)(blockHash>>>BLOCK_BITS) | 1;
+		for(int i=0;i<numHashFunctions;i++) {
+			int bit = ((int)blockHash+i*increment) & BLOCK_BITS_MASK;
+			if((bits[block*BLOCK_WORDS+(bit>>>6)] & (1L<<(bit & 63)))==0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the given k-mer
+	 * @param kmer to add
+	 * @return boolean true if the k-mer was possibly added before. false if this is the first time that the k-mer is added
+	 */
+	public boolean add(CharSequence kmer) {
+		//FNV-1a hash of the characters
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0;i<kmer.length();i++) {
+			hash ^= kmer.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return addHash(LongCodeDNAKmersMapImpl.mix(hash));
+	}
+
+	/**
+	 * Sets the bits of the given hash. All bits are set within one block of the size of a cache line,
+	 * selected by the hash. The bits of each hash function within the block are calculated by double hashing
+	 * @return boolean true if all the bits were already set
+	 */
+	private boolean addHash(long hash) {
+		int block = (int)Long.remainderUnsigned(hash, numBlocks);
+		long blockHash = Long.rotateLeft(hash, 32);
+		int increment = (int)(blockHash>>>BLOCK_BITS) | 1;
+		boolean present = true;
+		for(int i=0;i<numHashFunctions;i++) {
+			int bit = ((int)blockHash+i*increment) & BLOCK_BITS_MASK;
+			int word = block*BLOCK_WORDS+(bit>>>6);
+			long mask = 1L<<(bit & 63);
+			//Avoid the atomic update if the bit is already set
+			if((bits[word] & mask)!=0) continue;
+			long before = (long)BITS.getAndBitwiseOr(bits, word, mask);
+			if((before & mask)==0) present = false;
+		}
+		return present;
+	}
+}
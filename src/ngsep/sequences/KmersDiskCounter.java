@@ -0,0 +1,504 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import ngsep.math.Distribution;
+
+/**
+ * Counts DNA k-mers of up to 31bp using temporary files to keep a bounded amount of memory.
+ * In the first phase, consecutive k-mers of each sequence sharing the same minimizer (super k-mers)
+ * are saved in one of a fixed number of temporary bins selected by the hash of the minimizer. Hence, all
+ * occurrences of each k-mer are saved in the same bin. In the second phase, bins are counted independently
+ * and in parallel. The k-mers of each bin are loaded in an array up to the memory budget, sorted and collapsed
+ * into sorted runs of k-mer codes and counts. Runs are merged at the end to produce a binary file with the counts
+ * of the k-mers sorted by code. See KmerCountsFileReader to load the file
+ */
+public class KmersDiskCounter implements Closeable {
+
+	public static final int BINARY_FILE_MAGIC = 0x4E4B4D43;
+	private static final int BIN_BITS = 8;
+	private static final int NUM_BINS = 1<<BIN_BITS;
+	private static final int MINIMIZER_LENGTH = 11;
+	private static final int BUFFER_SIZE = 1<<15;
+	/**
+	 * Default maximum number of runs opened at the same time by all threads
+	 */
+	public static final int DEFAULT_MAX_OPEN_RUNS = NUM_BINS;
+	/**
+	 * Bytes in memory for each k-mer of the arrays used to count bins
+	 */
+	private static final int BYTES_PER_KMER = 12;
+	private static final int MIN_BIN_CAPACITY = 1024;
+	private static final int TIMEOUT_SECONDS = 30;
+
+	private Logger log = Logger.getLogger(KmersDiskCounter.class.getName());
+
+	private final int kmerLength;
+	private final boolean canonical;
+	private final long memoryBudget;
+	private final File tmpDirectory;
+	private final int minimizerLength;
+	private final int maxRecordKmers;
+	private int maxOpenRuns = DEFAULT_MAX_OPEN_RUNS;
+
+	private File [] binFiles = new File[NUM_BINS];
+	private DataOutputStream [] binWriters = new DataOutputStream[NUM_BINS];
+	private long [] binKmers = new long[NUM_BINS];
+	private List<File> tmpFiles = new ArrayList<>();
+
+	/**
+	 * Creates a new counter and the temporary files for the bins
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param canonical Tells if canonical k-mers should be counted. Otherwise, k-mers are counted only in the sequences given
+	 * @param memoryBudget Maximum number of bytes used by the buffers and the arrays to count k-mers
+	 * @param tmpDirectory Directory to save temporary files. If null, the default temporary directory is used
+	 * @throws IOException If the temporary files can not be created
+	 */
+	public KmersDiskCounter(int kmerLength, boolean canonical, long memoryBudget, File tmpDirectory) throws IOException {
+		if(kmerLength<1 || kmerLength>31) throw new IllegalArgumentException("The kmer length must be a number between 1 and 31. Value: "+kmerLength);
+		if(memoryBudget<=0) throw new IllegalArgumentException("The memory budget for counting k-mers must be a positive number. Value: "+memoryBudget);
+		this.kmerLength = kmerLength;
+		this.canonical = canonical;
+		this.memoryBudget = memoryBudget;
+		this.tmpDirectory = tmpDirectory;
+		minimizerLength = Math.min(kmerLength, MINIMIZER_LENGTH);
+		//The number of bases of each record must fit in one byte
+		maxRecordKmers = 255-kmerLength+1;
+		for(int i=0;i<NUM_BINS;i++) {
+			binFiles[i] = createTmpFile();
+			binWriters[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binFiles[i]), BUFFER_SIZE));
+		}
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	public int getMaxOpenRuns() {
+		return maxOpenRuns;
+	}
+	/**
+	 * Changes the maximum number of runs opened at the same time by all threads to merge counts.
+	 * Each thread merges groups of runs into intermediate runs until it can merge all its runs at once.
+	 * The buffers of the runs are discounted from the memory budget
+	 * @param maxOpenRuns New maximum number of runs. It must be at least 2
+	 */
+	public void setMaxOpenRuns(int maxOpenRuns) {
+		if(maxOpenRuns<2) throw new IllegalArgumentException("The maximum number of runs to merge must be at least 2. Value: "+maxOpenRuns);
+		this.maxOpenRuns = maxOpenRuns;
+	}
+
+	/**
+	 * @return long Total number of k-mers saved in the bins
+	 */
+	public long getTotalKmers() {
+		long total = 0;
+		for(int i=0;i<NUM_BINS;i++) {
+			synchronized (binWriters[i]) {
+				total+=binKmers[i];
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Saves the k-mers of the given sequence in the temporary bins.
+	 * This method can be called by multiple threads at the same time
+	 * @param sequence to process. K-mers with characters that are not DNA bases are ignored
+	 */
+	public void addSequence(CharSequence sequence) {
+		int n = sequence.length();
+		int start = 0;
+		while(start<n) {
+			while(start<n && KmersExtractor.getBaseCode(sequence.charAt(start))<0) start++;
+			int end = start;
+			while(end<n && KmersExtractor.getBaseCode(sequence.charAt(end))>=0) end++;
+			if(end-start>=kmerLength) addSegment(sequence, start, end);
+			start = end;
+		}
+	}
+
+	/**
+	 * Saves the k-mers of a segment having only DNA bases
+	 */
+	private void addSegment(CharSequence sequence, int start, int end) {
+		long [] hashes = KmersExtractor.extractCanonicalDNAKmerCodesArray(sequence, minimizerLength, start, end);
+		int numMinimizerKmers = end-start-minimizerLength+1;
+		for(int i=0;i<numMinimizerKmers;i++) hashes[i] = LongCodeDNAKmersMapImpl.mix(hashes[i]);
+		int numKmers = end-start-kmerLength+1;
+		int window = kmerLength-minimizerLength+1;
+		//Monotone queue of positions of increasing hashes to calculate the minimizer of each k-mer
+		int [] queue = new int[numMinimizerKmers];
+		int head = 0;
+		int tail = 0;
+		int recordStart = 0;
+		int recordBin = -1;
+		for(int i=0;i<numMinimizerKmers;i++) {
+			while(tail>head && Long.compareUnsigned(hashes[queue[tail-1]], hashes[i])>0) tail--;
+			queue[tail++] = i;
+			int kmerStart = i-window+1;
+			if(kmerStart<0) continue;
+			if(queue[head]<kmerStart) head++;
+			int bin = (int)(hashes[queue[head]]>>>(64-BIN_BITS));
+			if(bin!=recordBin || kmerStart-recordStart==maxRecordKmers) {
+				if(recordBin>=0) writeRecord(recordBin, sequence, start+recordStart, start+kmerStart+kmerLength-1);
+				recordStart = kmerStart;
+				recordBin = bin;
+			}
+		}
+		writeRecord(recordBin, sequence, start+recordStart, start+numKmers+kmerLength-1);
+	}
+
+	/**
+	 * Saves the bases of the given region packed in two bits per base
+	 */
+	private void writeRecord(int bin, CharSequence sequence, int start, int end) {
+		int length = end-start;
+		byte [] packed = new byte[(length+3)/4];
+		for(int i=0;i<length;i++) {
+			packed[i>>2] |= KmersExtractor.getBaseCode(sequence.charAt(start+i))<<(2*(i&3));
+		}
+		DataOutputStream out = binWriters[bin];
+		synchronized (out) {
+			try {
+				out.writeByte(length);
+				out.write(packed);
+			} catch (IOException e) {
+				throw new RuntimeException("Can not save k-mers in temporary file "+binFiles[bin].getAbsolutePath(), e);
+			}
+			binKmers[bin]+=length-kmerLength+1;
+		}
+	}
+
+	/**
+	 * Counts the k-mers saved in the bins and saves the counts sorted by k-mer code in a binary file.
+	 * The file starts with the magic number, the k-mer length and the canonical flag.
+	 * Then, it has for each k-mer its code as a long and its count as an int
+	 * @param filename Name of the binary file to save the counts
+	 * @param minCount Minimum count to save a k-mer
+	 * @param numThreads Number of threads to count the bins. At most half of the maximum number of open runs are used
+	 * @return Distribution Distribution of abundances of all k-mers, including those not saved.
+	 * It is the same distribution calculated by the k-mers maps
+	 * @throws IOException If the temporary files or the output file can not be read or written
+	 */
+	public Distribution saveCounts(String filename, int minCount, int numThreads) throws IOException {
+		for(DataOutputStream out:binWriters) out.close();
+		//Each thread must be able to merge at least two runs
+		numThreads = Math.max(1, Math.min(numThreads, maxOpenRuns/2));
+		int threadMergeRuns = maxOpenRuns/numThreads;
+		//Buffers of the bins plus buffers of the runs merged by each thread and its output run
+		long buffersMemory = 2L*NUM_BINS*BUFFER_SIZE + (long)numThreads*(threadMergeRuns+1)*BUFFER_SIZE;
+		long binCapacity = Math.max(MIN_BIN_CAPACITY, (memoryBudget-buffersMemory)/numThreads/BYTES_PER_KMER);
+		log.info("Counting "+getTotalKmers()+" k-mers in "+NUM_BINS+" bins using "+numThreads+" threads. Maximum k-mers in memory per thread: "+binCapacity);
+		File [] binResults = new File[NUM_BINS];
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			List<Future<?>> tasks = new ArrayList<>();
+			for(int i=0;i<NUM_BINS;i++) {
+				final int bin = i;
+				int capacity = (int)Math.min(binCapacity, Math.max(1, binKmers[bin]));
+				tasks.add(pool.submit(()->{
+					binResults[bin] = countBin(bin, capacity, threadMergeRuns);
+					return null;
+				}));
+			}
+			for(Future<?> task:tasks) waitTask(task);
+		} finally {
+			pool.shutdown();
+		}
+		List<File> runs = new ArrayList<>();
+		for(File result:binResults) if(result!=null) runs.add(result);
+		runs = reduceRuns(runs, maxOpenRuns);
+		Distribution dist = new Distribution(1, Short.MAX_VALUE, 1);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), BUFFER_SIZE))) {
+			out.writeInt(BINARY_FILE_MAGIC);
+			out.writeByte(kmerLength);
+			out.writeBoolean(canonical);
+			mergeRuns(runs, (code, count) -> {
+				if(canonical && KmersExtractor.getReverseComplementCode(code, kmerLength)!=code) dist.processDatapoint(2, count);
+				else dist.processDatapoint(count);
+				if(count<minCount) return;
+				out.writeLong(code);
+				out.writeInt(count);
+			});
+		} finally {
+			deleteTmpFiles(runs);
+		}
+		return dist;
+	}
+
+	/**
+	 * Counts the k-mers saved in the given bin
+	 * @param bin to count
+	 * @param capacity Maximum number of k-mers to keep in memory
+	 * @param maxMergeRuns Maximum number of runs merged at the same time
+	 * @return File Run with the sorted k-mers of the bin and their counts. null if the bin is empty
+	 */
+	private File countBin(int bin, int capacity, int maxMergeRuns) throws IOException {
+		BinCounter counter = new BinCounter(capacity);
+		long mask = (1L<<(2*kmerLength))-1;
+		int shiftReverse = 2*(kmerLength-1);
+		//Only k-mers of even length can be palindromes
+		boolean checkPalindromes = canonical && kmerLength%2==0;
+		byte [] packed = new byte[64];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binFiles[bin]), BUFFER_SIZE))) {
+			int length;
+			while((length=in.read())>=0) {
+				in.readFully(packed, 0, (length+3)/4);
+				long code = 0;
+				long reverseCode = 0;
+				for(int i=0;i<length;i++) {
+					int baseCode = (packed[i>>2]>>>(2*(i&3))) & 3;
+					code = ((code<<2) | baseCode) & mask;
+					reverseCode = (reverseCode>>>2) | (((long)(3-baseCode))<<shiftReverse);
+					if(i<kmerLength-1) continue;
+					if(!canonical) counter.add(code);
+					else {
+						counter.add(Math.min(code, reverseCode));
+						//Palindromes are counted in both strands
+						if(checkPalindromes && code==reverseCode) counter.add(code);
+					}
+				}
+			}
+		}
+		deleteTmpFile(binFiles[bin]);
+		counter.spill();
+		List<File> runs = reduceRuns(counter.runs, maxMergeRuns);
+		if(runs.size()==0) return null;
+		if(runs.size()==1) return runs.get(0);
+		File answer = createTmpFile();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(answer), BUFFER_SIZE))) {
+			mergeRuns(runs, (code, count) -> writeRunRecord(out, code, count));
+		} finally {
+			deleteTmpFiles(runs);
+		}
+		return answer;
+	}
+
+	/**
+	 * Merges groups of runs until the number of runs can be merged at once
+	 * @param runs to reduce
+	 * @param maxMergeRuns Maximum number of runs merged at the same time
+	 * @return List<File> Runs that can be merged at once
+	 */
+	private List<File> reduceRuns(List<File> runs, int maxMergeRuns) throws IOException {
+		while(runs.size()>maxMergeRuns) {
+			List<File> nextRuns = new ArrayList<>();
+			for(int i=0;i<runs.size();i+=maxMergeRuns) {
+				List<File> group = runs.subList(i, Math.min(runs.size(), i+maxMergeRuns));
+				if(group.size()==1) {
+					nextRuns.add(group.get(0));
+					continue;
+				}
+				File merged = createTmpFile();
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), BUFFER_SIZE))) {
+					mergeRuns(group, (code, count) -> writeRunRecord(out, code, count));
+				}
+				deleteTmpFiles(group);
+				nextRuns.add(merged);
+			}
+			runs = nextRuns;
+		}
+		return runs;
+	}
+
+	/**
+	 * Merges the given runs adding the counts of equal codes
+	 * @param runs to merge
+	 * @param consumer Receives the codes sorted with their total counts
+	 */
+	private void mergeRuns(List<File> runs, KmerCountConsumer consumer) throws IOException {
+		List<MergeSource> sources = new ArrayList<>(runs.size());
+		try {
+			PriorityQueue<MergeSource> queue = new PriorityQueue<>(Math.max(1, runs.size()));
+			for(int i=0;i<runs.size();i++) {
+				MergeSource source = new MergeSource(i, runs.get(i));
+				sources.add(source);
+				if(source.advance()) queue.add(source);
+			}
+			while(queue.size()>0) {
+				MergeSource source = queue.poll();
+				long code = source.code;
+				long count = source.count;
+				if(source.advance()) queue.add(source);
+				while(queue.size()>0 && queue.peek().code==code) {
+					source = queue.poll();
+					count+=source.count;
+					if(source.advance()) queue.add(source);
+				}
+				consumer.accept(code, (int)Math.min(count, Integer.MAX_VALUE));
+			}
+		} finally {
+			for(MergeSource source:sources) source.in.close();
+		}
+	}
+
+	private static void writeRunRecord(DataOutputStream out, long code, int count) throws IOException {
+		out.writeLong(code);
+		out.writeInt(count);
+	}
+
+	private File createTmpFile() throws IOException {
+		File file = File.createTempFile("ngsepKmers", ".bin", tmpDirectory);
+		file.deleteOnExit();
+		synchronized (tmpFiles) {
+			tmpFiles.add(file);
+		}
+		return file;
+	}
+
+	private void deleteTmpFiles(List<File> files) {
+		for(File file:files) deleteTmpFile(file);
+	}
+
+	private void deleteTmpFile(File file) {
+		file.delete();
+		synchronized (tmpFiles) {
+			tmpFiles.remove(file);
+		}
+	}
+
+	private static void waitTask(Future<?> task) throws IOException {
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Deletes the temporary files
+	 */
+	@Override
+	public void close() throws IOException {
+		for(DataOutputStream out:binWriters) out.close();
+		List<File> files;
+		synchronized (tmpFiles) {
+			files = new ArrayList<>(tmpFiles);
+		}
+		deleteTmpFiles(files);
+	}
+
+	private interface KmerCountConsumer {
+		void accept(long code, int count) throws IOException;
+	}
+
+	/**
+	 * Keeps the k-mers of a bin in memory and saves sorted runs when the capacity is reached
+	 */
+	private class BinCounter {
+		private long [] codes;
+		private int [] counts;
+		private int size = 0;
+		private List<File> runs = new ArrayList<>();
+
+		public BinCounter(int capacity) {
+			codes = new long[capacity];
+			counts = new int[capacity];
+		}
+
+		private void add(long code) throws IOException {
+			if(size==codes.length) spill();
+			codes[size++] = code;
+		}
+
+		private void spill() throws IOException {
+			if(size==0) return;
+			Arrays.sort(codes, 0, size);
+			int distinct = 0;
+			for(int i=0;i<size;i++) {
+				if(distinct>0 && codes[distinct-1]==codes[i]) counts[distinct-1]++;
+				else {
+					codes[distinct] = codes[i];
+					counts[distinct] = 1;
+					distinct++;
+				}
+			}
+			File file = createTmpFile();
+			runs.add(file);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+				for(int i=0;i<distinct;i++) writeRunRecord(out, codes[i], counts[i]);
+			}
+			size = 0;
+		}
+	}
+
+	private static class MergeSource implements Comparable<MergeSource> {
+		private final int index;
+		private final DataInputStream in;
+		private long code;
+		private int count;
+
+		public MergeSource(int index, File file) throws IOException {
+			this.index = index;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		}
+		public boolean advance() throws IOException {
+			try {
+				code = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			count = in.readInt();
+			return true;
+		}
+		@Override
+		public int compareTo(MergeSource other) {
+			int cmp = Long.compare(code, other.code);
+			if(cmp!=0) return cmp;
+			return index - other.index;
+		}
+	}
+}
@@ -20,6 +20,7 @@
 package ngsep.sequences;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,12 +29,15 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
@@ -56,6 +60,14 @@ public class KmersExtractor {
 	public static final int DEF_MIN_KMER_COUNT = 5;
 	public static final byte INPUT_FORMAT_FASTQ=0;
 	public static final byte INPUT_FORMAT_FASTA=1;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_DISK_MEMORY = 1024;
+	public static final double DEF_SINGLETON_FILTER_FP_RATE = 0.01;
+	public static final int DEF_SINGLETON_FILTER_KMERS = 100000000;
+	
+	// Number of bases of the sequences processed by each task when k-mers are counted with multiple threads
+	private static final int BATCH_LENGTH = 1000000;
+	private static final int TIMEOUT_SECONDS = 30;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(KmersExtractor.class.getName());
@@ -69,9 +81,17 @@ public class KmersExtractor {
 	private byte inputFormat = INPUT_FORMAT_FASTQ;
 	private boolean freeText = false;
 	private boolean ignoreLowComplexity = false;
+	private boolean canonical = false;
+	private int numThreads = DEF_NUM_THREADS;
+	private boolean diskCounting = false;
+	private int diskMemory = DEF_DISK_MEMORY;
+	private boolean singletonFilter = false;
+	private double singletonFilterFPRate = DEF_SINGLETON_FILTER_FP_RATE;
+	private int singletonFilterKmers = DEF_SINGLETON_FILTER_KMERS;
 	
 	// Model attributes
 	private KmersMap kmersMap = null;
+	private KmersDiskCounter diskCounter = null;
 	
 	private static final DNASequence EMPTYDNASEQ = new DNASequence();
 	
@@ -157,6 +177,93 @@ public class KmersExtractor {
 	public void setIgnoreLowComplexity(Boolean ignoreLowComplexity) {
 		this.setIgnoreLowComplexity(ignoreLowComplexity.booleanValue());
 	}
+	
+	public boolean isCanonical() {
+		return canonical;
+	}
+	public void setCanonical(boolean canonical) {
+		this.canonical = canonical;
+		kmersMap = null;
+	}
+	public void setCanonical(Boolean canonical) {
+		this.setCanonical(canonical.booleanValue());
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be a positive number. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public boolean isDiskCounting() {
+		return diskCounting;
+	}
+	public void setDiskCounting(boolean diskCounting) {
+		this.diskCounting = diskCounting;
+	}
+	public void setDiskCounting(Boolean diskCounting) {
+		this.setDiskCounting(diskCounting.booleanValue());
+	}
+	
+	/**
+	 * @return int Memory in megabytes used to count k-mers if k-mers are counted using temporary files
+	 */
+	public int getDiskMemory() {
+		return diskMemory;
+	}
+	public void setDiskMemory(int diskMemory) {
+		if(diskMemory<64) throw new IllegalArgumentException("The memory to count k-mers using temporary files must be at least 64 megabytes. Value: "+diskMemory);
+		this.diskMemory = diskMemory;
+	}
+	public void setDiskMemory(String value) {
+		setDiskMemory((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public boolean isSingletonFilter() {
+		return singletonFilter;
+	}
+	public void setSingletonFilter(boolean singletonFilter) {
+		this.singletonFilter = singletonFilter;
+		kmersMap = null;
+	}
+	public void setSingletonFilter(Boolean singletonFilter) {
+		this.setSingletonFilter(singletonFilter.booleanValue());
+	}
+	
+	/**
+	 * @return double False positive rate of the filter of k-mers observed once
+	 */
+	public double getSingletonFilterFPRate() {
+		return singletonFilterFPRate;
+	}
+	public void setSingletonFilterFPRate(double singletonFilterFPRate) {
+		if(singletonFilterFPRate<=0 || singletonFilterFPRate>=1) throw new IllegalArgumentException("The false positive rate of the singleton filter must be a number between 0 and 1. Value: "+singletonFilterFPRate);
+		this.singletonFilterFPRate = singletonFilterFPRate;
+		kmersMap = null;
+	}
+	public void setSingletonFilterFPRate(String value) {
+		setSingletonFilterFPRate((double)OptionValuesDecoder.decode(value, Double.class));
+	}
+	
+	/**
+	 * @return int Expected number of distinct k-mers used to build the filter of k-mers observed once
+	 */
+	public int getSingletonFilterKmers() {
+		return singletonFilterKmers;
+	}
+	public void setSingletonFilterKmers(int singletonFilterKmers) {
+		if(singletonFilterKmers<=0) throw new IllegalArgumentException("The expected number of k-mers for the singleton filter must be a positive number. Value: "+singletonFilterKmers);
+		this.singletonFilterKmers = singletonFilterKmers;
+		kmersMap = null;
+	}
+	public void setSingletonFilterKmers(String value) {
+		setSingletonFilterKmers((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 	/**
 	 * @return the hashKmers
 	 */
@@ -203,6 +310,10 @@ public class KmersExtractor {
 		if (inputFormat == INPUT_FORMAT_FASTQ)  out.println("Fastq format");
 		if (inputFormat == INPUT_FORMAT_FASTA)  out.println("Fasta format");
 		if (ignoreLowComplexity) out.println("Ignore low complexity k-mers");
+		if (isCanonicalCounting()) out.println("Count canonical k-mers");
+		out.println("Number of threads: "+ numThreads);
+		if (diskCounting) out.println("Count k-mers using temporary files with "+diskMemory+" megabytes of memory");
+		else if (singletonFilter) out.println("Store k-mers from their second occurrence. Singleton filter false positive rate: "+singletonFilterFPRate+" expected k-mers: "+singletonFilterKmers);
 		log.info(os.toString());
 		
 	}
@@ -212,7 +323,7 @@ public class KmersExtractor {
 	 * @throws IOException If the file can not be read
 	 */
 	public void processFile(String filename) throws IOException {
-		initializeMap();
+		initializeCounting();
 		//Is fasta or fastq? and read it
 		if(inputFormat==INPUT_FORMAT_FASTA){
 			processFastaFile(filename);
@@ -221,10 +332,35 @@ public class KmersExtractor {
 		}
 	}
 	
+	/**
+	 * Initializes the temporary files if k-mers are counted using disk. Otherwise, initializes the k-mers map
+	 * @throws IOException If the temporary files can not be created
+	 */
+	private void initializeCounting() throws IOException {
+		if(!diskCounting) {
+			initializeMap();
+			return;
+		}
+		if(diskCounter!=null) return;
+		if(freeText || ignoreLowComplexity || kmerLength>31) throw new IllegalArgumentException("K-mers can be counted using temporary files only for DNA k-mers up to 31bp without filtering low complexity k-mers");
+		File tmpDirectory = null;
+		if(outputPrefix!=null) tmpDirectory = new File(outputPrefix).getAbsoluteFile().getParentFile();
+		diskCounter = new KmersDiskCounter(kmerLength, isCanonicalCounting(), 1024L*1024*diskMemory, tmpDirectory);
+		diskCounter.setLog(log);
+	}
+	
 	public void initializeMap() {
 		if(kmersMap==null) {
-			if(!isFreeText() && kmerLength<=15) kmersMap = new ShortArrayDNAKmersMapImpl((byte)kmerLength);
+			if(!isFreeText() && kmerLength<=15) kmersMap = new ShortArrayDNAKmersMapImpl((byte)kmerLength, canonical);
+			else if(!isFreeText() && kmerLength<=31) kmersMap = new LongCodeDNAKmersMapImpl((byte)kmerLength, canonical);
 			else kmersMap = new DefaultKmersMapImpl();
+			//The memory of the array map does not depend on the number of distinct k-mers
+			if(singletonFilter && !(kmersMap instanceof ShortArrayDNAKmersMapImpl)) {
+				KmersBloomFilter filter = new KmersBloomFilter(singletonFilterKmers, singletonFilterFPRate);
+				log.info("Created singleton filter with "+filter.getNumBits()+" bits and "+filter.getNumHashFunctions()+" hash functions");
+				if(kmersMap instanceof LongCodeDNAKmersMapImpl) ((LongCodeDNAKmersMapImpl)kmersMap).setSingletonFilter(filter);
+				else ((DefaultKmersMapImpl)kmersMap).setSingletonFilter(filter);
+			}
 		}
 	}
 	/**
@@ -233,14 +369,9 @@ public class KmersExtractor {
 	 * @throws IOException If the file can not be read
 	 */
     public void processFastqFile(String filename) throws IOException {
-    	initializeMap();
+    	initializeCounting();
 		try (FastqFileReader reader = new FastqFileReader(filename)) {
-			Iterator<RawRead> it = reader.iterator();
-			for (int i=0;it.hasNext();i++) {
-				RawRead read = it.next();
-				countSequenceKmers (read);
-				if((i+1)%100==0) log.info("Processed "+(i+1)+" sequences");
-			}
+			countSequencesKmers(reader.iterator(), false);
 		}
 	 }
     
@@ -250,14 +381,9 @@ public class KmersExtractor {
      * @throws IOException if there is an error reading the stream
      */
 	public void processFastqFile(InputStream fis) throws IOException {
-		initializeMap();
+		initializeCounting();
 		try (FastqFileReader reader = new FastqFileReader(fis)) {
-			Iterator<RawRead> it = reader.iterator();
-			for (int i=0;it.hasNext();i++) {
-				RawRead read = it.next();
-				countSequenceKmers (read);
-				if((i+1)%100==0) log.info("Processed "+(i+1)+" sequences");
-			}
+			countSequencesKmers(reader.iterator(), false);
 		}
 	}
 	
@@ -267,56 +393,160 @@ public class KmersExtractor {
 	 * @throws IOException If the file can not be read
 	 */
     private void processFastaFile(String filename) throws IOException {
-    	initializeMap();
+    	initializeCounting();
     	try (FastaFileReader reader = new FastaFileReader(filename)) {
-			Iterator<QualifiedSequence> it = reader.iterator();
-			while(it.hasNext()) {
-				QualifiedSequence seq = it.next();
-				log.info("Processing sequence "+seq.getName());
-				countSequenceKmers(seq);
-				log.info("Processed sequence "+seq.getName()+" total k-mers: "+kmersMap.size());
-			}
+			countSequencesKmers(reader.iterator(), true);
     	}
 	}
     public void processQualifiedSequences(List<QualifiedSequence> sequences) {
-    	initializeMap();
-    	int i = 0;
-    	for(QualifiedSequence qseq:sequences) {
-    		countSequenceKmers(qseq);
-    		i++;
-    		if(i%100==0) log.info("Processed "+i+" sequences");
+    	try {
+    		initializeCounting();
+    	} catch (IOException e) {
+    		throw new RuntimeException(e);
+    	}
+    	countSequencesKmers(sequences.iterator(), false);
+    }
+    
+    private void countSequencesKmers(Iterator<? extends QualifiedSequence> it, boolean logEachSequence) {
+    	if(numThreads>1) {
+    		countSequencesKmersParallel(it);
+    		return;
     	}
+    	for (int i=0;it.hasNext();i++) {
+			QualifiedSequence seq = it.next();
+			if(logEachSequence) log.info("Processing sequence "+seq.getName());
+			countSequenceKmers(seq);
+			if(logEachSequence) log.info("Processed sequence "+seq.getName()+" total k-mers: "+getNumKmers());
+			else if((i+1)%100==0) log.info("Processed "+(i+1)+" sequences");
+		}
     }
+    
+    /**
+     * Counts the k-mers of the given sequences with multiple threads. The calling thread groups the sequences
+     * in batches and the threads of the pool count the k-mers of complete batches, updating the shared map.
+     * Sequences longer than the batch length are split in segments overlapping by k-1 bp, so that each
+     * k-mer is counted once and long chromosomes are also processed in parallel
+     * @param it Iterator over the sequences to process
+     */
+    private void countSequencesKmersParallel(Iterator<? extends QualifiedSequence> it) {
+    	ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    	int maxBatchesInFlight = 2*numThreads;
+    	Semaphore batchesInFlight = new Semaphore(maxBatchesInFlight);
+    	AtomicReference<RuntimeException> error = new AtomicReference<>();
+    	List<String> batch = new ArrayList<>();
+    	int batchLength = 0;
+    	int numSequences = 0;
+    	try {
+    		while(it.hasNext() && error.get()==null) {
+    			String sequence = it.next().getCharacters().toString();
+    			numSequences++;
+    			int n = sequence.length();
+    			for(int start=0;start<n;start+=BATCH_LENGTH) {
+    				int end = Math.min(n, start+BATCH_LENGTH+kmerLength-1);
+    				if(start>0 && end-start<kmerLength) break;
+    				batch.add(sequence.substring(start, end));
+    				batchLength+=end-start;
+    				if(batchLength>=BATCH_LENGTH) {
+    					queueBatch(pool, batch, batchesInFlight, error);
+    					batch = new ArrayList<>();
+    					batchLength = 0;
+    				}
+    			}
+    			if(numSequences%100000==0) log.info("Processed "+numSequences+" sequences");
+    		}
+    		if(batch.size()>0) queueBatch(pool, batch, batchesInFlight, error);
+    		//Wait for all batches to finish
+    		batchesInFlight.acquire(maxBatchesInFlight);
+    	} catch (InterruptedException e) {
+    		throw new RuntimeException(e);
+    	} finally {
+    		pool.shutdown();
+    	}
+    	if(error.get()!=null) throw error.get();
+    	log.info("Processed "+numSequences+" sequences. Total k-mers: "+getNumKmers());
+    }
+    /**
+     * @return long Number of distinct k-mers in the map or total k-mers saved in temporary files if k-mers are counted using disk
+     */
+    private long getNumKmers() {
+    	if(diskCounter!=null) return diskCounter.getTotalKmers();
+    	return kmersMap.size();
+    }
+    private void queueBatch(ThreadPoolExecutor pool, List<String> batch, Semaphore batchesInFlight, AtomicReference<RuntimeException> error) throws InterruptedException {
+    	batchesInFlight.acquire();
+    	pool.execute(()-> {
+    		try {
+    			for(String sequence:batch) countStrandsKmers(sequence);
+    		} catch (RuntimeException e) {
+    			error.compareAndSet(null, e);
+    		} finally {
+    			batchesInFlight.release();
+    		}
+    	});
+    }
+    
+	/**
+	 * Counts the k-mers of the given sequence. Sequences longer than the batch length are processed in segments
+	 * overlapping by k-1 bp to keep bounded the memory used to extract the k-mers of long chromosomes
+	 * @param qseq Sequence to process
+	 */
 	public void countSequenceKmers(QualifiedSequence qseq) {
-		//TODO: Process in chuncks if too big
-		//Forward		
 		CharSequence sequence = qseq.getCharacters();
+		int n = sequence.length();
+		if(n<=BATCH_LENGTH+kmerLength-1) {
+			countStrandsKmers(sequence);
+			return;
+		}
+		for(int start=0;start<n;start+=BATCH_LENGTH) {
+			int end = Math.min(n, start+BATCH_LENGTH+kmerLength-1);
+			if(end-start<kmerLength) break;
+			countStrandsKmers(sequence.subSequence(start, end));
+		}
+	}
+	private void countStrandsKmers(CharSequence sequence) {
+		//Forward
 		countSequenceKmers(sequence.toString());
-		//Reverse complement
-		if(!onlyForwardStrand){
+		//Reverse complement. Canonical k-mers already include the occurrences of both strands
+		if(!onlyForwardStrand && !isCanonicalCounting()){
 			CharSequence reverseSequence = DNAMaskedSequence.getReverseComplement(sequence);
 			countSequenceKmers(reverseSequence.toString());
 		}
 	}
 	/**
-	 * Updates the k-mers table using the information of the given sequence
+	 * Updates the k-mers table using the information of the given sequence.
+	 * This method can be called by multiple threads at the same time
 	 * @param seq CharSequence object to extract the k-mers
 	 */
 	public void countSequenceKmers(String seq)
 	{
-		if(kmersMap==null) initializeMap();
+		if(kmersMap==null && diskCounter==null) initializeMap();
 		int seqLength = seq.length();
 		
 		if(seqLength < kmerLength) {
 			log.warning("Sequence "+seq+" smaller than k-mer length");
 			return;
 		}
-		if(!freeText && !ignoreLowComplexity && kmerLength<=15) {
+		if(diskCounter!=null) {
+			diskCounter.addSequence(seq);
+			return;
+		}
+		if(!freeText && !ignoreLowComplexity && kmerLength<=31) {
 			//Faster alternative
-			Map<Integer,Long> codes = extractDNAKmerCodes(seq, kmerLength, 0, seq.length());
-			for(long code:codes.values()) {
+			if(isCanonicalCounting()) {
+				countCanonicalKmers(seq);
+				return;
+			}
+			long [] codes = extractDNAKmerCodesArray(seq, kmerLength, 0, seq.length());
+			if(kmersMap instanceof ShortArrayDNAKmersMapImpl) {
 				ShortArrayDNAKmersMapImpl skmersMap = (ShortArrayDNAKmersMapImpl) kmersMap;
-				skmersMap.addCodeOccurance(code);
+				for(long code:codes) {
+					if(code>=0) skmersMap.addCodeOccurance(code);
+				}
+			} else {
+				LongCodeDNAKmersMapImpl lkmersMap = (LongCodeDNAKmersMapImpl) kmersMap;
+				for(long code:codes) {
+					if(code>=0) lkmersMap.addCodeOccurance(code);
+				}
 			}
 			return;
 		}
@@ -324,12 +554,40 @@ public class KmersExtractor {
 		synchronized (kmersMap) {
 			for(String kmer:kmers) {
 				if(kmer==null) continue;
-				if(kmer.length()<=15) kmersMap.addOcurrance(kmer);
+				if(kmer.length()<=15 || kmersMap instanceof LongCodeDNAKmersMapImpl) kmersMap.addOcurrance(kmer);
 				else kmersMap.addOcurrance(pack(kmer));
 			}
 		}
 	}
 	
+	/**
+	 * @return boolean true if k-mers are counted as canonical k-mers. Canonical counting only applies to DNA k-mers up to 31bp
+	 */
+	private boolean isCanonicalCounting() {
+		return canonical && !freeText && kmerLength<=31;
+	}
+	private void countCanonicalKmers(String seq) {
+		long [] codes = extractCanonicalDNAKmerCodesArray(seq, kmerLength, 0, seq.length());
+		//Only k-mers of even length can be palindromes
+		boolean checkPalindromes = kmerLength%2==0;
+		if(kmersMap instanceof ShortArrayDNAKmersMapImpl) {
+			ShortArrayDNAKmersMapImpl skmersMap = (ShortArrayDNAKmersMapImpl) kmersMap;
+			for(long code:codes) {
+				if(code<0) continue;
+				skmersMap.addCodeOccurance(code);
+				//Palindromes are counted in both strands
+				if(checkPalindromes && getReverseComplementCode(code, kmerLength)==code) skmersMap.addCodeOccurance(code);
+			}
+		} else {
+			LongCodeDNAKmersMapImpl lkmersMap = (LongCodeDNAKmersMapImpl) kmersMap;
+			for(long code:codes) {
+				if(code<0) continue;
+				lkmersMap.addCodeOccurance(code);
+				if(checkPalindromes && getReverseComplementCode(code, kmerLength)==code) lkmersMap.addCodeOccurance(code);
+			}
+		}
+	}
+	
 	/**
 	 * Extracts the k-mers present in the given sequence
 	 * @param source Sequence to process. The sequence is processed as is (no uppercase or other transformation).
@@ -419,57 +677,119 @@ public class KmersExtractor {
 	 * @return Map<Integer,Long> with kmer codes indexed by start position
 	 */
 	public static Map<Integer,Long> extractDNAKmerCodes (CharSequence source, int kmerLength, int start, int end) {
-		validateLimits(source, start, end);
-		if(kmerLength>31) throw new IllegalArgumentException("This method only works with kmer lengths up to 31");
-		int n = source.length();
+		long [] codes = extractDNAKmerCodesArray(source, kmerLength, start, end);
 		Map<Integer,Long> kmerCodesMap = new LinkedHashMap<Integer, Long>();
-		if (n < kmerLength) return kmerCodesMap;
-		int lastKmerStart = end - kmerLength;
-		long lastCode = -1;
-		for(int i = start; i <=lastKmerStart; i++) {
-			long code;
-			if(lastCode==-1) {
-				CharSequence kmer = source.subSequence(i, i+kmerLength);
-				if (!DNASequence.isDNA(kmer)) continue;
-				code = AbstractLimitedSequence.getHash(kmer, 0, kmerLength, EMPTYDNASEQ);
-			} else {
-				char lastCharNextKmer = source.charAt(i+kmerLength-1);
-				if(!DNASequence.isInAlphabeth(lastCharNextKmer)) {
-					lastCode = -1;
-					//Ignore all kmers spanning the non DNA character
-					i+=kmerLength-1;
-					continue;
-				}
-				code = AbstractLimitedSequence.getNextHash(lastCode,kmerLength,lastCharNextKmer,EMPTYDNASEQ);
-			}
-			kmerCodesMap.put(i, code);
-			lastCode = code;
+		for(int i=0;i<codes.length;i++) {
+			if(codes[i]>=0) kmerCodesMap.put(start+i, codes[i]);
 		}
 		return kmerCodesMap;
 	}
-	public static Map<Long, Integer> extractLocallyUniqueKmerCodes(CharSequence sequence, int kmerLength, int start, int end) {
-		Map<Integer,Long> rawCodes = KmersExtractor.extractDNAKmerCodes(sequence, kmerLength, start, end);
-		Map<Long, Integer> answer = new HashMap<Long, Integer>();
-		Map<Long, Integer> reverseMap = new HashMap<Long,Integer>();
-		Set<Integer> multiple = new HashSet<>();
-		for(int i=start;i<end;i++) {
-			Long code = rawCodes.get(i);
-			if(code == null) {
-				multiple.add(i);
+	/**
+	 * Extracts the codes representing DNA kmers from the given sequence. The code of each k-mer is calculated
+	 * from the code of the previous k-mer shifting two bits and adding the code of the new base
+	 * @param source Sequence to extract kmers. Usually a String but it works with StringBuilder or other types of sequences
+	 * @param kmerLength must be at most 31 to allow unique encoding of DNA kmers
+	 * @param start of the source sequence
+	 * @param end of the source sequence
+	 * @return long [] Array of length end-start with the code of the k-mer starting at each position from start.
+	 * The code is -1 if the k-mer exceeds the end or if it contains characters that are not DNA bases
+	 */
+	public static long [] extractDNAKmerCodesArray (CharSequence source, int kmerLength, int start, int end) {
+		validateLimits(source, start, end);
+		if(kmerLength>31) throw new IllegalArgumentException("This method only works with kmer lengths up to 31");
+		long [] codes = new long [end-start];
+		Arrays.fill(codes, -1);
+		long mask = (1L<<(2*kmerLength))-1;
+		long code = 0;
+		int validBases = 0;
+		for(int i=0;i<codes.length;i++) {
+			int baseCode = getBaseCode(source.charAt(start+i));
+			if(baseCode<0) {
+				validBases = 0;
+				code = 0;
 				continue;
 			}
-			Integer previousStart = reverseMap.get(code);
-			if(previousStart!=null) {
-				multiple.add(i);
+			code = ((code<<2) | baseCode) & mask;
+			validBases++;
+			if(validBases>=kmerLength) codes[i-kmerLength+1] = code;
+		}
+		return codes;
+	}
+	/**
+	 * Extracts the codes of the canonical DNA k-mers of the given sequence. The canonical k-mer is the smallest
+	 * between the k-mer and its reverse complement. Codes of both strands are calculated at the same time,
+	 * shifting two bits of the codes of the previous k-mer and its reverse complement
+	 * @param source Sequence to extract kmers. Usually a String but it works with StringBuilder or other types of sequences
+	 * @param kmerLength must be at most 31 to allow unique encoding of DNA kmers
+	 * @param start of the source sequence
+	 * @param end of the source sequence
+	 * @return long [] Array of length end-start with the code of the canonical k-mer starting at each position from start.
+	 * The code is -1 if the k-mer exceeds the end or if it contains characters that are not DNA bases
+	 */
+	public static long [] extractCanonicalDNAKmerCodesArray (CharSequence source, int kmerLength, int start, int end) {
+		validateLimits(source, start, end);
+		if(kmerLength>31) throw new IllegalArgumentException("This method only works with kmer lengths up to 31");
+		long [] codes = new long [end-start];
+		Arrays.fill(codes, -1);
+		long mask = (1L<<(2*kmerLength))-1;
+		int shiftReverse = 2*(kmerLength-1);
+		long code = 0;
+		long reverseCode = 0;
+		int validBases = 0;
+		for(int i=0;i<codes.length;i++) {
+			int baseCode = getBaseCode(source.charAt(start+i));
+			if(baseCode<0) {
+				validBases = 0;
+				code = 0;
+				reverseCode = 0;
 				continue;
 			}
-			reverseMap.put(code,i);
+			code = ((code<<2) | baseCode) & mask;
+			reverseCode = (reverseCode>>>2) | (((long)(3-baseCode))<<shiftReverse);
+			validBases++;
+			if(validBases>=kmerLength) codes[i-kmerLength+1] = Math.min(code, reverseCode);
 		}
-		for(int i=start;i<end;i++) {
-			Long code = rawCodes.get(i);
-			if(code!=null && !multiple.contains(i)) {
-				answer.put(code,i);
-			}
+		return codes;
+	}
+	/**
+	 * Calculates the code of the reverse complement of the DNA k-mer with the given code
+	 * @param code of a DNA k-mer
+	 * @param kmerLength Length of the k-mer. It must be at most 31
+	 * @return long code of the reverse complement of the k-mer
+	 */
+	public static long getReverseComplementCode (long code, int kmerLength) {
+		//The complement of each base is three minus its code
+		long answer = ~code;
+		//Reverse the order of the pairs of bits
+		answer = ((answer>>>2) & 0x3333333333333333L) | ((answer & 0x3333333333333333L)<<2);
+		answer = ((answer>>>4) & 0x0F0F0F0F0F0F0F0FL) | ((answer & 0x0F0F0F0F0F0F0F0FL)<<4);
+		answer = Long.reverseBytes(answer);
+		return answer>>>(64-2*kmerLength);
+	}
+	/**
+	 * Calculates the code of the canonical k-mer of the DNA k-mer with the given code
+	 * @param code of a DNA k-mer
+	 * @param kmerLength Length of the k-mer. It must be at most 31
+	 * @return long code of the smallest between the k-mer and its reverse complement
+	 */
+	public static long getCanonicalCode (long code, int kmerLength) {
+		return Math.min(code, getReverseComplementCode(code, kmerLength));
+	}
+	static int getBaseCode(char base) {
+		switch (base) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+		}
+	}
+	public static Map<Long, Integer> extractLocallyUniqueKmerCodes(CharSequence sequence, int kmerLength, int start, int end) {
+		long [] rawCodes = KmersExtractor.extractDNAKmerCodesArray(sequence, kmerLength, start, end);
+		Map<Long, Integer> answer = new HashMap<Long, Integer>();
+		for(int i=0;i<rawCodes.length;i++) {
+			//Only the first occurrence of each code is kept
+			if(rawCodes[i]>=0) answer.putIfAbsent(rawCodes[i], start+i);
 		}
 		return answer;
 	}
@@ -501,12 +821,13 @@ public class KmersExtractor {
 		return false;
 	}
 	public void saveResults () throws IOException {
+		if(diskCounter!=null) {
+			saveDiskCounts();
+			return;
+		}
 		log.info("Calculating distribution of abundances from "+kmersMap.size()+" k-mers");
 		Distribution kmerSpectrum = kmersMap.calculateAbundancesDistribution();
-		try (PrintStream out=new PrintStream(outputPrefix+"_kmers_distribution.txt")) {
-			out.println("Kmer_frequency\tNumber_of_distinct_kmers");
-			kmerSpectrum.printDistributionInt(out);
-		}
+		saveDistribution(kmerSpectrum);
 		kmersMap.filterKmers(minKmerCount);
 		log.info("Saving "+kmersMap.size()+" filtered k-mers with minimum count "+minKmerCount);
 		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(outputPrefix+"_kmers.txt.gz"));
@@ -514,5 +835,27 @@ public class KmersExtractor {
 			kmersMap.save(out);
 		}
 		
-	}	
+	}
+	/**
+	 * Counts the k-mers saved in temporary files and saves the counts sorted by k-mer code in a binary file
+	 * @throws IOException If the temporary files can not be read or the output files can not be written
+	 */
+	private void saveDiskCounts() throws IOException {
+		String filename = outputPrefix+"_kmers.bin";
+		Distribution kmerSpectrum;
+		try {
+			kmerSpectrum = diskCounter.saveCounts(filename, minKmerCount, numThreads);
+		} finally {
+			diskCounter.close();
+			diskCounter = null;
+		}
+		saveDistribution(kmerSpectrum);
+		log.info("Saved k-mers with minimum count "+minKmerCount+" to "+filename);
+	}
+	private void saveDistribution(Distribution kmerSpectrum) throws IOException {
+		try (PrintStream out=new PrintStream(outputPrefix+"_kmers_distribution.txt")) {
+			out.println("Kmer_frequency\tNumber_of_distinct_kmers");
+			kmerSpectrum.printDistributionInt(out);
+		}
+	}
 }
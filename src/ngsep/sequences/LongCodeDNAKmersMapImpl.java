@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ngsep.math.Distribution;
+
+/**
+ * K-mers map for DNA k-mers of length up to 31. Each k-mer is stored as its 2-bit code in a long key of an
+ * open addressing hash table with linear probing. Counts are stored in a parallel array of shorts.
+ * The table is split in partitions selected by the hash of each code. Each partition is locked independently
+ * and grows on its own, rehashing only primitive keys. Hence, occurrences can be added by multiple threads at the same time.
+ * In canonical maps, counts are stored only for the canonical k-mers and include the occurrences of both strands.
+ * Queries for any k-mer and the distribution of abundances give the same results as counting both strands separately
+ */
+public class LongCodeDNAKmersMapImpl implements KmersMap {
+
+	private static final int PARTITION_BITS = 6;
+	private static final int INITIAL_PARTITION_CAPACITY = 1024;
+	private static final double MAX_LOAD_FACTOR = 0.75;
+	private static final long EMPTY = -1;
+
+	private byte kmerLength;
+	private Partition [] partitions = new Partition[1<<PARTITION_BITS];
+	private boolean canonical;
+	private KmersBloomFilter singletonFilter = null;
+
+	public LongCodeDNAKmersMapImpl(byte kmerLength) {
+		this(kmerLength, false);
+	}
+	/**
+	 * Creates a new map
+	 * @param kmerLength Length of the k-mers. It must be at most 31
+	 * @param canonical Tells if the map stores only canonical k-mers
+	 */
+	public LongCodeDNAKmersMapImpl(byte kmerLength, boolean canonical) {
+		if(kmerLength<1 || kmerLength>31) throw new IllegalArgumentException("The kmer length must be a number between 1 and 31. Value: "+kmerLength);
+		this.kmerLength = kmerLength;
+		this.canonical = canonical;
+		for(int i=0;i<partitions.length;i++) partitions[i] = new Partition(INITIAL_PARTITION_CAPACITY);
+	}
+
+	public byte getKmerLength() {
+		return kmerLength;
+	}
+	
+	public boolean isCanonical() {
+		return canonical;
+	}
+	
+	public KmersBloomFilter getSingletonFilter() {
+		return singletonFilter;
+	}
+	/**
+	 * Sets a filter to store k-mers only from their second occurrence. Occurrences of k-mers not added
+	 * to the filter before are not stored. K-mers are stored with count two when they are found in the filter
+	 * @param singletonFilter Filter of k-mers observed at least once. If null, every k-mer is stored
+	 */
+	public void setSingletonFilter(KmersBloomFilter singletonFilter) {
+		this.singletonFilter = singletonFilter;
+	}
+
+	/**
+	 * @return int Number of k-mers stored in the map. In canonical maps, reverse complements are not included
+	 */
+	@Override
+	public int size() {
+		int size = 0;
+		for(Partition p:partitions) size+=p.size;
+		return size;
+	}
+
+	@Override
+	public int getCount(CharSequence kmer) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		long code;
+		try {
+			code = AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), DNASequence.EMPTY_DNA_SEQUENCE);
+		} catch (IllegalArgumentException e) {
+			//Non DNA k-mers are never stored
+			return 0;
+		}
+		return getCount(code);
+	}
+
+	public int getCount(long kmerCode) {
+		if(kmerCode<0) return 0;
+		if(canonical) kmerCode = KmersExtractor.getCanonicalCode(kmerCode, kmerLength);
+		long hash = mix(kmerCode);
+		Partition p = getPartition(hash);
+		synchronized (p) {
+			int slot = p.findSlot(kmerCode, hash);
+			if(p.keys[slot]==EMPTY) return 0;
+			return p.counts[slot];
+		}
+	}
+
+	@Override
+	public void setCount(CharSequence kmer, int count) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		long code = AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), DNASequence.EMPTY_DNA_SEQUENCE);
+		if(canonical) code = KmersExtractor.getCanonicalCode(code, kmerLength);
+		if(count>Short.MAX_VALUE) count = Short.MAX_VALUE;
+		long hash = mix(code);
+		Partition p = getPartition(hash);
+		synchronized (p) {
+			if(count<=0) {
+				p.remove(code, hash);
+				return;
+			}
+			int slot = p.insert(code, hash);
+			p.counts[slot] = (short)count;
+		}
+	}
+
+	@Override
+	public void addOcurrance(CharSequence kmer) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		long code = AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), DNASequence.EMPTY_DNA_SEQUENCE);
+		if(canonical) {
+			long reverseCode = KmersExtractor.getReverseComplementCode(code, kmerLength);
+			//Occurrences of palindromic k-mers are counted in both strands
+			if(reverseCode==code) addCodeOccurance(code);
+			code = Math.min(code, reverseCode);
+		}
+		addCodeOccurance(code);
+	}
+
+	/**
+	 * Adds one occurrence of the k-mer with the given code. This method can be called by multiple threads at the same time
+	 * @param code of the k-mer. In canonical maps, it must be the code of a canonical k-mer
+	 */
+	public void addCodeOccurance(long code) {
+		long hash = mix(code);
+		Partition p = getPartition(hash);
+		synchronized (p) {
+			int slot = p.findSlot(code, hash);
+			if(p.keys[slot]!=EMPTY) {
+				if(p.counts[slot]<Short.MAX_VALUE) p.counts[slot]++;
+				return;
+			}
+			int firstCount = 1;
+			if(singletonFilter!=null) {
+				//The filter is checked within the lock of the partition. Otherwise, two threads adding a new k-mer
+				//could find it in the filter before any of them stores it, and the k-mer would be lost
+				if(!singletonFilter.add(code)) return;
+				//The first occurrence was only added to the filter
+				firstCount = 2;
+			}
+			slot = p.insert(code, hash);
+			p.counts[slot] = (short)firstCount;
+		}
+	}
+
+	@Override
+	public void filterKmers(int minAbundance) {
+		for(Partition p:partitions) {
+			synchronized (p) {
+				p.filter(minAbundance);
+			}
+		}
+	}
+
+	@Override
+	public Distribution calculateAbundancesDistribution() {
+		Distribution dist = new Distribution(1, Short.MAX_VALUE, 1);
+		for(Partition p:partitions) {
+			for(int i=0;i<p.keys.length;i++) {
+				if(p.keys[i]==EMPTY) continue;
+				if(canonical && KmersExtractor.getReverseComplementCode(p.keys[i], kmerLength)!=p.keys[i]) dist.processDatapoint(2, p.counts[i]);
+				else dist.processDatapoint(p.counts[i]);
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * Saves the k-mers stored in this map. In canonical maps, the reverse complement of each canonical k-mer
+	 * is also saved with the same count. Hence, the file can be loaded in maps that are not canonical
+	 * @param out Stream to save the k-mers
+	 */
+	@Override
+	public void save(PrintStream out) {
+		for(Partition p:partitions) {
+			for(int i=0;i<p.keys.length;i++) {
+				if(p.keys[i]==EMPTY) continue;
+				char [] sequence = AbstractLimitedSequence.getSequence(p.keys[i], kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
+				out.println(new String(sequence)+"\t"+p.counts[i]);
+				if(!canonical) continue;
+				long reverseCode = KmersExtractor.getReverseComplementCode(p.keys[i], kmerLength);
+				if(reverseCode==p.keys[i]) continue;
+				sequence = AbstractLimitedSequence.getSequence(reverseCode, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
+				out.println(new String(sequence)+"\t"+p.counts[i]);
+			}
+		}
+	}
+
+	@Override
+	public List<CharSequence> getKmersWithCount(int count) {
+		List<CharSequence> answer = new ArrayList<CharSequence>();
+		for(Partition p:partitions) {
+			for(int i=0;i<p.keys.length;i++) {
+				if(p.keys[i]!=EMPTY && p.counts[i]==count) {
+					char [] sequence = AbstractLimitedSequence.getSequence(p.keys[i], kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
+					answer.add(new DNAShortKmer(new String(sequence)));
+					if(!canonical) continue;
+					long reverseCode = KmersExtractor.getReverseComplementCode(p.keys[i], kmerLength);
+					if(reverseCode==p.keys[i]) continue;
+					sequence = AbstractLimitedSequence.getSequence(reverseCode, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
+					answer.add(new DNAShortKmer(new String(sequence)));
+				}
+			}
+		}
+		return answer;
+	}
+
+	private Partition getPartition(long hash) {
+		return partitions[(int)(hash>>>(64-PARTITION_BITS))];
+	}
+
+	/**
+	 * Mixes the bits of the given code (finalizer of the 64 bits murmur hash)
+	 * @param code to mix
+	 * @return long hash code
+	 */
+	static long mix(long code) {
+		long h = code;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static class Partition {
+		private long [] keys;
+		private short [] counts;
+		private int size = 0;
+
+		public Partition(int capacity) {
+			keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			counts = new short[capacity];
+		}
+
+		/**
+		 * Finds the slot of the given code
+		 * @return int Slot having the code or the empty slot where the code should be inserted
+		 */
+		private int findSlot(long code, long hash) {
+			int mask = keys.length-1;
+			int slot = (int)hash & mask;
+			while(keys[slot]!=EMPTY && keys[slot]!=code) slot = (slot+1) & mask;
+			return slot;
+		}
+
+		/**
+		 * Inserts the given code with count zero if it is not already present
+		 * @return int Slot of the code
+		 */
+		private int insert(long code, long hash) {
+			int slot = findSlot(code, hash);
+			if(keys[slot]==EMPTY) {
+				if(size+1>MAX_LOAD_FACTOR*keys.length) {
+					resize(2*keys.length);
+					slot = findSlot(code, hash);
+				}
+				keys[slot] = code;
+				size++;
+			}
+			return slot;
+		}
+
+		/**
+		 * Removes the given code moving back the following codes of the probing sequence
+		 */
+		private void remove(long code, long hash) {
+			int slot = findSlot(code, hash);
+			if(keys[slot]==EMPTY) return;
+			int mask = keys.length-1;
+			int next = slot;
+			while(true) {
+				next = (next+1) & mask;
+				if(keys[next]==EMPTY) break;
+				int home = (int)mix(keys[next]) & mask;
+				//The code can move back if its home slot is not cyclically between the free slot and its current slot
+				boolean between = (slot<=next)?(slot<home && home<=next):(slot<home || home<=next);
+				if(!between) {
+					keys[slot] = keys[next];
+					counts[slot] = counts[next];
+					slot = next;
+				}
+			}
+			keys[slot] = EMPTY;
+			counts[slot] = 0;
+			size--;
+		}
+
+		private void resize(int capacity) {
+			long [] oldKeys = keys;
+			short [] oldCounts = counts;
+			keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			counts = new short[capacity];
+			for(int i=0;i<oldKeys.length;i++) {
+				if(oldKeys[i]==EMPTY) continue;
+				int slot = findSlot(oldKeys[i], mix(oldKeys[i]));
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+
+		private void filter(int minAbundance) {
+			int retained = 0;
+			for(int i=0;i<keys.length;i++) {
+				if(keys[i]!=EMPTY && counts[i]<minAbundance) {
+					keys[i] = EMPTY;
+					counts[i] = 0;
+				} else if (keys[i]!=EMPTY) retained++;
+			}
+			size = retained;
+			//Rebuild the table to restore the probing sequences, releasing memory if possible
+			int capacity = INITIAL_PARTITION_CAPACITY;
+			while(size>MAX_LOAD_FACTOR*capacity) capacity*=2;
+			resize(capacity);
+		}
+	}
+}
@@ -1,44 +1,86 @@
 package ngsep.sequences;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import ngsep.math.Distribution;
 
 public class MinimizersTable {
 	
-	private static final long [] EMPTY_LONG_ARRAY = new long[0];
+	private static final byte [] BINARY_FORMAT_MAGIC = "NGSEPMZT".getBytes(StandardCharsets.US_ASCII);
+	private static final int BINARY_FORMAT_VERSION = 1;
+	// Arrays of loaded tables are mapped in segments of 2^SEGMENT_BITS entries to support files larger than 2GB
+	private static final int SEGMENT_BITS = 27;
+	private static final long SEGMENT_MASK = (1L<<SEGMENT_BITS)-1;
+	// Maximum number of bits of the slots of the map of minimizers of each stripe
+	private static final int MAX_MAP_BITS = 30;
+	// Number of partitions of the minimizers that can be modified at the same time
+	private static final int NUM_STRIPES = 64;
+	/**
+	 * Default length of the segments of long sequences processed at the same time
+	 */
+	public static final int DEF_SEQUENCE_SEGMENT_LENGTH = 10000000;
+	private static final int TIMEOUT_SECONDS = 30;
+	// Hash code of positions that can not be selected as minimizers
+	private static final long NO_HASH = Long.MIN_VALUE;
 	
 	private Logger log = Logger.getLogger(MinimizersTable.class.getName());
 	
 	private int kmerLength;
 	private int windowLength;
 	private boolean keepSingletons = false;
+	private int sequenceSegmentLength = DEF_SEQUENCE_SEGMENT_LENGTH;
 	
 	
 	private KmersMapAnalyzer kmersAnalyzer;
 	private KmersMap kmersMap;
-	private Map<Long,Integer> explicitKmerHashCodes = new HashMap<Long, Integer>();
+	//Open addressing map from codes of k-mers to explicit hash codes. Empty slots have negative keys
+	private long [] explicitKmerCodes;
+	private int [] explicitKmerHashCodes;
+	private int numExplicitKmerHashCodes = 0;
 	private int mode=1;
 	private int kmerDistModeLocalSD=5;
 	
 	//Structures to implement the minimizers hash table
-	//Map with minimizer as key and row of the sequencesByMinimizerTable as value
-	private Map<Integer,Integer> matrixRowMap;
-	//Table with encoded entries. Each row corresponds to a single minimizer
-	private long [][] sequencesByMinimizerTable;
-	//Actual lengths of the lists within the table
-	private short [] sequencesByMinimizerTableColumnLengths;
-	//Count of different sequences reporting each minimizer
-	private short [] minimizerCountDifferentSequences;
+	//Minimizers are partitioned by hash code in stripes that can be modified at the same time by different threads
+	private Stripe [] stripes;
+	//False if entries were added since the last time that the entries were sorted by row
+	private volatile boolean built = true;
 	
 	private Map<Integer,Integer> sequenceLengths = new HashMap<Integer, Integer>();
-	private long totalEntries = 0;
 	
+	//Structures of tables loaded from binary files. Rows are sorted by minimizer
+	//Number of minimizers of the loaded table
+	private int loadedSize = 0;
+	//Minimizer of each row
+	private ByteBuffer [] loadedMinimizers;
+	//Count of different sequences reporting the minimizer of each row
+	private ByteBuffer [] loadedCountDifferentSequences;
+	//Start of each row within the hits array. It has one additional entry with the total number of hits
+	private ByteBuffer [] loadedRowStarts;
+	//Encoded entries of all rows
+	private ByteBuffer [] loadedHits;
+	private long loadedTotalEntries = 0;
 	
 
 	public MinimizersTable(int kmerLength, int windowLength) {
@@ -56,34 +98,113 @@ public class MinimizersTable {
 		//TODO: Implement good indexing strategy for reference codes
 		if(!kmersAnalyzer.isAssembly()) {
 			long [] codesUniqueZone = kmersAnalyzer.extractKmerCodesInLocalSDZone();
-			for(int i=0;i<codesUniqueZone.length && codesUniqueZone[i]>=0;i++) {
-				explicitKmerHashCodes.put(codesUniqueZone[i],i);
-			}
-			System.out.println("Indexed "+explicitKmerHashCodes.size()+" kmer unique codes.");
+			indexExplicitKmerHashCodes(codesUniqueZone);
+			System.out.println("Indexed "+numExplicitKmerHashCodes+" kmer unique codes.");
 		}
 		
 		//Create the structures with appropriate initial capacity
 		int capacity = kmersMap.size()/10;
 		initializeTable(capacity);
+	}
+	private MinimizersTable() {
+		
 	}
 	public void initializeTable(int capacity) {
-		matrixRowMap = new HashMap<Integer, Integer>(capacity);
-		sequencesByMinimizerTable = new long [capacity][1];
-		for(int i=0;i<sequencesByMinimizerTable.length;i++) Arrays.fill(sequencesByMinimizerTable[i], 0);
-		sequencesByMinimizerTableColumnLengths = new short [capacity];
-		Arrays.fill(sequencesByMinimizerTableColumnLengths, (short)0);
-		minimizerCountDifferentSequences = new short [capacity];
-		Arrays.fill(minimizerCountDifferentSequences, (short)0);
+		stripes = new Stripe[NUM_STRIPES];
+		for(int i=0;i<NUM_STRIPES;i++) stripes[i] = new Stripe(capacity/NUM_STRIPES);
+		built = true;
+	}
+	
+	/**
+	 * Assigns to each given code its index as hash code
+	 * @param codes of k-mers. Codes after the first negative code are ignored
+	 */
+	private void indexExplicitKmerHashCodes(long [] codes) {
+		int n = 0;
+		while(n<codes.length && codes[n]>=0) n++;
+		int bits = 4;
+		while(bits<MAX_MAP_BITS && (1<<bits)<2*n) bits++;
+		explicitKmerCodes = new long [1<<bits];
+		explicitKmerHashCodes = new int [1<<bits];
+		Arrays.fill(explicitKmerCodes, -1);
+		int mask = (1<<bits)-1;
+		for(int i=0;i<n;i++) {
+			int slot = getExplicitCodeSlot(codes[i]);
+			while(explicitKmerCodes[slot]>=0 && explicitKmerCodes[slot]!=codes[i]) slot = (slot+1) & mask;
+			if(explicitKmerCodes[slot]<0) numExplicitKmerHashCodes++;
+			explicitKmerCodes[slot] = codes[i];
+			explicitKmerHashCodes[slot] = i;
+		}
+	}
+	private int getExplicitCodeSlot(long code) {
+		int bits = Integer.numberOfTrailingZeros(explicitKmerCodes.length);
+		return (int)((code*0x9E3779B97F4A7C15L)>>>(64-bits));
+	}
+	/**
+	 * @param code of a k-mer
+	 * @return int explicit hash code of the given k-mer. -1 if the k-mer does not have an explicit hash code
+	 */
+	private int getExplicitKmerHashCode(long code) {
+		int mask = explicitKmerCodes.length-1;
+		int slot = getExplicitCodeSlot(code);
+		while(explicitKmerCodes[slot]>=0) {
+			if(explicitKmerCodes[slot]==code) return explicitKmerHashCodes[slot];
+			slot = (slot+1) & mask;
+		}
+		return -1;
 	}
 	
 	//Hash table management methods
-	private long[] lookupHits(int minimizer) {
-		Integer row = matrixRowMap.get(minimizer);
-		if(row==null) return EMPTY_LONG_ARRAY;
-		return Arrays.copyOf(sequencesByMinimizerTable[row], sequencesByMinimizerTableColumnLengths[row]);
+	private static int hash(int minimizer) {
+		int h = minimizer * 0x9E3779B9;
+		return h ^ (h>>>16);
+	}
+	/**
+	 * Finds the row of the table storing the hits of the given minimizer
+	 * @param minimizer to search
+	 * @return long row of the minimizer. Rows of tables built in memory have the stripe in the upper 32 bits.
+	 * -1 if the minimizer is not in the table
+	 */
+	private long getRow(int minimizer) {
+		if(loadedMinimizers!=null) {
+			int first = 0;
+			int last = loadedSize-1;
+			while(first<=last) {
+				int middle = (first+last)>>>1;
+				int value = getInt(loadedMinimizers, middle);
+				if(value<minimizer) first = middle+1;
+				else if (value>minimizer) last = middle-1;
+				else return middle;
+			}
+			return -1;
+		}
+		int h = hash(minimizer);
+		int stripeIdx = h & (NUM_STRIPES-1);
+		int row = stripes[stripeIdx].getRow(minimizer, h);
+		if(row<0) return -1;
+		return (((long)stripeIdx)<<32) | row;
+	}
+	private int getRowLength(long row) {
+		if(loadedMinimizers!=null) return (int)(getLong(loadedRowStarts, row+1)-getLong(loadedRowStarts, row));
+		return stripes[(int)(row>>>32)].rowLengths[(int)row];
+	}
+	private int getRowCountDifferentSequences(long row) {
+		if(loadedMinimizers!=null) return getShort(loadedCountDifferentSequences, row);
+		return stripes[(int)(row>>>32)].countDifferentSequences[(int)row];
+	}
+	private long getRowStart(long row) {
+		if(loadedMinimizers!=null) return getLong(loadedRowStarts, row);
+		return stripes[(int)(row>>>32)].rowStarts[(int)row];
+	}
+	private long getEntry(long row, long i) {
+		if(loadedMinimizers!=null) return getLong(loadedHits, i);
+		return stripes[(int)(row>>>32)].getEntry(i);
 	}
 	public int size() {
-		return matrixRowMap.size();
+		if(loadedMinimizers!=null) return loadedSize;
+		long answer = 0;
+		for(Stripe stripe:stripes) answer+=stripe.numMinimizers;
+		return (int)Math.min(answer, Integer.MAX_VALUE);
 	}
 	
 	/**
@@ -92,9 +213,10 @@ public class MinimizersTable {
 	 * @return int times that the given minimizer has been observed
 	 */
 	public int getTotalHits(int minimizer) {
-		Integer row = matrixRowMap.get(minimizer);
-		if(row==null) return 0;
-		return sequencesByMinimizerTableColumnLengths[row];
+		ensureBuilt();
+		long row = getRow(minimizer);
+		if(row<0) return 0;
+		return getRowLength(row);
 	}
 	
 	/**
@@ -103,52 +225,29 @@ public class MinimizersTable {
 	 * @return int number of different sequences where the minimizer has been observed
 	 */
 	public int getCountDifferentSequences(int minimizer) {
-		Integer row = matrixRowMap.get(minimizer);
-		if(row==null) return 0;
-		return minimizerCountDifferentSequences[row];
+		ensureBuilt();
+		long row = getRow(minimizer);
+		if(row<0) return 0;
+		return getRowCountDifferentSequences(row);
 	}
 	
-	private synchronized void addMinimizerSequence (int minimizer, List<MinimizersTableEntry> entries) {
-		Integer row = matrixRowMap.get(minimizer);
-		if(row==null) {
-			row = size();
-			if(row ==Integer.MAX_VALUE) {
-				log.warning("Reached maximum number of minimizers that can be saved "+row);
-				return;
-			}
-			matrixRowMap.put(minimizer, row);
-			if(row==sequencesByMinimizerTable.length) resizeTable();
-		}
-		int currentCount = sequencesByMinimizerTableColumnLengths[row];
-		if (currentCount+entries.size()<Short.MAX_VALUE) {
-			for (MinimizersTableEntry entry:entries) addToTable(row, entry.encode());
-			totalEntries+=entries.size();
-			minimizerCountDifferentSequences[row]++;
-		}
-	}
-	private void resizeTable() {
-		log.info("Resizing minimizers table. Current number of minimizers: "+size()+" current capacity: "+sequencesByMinimizerTable.length);
-		int newCapacity =  2*sequencesByMinimizerTable.length;
-		if(newCapacity<0) newCapacity = Integer.MAX_VALUE;
-		sequencesByMinimizerTableColumnLengths = Arrays.copyOf(sequencesByMinimizerTableColumnLengths, newCapacity);
-		minimizerCountDifferentSequences = Arrays.copyOf(minimizerCountDifferentSequences, newCapacity);
-		long [][] newTable = new long [newCapacity][0];
-		for(int i=0;i<newCapacity;i++) {
-			if(i<sequencesByMinimizerTable.length) newTable[i] = sequencesByMinimizerTable[i];
-			else newTable[i] = new long[1];
-		}
-		sequencesByMinimizerTable = newTable;
-		log.info("Resized minimizers table. New capacity: "+sequencesByMinimizerTable.length);
-	}
-	private void addToTable(int row, long value) {
-		long [] minimizerEntries = sequencesByMinimizerTable[row];
-		int column = sequencesByMinimizerTableColumnLengths[row];
-		if(column == minimizerEntries.length ) {
-			//Resize entries
-			sequencesByMinimizerTable[row] = Arrays.copyOf(minimizerEntries, 2*minimizerEntries.length);
-		}
-		sequencesByMinimizerTable[row][column] = value;
-		sequencesByMinimizerTableColumnLengths[row]++;
+	private void ensureBuilt() {
+		if(!built) buildTable(null);
+	}
+	/**
+	 * Sorts the entries added since the last call to this method
+	 * @param pool Executor to sort the stripes at the same time. If null, stripes are sorted by the calling thread
+	 */
+	private synchronized void buildTable(ThreadPoolExecutor pool) {
+		if(built) return;
+		if(pool==null) {
+			for(Stripe stripe:stripes) stripe.build();
+		} else {
+			List<Future<?>> tasks = new ArrayList<>();
+			for(Stripe stripe:stripes) tasks.add(pool.submit(()->stripe.build()));
+			for(Future<?> task:tasks) waitTask(task);
+		}
+		built = true;
 	}
 	public Logger getLog() {
 		return log;
@@ -161,6 +260,29 @@ public class MinimizersTable {
 		return kmersMap;
 	}
 	
+	public int getKmerLength() {
+		return kmerLength;
+	}
+	
+	public int getWindowLength() {
+		return windowLength;
+	}
+	
+	/**
+	 * @return int Number of sequences added to this table
+	 */
+	public int getNumberOfSequences() {
+		return sequenceLengths.size();
+	}
+	
+	/**
+	 * @param sequenceId Id of a sequence added to the table
+	 * @return int Length of the sequence. Zero if the sequence was not added
+	 */
+	public int getSequenceLength(int sequenceId) {
+		return sequenceLengths.getOrDefault(sequenceId, 0);
+	}
+	
 	public boolean isKeepSingletons() {
 		return keepSingletons;
 	}
@@ -169,36 +291,148 @@ public class MinimizersTable {
 		this.keepSingletons = keepSingletons;
 	}
 
+	public int getSequenceSegmentLength() {
+		return sequenceSegmentLength;
+	}
+	/**
+	 * Changes the length of the segments in which long sequences are split to calculate their minimizers.
+	 * Segments of the same sequence can be processed by different threads. The table does not depend on this length
+	 * @param sequenceSegmentLength Length of the segments
+	 */
+	public void setSequenceSegmentLength(int sequenceSegmentLength) {
+		if(sequenceSegmentLength<1) throw new IllegalArgumentException("The length of the segments of long sequences must be a positive number. Value: "+sequenceSegmentLength);
+		this.sequenceSegmentLength = sequenceSegmentLength;
+	}
+
 	public void addSequences (QualifiedSequenceList sequences) {
 		for(int i=0;i<sequences.size();i++) {
 			addSequence(i, sequences.get(i).getCharacters());
 		}
 	}
+	/**
+	 * Adds the minimizers of the given sequences using the given number of threads. The id of each sequence is its index in the list.
+	 * Sequences are split in segments that are processed at the same time. The minimizers of each sequence
+	 * are added to the table when all its segments are processed. Because the entries of each row are sorted
+	 * by sequence id and start, the table does not depend on the number of threads
+	 * @param sequences to add
+	 * @param numThreads Number of threads to calculate the minimizers
+	 */
+	public void addSequences (List<QualifiedSequence> sequences, int numThreads) {
+		if(loadedMinimizers!=null) throw new IllegalStateException("Sequences can not be added to minimizers tables loaded from files");
+		int n = sequences.size();
+		if(numThreads<=1) {
+			for(int i=0;i<n;i++) {
+				addSequence(i, sequences.get(i).getCharacters());
+				logProgress(i);
+			}
+			ensureBuilt();
+			return;
+		}
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		List<Future<?>> tasks = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			final int sequenceId = i;
+			CharSequence characters = sequences.get(i).getCharacters();
+			int length = characters.length();
+			int numSegments = Math.max(1, (length+sequenceSegmentLength-1)/sequenceSegmentLength);
+			List<long []> segments = new ArrayList<>(numSegments);
+			for(int j=0;j<numSegments;j++) segments.add(null);
+			AtomicInteger pendingSegments = new AtomicInteger(numSegments);
+			for(int j=0;j<numSegments;j++) {
+				final int segment = j;
+				tasks.add(pool.submit(()-> {
+					//Each thread converts only the characters of its segment
+					int start = segment*sequenceSegmentLength;
+					long [] minimizers = computeSequenceMinimizers(characters, start, Math.min(length, start+sequenceSegmentLength));
+					synchronized (segments) {
+						segments.set(segment, minimizers);
+					}
+					//The thread processing the last segment adds the minimizers of the sequence
+					if(pendingSegments.decrementAndGet()==0) {
+						synchronized (segments) {
+							addMinimizers(sequenceId, length, segments);
+						}
+						logProgress(sequenceId);
+					}
+				}));
+			}
+		}
+		for(Future<?> task:tasks) waitTask(task);
+		buildTable(pool);
+		pool.shutdown();
+	}
+	private void logProgress(int sequenceId) {
+		if ((sequenceId+1)%1000==0) log.info("Processed "+(sequenceId+1)+" sequences. Total minimizers: "+size()+" total entries: "+getTotalEntries());
+	}
+	private static void waitTask(Future<?> task) {
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
 	/**
 	 * Adds the minimizers of the given sequence to the table
 	 * @param sequenceId Id of the sequence to add
 	 * @param sequence to add
 	 */
 	public void addSequence (int sequenceId, CharSequence sequence) {
+		if(loadedMinimizers!=null) throw new IllegalStateException("Sequences can not be added to minimizers tables loaded from files");
 		int n = sequence.length();
-		String sequenceStr = sequence.toString();
-		int step = 10000000;
-		Map<Integer, List<MinimizersTableEntry>> minimizersSeq = new HashMap<Integer, List<MinimizersTableEntry>>();
-		for (int start = 0;start < n;start+=step) {
-			List<MinimizersTableEntry> minEntriesList = computeSequenceMinimizers(sequenceId, sequenceStr, start, Math.min(n, start+step));
-			for(MinimizersTableEntry entry:minEntriesList) {
-				List<MinimizersTableEntry> minList = minimizersSeq.computeIfAbsent(entry.getMinimizer(), l->new ArrayList<MinimizersTableEntry>());
-				minList.add(entry);
-			}
+		List<long []> segments = new ArrayList<>();
+		for (int start = 0;start < n;start+=sequenceSegmentLength) {
+			segments.add(computeSequenceMinimizers(sequence, start, Math.min(n, start+sequenceSegmentLength)));
+		}
+		addMinimizers(sequenceId, n, segments);
+	}
+	/**
+	 * Adds to the table the minimizers calculated for the segments of a sequence
+	 * @param sequenceId Id of the sequence
+	 * @param length of the sequence
+	 * @param segments Encoded minimizers of consecutive segments of the sequence
+	 */
+	private void addMinimizers(int sequenceId, int length, List<long []> segments) {
+		int total = 0;
+		for (long [] segment:segments) total+=segment.length;
+		long [] minimizers = new long [total];
+		int next = 0;
+		for (long [] segment:segments) {
+			System.arraycopy(segment, 0, minimizers, next, segment.length);
+			next+=segment.length;
+		}
+		//Sorting by minimizer and start leaves consecutive the entries of each minimizer
+		Arrays.sort(minimizers);
+		int numRuns = 0;
+		int [] runStarts = new int [total+1];
+		for(int i=0;i<total;i++) {
+			if(i==0 || getMinimizer(minimizers[i])!=getMinimizer(minimizers[i-1])) runStarts[numRuns++] = i;
 		}
-		//log.info("Sequence "+sequenceId+" number of minimizers: "+minimizersSeq.size());
-		for(int minimizer:minimizersSeq.keySet()) {
-			List<MinimizersTableEntry> entries = minimizersSeq.get(minimizer);
-			if (entries.size()== 0) continue;
-			addMinimizerSequence (minimizer, entries);
+		runStarts[numRuns] = total;
+		//Group minimizers by stripe to lock each stripe only once
+		int [] stripeStarts = new int [NUM_STRIPES+1];
+		for(int r=0;r<numRuns;r++) stripeStarts[(hash(getMinimizer(minimizers[runStarts[r]])) & (NUM_STRIPES-1))+1]++;
+		for(int i=0;i<NUM_STRIPES;i++) stripeStarts[i+1]+=stripeStarts[i];
+		int [] runsByStripe = new int [numRuns];
+		int [] nextRun = Arrays.copyOf(stripeStarts, NUM_STRIPES);
+		for(int r=0;r<numRuns;r++) runsByStripe[nextRun[hash(getMinimizer(minimizers[runStarts[r]])) & (NUM_STRIPES-1)]++] = r;
+		for(int i=0;i<NUM_STRIPES;i++) {
+			if(stripeStarts[i]==stripeStarts[i+1]) continue;
+			Stripe stripe = stripes[i];
+			synchronized (stripe) {
+				for(int j=stripeStarts[i];j<stripeStarts[i+1];j++) {
+					int r = runsByStripe[j];
+					int minimizer = getMinimizer(minimizers[runStarts[r]]);
+					if(!stripe.addMinimizerSequence(minimizer, hash(minimizer), sequenceId, minimizers, runStarts[r], runStarts[r+1])) {
+						log.warning("Reached maximum number of minimizers that can be saved "+size());
+					}
+				}
+			}
 		}
+		built = false;
 		synchronized (sequenceLengths) {
-			sequenceLengths.put(sequenceId, n);
+			sequenceLengths.put(sequenceId, length);
 		}	
 	}
 
@@ -206,72 +440,128 @@ public class MinimizersTable {
 	 * Calculates the minimizers of the given sequence
 	 * @param sequenceId Id of the sequence to calculate
 	 * @param sequence characters of the sequence to calculate
-	 * @return Map<Integer, List<MinimizersTableEntry>> Minimizers calculated for the given sequence indexed by the minimizer
+	 * @return List<MinimizersTableEntry> Minimizers calculated for the given sequence sorted by start
 	 */
 	public List<MinimizersTableEntry> computeSequenceMinimizers(int sequenceId, String sequence,int start,int end) {
-		//Map<Integer, String> kmers = KmersExtractor.extractKmersAsMap(sequence.toString(), kmerLength, 1, start, Math.min(sequence.length(),end+windowLength+kmerLength), false, true, true);
-		Map<Integer, Long> codes = KmersExtractor.extractDNAKmerCodes(sequence, kmerLength, start, Math.min(sequence.length(),end+windowLength+kmerLength));
-		//log.info("Extracted codes for sequence "+sequenceId+" from "+start+" to "+end+" Nuber of codes: "+codes.size());
-		return computeSequenceMinimizers(sequenceId, start, Math.min(end, sequence.length()-kmerLength-windowLength), codes);
+		long [] minimizers = computeSequenceMinimizers(sequence, start, end);
+		List<MinimizersTableEntry> answer = new ArrayList<MinimizersTableEntry>(minimizers.length);
+		for(long encoded:minimizers) answer.add(new MinimizersTableEntry(getMinimizer(encoded), sequenceId, getMinimizerStart(encoded)));
+		return answer;
 	}
 	/**
-	 * Calculates the minimizers of the sequence represented by the given kmers
-	 * @param sequenceId Id of the sequence to calculate
+	 * Calculates the minimizers of the windows starting between the given limits
+	 * @param sequence characters of the sequence to calculate
 	 * @param start of the sequence to consider
 	 * @param end of the sequence to consider
-	 * @param sequenceKmers Kmers considered to build minimizers
-	 * @return Map<Integer, List<MinimizersTableEntry>> Minimizers calculated for the given sequence indexed by the minimizer
+	 * @return long [] Minimizers sorted by start. Each minimizer is encoded with the minimizer in the upper 32 bits and the start in the lower 32 bits
 	 */
-	private List<MinimizersTableEntry> computeSequenceMinimizers(int sequenceId, int start, int end, Map<Integer, Long> kmerCodes) {
-		List<MinimizersTableEntry> minimizersSeq = new ArrayList<MinimizersTableEntry>();
-		Map<Integer, Integer> hashcodesForward = new HashMap<Integer, Integer>();
-		for(int i: kmerCodes.keySet()) {
-			long code = kmerCodes.get(i);
-			if(!keepSingletons && kmersMap!=null && kmersMap instanceof ShortArrayDNAKmersMapImpl) {
-				int count = ((ShortArrayDNAKmersMapImpl)kmersMap).getCount(code);
-				if(count == 1) continue;
-			}
-			hashcodesForward.put(i, getHash(code));
+	private long [] computeSequenceMinimizers(CharSequence sequence, int start, int end) {
+		int n = sequence.length();
+		//Codes of the window before the start are needed to avoid repeating its minimizer
+		int offset = Math.max(0, start-1);
+		int last = Math.min(n,end+windowLength+kmerLength);
+		long [] codes;
+		if(sequence instanceof String) codes = KmersExtractor.extractDNAKmerCodesArray(sequence, kmerLength, offset, last);
+		else {
+			//Only the characters of the segment are converted to a String
+			String segment = sequence.subSequence(offset, last).toString();
+			codes = KmersExtractor.extractDNAKmerCodesArray(segment, kmerLength, 0, segment.length());
 		}
-		//log.info("Filtered codes for sequence "+sequenceId+" from "+start+" to "+end+" Filtered codes: "+hashcodesForward.size());
-		Integer previousMinimizer = null;
+		return computeSequenceMinimizers(codes, offset, start, Math.min(end, n-kmerLength-windowLength));
+	}
+	/**
+	 * Calculates the minimizers of the sequence represented by the given k-mer codes.
+	 * A queue keeps the positions of the current window that can become minimizers of later windows,
+	 * sorted by position and with increasing hash codes. Each position enters and leaves the queue once.
+	 * Hence, the minimizer of each window is obtained in amortized constant time. The minimizer of each window
+	 * is the last position with the minimum hash code. A minimizer is reported only if it is different from
+	 * the minimizer of the previous window. If the codes include the window before the start, its minimizer
+	 * is calculated but not reported. Hence, consecutive segments of a sequence produce the same minimizers as the complete sequence
+	 * @param codes of the k-mers starting at each position. -1 for positions without a valid k-mer
+	 * @param offset Position in the sequence of the first code
+	 * @param start of the sequence to consider
+	 * @param end of the sequence to consider
+	 * @return long [] Minimizers sorted by start encoded as the minimizer in the upper 32 bits and the start in the lower 32 bits
+	 */
+	private long [] computeSequenceMinimizers(long [] codes, int offset, int start, int end) {
+		int n = codes.length;
+		long [] hashes = new long [n];
+		for(int i=0;i<n;i++) hashes[i] = calculateMinimizerHash(codes[i]);
+		long [] minimizers = new long [Math.max(0, end-start)];
+		int numMinimizers = 0;
+		int [] queue = new int [n];
+		int head = 0;
+		int tail = 0;
+		int first = Math.max(offset, start-1);
+		int nextPos = first;
+		boolean previousFound = false;
+		long previousMinimizer = 0;
 		int previousMinimizerPos = -1;
-		for(int i=start;i<end;i++) {
-			Integer minimizerI = null;
-			int minPos = -1;
-			Integer newHash = hashcodesForward.get(i+windowLength-1);
-			boolean lastInRange = previousMinimizer!=null && previousMinimizerPos>=i;
-			if(lastInRange && (newHash==null || previousMinimizer < newHash)) {
-				minimizerI = previousMinimizer;
-				minPos = previousMinimizerPos;
-			} else if (newHash!=null && (previousMinimizer==null || newHash <= previousMinimizer)) {
-				minimizerI = newHash;
-				minPos = i+windowLength-1;
-			}
-			if(minimizerI == null) {
-				for(int j=0;j<windowLength;j++) {
-					Integer hashForward = hashcodesForward.get(i+j);
-					if (hashForward!=null && (minimizerI==null || hashForward <= minimizerI)) {
-						minimizerI = hashForward;
-						minPos = i+j;
-					}
-				}
+		for(int i=first;i<end;i++) {
+			int lastPos = i+windowLength-1;
+			for(;nextPos<=lastPos;nextPos++) {
+				long hash = getPositionHash(hashes, nextPos-offset);
+				if(hash==NO_HASH) continue;
+				//Positions at the left with larger or equal hashes can not be minimizers of the next windows
+				while(tail>head && hashes[queue[tail-1]]>=hash) tail--;
+				queue[tail++] = nextPos-offset;
 			}
-			if (minimizerI==previousMinimizer) continue;
-			if(minimizerI != null) {
-				MinimizersTableEntry entry = new MinimizersTableEntry(minimizerI, sequenceId, minPos);
-				minimizersSeq.add(entry);
+			while(tail>head && queue[head]+offset<i) head++;
+			long newHash = getPositionHash(hashes, lastPos-offset);
+			long minimizer;
+			int minPos;
+			boolean lastInRange = previousFound && previousMinimizerPos>=i;
+			if(lastInRange && (newHash==NO_HASH || previousMinimizer < newHash)) {
+				//Same minimizer of the previous window
+				continue;
+			} else if (newHash!=NO_HASH && previousFound && newHash <= previousMinimizer) {
+				//All other positions of the window have hash codes larger or equal than the previous minimizer
+				minimizer = newHash;
+				minPos = lastPos;
+			} else if (tail>head) {
+				minimizer = hashes[queue[head]];
+				minPos = queue[head]+offset;
+			} else {
+				previousFound = false;
+				previousMinimizerPos = -1;
+				continue;
 			}
-			previousMinimizer = minimizerI;
+			if(i>=start) minimizers[numMinimizers++] = (minimizer<<32) | (minPos & 0xFFFFFFFFL);
+			previousFound = true;
+			previousMinimizer = minimizer;
 			previousMinimizerPos = minPos;
 		}
-		//log.info("Calculated minimizers for sequence "+sequenceId+" from "+start+" to "+end+" Minimizers: "+minimizersSeq.size());
-		return minimizersSeq;
+		return Arrays.copyOf(minimizers, numMinimizers);
+	}
+	private static long getPositionHash(long [] hashes, int i) {
+		if(i<0 || i>=hashes.length) return NO_HASH;
+		return hashes[i];
+	}
+	private static int getMinimizer(long encodedMinimizer) {
+		return (int)(encodedMinimizer>>32);
+	}
+	private static int getMinimizerStart(long encodedMinimizer) {
+		return (int)encodedMinimizer;
+	}
+	/**
+	 * Calculates the hash code used to select minimizers for the given k-mer code
+	 * @param dnaHash Code of the k-mer. -1 if there is no valid k-mer
+	 * @return long Hash code of the k-mer. NO_HASH if the k-mer can not be a minimizer
+	 */
+	private long calculateMinimizerHash(long dnaHash) {
+		if(dnaHash<0) return NO_HASH;
+		if(!keepSingletons && kmersMap!=null && kmersMap instanceof ShortArrayDNAKmersMapImpl) {
+			int count = ((ShortArrayDNAKmersMapImpl)kmersMap).getCount(dnaHash);
+			if(count == 1) return NO_HASH;
+		}
+		return getHash(dnaHash);
 	}
 
 	private int getHash(long dnaHash) {
-		Integer code = explicitKmerHashCodes.get(dnaHash);
-		if(code!=null) return code;
+		if(numExplicitKmerHashCodes>0) {
+			int code = getExplicitKmerHashCode(dnaHash);
+			if(code>=0) return code;
+		}
 		if(kmersMap==null) {
 			long answer = (dnaHash+1)%1073676287;
 			return (int) answer;
@@ -279,6 +569,8 @@ public class MinimizersTable {
 		int count;
 		if(kmersMap instanceof ShortArrayDNAKmersMapImpl) {
 			count = ((ShortArrayDNAKmersMapImpl)kmersMap).getCount(dnaHash);
+		} else if(kmersMap instanceof LongCodeDNAKmersMapImpl) {
+			count = ((LongCodeDNAKmersMapImpl)kmersMap).getCount(dnaHash);
 		} else {
 			String kmer = new String(AbstractLimitedSequence.getSequence(dnaHash, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE));
 			count = kmersMap.getCount(kmer);
@@ -291,7 +583,7 @@ public class MinimizersTable {
 		long hash;
 		if(distance>0) {
 			hash = distance << 24;
-			hash = Math.max(hash, explicitKmerHashCodes.size());
+			hash = Math.max(hash, numExplicitKmerHashCodes);
 			hash+= (dnaHash & 0xFFFFFFF);
 			if(hash>Integer.MAX_VALUE) hash = Integer.MAX_VALUE;
 		} else {
@@ -310,50 +602,53 @@ public class MinimizersTable {
 	 * @return Map<Integer,List<MinimizersTableEntry>> Sequences matching kmers of the given query indexed by subject and sorted by subject start position
 	 */
 	public Map<Integer,List<UngappedSearchHit>> match (int queryIdx, CharSequence query) {
-		Map<Integer, Long> codes = KmersExtractor.extractDNAKmerCodes(query.toString(), kmerLength, 0, query.length());
-		return match(queryIdx, query.length(), codes);
+		long [] codes = KmersExtractor.extractDNAKmerCodesArray(query, kmerLength, 0, query.length());
+		return match(queryIdx, codes);
 	}
 	/**
-	 * Calculates the hits of the given query
-	 * @param query sequence
+	 * Calculates the hits of the query represented by the given k-mer codes
+	 * @param queryIdx Id of the query
+	 * @param codes of the k-mers starting at each position of the query as calculated by KmersExtractor.extractDNAKmerCodesArray
 	 * @return Map<Integer,List<MinimizersTableEntry>> Sequences matching kmers of the given query indexed by subject and sorted by subject start position
 	 */
-	public Map<Integer,List<UngappedSearchHit>> match (int queryIdx, int queryLength, Map<Integer, Long> codes) {
+	public Map<Integer,List<UngappedSearchHit>> match (int queryIdx, long [] codes) {
 		int idxDebug = -2;
-		
-		List<MinimizersTableEntry> minimizersQueryList = computeSequenceMinimizers(-1, 0, queryLength, codes);
-		if (queryIdx == idxDebug) System.out.println("Minimizers table. Counting hits for query. Codes: "+codes.size()+" minimizers: "+minimizersQueryList.size());
-		Map<Integer,Integer> minimizersLocalCounts = new HashMap<Integer, Integer>();
-		for(MinimizersTableEntry entry:minimizersQueryList) {
-			minimizersLocalCounts.compute(entry.getMinimizer(), (k,v)->(v==null?1:v+1));
-		}
+		ensureBuilt();
+		long [] minimizersQuery = computeSequenceMinimizers(codes, 0, 0, codes.length);
+		if (queryIdx == idxDebug) System.out.println("Minimizers table. Counting hits for query. Codes: "+codes.length+" minimizers: "+minimizersQuery.length);
+		//Sorted minimizers to count the occurrences of each minimizer within the query
+		int [] sortedMinimizers = new int [minimizersQuery.length];
+		for(int i=0;i<minimizersQuery.length;i++) sortedMinimizers[i] = getMinimizer(minimizersQuery[i]);
+		Arrays.sort(sortedMinimizers);
 		int numUsedMinimizers = 0;
 		int selfSequenceCount = 0;
 		Map<Integer,List<UngappedSearchHit>> answer = new HashMap<Integer, List<UngappedSearchHit>>();
-		for(MinimizersTableEntry entry:minimizersQueryList) {
-			int minimizer = entry.getMinimizer();
-			int count = minimizersLocalCounts.getOrDefault(minimizer, 0);
-			int countSeqs = getCountDifferentSequences(minimizer);
+		for(long encodedMinimizer:minimizersQuery) {
+			int minimizer = getMinimizer(encodedMinimizer);
+			int queryStart = getMinimizerStart(encodedMinimizer);
+			long row = getRow(minimizer);
+			if(row<0) continue;
+			int count = countOccurrences(sortedMinimizers, minimizer);
+			int countSeqs = getRowCountDifferentSequences(row);
 			//if (queryIdx == idxDebug && count>1) System.out.println("Minimizers table. For minimizer: "+minimizer+" query entries: "+count+" count sequences: "+countSeqs+" mode "+mode);
 			if (countSeqs>2*mode) continue;
-			Long kmerCode = codes.get(entry.getStart());
-			if(kmerCode == null) {
-				//Kmers that are not a minimizers are not considered
-				continue;
-			}
+			long kmerCode = codes[queryStart];
 			CharSequence kmer = new String(AbstractLimitedSequence.getSequence(kmerCode, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE));
-			long [] codesMatching = lookupHits(minimizer);
-			if(codesMatching.length>0) numUsedMinimizers++;
-			for(long entryCode:codesMatching) {
-				MinimizersTableEntry matchingEntry = new MinimizersTableEntry(minimizer, entryCode);
-				int subjectIdx = matchingEntry.getSequenceId();
+			long start = getRowStart(row);
+			int length = getRowLength(row);
+			if(length>0) numUsedMinimizers++;
+			double weight = calculateWeight(countSeqs, count);
+			for(int j=0;j<length;j++) {
+				long entryCode = getEntry(row, start+j);
+				int subjectIdx = (int) (entryCode >> 32);
+				int subjectStart = (int) entryCode;
 				if (subjectIdx < 0) {
-					System.err.println("Invalid subject "+subjectIdx+" minimizer: "+minimizer+" matching code: "+entryCode+" start: "+matchingEntry.getStart());
+					System.err.println("Invalid subject "+subjectIdx+" minimizer: "+minimizer+" matching code: "+entryCode+" start: "+subjectStart);
 					continue;
 				}
-				UngappedSearchHit hit = new UngappedSearchHit(kmer, subjectIdx, matchingEntry.getStart());
-				hit.setQueryIdx(entry.getStart());
-				hit.setWeight(calculateWeight(minimizer, count));
+				UngappedSearchHit hit = new UngappedSearchHit(kmer, subjectIdx, subjectStart);
+				hit.setQueryIdx(queryStart);
+				hit.setWeight(weight);
 				List<UngappedSearchHit> targetHits = answer.computeIfAbsent(subjectIdx,l -> new ArrayList<UngappedSearchHit>());
 				targetHits.add(hit);
 				if(subjectIdx==queryIdx) selfSequenceCount++;
@@ -363,10 +658,17 @@ public class MinimizersTable {
 		return answer;
 		
 	}
+	private static int countOccurrences(int [] sortedValues, int value) {
+		int first = Arrays.binarySearch(sortedValues, value);
+		if(first<0) return 0;
+		int last = first;
+		while(first>0 && sortedValues[first-1]==value) first--;
+		while(last+1<sortedValues.length && sortedValues[last+1]==value) last++;
+		return last-first+1;
+	}
 
-	private double calculateWeight(int minimizer, int countQuery) {
+	private double calculateWeight(int countDifferent, int countQuery) {
 		//if(kmersMap==null) return 1;
-		int countDifferent = getCountDifferentSequences(minimizer);
 		/*int totalCount = getTotalHits(minimizer);
 		int diff1 = countDifferent-mode;
 		int diff2 = totalCount/countQuery-mode;
@@ -380,17 +682,326 @@ public class MinimizersTable {
 		return 1.0*modeMinimizers/(modeMinimizers+diff3);
 	}
 	public Distribution calculateDistributionHits() {
+		ensureBuilt();
 		Distribution dist = new Distribution(1, 300, 1);
-		int numMinimizers = size();
-		for(int i=0;i<numMinimizers;i++) {
-			dist.processDatapoint(sequencesByMinimizerTableColumnLengths[i]);	
+		if(loadedMinimizers!=null) {
+			for(int i=0;i<loadedSize;i++) dist.processDatapoint(getRowLength(i));
+			return dist;
+		}
+		for(Stripe stripe:stripes) {
+			for(int i=0;i<stripe.numMinimizers;i++) {
+				dist.processDatapoint(stripe.rowLengths[i]);	
+			}
 		}
 		return dist;
 	}
 
 	public long getTotalEntries() {
-		return totalEntries;
+		if(loadedMinimizers!=null) return loadedTotalEntries;
+		long answer = 0;
+		for(Stripe stripe:stripes) answer+=stripe.totalEntries;
+		return answer;
 	}
 	
+	/**
+	 * Saves this table in a binary format that can be loaded mapping the file to memory.
+	 * Rows are saved sorted by minimizer keeping the order of the hits within each row.
+	 * Only tables calculated without a k-mers distribution can be saved because the hash
+	 * codes of the minimizers of the queries must be calculated in the same way after loading
+	 * @param filename Name of the output file
+	 * @throws IOException If the file can not be written
+	 */
+	public void save (String filename) throws IOException {
+		if(kmersMap!=null) throw new IllegalStateException("Minimizers tables built from k-mer distributions can not be saved");
+		if(loadedMinimizers!=null) throw new IllegalStateException("Minimizers tables loaded from files can not be saved again");
+		ensureBuilt();
+		int n = size();
+		int [] sortedMinimizers = new int [n];
+		int i=0;
+		for(Stripe stripe:stripes) {
+			for(int slot=0;slot<stripe.mapRows.length;slot++) {
+				if(stripe.mapRows[slot]<0) continue;
+				sortedMinimizers[i] = stripe.mapKeys[slot];
+				i++;
+			}
+		}
+		Arrays.sort(sortedMinimizers);
+		long [] sortedRows = new long [n];
+		for(i=0;i<n;i++) sortedRows[i] = getRow(sortedMinimizers[i]);
+		try(OutputStream os = new BufferedOutputStream(new FileOutputStream(filename),1000000);
+			DataOutputStream out = new DataOutputStream(os)) {
+			out.write(BINARY_FORMAT_MAGIC);
+			out.writeInt(BINARY_FORMAT_VERSION);
+			out.writeInt(kmerLength);
+			out.writeInt(windowLength);
+			out.writeInt(mode);
+			out.writeInt(kmerDistModeLocalSD);
+			List<Integer> sequenceIds = new ArrayList<>(sequenceLengths.keySet());
+			out.writeInt(sequenceIds.size());
+			for(int sequenceId:sequenceIds) {
+				out.writeInt(sequenceId);
+				out.writeInt(sequenceLengths.get(sequenceId));
+			}
+			out.writeInt(n);
+			out.writeLong(getTotalEntries());
+			for(int minimizer:sortedMinimizers) out.writeInt(minimizer);
+			for(long row:sortedRows) out.writeShort(getRowCountDifferentSequences(row));
+			long start = 0;
+			out.writeLong(start);
+			for(long row:sortedRows) {
+				start+=getRowLength(row);
+				out.writeLong(start);
+			}
+			for(long row:sortedRows) {
+				long rowStart = getRowStart(row);
+				int length = getRowLength(row);
+				for(int j=0;j<length;j++) out.writeLong(getEntry(row, rowStart+j));
+			}
+		}
+	}
 	
+	/**
+	 * Loads a table saved with the method save. The arrays of the table are mapped to memory
+	 * rather than copied to the heap. Loaded tables can be used to match queries but new sequences can not be added
+	 * @param filename Name of the file with the table
+	 * @return MinimizersTable loaded table
+	 * @throws IOException If the file can not be read or if it does not have the binary format of minimizers tables
+	 */
+	public static MinimizersTable load (String filename) throws IOException {
+		MinimizersTable table = new MinimizersTable();
+		//Mapped buffers remain valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long position = 0;
+			ByteBuffer header = read(channel, position, BINARY_FORMAT_MAGIC.length+24);
+			position+=header.limit();
+			byte [] magic = new byte[BINARY_FORMAT_MAGIC.length];
+			header.get(magic);
+			if(!Arrays.equals(magic, BINARY_FORMAT_MAGIC)) throw new IOException("File "+filename+" does not contain a minimizers table");
+			int version = header.getInt();
+			if(version>BINARY_FORMAT_VERSION) throw new IOException("Unsupported minimizers table format version "+version+". This version of NGSEP supports up to version "+BINARY_FORMAT_VERSION);
+			table.kmerLength = header.getInt();
+			table.windowLength = header.getInt();
+			table.mode = header.getInt();
+			table.kmerDistModeLocalSD = header.getInt();
+			int numSequences = header.getInt();
+			if(numSequences<0) throw new IOException("Corrupted minimizers table header. Number of sequences: "+numSequences);
+			ByteBuffer lengths = read(channel, position, 8*numSequences+12);
+			position+=lengths.limit();
+			for(int i=0;i<numSequences;i++) {
+				int sequenceId = lengths.getInt();
+				table.sequenceLengths.put(sequenceId, lengths.getInt());
+			}
+			int n = lengths.getInt();
+			table.loadedTotalEntries = lengths.getLong();
+			if(n<0 || table.loadedTotalEntries<0) throw new IOException("Corrupted minimizers table header. Minimizers: "+n+" entries: "+table.loadedTotalEntries);
+			if(position+14L*n+8+8*table.loadedTotalEntries>channel.size()) throw new IOException("Unexpected end of file reading minimizers table");
+			table.loadedSize = n;
+			table.loadedMinimizers = map(channel, position, n, 4);
+			position+=4L*n;
+			table.loadedCountDifferentSequences = map(channel, position, n, 2);
+			position+=2L*n;
+			table.loadedRowStarts = map(channel, position, n+1L, 8);
+			position+=8L*(n+1);
+			if(getLong(table.loadedRowStarts, n)!=table.loadedTotalEntries) throw new IOException("Corrupted minimizers table. Inconsistent number of entries");
+			table.loadedHits = map(channel, position, table.loadedTotalEntries, 8);
+		}
+		return table;
+	}
+	
+	private static ByteBuffer [] map (FileChannel channel, long position, long entries, int entryBytes) throws IOException {
+		int numSegments = (int)((entries+SEGMENT_MASK)>>>SEGMENT_BITS);
+		ByteBuffer [] segments = new ByteBuffer[numSegments];
+		for(int i=0;i<numSegments;i++) {
+			long segmentEntries = Math.min(SEGMENT_MASK+1, entries-((long)i<<SEGMENT_BITS));
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, segmentEntries*entryBytes);
+			position+=segmentEntries*entryBytes;
+		}
+		return segments;
+	}
+	private static ByteBuffer read (FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer answer = ByteBuffer.allocate(length);
+		while(answer.hasRemaining()) {
+			if(channel.read(answer, position+answer.position())<0) throw new IOException("Unexpected end of file reading minimizers table");
+		}
+		answer.flip();
+		return answer;
+	}
+	private static long getLong(ByteBuffer [] segments, long i) {
+		return segments[(int)(i>>>SEGMENT_BITS)].getLong(((int)(i&SEGMENT_MASK))<<3);
+	}
+	private static int getInt(ByteBuffer [] segments, long i) {
+		return segments[(int)(i>>>SEGMENT_BITS)].getInt(((int)(i&SEGMENT_MASK))<<2);
+	}
+	private static short getShort(ByteBuffer [] segments, long i) {
+		return segments[(int)(i>>>SEGMENT_BITS)].getShort(((int)(i&SEGMENT_MASK))<<1);
+	}
+	
+	/**
+	 * Partition of the minimizers table. Each stripe has its own map from minimizers to rows and its own entries.
+	 * Stripes are modified holding their own lock
+	 */
+	private static class Stripe {
+		//Open addressing map with minimizers as keys and rows of the stripe as values. Empty slots have row -1
+		private int [] mapKeys;
+		private int [] mapRows;
+		private int mapBits;
+		private int numMinimizers = 0;
+		//Number of entries of each row
+		private short [] rowLengths;
+		//Count of different sequences reporting each minimizer
+		private short [] countDifferentSequences;
+		//Encoded entries of all rows stored consecutively. Split in blocks of 2^SEGMENT_BITS entries
+		private long [][] entries = new long [0][];
+		//Start of each row within the entries. It has one additional entry with the total number of entries
+		private long [] rowStarts = new long [1];
+		//Rows and encoded entries added after the last time that the entries were sorted by row
+		private int [][] pendingRows = new int [0][];
+		private long [][] pendingEntries = new long [0][];
+		private long numPendingEntries = 0;
+		private long totalEntries = 0;
+		
+		public Stripe(int capacity) {
+			capacity = Math.max(capacity, 16);
+			mapBits = 4;
+			while(mapBits<MAX_MAP_BITS && (1<<mapBits)<2*capacity) mapBits++;
+			mapKeys = new int [1<<mapBits];
+			mapRows = new int [1<<mapBits];
+			Arrays.fill(mapRows, -1);
+			rowLengths = new short [capacity];
+			countDifferentSequences = new short [capacity];
+		}
+		private int getRow(int minimizer, int hash) {
+			int mask = (1<<mapBits)-1;
+			int slot = hash >>> (32-mapBits);
+			while(true) {
+				int row = mapRows[slot];
+				if(row<0 || mapKeys[slot]==minimizer) return row;
+				slot = (slot+1) & mask;
+			}
+		}
+		private long getEntry(long i) {
+			return entries[(int)(i>>>SEGMENT_BITS)][(int)(i&SEGMENT_MASK)];
+		}
+		/**
+		 * Adds the entries of one sequence for the given minimizer
+		 * @param minimizers Encoded minimizers of the sequence sorted by minimizer. Entries are taken from the given range
+		 * @return boolean false if the minimizer could not be added because the maximum number of minimizers was reached
+		 */
+		private boolean addMinimizerSequence (int minimizer, int hash, int sequenceId, long [] minimizers, int first, int last) {
+			int row = getRow(minimizer, hash);
+			if(row<0) {
+				row = numMinimizers;
+				if(4L*(row+1)>3L*(1<<mapBits)) {
+					if(mapBits==MAX_MAP_BITS) return false;
+					resizeMap();
+				}
+				int mask = (1<<mapBits)-1;
+				int slot = hash >>> (32-mapBits);
+				while(mapRows[slot]>=0) slot = (slot+1) & mask;
+				mapKeys[slot] = minimizer;
+				mapRows[slot] = row;
+				numMinimizers++;
+				if(row==rowLengths.length) resizeRows();
+			}
+			int currentCount = rowLengths[row];
+			int numEntries = last-first;
+			if (currentCount+numEntries<Short.MAX_VALUE) {
+				long sequenceCode = ((long)sequenceId)<<32;
+				for (int i=first;i<last;i++) addPendingEntry(row, sequenceCode+getMinimizerStart(minimizers[i]));
+				rowLengths[row]+=numEntries;
+				totalEntries+=numEntries;
+				countDifferentSequences[row]++;
+			}
+			return true;
+		}
+		private void resizeMap() {
+			int [] oldKeys = mapKeys;
+			int [] oldRows = mapRows;
+			mapBits++;
+			int mask = (1<<mapBits)-1;
+			mapKeys = new int [1<<mapBits];
+			mapRows = new int [1<<mapBits];
+			Arrays.fill(mapRows, -1);
+			for(int i=0;i<oldKeys.length;i++) {
+				if(oldRows[i]<0) continue;
+				int slot = hash(oldKeys[i]) >>> (32-mapBits);
+				while(mapRows[slot]>=0) slot = (slot+1) & mask;
+				mapKeys[slot] = oldKeys[i];
+				mapRows[slot] = oldRows[i];
+			}
+		}
+		private void resizeRows() {
+			int newCapacity =  2*rowLengths.length;
+			if(newCapacity<0) newCapacity = Integer.MAX_VALUE;
+			rowLengths = Arrays.copyOf(rowLengths, newCapacity);
+			countDifferentSequences = Arrays.copyOf(countDifferentSequences, newCapacity);
+		}
+		private void addPendingEntry(int row, long value) {
+			int block = (int)(numPendingEntries>>>SEGMENT_BITS);
+			int column = (int)(numPendingEntries&SEGMENT_MASK);
+			if(block==pendingEntries.length) {
+				pendingRows = Arrays.copyOf(pendingRows, block+1);
+				pendingEntries = Arrays.copyOf(pendingEntries, block+1);
+				pendingRows[block] = new int [1024];
+				pendingEntries[block] = new long [1024];
+			} else if (column==pendingEntries[block].length) {
+				int newLength = (int)Math.min(2L*column, SEGMENT_MASK+1);
+				pendingRows[block] = Arrays.copyOf(pendingRows[block], newLength);
+				pendingEntries[block] = Arrays.copyOf(pendingEntries[block], newLength);
+			}
+			pendingRows[block][column] = row;
+			pendingEntries[block][column] = value;
+			numPendingEntries++;
+		}
+		/**
+		 * Stores consecutively the entries of each row including the entries added since the last call to this method.
+		 * The first pass counts the entries of each row and the second pass fills the rows.
+		 * Entries of each row are sorted by sequence id and start
+		 */
+		private synchronized void build() {
+			if(numPendingEntries==0) return;
+			long [] newRowStarts = new long [numMinimizers+1];
+			for(int i=0;i<numMinimizers;i++) newRowStarts[i+1] = newRowStarts[i]+rowLengths[i];
+			long total = newRowStarts[numMinimizers];
+			int numBlocks = (int)((total+SEGMENT_MASK)>>>SEGMENT_BITS);
+			long [][] newEntries = new long [numBlocks][];
+			for(int i=0;i<numBlocks;i++) newEntries[i] = new long [(int)Math.min(SEGMENT_MASK+1, total-((long)i<<SEGMENT_BITS))];
+			//Starts are used as the next position to fill in each row. At the end, each start holds the start of the next row
+			int oldRows = rowStarts.length-1;
+			for(int row=0;row<oldRows;row++) {
+				for(long i=rowStarts[row];i<rowStarts[row+1];i++) {
+					long next = newRowStarts[row]++;
+					newEntries[(int)(next>>>SEGMENT_BITS)][(int)(next&SEGMENT_MASK)] = getEntry(i);
+				}
+			}
+			for(long i=0;i<numPendingEntries;i++) {
+				int block = (int)(i>>>SEGMENT_BITS);
+				int column = (int)(i&SEGMENT_MASK);
+				long next = newRowStarts[pendingRows[block][column]]++;
+				newEntries[(int)(next>>>SEGMENT_BITS)][(int)(next&SEGMENT_MASK)] = pendingEntries[block][column];
+			}
+			for(int row=numMinimizers;row>0;row--) newRowStarts[row] = newRowStarts[row-1];
+			newRowStarts[0] = 0;
+			entries = newEntries;
+			rowStarts = newRowStarts;
+			pendingRows = new int [0][];
+			pendingEntries = new long [0][];
+			numPendingEntries = 0;
+			for(int row=0;row<numMinimizers;row++) sortRow(rowStarts[row], rowStarts[row+1]);
+		}
+		private void sortRow(long first, long last) {
+			if(last-first<2) return;
+			int firstBlock = (int)(first>>>SEGMENT_BITS);
+			int lastBlock = (int)((last-1)>>>SEGMENT_BITS);
+			if(firstBlock==lastBlock) {
+				Arrays.sort(entries[firstBlock], (int)(first&SEGMENT_MASK), (int)(((last-1)&SEGMENT_MASK)+1));
+				return;
+			}
+			//Rows spanning two blocks are sorted in a temporary array
+			long [] row = new long [(int)(last-first)];
+			for(int i=0;i<row.length;i++) row[i] = getEntry(first+i);
+			Arrays.sort(row);
+			for(int i=0;i<row.length;i++) entries[(int)((first+i)>>>SEGMENT_BITS)][(int)((first+i)&SEGMENT_MASK)] = row[i];
+		}
+	}
 }
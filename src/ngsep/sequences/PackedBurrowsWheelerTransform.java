@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+/**
+ * Burrows Wheeler transform packed with the minimum number of bits per character
+ * (2 bits for ACGT, 3 bits for ACGTN) and interleaved with occurrence counts.
+ * The transform is divided in blocks of one or more cache lines. Each block starts with the number of times
+ * that each character appears before the block, followed by the packed characters of the block.
+ * Calculating the rank of a character requires reading one block.
+ * The special character is encoded as the first character of the alphabet and corrected using its row
+ */
+public class PackedBurrowsWheelerTransform {
+	// Number of longs in a cache line
+	private static final int CACHE_LINE_LONGS = 8;
+
+	private final int length;
+	private final int alphabetSize;
+	private final int rowSpecialCharacter;
+
+	// Layout of each block
+	private final int bitsPerSymbol;
+	private final int symbolsPerLong;
+	private final int countLongs;
+	private final int dataLongs;
+	private final int blockLongs;
+	private final int symbolsPerBlock;
+
+	// Masks to compare packed symbols
+	private final long symbolMask;
+	private final long lowBitsMask;
+	private final long [] symbolPatterns;
+
+	// Packed blocks. Wrapped array or mapped file
+	private final LongBuffer data;
+
+	private PackedBurrowsWheelerTransform(int length, int alphabetSize, int rowSpecialCharacter, LongBuffer data) {
+		this.length = length;
+		this.alphabetSize = alphabetSize;
+		this.rowSpecialCharacter = rowSpecialCharacter;
+		int bits = 1;
+		while((1<<bits)<alphabetSize) bits++;
+		bitsPerSymbol = bits;
+		symbolsPerLong = 64/bitsPerSymbol;
+		countLongs = (alphabetSize+1)/2;
+		blockLongs = CACHE_LINE_LONGS*((2*countLongs+CACHE_LINE_LONGS-1)/CACHE_LINE_LONGS);
+		dataLongs = blockLongs - countLongs;
+		symbolsPerBlock = dataLongs*symbolsPerLong;
+		symbolMask = (1L<<bitsPerSymbol)-1;
+		long mask = 0;
+		for(int i=0;i<symbolsPerLong;i++) mask|=1L<<(i*bitsPerSymbol);
+		lowBitsMask = mask;
+		symbolPatterns = new long[alphabetSize];
+		for(int i=0;i<alphabetSize;i++) symbolPatterns[i] = i*lowBitsMask;
+		this.data = data;
+	}
+
+	/**
+	 * Creates a packed transform from the given transform
+	 * @param bwt Burrows Wheeler transform. Each character must belong to the alphabet, except the special character
+	 * @param alphabet Sorted alphabet of the transform, not including the special character
+	 * @param rowSpecialCharacter Row of the special character
+	 * @return PackedBurrowsWheelerTransform packed transform
+	 */
+	public static PackedBurrowsWheelerTransform pack(byte [] bwt, String alphabet, int rowSpecialCharacter) {
+		PackedBurrowsWheelerTransform layout = new PackedBurrowsWheelerTransform(bwt.length, alphabet.length(), rowSpecialCharacter, null);
+		int [] codes = new int [256];
+		for(int i=0;i<codes.length;i++) codes[i] = -1;
+		for(int i=0;i<alphabet.length();i++) codes[alphabet.charAt(i)] = i;
+		long [] packed = new long[layout.getNumberOfLongs()];
+		int [] counts = new int [alphabet.length()];
+		for(int row=0;row<bwt.length;row++) {
+			int block = row / layout.symbolsPerBlock;
+			int offset = row % layout.symbolsPerBlock;
+			int blockStart = block*layout.blockLongs;
+			if(offset == 0) {
+				for(int c=0;c<counts.length;c++) {
+					packed[blockStart+c/2] |= ((long)counts[c]) << (32*(c%2));
+				}
+			}
+			if(row == rowSpecialCharacter) continue;
+			int code = codes[bwt[row] & 0xFF];
+			if(code<0) throw new IllegalArgumentException("Character "+((char)bwt[row])+" at row "+row+" does not belong to the alphabet "+alphabet);
+			counts[code]++;
+			int longIdx = blockStart + layout.countLongs + offset/layout.symbolsPerLong;
+			packed[longIdx] |= ((long)code) << (layout.bitsPerSymbol*(offset%layout.symbolsPerLong));
+		}
+		return new PackedBurrowsWheelerTransform(bwt.length, alphabet.length(), rowSpecialCharacter, LongBuffer.wrap(packed));
+	}
+
+	/**
+	 * Creates a packed transform from data previously saved with the method save
+	 * @param length of the transform
+	 * @param alphabetSize Number of characters of the alphabet
+	 * @param rowSpecialCharacter Row of the special character
+	 * @param data Packed data
+	 * @return PackedBurrowsWheelerTransform transform backed by the given data
+	 */
+	public static PackedBurrowsWheelerTransform load(int length, int alphabetSize, int rowSpecialCharacter, LongBuffer data) {
+		PackedBurrowsWheelerTransform answer = new PackedBurrowsWheelerTransform(length, alphabetSize, rowSpecialCharacter, data);
+		if(data.limit()!=answer.getNumberOfLongs()) throw new IllegalArgumentException("Inconsistent length of packed data. Expected: "+answer.getNumberOfLongs()+" given: "+data.limit());
+		return answer;
+	}
+
+	/**
+	 * @return int Number of characters of the transform including the special character
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return int Number of longs needed to store the packed transform
+	 */
+	public int getNumberOfLongs() {
+		int blocks = length/symbolsPerBlock + 1;
+		return blocks*blockLongs;
+	}
+
+	/**
+	 * Returns the code of the character at the given row
+	 * @param row of the BW matrix
+	 * @return int Index in the alphabet of the character. -1 for the special character
+	 */
+	public int getCode(int row) {
+		if(row == rowSpecialCharacter) return -1;
+		int block = row / symbolsPerBlock;
+		int offset = row - block*symbolsPerBlock;
+		long word = data.get(block*blockLongs + countLongs + offset/symbolsPerLong);
+		return (int)((word >>> (bitsPerSymbol*(offset%symbolsPerLong))) & symbolMask);
+	}
+
+	/**
+	 * Counts the occurrences of the character with the given code up to the given row
+	 * @param code Index in the alphabet of the character
+	 * @param row Last row to count (included)
+	 * @return int Number of occurrences of the character between row zero and the given row
+	 */
+	public int rank(int code, int row) {
+		int block = row / symbolsPerBlock;
+		int offset = row - block*symbolsPerBlock;
+		int blockStart = block*blockLongs;
+		int count = (int)(data.get(blockStart+(code>>1)) >>> (32*(code&1)));
+		long pattern = symbolPatterns[code];
+		int longIdx = blockStart + countLongs;
+		int remaining = offset+1;
+		while(remaining>=symbolsPerLong) {
+			count += countMatches(data.get(longIdx), pattern, lowBitsMask, symbolsPerLong);
+			longIdx++;
+			remaining-=symbolsPerLong;
+		}
+		if(remaining>0) {
+			long fieldsMask = lowBitsMask & ((1L<<(remaining*bitsPerSymbol))-1);
+			count += countMatches(data.get(longIdx), pattern, fieldsMask, remaining);
+		}
+		// The special character is packed as the first character
+		if(code == 0 && rowSpecialCharacter<=row && rowSpecialCharacter>=block*symbolsPerBlock) count--;
+		return count;
+	}
+
+	/**
+	 * Counts the occurrences of every character of the alphabet up to the given row reading only one block
+	 * @param row Last row to count (included). If negative, all counts are zero
+	 * @param counts Array to store the counts. It must have at least one entry for each character of the alphabet
+	 */
+	public void rankAll(int row, int [] counts) {
+		if(row<0) {
+			for(int code=0;code<alphabetSize;code++) counts[code] = 0;
+			return;
+		}
+		int block = row / symbolsPerBlock;
+		int offset = row - block*symbolsPerBlock;
+		int blockStart = block*blockLongs;
+		for(int code=0;code<alphabetSize;code++) counts[code] = (int)(data.get(blockStart+(code>>1)) >>> (32*(code&1)));
+		int longIdx = blockStart + countLongs;
+		int remaining = offset+1;
+		while(remaining>0) {
+			int fields = Math.min(remaining, symbolsPerLong);
+			long fieldsMask = (fields==symbolsPerLong)?lowBitsMask:lowBitsMask & ((1L<<(fields*bitsPerSymbol))-1);
+			long word = data.get(longIdx);
+			for(int code=0;code<alphabetSize;code++) counts[code] += countMatches(word, symbolPatterns[code], fieldsMask, fields);
+			longIdx++;
+			remaining-=fields;
+		}
+		if(rowSpecialCharacter<=row && rowSpecialCharacter>=block*symbolsPerBlock) counts[0]--;
+	}
+
+	private int countMatches(long word, long pattern, long fieldsMask, int fields) {
+		long x = word ^ pattern;
+		long y = x;
+		for(int i=1;i<bitsPerSymbol;i++) y|= x>>>i;
+		return fields - Long.bitCount(y & fieldsMask);
+	}
+
+	/**
+	 * Saves the packed data
+	 * @param out Stream to write the data
+	 * @throws IOException If the data can not be written
+	 */
+	public void save(DataOutputStream out) throws IOException {
+		int n = data.limit();
+		for(int i=0;i<n;i++) out.writeLong(data.get(i));
+	}
+}
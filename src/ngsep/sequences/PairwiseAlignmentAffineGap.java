@@ -22,10 +22,19 @@ package ngsep.sequences;
 /**
  * Performs pairwise alignment using the affine gap method.
  * Adapted from https://www.itu.dk/~sestoft/bsa/Match2.java
+ * Sequences are copied to byte arrays and the dynamic programming matrices are stored in arrays
+ * that are reused between alignments. Hence, instances of this class are not thread safe.
+ * If a maximum indel length is set, only a band of diagonals is calculated. The band includes
+ * the diagonals between the one starting at the beginning of both sequences and the one ending at the end of both sequences,
+ * extended by the maximum indel length on each side. If an alignment leaving the band could score at least as the best alignment
+ * within the band, the alignment is calculated again with the full matrices. Hence, the banded alignment returns the same result as the full alignment
  * @author David Guevara
  */
 public class PairwiseAlignmentAffineGap {
 	
+	// Score of cells outside the calculated band
+	private static final int OUTSIDE_BAND_SCORE = Integer.MIN_VALUE/4;
+	
 	private int match=1;
 	private int openGap=3;
 	private int extGap=1;
@@ -36,15 +45,30 @@ public class PairwiseAlignmentAffineGap {
 	private boolean forceEnd1 = true;
 	private boolean forceEnd2 = true;
 	
-	private int[][] insertionScores;
-	private int[][] deletionScores;
-	private int[][] matchScores;
+	private int maxIndelLength = -1;
+	private long bandOverflows = 0;
+	private long calculatedCells = 0;
+	
+	// Scratch buffers reused between alignments
+	private byte [] bytes1 = new byte[0];
+	private byte [] bytes2 = new byte[0];
+	private int[] insertionScores;
+	private int[] deletionScores;
+	private int[] matchScores;
+	private char [] aligned1 = new char[0];
+	private char [] aligned2 = new char[0];
+	
+	// Layout of the matrices for the current alignment. Each row stores windowWidth cells starting at getWindowStart(row)
+	private int length1;
+	private int length2;
+	private int windowWidth;
+	private int windowOffset;
 	
 	public PairwiseAlignmentAffineGap(int capacity) 
 	{
-		insertionScores = new int [capacity][capacity];
-		deletionScores = new int [capacity][capacity];
-		matchScores = new int [capacity][capacity];
+		insertionScores = new int [capacity*capacity];
+		deletionScores = new int [capacity*capacity];
+		matchScores = new int [capacity*capacity];
 	}
 	
 	public int getMatch() {
@@ -110,164 +134,297 @@ public class PairwiseAlignmentAffineGap {
 	public void setForceEnd2(boolean forceEnd2) {
 		this.forceEnd2 = forceEnd2;
 	}
+	
+	/**
+	 * @return int Maximum indel length used to calculate the band of diagonals. Negative if banded alignment is disabled
+	 */
+	public int getMaxIndelLength() {
+		return maxIndelLength;
+	}
+	/**
+	 * Changes the maximum indel length used to define the band of diagonals calculated for each alignment
+	 * @param maxIndelLength Maximum expected indel length. A negative value disables the banded alignment
+	 */
+	public void setMaxIndelLength(int maxIndelLength) {
+		this.maxIndelLength = maxIndelLength;
+	}
+	
+	/**
+	 * @return long Number of banded alignments that were calculated again with the full matrices
+	 * because an alignment leaving the band could have a better or equal score
+	 */
+	public long getBandOverflows() {
+		return bandOverflows;
+	}
+	
+	/**
+	 * @return long Total number of cells of the dynamic programming matrices calculated by this aligner
+	 */
+	public long getCalculatedCells() {
+		return calculatedCells;
+	}
 
 	public String[] getAlignment(String s1, String s2) 
-	{		
-		initMatrices(s1, s2);
-	    calculateMatrices(s1, s2);	    
-        return getAlignedStrings(s1, s2);
+	{
+		loadSequences(s1, s2);
+		int n = s1.length();
+		int m = s2.length();
+		if(maxIndelLength>=0) {
+			int firstDiagonal = Math.min(0, m-n) - maxIndelLength;
+			int lastDiagonal = Math.max(0, m-n) + maxIndelLength;
+			int width = lastDiagonal - firstDiagonal + 1;
+			if(width < m+1) {
+				initMatrices(n, m, width, firstDiagonal);
+				calculateMatrices();
+				String [] answer = getAlignedStrings(true);
+				if(answer!=null) return answer;
+				bandOverflows++;
+			}
+		}
+		initMatrices(n, m, m+1, 0);
+		calculateMatrices();
+		return getAlignedStrings(false);
+	}
+	
+	private void loadSequences(String s1, String s2) {
+		if(bytes1.length<s1.length()) bytes1 = new byte[s1.length()];
+		if(bytes2.length<s2.length()) bytes2 = new byte[s2.length()];
+		for(int i=0;i<s1.length();i++) bytes1[i] = (byte)s1.charAt(i);
+		for(int j=0;j<s2.length();j++) bytes2[j] = (byte)s2.charAt(j);
 	}
 	
-	private void initMatrices(String s1, String s2)
+	private void initMatrices(int n, int m, int width, int offset)
 	{
-		if(insertionScores.length<s1.length()+1 || insertionScores[0].length < s2.length() +1 ) {
-			//System.out.println("Resizing matrices to "+(s1.length() + 1)+" - "+(s2.length() +1));
-			insertionScores = new int[s1.length() + 1][s2.length() + 1];
-			deletionScores = new int[s1.length() + 1][s2.length() + 1];
-			matchScores = new int[s1.length() + 1][s2.length() + 1];
+		length1 = n;
+		length2 = m;
+		windowWidth = width;
+		windowOffset = offset;
+		int cells = (n+1)*width;
+		calculatedCells+=cells;
+		if(matchScores.length<cells) {
+			//System.out.println("Resizing matrices to "+(n + 1)+" - "+width);
+			insertionScores = new int[cells];
+			deletionScores = new int[cells];
+			matchScores = new int[cells];
 		}
 		
-		matchScores[0][0] = 0;
-		for (int i = 1; i < insertionScores.length; i++) 
+		// First row. The window always starts at column zero
+		matchScores[0] = 0;
+		insertionScores[0] = 0;
+		deletionScores[0] = 0;
+		for (int j = 1; j < width; j++) 
+		{
+			if (forceStart2) deletionScores[j] = - openGap - extGap * (j - 1);
+			else deletionScores[j] = 0;
+			insertionScores[j] = m * -openGap * 1000;
+			matchScores[j] = insertionScores[j];
+		}
+		// First column for the rows in which the window starts at column zero
+		for (int i = 1; i <= n && getWindowStart(i)==0; i++) 
 		{
-			if (forceStart1) insertionScores[i][0] = - openGap - extGap * (i - 1);
-			else insertionScores[i][0] = 0;
-	    	deletionScores[i][0] = s1.length() * -openGap * 1000;
-	    	matchScores[i][0] = deletionScores[i][0];
-	    }
-	    for (int i = 1; i < insertionScores[0].length; i++) 
-	    {
-	    	if (forceStart2) deletionScores[0][i] = - openGap - extGap * (i - 1);
-	    	else deletionScores[0][i] = 0;
-	        insertionScores[0][i] = s2.length() * -openGap * 1000;
-	        matchScores[0][i] = insertionScores[0][i];
-	    }
+			int idx = i*width;
+			if (forceStart1) insertionScores[idx] = - openGap - extGap * (i - 1);
+			else insertionScores[idx] = 0;
+			deletionScores[idx] = n * -openGap * 1000;
+			matchScores[idx] = deletionScores[idx];
+		}
 	}
 	
-	private void calculateMatrices(String s1, String s2)
-	{
-		for (int i = 1; i <= s1.length(); i++)
-	    {
-	    	for (int j = 1; j <= s2.length(); j++)
-	    	{
-	    		int matchScore = getMatchScore(s1.charAt(i - 1), s2.charAt(j - 1));
-	    		matchScores[i][j] = Math.max(matchScores[i-1][j-1] + matchScore, Math.max(insertionScores[i-1][j-1] + matchScore, deletionScores[i-1][j-1] + matchScore));
-	    		
-	    		insertionScores[i][j] = Math.max(matchScores[i-1][j] - openGap, Math.max(insertionScores[i-1][j] - extGap, deletionScores[i-1][j] - openGap));
-	    		
-	    		deletionScores[i][j] = Math.max(matchScores[i][j-1] - openGap, Math.max(insertionScores[i][j-1] - openGap, deletionScores[i][j-1] - extGap));
-	    		
-	    	}
-	    }
+	private int getWindowStart(int row) {
+		return Math.max(0, Math.min(row + windowOffset, length2 + 1 - windowWidth));
 	}
-
-	private int getMatchScore(char a, char b)
+	
+	private void calculateMatrices()
 	{
-		if (a == b)
-			return match;
-		else
-			return -mismatch;
+		int width = windowWidth;
+		int prevStart = 0;
+		for (int i = 1; i <= length1; i++)
+		{
+			int start = getWindowStart(i);
+			int rowIdx = i*width;
+			int prevRowIdx = rowIdx - width;
+			byte c1 = bytes1[i-1];
+			int firstColumn = Math.max(1, start);
+			int lastColumn = start + width - 1;
+			for (int j = firstColumn; j <= lastColumn; j++)
+			{
+				int idx = rowIdx + j - start;
+				int matchScore = (c1 == bytes2[j - 1])?match:-mismatch;
+				int diagCol = j - 1 - prevStart;
+				int upCol = j - prevStart;
+				int diagMatch, diagInsertion, diagDeletion;
+				if(diagCol>=0) {
+					int diagIdx = prevRowIdx + diagCol;
+					diagMatch = matchScores[diagIdx];
+					diagInsertion = insertionScores[diagIdx];
+					diagDeletion = deletionScores[diagIdx];
+				} else {
+					diagMatch = diagInsertion = diagDeletion = OUTSIDE_BAND_SCORE;
+				}
+				matchScores[idx] = Math.max(diagMatch + matchScore, Math.max(diagInsertion + matchScore, diagDeletion + matchScore));
+				
+				if(upCol<width) {
+					int upIdx = prevRowIdx + upCol;
+					insertionScores[idx] = Math.max(matchScores[upIdx] - openGap, Math.max(insertionScores[upIdx] - extGap, deletionScores[upIdx] - openGap));
+				} else {
+					insertionScores[idx] = OUTSIDE_BAND_SCORE;
+				}
+				
+				if(j>start) {
+					int leftIdx = idx - 1;
+					deletionScores[idx] = Math.max(matchScores[leftIdx] - openGap, Math.max(insertionScores[leftIdx] - openGap, deletionScores[leftIdx] - extGap));
+				} else {
+					deletionScores[idx] = OUTSIDE_BAND_SCORE;
+				}
+			}
+			prevStart = start;
+		}
 	}
 	
+	private int getScore(int [] matrix, int i, int j) {
+		int col = j - getWindowStart(i);
+		if(col<0 || col>=windowWidth) return OUTSIDE_BAND_SCORE;
+		return matrix[i*windowWidth+col];
+	}
 	
+	/**
+	 * Checks if an alignment leaving the band could score at least the given score.
+	 * Such alignment must pass through a cell in the border of the band. Its score is bounded by the score
+	 * of the border cell plus one match for each remaining character
+	 * @param bestScore Score of the best alignment within the band
+	 * @return boolean true if the full matrices must be calculated to ensure that the alignment is optimal
+	 */
+	private boolean overflowsBand(int bestScore) {
+		for (int i = 0; i <= length1; i++) {
+			int start = getWindowStart(i);
+			int end = start + windowWidth - 1;
+			if(start>0 || (i<length1 && getWindowStart(i+1)>0)) {
+				if(getBestScore(i, start) + match*Math.min(length1-i, length2-start) >= bestScore) return true;
+			}
+			if(end<length2) {
+				if(getBestScore(i, end) + match*Math.min(length1-i, length2-end) >= bestScore) return true;
+			}
+		}
+		return false;
+	}
+	
+	private int getBestScore(int i, int j) {
+		return Math.max(getScore(matchScores, i, j), Math.max(getScore(insertionScores, i, j), getScore(deletionScores, i, j)));
+	}
 	
-	private String[] getAlignedStrings(String s1, String s2)
+	/**
+	 * Performs the traceback of the current matrices
+	 * @param banded Tells if the matrices are banded. In this case, the traceback is aborted if an alignment leaving the band could have a better or equal score
+	 * @return String [] Aligned sequences including gaps. Null if the band overflows
+	 */
+	private String[] getAlignedStrings(boolean banded)
 	{
-		StringBuffer sb1 = new StringBuffer();
-		StringBuffer sb2 = new StringBuffer();
-		int i = s1.length();
-		int j = s2.length();
+		int n = length1;
+		int m = length2;
+		int i = n;
+		int j = m;
 		int k = 0;
-	    int val = matchScores[i][j];
-	    if(forceEnd1 && forceEnd2) {
-	    	if (val < insertionScores[i][j]) {
-	    		k = 1;
-	    		val = insertionScores[i][j];
-	    	}
-	    	if (val < deletionScores[i][j]) {
-	    		k = 2;
-	    	}
-	    }
-    	if (!forceEnd1) {
-    		// Find better score over the last column
-    		for (int h=i;h>=0;h--) {
-    			int score = matchScores[h][s2.length()];
-    			if (score>val) {
-    				i=h;
-    				k=0;
-    				val = score; 
-    			}
-    		}
-    	}
-    	if (!forceEnd2) {
-    		// Find better score over the last row
-    		for (int h=j;h>=0;h--) {
-    			int score = matchScores[s1.length()][h];
-    			if (score>val) {
-    				i=s1.length();
-    				j=h;
-    				k=0;
-    				val = score; 
-    			}
-    		}
-    	}
-    	for (int h = s1.length();h>i;h--) {
-    		sb1.append(s1.charAt(h - 1));
-			sb2.append(LimitedSequence.GAP_CHARACTER);
-    	}
-    	for (int h = s2.length();h>j;h--) {
-    		sb1.append(LimitedSequence.GAP_CHARACTER);
-			sb2.append(s2.charAt(j - 1));
-    	}
-    	
-    	// Traceback cycle
+		int val = getScore(matchScores, i, j);
+		if(forceEnd1 && forceEnd2) {
+			if (val < getScore(insertionScores, i, j)) {
+				k = 1;
+				val = getScore(insertionScores, i, j);
+			}
+			if (val < getScore(deletionScores, i, j)) {
+				k = 2;
+			}
+		}
+		if (!forceEnd1) {
+			// Find better score over the last column
+			for (int h=i;h>=0;h--) {
+				int score = getScore(matchScores, h, m);
+				if (score>val) {
+					i=h;
+					k=0;
+					val = score; 
+				}
+			}
+		}
+		if (!forceEnd2) {
+			// Find better score over the last row
+			for (int h=j;h>=0;h--) {
+				int score = getScore(matchScores, n, h);
+				if (score>val) {
+					i=n;
+					j=h;
+					k=0;
+					val = score; 
+				}
+			}
+		}
+		if(banded && overflowsBand(val)) return null;
+		if(aligned1.length<n+m) {
+			aligned1 = new char[n+m];
+			aligned2 = new char[n+m];
+		}
+		int p = n+m;
+		for (int h = n;h>i;h--) {
+			p--;
+			aligned1[p] = (char)bytes1[h - 1];
+			aligned2[p] = LimitedSequence.GAP_CHARACTER;
+		}
+		for (int h = m;h>j;h--) {
+			p--;
+			aligned1[p] = LimitedSequence.GAP_CHARACTER;
+			aligned2[p] = (char)bytes2[h - 1];
+		}
+		
+		// Traceback cycle
 		while(i>0 && j>0) {
-			int matchScore = getMatchScore(s1.charAt(i - 1), s2.charAt(j - 1));
+			p--;
 			if (k==0) {
 				//Match matrix
-				sb1.append(s1.charAt(i - 1));
-				sb2.append(s2.charAt(j - 1));
-				int score = matchScores[i][j]; 
-				if(score == matchScores[i-1][j-1] + matchScore) k = 0;
-	    		else if(score == insertionScores[i-1][j-1] + matchScore) k = 1;
-	    		else if(score == deletionScores[i-1][j-1] + matchScore) k = 2;
-	    		else throw new RuntimeException("Unexpected score error at "+i+" "+j);
+				int matchScore = (bytes1[i - 1] == bytes2[j - 1])?match:-mismatch;
+				aligned1[p] = (char)bytes1[i - 1];
+				aligned2[p] = (char)bytes2[j - 1];
+				int score = getScore(matchScores, i, j); 
+				if(score == getScore(matchScores, i-1, j-1) + matchScore) k = 0;
+				else if(score == getScore(insertionScores, i-1, j-1) + matchScore) k = 1;
+				else if(score == getScore(deletionScores, i-1, j-1) + matchScore) k = 2;
+				else throw new RuntimeException("Unexpected score error at "+i+" "+j);
 				i--;
-    			j--;
+				j--;
 			} else if (k==1) {
-				sb1.append(s1.charAt(i - 1));
-				sb2.append(LimitedSequence.GAP_CHARACTER);
-				int score = insertionScores[i][j];
-				if(score == matchScores[i-1][j] - openGap) k = 0;
-	    		else if(score == insertionScores[i-1][j] - extGap) k = 1;
-	    		else if(score == deletionScores[i-1][j] - openGap) k = 2;
-	    		else throw new RuntimeException("Unexpected score error at "+i+" "+j);
+				aligned1[p] = (char)bytes1[i - 1];
+				aligned2[p] = LimitedSequence.GAP_CHARACTER;
+				int score = getScore(insertionScores, i, j);
+				if(score == getScore(matchScores, i-1, j) - openGap) k = 0;
+				else if(score == getScore(insertionScores, i-1, j) - extGap) k = 1;
+				else if(score == getScore(deletionScores, i-1, j) - openGap) k = 2;
+				else throw new RuntimeException("Unexpected score error at "+i+" "+j);
 				i--;
 			} else {
-				sb1.append(LimitedSequence.GAP_CHARACTER);
-				sb2.append(s2.charAt(j - 1));
-				int score = deletionScores[i][j];
-				if(score == matchScores[i][j-1] - openGap) k = 0;
-	    		else if(score == insertionScores[i][j-1] - openGap) k = 1;
-	    		else if(score == deletionScores[i][j-1] - extGap) k = 2;
-	    		else throw new RuntimeException("Unexpected score error at "+i+" "+j);
+				aligned1[p] = LimitedSequence.GAP_CHARACTER;
+				aligned2[p] = (char)bytes2[j - 1];
+				int score = getScore(deletionScores, i, j);
+				if(score == getScore(matchScores, i, j-1) - openGap) k = 0;
+				else if(score == getScore(insertionScores, i, j-1) - openGap) k = 1;
+				else if(score == getScore(deletionScores, i, j-1) - extGap) k = 2;
+				else throw new RuntimeException("Unexpected score error at "+i+" "+j);
 				j--;
 			}
-        }
+		}
 		while (i>0) {
-			sb1.append(s1.charAt(i - 1));
-			sb2.append(LimitedSequence.GAP_CHARACTER);
+			p--;
+			aligned1[p] = (char)bytes1[i - 1];
+			aligned2[p] = LimitedSequence.GAP_CHARACTER;
 			i--;
 		}
 		while (j>0) {
-			sb1.append(LimitedSequence.GAP_CHARACTER);
-			sb2.append(s2.charAt(j - 1));
+			p--;
+			aligned1[p] = LimitedSequence.GAP_CHARACTER;
+			aligned2[p] = (char)bytes2[j - 1];
 			j--;
 		}
-        String[] seqs = new String[2]; 
-        seqs[0] = sb1.reverse().toString();
-        seqs[1] = sb2.reverse().toString();
-        return seqs;
+		String[] seqs = new String[2]; 
+		seqs[0] = new String(aligned1, p, n+m-p);
+		seqs[1] = new String(aligned2, p, n+m-p);
+		return seqs;
 	}
 	
 	public void printAlignmentMatrix(int[][] matrix, String s1, String s2)
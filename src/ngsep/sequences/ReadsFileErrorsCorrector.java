@@ -242,7 +242,21 @@ public class ReadsFileErrorsCorrector {
 
 	private void loadKmersMap() throws IOException {
 		log.info("Loading k-mers map from : "+kmersMapFile);
+		kmersMap = loadKmersMap(kmersMapFile, kmerLength);
+		System.out.println("Extracted "+kmersMap.size()+" k-mers from: " + kmersMapFile);
+		
+	}
+	/**
+	 * Loads a map of k-mers saved in text format. Files of canonical counts include both strands of each k-mer
+	 * @param kmersMapFile File with the k-mers and their counts
+	 * @param kmerLength Length of the k-mers
+	 * @return KmersMap Map with the k-mers loaded from the file
+	 * @throws IOException If the file can not be read
+	 */
+	public static KmersMap loadKmersMap(String kmersMapFile, int kmerLength) throws IOException {
+		KmersMap kmersMap;
 		if(kmerLength<=15) kmersMap = new ShortArrayDNAKmersMapImpl((byte) kmerLength);
+		else if(kmerLength<=31) kmersMap = new LongCodeDNAKmersMapImpl((byte) kmerLength);
 		else kmersMap = new DefaultKmersMapImpl();
 		try (FileInputStream fis = new FileInputStream(kmersMapFile)) {
 			InputStream is=fis;
@@ -260,8 +274,7 @@ public class ReadsFileErrorsCorrector {
 				}
 			}
 		}
-		System.out.println("Extracted "+kmersMap.size()+" k-mers from: " + kmersMapFile);
-		
+		return kmersMap;
 	}
 	private void buildKmersMap(String inFilename) throws IOException {
 		log.info("Calculating k-mers map from reads in : "+inFilename);
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import java.util.Arrays;
+
+/**
+ * Suffix array construction by induced sorting (SA-IS) as described by Nong, Zhang and Chan (2009).
+ * The sequence is encoded as a byte array with a sentinel and the reduced problems
+ * are solved within the suffix array itself. Hence, the working memory is close to 5n bytes
+ * (one byte per character plus the suffix array), plus one bit per character to store the types
+ * and the buckets of the reduced problems. Characters must have codes below 256
+ */
+public class SAISSuffixArrayGenerator implements SuffixArrayGenerator {
+
+	private final int [] suffixArray;
+
+	/**
+	 * Instantiates a new suffix array generator.
+	 *
+	 * @param sequence the sequence to which the suffix array is calculated
+	 */
+	public SAISSuffixArrayGenerator(CharSequence sequence) {
+		int n = sequence.length();
+		//Encode the sequence keeping the order of the characters and reserving the code zero for the sentinel
+		boolean [] present = new boolean [256];
+		for(int i=0;i<n;i++) {
+			char c = sequence.charAt(i);
+			if(c>=present.length) throw new IllegalArgumentException("Character with code "+((int)c)+" at position "+i+" is not supported");
+			present[c] = true;
+		}
+		int [] codes = new int [present.length];
+		int alphabetSize = 0;
+		for(int i=0;i<present.length;i++) {
+			if(present[i]) codes[i] = ++alphabetSize;
+		}
+		if(alphabetSize>=present.length) throw new IllegalArgumentException("The sequence can not use the code zero");
+		byte [] text = new byte[n+1];
+		for(int i=0;i<n;i++) text[i] = (byte)codes[sequence.charAt(i)];
+		suffixArray = new int [n+1];
+		if(n==0) suffixArray[0] = 0;
+		else sais(new ByteText(text), suffixArray, n+1, alphabetSize);
+	}
+
+	/**
+	 * @return the suffix array. The first position is sequence.length
+	 */
+	@Override
+	public int[] getSuffixArray() {
+		return suffixArray;
+	}
+
+	/**
+	 * Calculates the suffix array of the given text
+	 * @param s Text ending with a unique sentinel character encoded as zero
+	 * @param sa Array to store the suffix array in its first n positions
+	 * @param n Length of the text including the sentinel
+	 * @param maxCode Maximum code of the characters of the text
+	 */
+	private static void sais(Text s, int [] sa, int n, int maxCode) {
+		// Classify suffixes as S type (true) or L type (false)
+		long [] types = new long [(n+63)>>>6];
+		setType(types, n-1, true);
+		if(n>1) setType(types, n-2, false);
+		for(int i=n-3;i>=0;i--) {
+			int c = s.get(i);
+			int next = s.get(i+1);
+			setType(types, i, c<next || (c==next && isSType(types,i+1)));
+		}
+		// Stage 1: sort the LMS substrings
+		int [] buckets = new int [maxCode+1];
+		getBuckets(s, buckets, n, true);
+		for(int i=0;i<n;i++) sa[i] = -1;
+		for(int i=1;i<n;i++) {
+			if(isLMS(types, i)) sa[--buckets[s.get(i)]] = i;
+		}
+		induceL(types, sa, s, buckets, n);
+		induceS(types, sa, s, buckets, n);
+		// Compact the sorted LMS substrings into the first n1 positions
+		int n1 = 0;
+		for(int i=0;i<n;i++) {
+			if(isLMS(types, sa[i])) sa[n1++] = sa[i];
+		}
+		// Name the LMS substrings
+		for(int i=n1;i<n;i++) sa[i] = -1;
+		int name = 0;
+		int prev = -1;
+		for(int i=0;i<n1;i++) {
+			int pos = sa[i];
+			boolean diff = false;
+			for(int d=0;d<n;d++) {
+				if(prev==-1 || s.get(pos+d)!=s.get(prev+d) || isSType(types, pos+d)!=isSType(types, prev+d)) {
+					diff = true;
+					break;
+				} else if (d>0 && (isLMS(types, pos+d) || isLMS(types, prev+d))) {
+					break;
+				}
+			}
+			if(diff) {
+				name++;
+				prev = pos;
+			}
+			sa[n1+(pos>>>1)] = name-1;
+		}
+		for(int i=n-1, j=n-1;i>=n1;i--) {
+			if(sa[i]>=0) sa[j--] = sa[i];
+		}
+		// Stage 2: solve the reduced problem stored at the end of the array
+		IntText s1 = new IntText(sa, n-n1);
+		if(name<n1) {
+			sais(s1, sa, n1, name-1);
+		} else {
+			for(int i=0;i<n1;i++) sa[s1.get(i)] = i;
+		}
+		// Stage 3: induce the suffix array of the original problem from the sorted LMS suffixes
+		getBuckets(s, buckets, n, true);
+		for(int i=1, j=0;i<n;i++) {
+			if(isLMS(types, i)) s1.set(j++, i);
+		}
+		for(int i=0;i<n1;i++) sa[i] = s1.get(sa[i]);
+		for(int i=n1;i<n;i++) sa[i] = -1;
+		for(int i=n1-1;i>=0;i--) {
+			int j = sa[i];
+			sa[i] = -1;
+			sa[--buckets[s.get(j)]] = j;
+		}
+		induceL(types, sa, s, buckets, n);
+		induceS(types, sa, s, buckets, n);
+	}
+
+	private static void getBuckets(Text s, int [] buckets, int n, boolean end) {
+		Arrays.fill(buckets, 0);
+		for(int i=0;i<n;i++) buckets[s.get(i)]++;
+		int sum = 0;
+		for(int i=0;i<buckets.length;i++) {
+			sum+=buckets[i];
+			buckets[i] = end?sum:sum-buckets[i];
+		}
+	}
+	private static void induceL(long [] types, int [] sa, Text s, int [] buckets, int n) {
+		getBuckets(s, buckets, n, false);
+		for(int i=0;i<n;i++) {
+			int j = sa[i]-1;
+			if(j>=0 && !isSType(types, j)) sa[buckets[s.get(j)]++] = j;
+		}
+	}
+	private static void induceS(long [] types, int [] sa, Text s, int [] buckets, int n) {
+		getBuckets(s, buckets, n, true);
+		for(int i=n-1;i>=0;i--) {
+			int j = sa[i]-1;
+			if(j>=0 && isSType(types, j)) sa[--buckets[s.get(j)]] = j;
+		}
+	}
+	private static boolean isSType(long [] types, int i) {
+		return (types[i>>>6] & (1L<<(i&63)))!=0;
+	}
+	private static void setType(long [] types, int i, boolean sType) {
+		if(sType) types[i>>>6] |= 1L<<(i&63);
+		else types[i>>>6] &= ~(1L<<(i&63));
+	}
+	private static boolean isLMS(long [] types, int i) {
+		return i>0 && isSType(types, i) && !isSType(types, i-1);
+	}
+
+	/**
+	 * Text processed at each level of the recursion
+	 */
+	private interface Text {
+		public int get(int i);
+	}
+	private static class ByteText implements Text {
+		private final byte [] text;
+		public ByteText(byte[] text) {
+			this.text = text;
+		}
+		@Override
+		public int get(int i) {
+			return text[i] & 0xFF;
+		}
+	}
+	private static class IntText implements Text {
+		private final int [] array;
+		private final int offset;
+		public IntText(int[] array, int offset) {
+			this.array = array;
+			this.offset = offset;
+		}
+		@Override
+		public int get(int i) {
+			return array[offset+i];
+		}
+		public void set(int i, int value) {
+			array[offset+i] = value;
+		}
+	}
+}
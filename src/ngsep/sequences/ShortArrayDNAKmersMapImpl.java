@@ -1,30 +1,58 @@
 package ngsep.sequences;
 
 import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ngsep.math.Distribution;
 
+/**
+ * K-mers map for k-mers of length up to 15 storing the counts in an array indexed by the code of each k-mer.
+ * Occurrences can be added by multiple threads at the same time. Counts are updated with compare and set operations.
+ * In canonical maps, counts are stored only for the canonical k-mers and include the occurrences of both strands.
+ * Queries for any k-mer and the distribution of abundances give the same results as counting both strands separately
+ */
 public class ShortArrayDNAKmersMapImpl implements KmersMap {
 
+	private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(short[].class);
+	
 	private byte kmerLength;
 	private short [] kmerCounts;
-	private int size = 0;
+	private AtomicInteger size = new AtomicInteger(0);
+	private boolean canonical;
 	
 	public ShortArrayDNAKmersMapImpl( byte kmerLength) {
+		this(kmerLength, false);
+	}
+	/**
+	 * Creates a new map
+	 * @param kmerLength Length of the k-mers. It must be at most 15
+	 * @param canonical Tells if the map stores only canonical k-mers
+	 */
+	public ShortArrayDNAKmersMapImpl( byte kmerLength, boolean canonical) {
 		if(kmerLength>15) throw new IllegalArgumentException("The kmer length must be less or equal than 15");
 		this.kmerLength = kmerLength;
+		this.canonical = canonical;
 		kmerCounts = new short [(int)Math.pow(4, kmerLength)];
 		Arrays.fill(kmerCounts, (short)0);
 	}
 	
+	public boolean isCanonical() {
+		return canonical;
+	}
+	
+	/**
+	 * @return int Number of k-mers stored in the map. In canonical maps, reverse complements are not included
+	 */
 	@Override
 	public int size() {
-		return size;
+		return size.get();
 	}
 
 	@Override
@@ -35,17 +63,18 @@ public class ShortArrayDNAKmersMapImpl implements KmersMap {
 	}
 	
 	public int getCount(long kmerCode) {
-		int hash = (int)kmerCode;
-		if(hash<0 || hash>=kmerCounts.length) return 0;
-		return kmerCounts[hash];
+		if(kmerCode<0 || kmerCode>=kmerCounts.length) return 0;
+		if(canonical) kmerCode = KmersExtractor.getCanonicalCode(kmerCode, kmerLength);
+		return kmerCounts[(int)kmerCode];
 	}
 
 	public void setCount(CharSequence kmer, int count) {
 		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
 		//Casting is possible because the kmer length is less than 16
 		int hash = (int)AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), DNASequence.EMPTY_DNA_SEQUENCE);
+		if(canonical) hash = (int)KmersExtractor.getCanonicalCode(hash, kmerLength);
 		if(count>Short.MAX_VALUE) count = Short.MAX_VALUE;
-		if(kmerCounts[hash]==0 && count>0) size++;
+		if(kmerCounts[hash]==0 && count>0) size.incrementAndGet();
 		kmerCounts[hash] = (short) count;
 	}
 
@@ -53,18 +82,30 @@ public class ShortArrayDNAKmersMapImpl implements KmersMap {
 	public void addOcurrance(CharSequence kmer) {
 		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
 		long code = AbstractLimitedSequence.getHash(kmer, 0, kmer.length(), DNASequence.EMPTY_DNA_SEQUENCE);
+		if(canonical) {
+			long reverseCode = KmersExtractor.getReverseComplementCode(code, kmerLength);
+			//Occurrences of palindromic k-mers are counted in both strands
+			if(reverseCode==code) addCodeOccurance(code);
+			code = Math.min(code, reverseCode);
+		}
 		addCodeOccurance(code);
 		
 	}
 	
+	/**
+	 * Adds one occurrence of the k-mer with the given code. This method can be called by multiple threads at the same time
+	 * @param code of the k-mer. In canonical maps, it must be the code of a canonical k-mer
+	 */
 	public void addCodeOccurance(long code) {
-		// TODO Auto-generated method stub
 		int hash = (int)code;
-		synchronized (kmerCounts) {
-			if(kmerCounts[hash]==0) size++;
-			if(kmerCounts[hash]<Short.MAX_VALUE) (kmerCounts[hash])++;
+		while(true) {
+			short count = (short)COUNTS.getVolatile(kmerCounts, hash);
+			if(count==Short.MAX_VALUE) return;
+			if(COUNTS.compareAndSet(kmerCounts, hash, count, (short)(count+1))) {
+				if(count==0) size.incrementAndGet();
+				return;
+			}
 		}
-		
 	}
 
 	@Override
@@ -72,7 +113,7 @@ public class ShortArrayDNAKmersMapImpl implements KmersMap {
 		for(int i=0;i<kmerCounts.length;i++) {
 			if(kmerCounts[i]>0 && kmerCounts[i]<minAbundance) {
 				kmerCounts[i]=0;
-				size--;
+				size.decrementAndGet();
 			}
 		}
 		
@@ -84,17 +125,25 @@ public class ShortArrayDNAKmersMapImpl implements KmersMap {
 	public Distribution calculateAbundancesDistribution() {
 		Distribution dist = new Distribution(1, Short.MAX_VALUE, 1);
 		for(int i=0;i<kmerCounts.length;i++) {
-			if(kmerCounts[i]>0) dist.processDatapoint(kmerCounts[i]);
+			if(kmerCounts[i]==0) continue;
+			if(canonical && KmersExtractor.getReverseComplementCode(i, kmerLength)!=i) dist.processDatapoint(2, kmerCounts[i]);
+			else dist.processDatapoint(kmerCounts[i]);
 		}
 		return dist;
 	}
 
+	/**
+	 * Saves the k-mers stored in this map. In canonical maps, the reverse complement of each canonical k-mer
+	 * is also saved with the same count. Hence, the file can be loaded in maps that are not canonical
+	 * @param out Stream to save the k-mers
+	 */
 	@Override
 	public void save(PrintStream out) {
 		for(int i=0;i<kmerCounts.length;i++) {
-			if(kmerCounts[i]>0) {
+			int count = getCount(i);
+			if(count>0) {
 				char [] sequence = AbstractLimitedSequence.getSequence(i, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
-				out.println(new String(sequence)+"\t"+kmerCounts[i]);
+				out.println(new String(sequence)+"\t"+count);
 			}
 		}
 		
@@ -104,7 +153,7 @@ public class ShortArrayDNAKmersMapImpl implements KmersMap {
 	public List<CharSequence> getKmersWithCount(int count) {
 		List<CharSequence> answer = new ArrayList<CharSequence>();
 		for(int i=0;i<kmerCounts.length;i++) {
-			if(kmerCounts[i]==count) {
+			if(getCount(i)==count) {
 				char [] sequence = AbstractLimitedSequence.getSequence(i, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE);
 				answer.add(new DNAShortKmer(new String(sequence)));
 			}
@@ -115,8 +164,9 @@ public class ShortArrayDNAKmersMapImpl implements KmersMap {
 	public Map<Integer,Short> getKmerCodesWithCount(int minCount, int maxCount) {
 		Map<Integer,Short> answer = new HashMap<Integer,Short>();
 		for(int i=0;i<kmerCounts.length;i++) {
-			if(kmerCounts[i]>=minCount && kmerCounts[i]<=maxCount) {
-				answer.put(i,kmerCounts[i]);
+			int count = getCount(i);
+			if(count>=minCount && count<=maxCount) {
+				answer.put(i,(short)count);
 			}
 		}
 		return answer;
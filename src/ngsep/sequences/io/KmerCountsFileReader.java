@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import ngsep.sequences.AbstractLimitedSequence;
+import ngsep.sequences.DNASequence;
+import ngsep.sequences.KmersDiskCounter;
+
+/**
+ * Reads the binary files with k-mer counts sorted by k-mer code written by KmersDiskCounter
+ */
+public class KmerCountsFileReader implements Closeable {
+	private DataInputStream in;
+	private int kmerLength;
+	private boolean canonical;
+	private long code = -1;
+	private int count = 0;
+
+	public KmerCountsFileReader(String filename) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1<<16));
+		int magic = in.readInt();
+		if(magic!=KmersDiskCounter.BINARY_FILE_MAGIC) {
+			in.close();
+			throw new IOException("File "+filename+" is not a binary file of k-mer counts");
+		}
+		kmerLength = in.readByte();
+		canonical = in.readBoolean();
+	}
+
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	/**
+	 * @return boolean true if the file has counts of canonical k-mers
+	 */
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	/**
+	 * Moves to the next k-mer of the file
+	 * @return boolean true if a new k-mer was read. false if the end of the file was reached
+	 * @throws IOException If the file can not be read
+	 */
+	public boolean next() throws IOException {
+		try {
+			code = in.readLong();
+		} catch (EOFException e) {
+			code = -1;
+			count = 0;
+			return false;
+		}
+		count = in.readInt();
+		return true;
+	}
+
+	/**
+	 * @return long Code of the current k-mer
+	 */
+	public long getCode() {
+		return code;
+	}
+
+	/**
+	 * @return String Current k-mer
+	 */
+	public String getKmer() {
+		return new String(AbstractLimitedSequence.getSequence(code, kmerLength, DNASequence.EMPTY_DNA_SEQUENCE));
+	}
+
+	/**
+	 * @return int Count of the current k-mer
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
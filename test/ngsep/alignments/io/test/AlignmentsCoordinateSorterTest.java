@@ -0,0 +1,109 @@
+package ngsep.alignments.io.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import junit.framework.TestCase;
+import ngsep.alignments.io.AlignmentsCoordinateSorter;
+
+public class AlignmentsCoordinateSorterTest extends TestCase {
+	private static final String ORDER_TAG = "XI";
+
+	public void testSortWithSpills() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		for(int i=0;i<3;i++) header.addSequence(new SAMSequenceRecord("chr"+i, 10000));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		List<SAMRecord> records = simulateRecords(header, 3000);
+		//Expected order given by a stable sort of all the records
+		List<SAMRecord> expected = new ArrayList<>(records);
+		Collections.sort(expected, new SAMRecordCoordinateComparator());
+		List<SAMRecord> inMemory = sort(header, records, AlignmentsCoordinateSorter.DEFAULT_MEMORY_BUDGET, 0, AlignmentsCoordinateSorter.DEFAULT_MAX_MERGE_FILES);
+		assertSameOrder(expected, inMemory);
+		//Budget for about 40 records forcing several temporary files
+		List<SAMRecord> spilled = sort(header, records, 20000, 50, AlignmentsCoordinateSorter.DEFAULT_MAX_MERGE_FILES);
+		assertSameOrder(expected, spilled);
+		//Several rounds of intermediate merges
+		List<SAMRecord> mergedInRounds = sort(header, records, 20000, 50, 4);
+		assertSameOrder(expected, mergedInRounds);
+	}
+
+	private List<SAMRecord> sort(SAMFileHeader header, List<SAMRecord> records, long memoryBudget, int minSpillFiles, int maxMergeFiles) throws IOException {
+		File file = File.createTempFile("sorted", ".bam");
+		file.deleteOnExit();
+		File tmpDirectory = Files.createTempDirectory("sortTest").toFile();
+		tmpDirectory.deleteOnExit();
+		try (AlignmentsCoordinateSorter sorter = new AlignmentsCoordinateSorter(header, memoryBudget, tmpDirectory);
+			 SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, file)) {
+			sorter.setMaxMergeFiles(maxMergeFiles);
+			for(SAMRecord record:records) sorter.add(record);
+			if(minSpillFiles>0) assertTrue("Spill files: "+sorter.getNumberOfSpillFiles(), sorter.getNumberOfSpillFiles()>=minSpillFiles);
+			else assertEquals(0, sorter.getNumberOfSpillFiles());
+			sorter.writeSorted(writer);
+			assertEquals(0, sorter.getNumberOfSpillFiles());
+		}
+		//Temporary and intermediate files should be deleted
+		assertEquals(0, tmpDirectory.list().length);
+		tmpDirectory.delete();
+		List<SAMRecord> answer = new ArrayList<>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(file)) {
+			for(SAMRecord record:reader) answer.add(record);
+		}
+		file.delete();
+		return answer;
+	}
+
+	/**
+	 * Simulates records concentrated in few positions. Records with the same name and position are ties
+	 * of the coordinate comparator. An attribute keeps the order in which records are added
+	 */
+	private List<SAMRecord> simulateRecords(SAMFileHeader header, int n) {
+		Random random = new Random(13);
+		List<SAMRecord> records = new ArrayList<>(n);
+		for(int i=0;i<n;i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read"+random.nextInt(3));
+			StringBuilder bases = new StringBuilder();
+			for(int j=0;j<20;j++) bases.append("ACGT".charAt(random.nextInt(4)));
+			record.setReadString(bases.toString());
+			record.setBaseQualityString("IIIIIIIIIIIIIIIIIIII");
+			if(random.nextInt(20)==0) {
+				record.setReadUnmappedFlag(true);
+			} else {
+				record.setReferenceIndex(random.nextInt(3));
+				record.setAlignmentStart(1+random.nextInt(30));
+				record.setCigarString("20M");
+				record.setMappingQuality(60);
+				record.setReadNegativeStrandFlag(random.nextBoolean());
+			}
+			record.setAttribute(ORDER_TAG, i);
+			records.add(record);
+		}
+		return records;
+	}
+
+	private void assertSameOrder(List<SAMRecord> expected, List<SAMRecord> actual) {
+		assertEquals(expected.size(), actual.size());
+		SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+		for(int i=0;i<expected.size();i++) {
+			SAMRecord e = expected.get(i);
+			SAMRecord a = actual.get(i);
+			if(i>0) assertTrue(comparator.compare(actual.get(i-1), a)<=0);
+			assertEquals("Record "+i, e.getAttribute(ORDER_TAG), a.getAttribute(ORDER_TAG));
+			assertEquals(e.getReadName(), a.getReadName());
+			assertEquals(e.getReadString(), a.getReadString());
+		}
+	}
+}
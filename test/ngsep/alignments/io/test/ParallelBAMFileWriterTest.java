@@ -0,0 +1,111 @@
+package ngsep.alignments.io.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import junit.framework.TestCase;
+import ngsep.alignments.io.ParallelBAMFileWriter;
+
+public class ParallelBAMFileWriterTest extends TestCase {
+	private static final int NUM_SEQUENCES = 3;
+	private static final int SEQUENCE_LENGTH = 200000;
+	private static final int READ_LENGTH = 100;
+
+	public void testWriteAndQuery() throws IOException {
+		SAMFileHeader header = new SAMFileHeader();
+		for(int i=0;i<NUM_SEQUENCES;i++) header.addSequence(new SAMSequenceRecord("chr"+i, SEQUENCE_LENGTH));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		Random random = new Random(19);
+		List<SAMRecord> records = simulateRecords(header, random, 30000, 500);
+		for(int compressionLevel:new int[] {0, 5}) {
+			File bamFile = File.createTempFile("parallel", ".bam");
+			File indexFile = new File(bamFile.getAbsolutePath()+".bai");
+			bamFile.deleteOnExit();
+			indexFile.deleteOnExit();
+			try (FileOutputStream out = new FileOutputStream(bamFile)) {
+				ParallelBAMFileWriter writer = new ParallelBAMFileWriter(header, out, compressionLevel, 4, indexFile);
+				for(SAMRecord record:records) writer.addAlignment(record);
+				writer.close();
+			}
+			SamReaderFactory factory = SamReaderFactory.makeDefault();
+			try (SamReader reader = factory.open(SamInputResource.of(bamFile).index(indexFile))) {
+				assertTrue(reader.hasIndex());
+				List<SAMRecord> loaded = new ArrayList<>();
+				try (SAMRecordIterator it = reader.iterator()) {
+					while(it.hasNext()) loaded.add(it.next());
+				}
+				assertEquals(records.size(), loaded.size());
+				for(int i=0;i<records.size();i++) {
+					assertEquals(records.get(i).getReadName(), loaded.get(i).getReadName());
+					assertEquals(records.get(i).getAlignmentStart(), loaded.get(i).getAlignmentStart());
+					assertEquals(records.get(i).getReadString(), loaded.get(i).getReadString());
+				}
+				for(int i=0;i<200;i++) {
+					int sequenceIdx = random.nextInt(NUM_SEQUENCES);
+					int start = 1+random.nextInt(SEQUENCE_LENGTH);
+					int end = Math.min(SEQUENCE_LENGTH, start+random.nextInt(5000));
+					List<String> expected = new ArrayList<>();
+					for(SAMRecord record:records) {
+						if(record.getReadUnmappedFlag() || record.getReferenceIndex()!=sequenceIdx) continue;
+						if(record.getAlignmentStart()<=end && record.getAlignmentEnd()>=start) expected.add(record.getReadName());
+					}
+					List<String> actual = new ArrayList<>();
+					try (SAMRecordIterator it = reader.queryOverlapping("chr"+sequenceIdx, start, end)) {
+						while(it.hasNext()) actual.add(it.next().getReadName());
+					}
+					assertEquals("Query chr"+sequenceIdx+":"+start+"-"+end, expected, actual);
+				}
+				int unmapped = 0;
+				try (SAMRecordIterator it = reader.queryUnmapped()) {
+					while(it.hasNext()) {
+						assertTrue(it.next().getReadUnmappedFlag());
+						unmapped++;
+					}
+				}
+				assertEquals(500, unmapped);
+			}
+			bamFile.delete();
+			indexFile.delete();
+		}
+	}
+
+	/**
+	 * Simulates records sorted by coordinate followed by unmapped records
+	 */
+	private List<SAMRecord> simulateRecords(SAMFileHeader header, Random random, int numMapped, int numUnmapped) {
+		List<SAMRecord> records = new ArrayList<>(numMapped+numUnmapped);
+		int [] starts = new int[numMapped];
+		for(int i=0;i<numMapped;i++) starts[i] = random.nextInt(NUM_SEQUENCES*(SEQUENCE_LENGTH-READ_LENGTH));
+		Arrays.sort(starts);
+		for(int i=0;i<numMapped+numUnmapped;i++) {
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read"+i);
+			StringBuilder bases = new StringBuilder();
+			for(int j=0;j<READ_LENGTH;j++) bases.append("ACGT".charAt(random.nextInt(4)));
+			record.setReadString(bases.toString());
+			record.setBaseQualityString(bases.toString().replaceAll(".", "I"));
+			if(i<numMapped) {
+				record.setReferenceIndex(starts[i]/(SEQUENCE_LENGTH-READ_LENGTH));
+				record.setAlignmentStart(1+starts[i]%(SEQUENCE_LENGTH-READ_LENGTH));
+				record.setCigarString(READ_LENGTH+"M");
+				record.setMappingQuality(60);
+			} else {
+				record.setReadUnmappedFlag(true);
+			}
+			records.add(record);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,125 @@
+package ngsep.alignments.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import ngsep.alignments.KmerHitsCache;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.FMIndex;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.UngappedSearchHit;
+
+public class KmerHitsCacheTest extends TestCase {
+	private static final String BASES = "ACGT";
+	private static final int KMER_LENGTH = 8;
+	private static final int MAX_HITS = 20;
+	private static final int CAPACITY = 64;
+
+	public void testConcurrentLookups() throws Exception {
+		Random random = new Random(11);
+		QualifiedSequenceList sequences = new QualifiedSequenceList();
+		String repeat = randomBases(random, 50);
+		for(int i=0;i<5;i++) {
+			StringBuilder seq = new StringBuilder(randomBases(random, 2000));
+			for(int j=0;j<3;j++) seq.insert(random.nextInt(seq.length()), repeat);
+			sequences.add(new QualifiedSequence("seq"+i, new DNAMaskedSequence(seq.toString())));
+		}
+		FMIndex index = new FMIndex();
+		index.loadQualifiedSequences(sequences, null);
+		//K-mers of the repeat are repeated many times and short k-mers appear a few times at random
+		List<String> kmers = new ArrayList<>();
+		for(int i=0;i+KMER_LENGTH<=repeat.length();i++) kmers.add(repeat.substring(i, i+KMER_LENGTH));
+		for(int i=0;i<200;i++) {
+			String seq = sequences.get(random.nextInt(sequences.size())).getCharacters().toString();
+			int start = random.nextInt(seq.length()-KMER_LENGTH);
+			kmers.add(seq.substring(start, start+KMER_LENGTH));
+		}
+		Map<String,List<String>> expected = new HashMap<>();
+		int cacheable = 0;
+		for(String kmer:kmers) {
+			List<String> hits = encodeHits(index.exactSearch(kmer));
+			if(hits.size()>MAX_HITS) hits.clear();
+			else if(hits.size()>=KmerHitsCache.DEFAULT_MIN_HITS) cacheable++;
+			expected.put(kmer, hits);
+		}
+		assertTrue(cacheable>CAPACITY);
+
+		KmerHitsCache cache = new KmerHitsCache(KMER_LENGTH, CAPACITY, KmerHitsCache.DEFAULT_MIN_HITS);
+		assertEquals(CAPACITY, cache.getCapacity());
+		int numThreads = 4;
+		int lookupsPerThread = 5000;
+		ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+		AtomicBoolean finished = new AtomicBoolean(false);
+		Thread monitor = new Thread(() -> {
+			while(!finished.get()) {
+				int size = cache.getSize();
+				if(size>CAPACITY) errors.add("Size of the cache "+size+" larger than capacity "+CAPACITY);
+				Thread.yield();
+			}
+		});
+		monitor.start();
+		List<Thread> threads = new ArrayList<>();
+		for(int t=0;t<numThreads;t++) {
+			Random threadRandom = new Random(t);
+			Thread thread = new Thread(() -> {
+				for(int i=0;i<lookupsPerThread;i++) {
+					String kmer = kmers.get(threadRandom.nextInt(kmers.size()));
+					List<UngappedSearchHit> kmerHits = search(index, cache, kmer);
+					for(UngappedSearchHit hit:kmerHits) {
+						if(!kmer.equals(hit.getQuery().toString())) errors.add("Unexpected query "+hit.getQuery()+" for k-mer "+kmer);
+					}
+					List<String> hits = encodeHits(kmerHits);
+					if(!expected.get(kmer).equals(hits)) errors.add("Unexpected hits for k-mer "+kmer+": "+hits+" expected: "+expected.get(kmer));
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread:threads) thread.join();
+		finished.set(true);
+		monitor.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertTrue(cache.getSize()>0);
+		assertTrue(cache.getSize()<=CAPACITY);
+		assertEquals(numThreads*lookupsPerThread, cache.getLookups());
+		assertTrue(cache.getCacheHits()>0);
+		assertTrue(cache.getCacheHits()<cache.getLookups());
+	}
+
+	/**
+	 * Searches the given k-mer following the same steps of the read aligner
+	 */
+	private List<UngappedSearchHit> search(FMIndex index, KmerHitsCache cache, String kmer) {
+		long code = cache.encode(kmer);
+		List<UngappedSearchHit> hits = cache.get(code, kmer);
+		if(hits!=null) return hits;
+		hits = index.exactSearch(kmer);
+		if(hits.size()>MAX_HITS) {
+			cache.putRepetitive(code);
+			return new ArrayList<>();
+		}
+		cache.put(code, hits);
+		return hits;
+	}
+
+	private static List<String> encodeHits(List<UngappedSearchHit> hits) {
+		List<String> answer = new ArrayList<>(hits.size());
+		for(UngappedSearchHit hit:hits) answer.add(hit.getSequenceName()+":"+hit.getSequenceIdx()+":"+hit.getStart());
+		Collections.sort(answer);
+		return answer;
+	}
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder bases = new StringBuilder(length);
+		for(int i=0;i<length;i++) bases.append(BASES.charAt(random.nextInt(4)));
+		return bases.toString();
+	}
+}
@@ -0,0 +1,103 @@
+package ngsep.alignments.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ngsep.alignments.ReadAlignment;
+import ngsep.alignments.ReadAlignmentsCache;
+import ngsep.sequences.RawRead;
+
+public class ReadAlignmentsCacheTest extends TestCase {
+	private static final String SEQUENCE = "ACGTTGCAAGGCTTAC";
+
+	public void testCopies() {
+		ReadAlignmentsCache cache = new ReadAlignmentsCache(100);
+		assertEquals(128, cache.getCapacity());
+		RawRead read1 = new RawRead("read1", SEQUENCE, "ABCDEFGHIJKLMNOP");
+		List<ReadAlignment> alns = new ArrayList<>();
+		alns.add(createAlignment(read1, "chr1", 1000, 0));
+		alns.add(createAlignment(read1, "chr2", 5000, ReadAlignment.FLAG_READ_REVERSE_STRAND | ReadAlignment.FLAG_SECONDARY));
+		cache.put(read1, alns);
+		//Changes to the original alignments should not reach the cache
+		for(ReadAlignment aln:alns) changePairInfo(aln, "changed");
+
+		RawRead read2 = new RawRead("read2", SEQUENCE, "abcdefghijklmnop");
+		List<ReadAlignment> copies = cache.get(read2);
+		assertNotNull(copies);
+		assertEquals(2, copies.size());
+		checkCopy(copies.get(0), "read2", "chr1", 1000, false, "abcdefghijklmnop");
+		checkCopy(copies.get(1), "read2", "chr2", 5000, true, "ponmlkjihgfedcba");
+		assertTrue(copies.get(1).isSecondary());
+		//Pair information added to the copies should not reach the cache either
+		for(ReadAlignment aln:copies) changePairInfo(aln, "mate");
+
+		RawRead read3 = new RawRead("read3", SEQUENCE, null);
+		List<ReadAlignment> copies2 = cache.get(read3);
+		assertEquals(2, copies2.size());
+		String defaultQS = RawRead.generateFixedQSString('5', SEQUENCE.length());
+		checkCopy(copies2.get(0), "read3", "chr1", 1000, false, defaultQS);
+		checkCopy(copies2.get(1), "read3", "chr2", 5000, true, defaultQS);
+		for(int i=0;i<copies.size();i++) assertTrue(copies.get(i)!=copies2.get(i));
+		//Previous copies keep their own names, qualities and pair information
+		assertEquals("read2_mate", copies.get(0).getReadName());
+		assertEquals("abcdefghijklmnop", copies.get(0).getQualityScores());
+		assertEquals("ponmlkjihgfedcba", copies.get(1).getQualityScores());
+		assertTrue(copies.get(1).isPaired());
+		assertEquals("mate", copies.get(1).getMateSequenceName());
+
+		assertEquals(2, cache.getLookups());
+		assertEquals(2, cache.getCacheHits());
+	}
+
+	public void testMissesAndUnmapped() {
+		ReadAlignmentsCache cache = new ReadAlignmentsCache(16);
+		RawRead read = new RawRead("read1", SEQUENCE, "ABCDEFGHIJKLMNOP");
+		assertNull(cache.get(read));
+		cache.put(read, new ArrayList<>());
+		List<ReadAlignment> alns = cache.get(new RawRead("read2", SEQUENCE, "ABCDEFGHIJKLMNOP"));
+		assertNotNull(alns);
+		assertEquals(0, alns.size());
+		assertNull(cache.get(new RawRead("read3", SEQUENCE.substring(1), "BCDEFGHIJKLMNOP")));
+		assertEquals(3, cache.getLookups());
+		assertEquals(1, cache.getCacheHits());
+		assertEquals(1.0/3, cache.getHitRate(), 0.0001);
+	}
+
+	private ReadAlignment createAlignment(RawRead read, String sequenceName, int first, int flags) {
+		int length = read.getLength();
+		ReadAlignment aln = new ReadAlignment(sequenceName, first, first+length-1, length, flags);
+		aln.setReadName(read.getName());
+		aln.setReadCharacters(read.getCharacters());
+		String qs = read.getQualityScores();
+		if(aln.isNegativeStrand()) qs = new StringBuilder(qs).reverse().toString();
+		aln.setQualityScores(qs);
+		aln.setAlignmentQuality((byte)60);
+		return aln;
+	}
+
+	private void changePairInfo(ReadAlignment aln, String mateSequenceName) {
+		aln.setReadName(aln.getReadName()+"_"+mateSequenceName);
+		aln.setPaired(true);
+		aln.setProperPair(true);
+		aln.setFirstOfPair(true);
+		aln.setMateNegativeStrand(true);
+		aln.setMateSequenceName(mateSequenceName);
+		aln.setMateFirst(aln.getFirst()+300);
+		aln.setInferredInsertSize(400);
+	}
+
+	private void checkCopy(ReadAlignment aln, String name, String sequenceName, int first, boolean negativeStrand, String qualityScores) {
+		assertEquals(name, aln.getReadName());
+		assertEquals(sequenceName, aln.getSequenceName());
+		assertEquals(first, aln.getFirst());
+		assertEquals(negativeStrand, aln.isNegativeStrand());
+		assertEquals(qualityScores, aln.getQualityScores());
+		assertEquals(SEQUENCE, aln.getReadCharacters().toString());
+		assertFalse(aln.isPaired());
+		assertFalse(aln.isProperPair());
+		assertFalse(aln.isFirstOfPair());
+		assertNull(aln.getMateSequenceName());
+		assertEquals(0, aln.getInferredInsertSize());
+	}
+}
@@ -1,12 +1,25 @@
 package ngsep.alignments.test;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
 import junit.framework.TestCase;
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.ReadsAligner;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.RawRead;
 
 public class ReadsAlignerTest extends TestCase {
+	private static final String BASES = "ACGT";
+
 	public void testCheckPairEnd() throws IOException {
 		ReadsAligner readsAligner = new ReadsAligner();
 		//Useful flags tool https://broadinstitute.github.io/picard/explain-flags.html
@@ -41,4 +54,91 @@ public class ReadsAlignerTest extends TestCase {
 		unProper =readsAligner.isValidPair(aln2, aln1,false);
 		assertEquals(true, unProper);
 	}
+
+	public void testOutputOrder() throws IOException {
+		Random random = new Random(5);
+		File dir = Files.createTempDirectory("readsAlignerTest").toFile();
+		dir.deleteOnExit();
+		List<String> genome = new ArrayList<>();
+		for(int i=0;i<3;i++) genome.add(randomBases(random, 20000));
+		//Repeat to produce reads with multiple alignments
+		String repeat = genome.get(0).substring(1000, 1500);
+		genome.set(1, genome.get(1).substring(0, 5000)+repeat+genome.get(1).substring(5500));
+		File genomeFile = new File(dir, "genome.fa");
+		try (PrintStream out = new PrintStream(genomeFile)) {
+			for(int i=0;i<genome.size();i++) {
+				out.println(">chr"+(i+1));
+				out.println(genome.get(i));
+			}
+		}
+		File reads1 = new File(dir, "reads_1.fastq");
+		File reads2 = new File(dir, "reads_2.fastq");
+		try (PrintStream out1 = new PrintStream(reads1);
+			 PrintStream out2 = new PrintStream(reads2)) {
+			for(int i=0;i<3000;i++) {
+				String fragment;
+				if(i%20==0) fragment = randomBases(random, 400);
+				else {
+					String chr = genome.get(random.nextInt(genome.size()));
+					int start = random.nextInt(chr.length()-500);
+					fragment = chr.substring(start, start+300+random.nextInt(200));
+				}
+				String read1 = addErrors(random, fragment.substring(0, 100));
+				String read2 = addErrors(random, DNAMaskedSequence.getReverseComplement(fragment.substring(fragment.length()-100)).toString());
+				if(random.nextBoolean()) {
+					String tmp = read1;
+					read1 = read2;
+					read2 = tmp;
+				}
+				printRead(out1, "read"+i, read1);
+				printRead(out2, "read"+i, read2);
+			}
+		}
+		for(boolean paired:new boolean[] {false, true}) {
+			List<String> expected = align(dir, genomeFile, reads1, paired?reads2:null, 1);
+			assertTrue(expected.size()>=3000*(paired?2:1));
+			List<String> actual = align(dir, genomeFile, reads1, paired?reads2:null, 4);
+			assertEquals(expected.size(), actual.size());
+			for(int i=0;i<expected.size();i++) assertEquals("Record "+i, expected.get(i), actual.get(i));
+		}
+		for(File file:dir.listFiles()) file.delete();
+		dir.delete();
+	}
+
+	private List<String> align(File dir, File genomeFile, File reads1, File reads2, int numThreads) throws IOException {
+		File outFile = new File(dir, "aln_"+numThreads+".sam");
+		ReadsAligner aligner = new ReadsAligner();
+		aligner.setGenome(genomeFile.getAbsolutePath());
+		aligner.setInputFile(reads1.getAbsolutePath());
+		if(reads2!=null) aligner.setInputFile2(reads2.getAbsolutePath());
+		aligner.setOutputFile(outFile.getAbsolutePath());
+		aligner.setNumThreads(numThreads);
+		aligner.run();
+		List<String> records = new ArrayList<>();
+		try (SamReader reader = SamReaderFactory.makeDefault().open(outFile);
+			 SAMRecordIterator it = reader.iterator()) {
+			while(it.hasNext()) records.add(it.next().getSAMString());
+		}
+		outFile.delete();
+		return records;
+	}
+
+	private static void printRead(PrintStream out, String name, String sequence) {
+		out.println("@"+name);
+		out.println(sequence);
+		out.println("+");
+		out.println(RawRead.generateFixedQSString('I', sequence.length()));
+	}
+
+	private static String addErrors(Random random, String sequence) {
+		char [] bases = sequence.toCharArray();
+		for(int i=0;i<bases.length;i++) if(random.nextInt(100)==0) bases[i] = BASES.charAt(random.nextInt(4));
+		return new String(bases);
+	}
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder bases = new StringBuilder(length);
+		for(int i=0;i<length;i++) bases.append(BASES.charAt(random.nextInt(4)));
+		return bases.toString();
+	}
 }
@@ -0,0 +1,63 @@
+package ngsep.main.io.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import htsjdk.samtools.seekablestream.SeekableMemoryStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import junit.framework.TestCase;
+import ngsep.main.io.ParallelBGZFOutputStream;
+
+public class ParallelBGZFOutputStreamTest extends TestCase {
+
+	public void testWriteAndSeek() throws IOException {
+		Random random = new Random(29);
+		byte [] data = new byte[1000000];
+		//Compressible data with random segments
+		for(int i=0;i<data.length;i++) data[i] = (byte)((random.nextInt(10)==0)?random.nextInt(256):'A'+(i%7));
+		int numPositions = 100;
+		int [] offsets = new int[numPositions];
+		long [] positions = new long[numPositions];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ParallelBGZFOutputStream out = new ParallelBGZFOutputStream(bytes, 5, 4);
+		int written = 0;
+		int nextPosition = 0;
+		while(written<data.length) {
+			if(nextPosition<numPositions && random.nextInt(3)==0) {
+				offsets[nextPosition] = written;
+				positions[nextPosition] = out.getPosition();
+				nextPosition++;
+			}
+			int length = Math.min(data.length-written, 1+random.nextInt(20000));
+			if(length==1) out.write(data[written]);
+			else out.write(data, written, length);
+			written+=length;
+		}
+		out.close();
+		byte [] compressed = bytes.toByteArray();
+		assertTrue(nextPosition>10);
+		assertTrue(compressed.length<data.length);
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(new SeekableMemoryStream(compressed, "test"))) {
+			byte [] loaded = in.readAllBytes();
+			assertEquals(data.length, loaded.length);
+			for(int i=0;i<data.length;i++) assertEquals("Byte "+i, data[i], loaded[i]);
+			//Virtual offsets must point to the data written at each position
+			for(int i=0;i<nextPosition;i++) {
+				in.seek(out.getVirtualOffset(positions[i]));
+				assertEquals("Offset "+offsets[i], data[offsets[i]], (byte)in.read());
+			}
+			//Addresses of blocks before the last position are discarded
+			long lastPosition = positions[nextPosition-1];
+			long virtualOffset = out.getVirtualOffset(lastPosition);
+			out.releaseBlockAddresses(lastPosition>>>16);
+			assertEquals(virtualOffset, out.getVirtualOffset(lastPosition));
+			try {
+				out.getVirtualOffset(positions[0]);
+				fail("Address of a released block should not be available");
+			} catch (IllegalArgumentException e) {
+				//Expected
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package ngsep.sequences.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.FMIndexSingleSequence;
+
+public class FMIndexSingleSequenceTest extends TestCase {
+	private static final String BASES = "ACGT";
+
+	public void testPrefixTableSearches() {
+		Random random = new Random(3);
+		StringBuilder text = new StringBuilder();
+		for(int i=0;i<5000;i++) text.append(BASES.charAt(random.nextInt(4)));
+		//Runs of N and a repeated segment
+		for(int i=0;i<20;i++) {
+			int pos = random.nextInt(text.length()-5);
+			for(int j=0;j<1+random.nextInt(4);j++) text.setCharAt(pos+j, 'N');
+		}
+		String repeat = text.substring(100, 160);
+		text.insert(3000, repeat);
+		String sequence = text.toString();
+		FMIndexSingleSequence plain = new FMIndexSingleSequence(sequence);
+		for(int k=1;k<=6;k++) {
+			FMIndexSingleSequence index = new FMIndexSingleSequence(sequence);
+			index.buildPrefixTable(k);
+			assertEquals(k, index.getPrefixTableLength());
+			for(int i=0;i<2000;i++) {
+				String query = createQuery(random, sequence, k);
+				int [] expected = plain.getRange(query);
+				int [] actual = index.getRange(query);
+				assertTrue("Query: "+query+" k: "+k+" expected: "+Arrays.toString(expected)+" actual: "+Arrays.toString(actual), Arrays.equals(expected, actual));
+				assertEquals(countOccurrences(query, sequence), (expected==null)?0:expected[1]-expected[0]+1);
+				if(i%10==0) assertEquals(plain.exactSearch(query), index.exactSearch(query));
+			}
+			index.buildPrefixTable(0);
+			assertEquals(0, index.getPrefixTableLength());
+		}
+	}
+
+	/**
+	 * Creates a query from a segment of the sequence, a segment with a substitution close to the end,
+	 * a query shorter than the k-mers of the table, a query having N in the last k-mer or a random query
+	 */
+	private String createQuery(Random random, String sequence, int k) {
+		int type = random.nextInt(5);
+		int length;
+		if(type==2) length = 1+random.nextInt(k);
+		else length = k+random.nextInt(20);
+		if(type==4) {
+			StringBuilder query = new StringBuilder();
+			for(int i=0;i<length;i++) query.append(BASES.charAt(random.nextInt(4)));
+			return query.toString();
+		}
+		int start = random.nextInt(sequence.length()-length);
+		StringBuilder query = new StringBuilder(sequence.substring(start, start+length));
+		int lastKmerPos = length-1-random.nextInt(Math.min(k, length));
+		if(type==1) query.setCharAt(lastKmerPos, BASES.charAt(random.nextInt(4)));
+		if(type==3) query.setCharAt(lastKmerPos, 'N');
+		return query.toString();
+	}
+
+	private int countOccurrences(String query, String sequence) {
+		int count = 0;
+		for(int i=sequence.indexOf(query);i>=0;i=sequence.indexOf(query, i+1)) count++;
+		return count;
+	}
+}
@@ -0,0 +1,252 @@
+package ngsep.sequences.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.BidirectionalFMIndex;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.FMIndex;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.sequences.UngappedSearchHit;
+
+public class FMIndexTest extends TestCase {
+	private static final String BASES = "ACGT";
+	private static final int MAX_CHUNK_LENGTH = 800;
+
+	public void testSMEMs() {
+		Random random = new Random(17);
+		for(int t=0;t<5;t++) {
+			QualifiedSequenceList sequences = simulateSequences(random);
+			FMIndex index = buildIndex(sequences, true, 1);
+			assertTrue(index.getNumberOfInternalIndexes()>1);
+			List<String> texts = getInternalTexts(sequences);
+			BidirectionalFMIndex bidirectional = index.getBidirectionalIndex();
+			assertNotNull(bidirectional);
+			for(int i=0;i<50;i++) {
+				String query = simulateQuery(random, sequences);
+				assertEquals(query, naiveSMEMs(query, texts, 1), encode(bidirectional.findSMEMs(query, 1)));
+				assertEquals(query, naiveSMEMs(query, texts, 10), encode(bidirectional.findSMEMs(query, 10)));
+			}
+		}
+	}
+
+	public void testSaveLoadBidirectional() throws IOException {
+		Random random = new Random(23);
+		QualifiedSequenceList sequences = simulateSequences(random);
+		FMIndex index = buildIndex(sequences, true, 1);
+		index.buildPrefixTables(3);
+		File file = File.createTempFile("fmindex", ".fmi");
+		file.deleteOnExit();
+		index.save(file.getAbsolutePath());
+		assertTrue(FMIndex.isBinaryFormat(file.getAbsolutePath()));
+		FMIndex loaded = FMIndex.load(sequences, file.getAbsolutePath());
+		assertEquals(index.getNumberOfInternalIndexes(), loaded.getNumberOfInternalIndexes());
+		assertEquals(3, loaded.getPrefixTableLength());
+		assertNotNull(loaded.getBidirectionalIndex());
+		for(int i=0;i<50;i++) {
+			String query = simulateQuery(random, sequences);
+			List<BidirectionalFMIndex.Match> expected = index.getBidirectionalIndex().findSMEMs(query, 1);
+			List<BidirectionalFMIndex.Match> actual = loaded.getBidirectionalIndex().findSMEMs(query, 1);
+			assertEquals(encode(expected), encode(actual));
+			for(int j=0;j<expected.size();j++) {
+				assertEquals(index.locate(query, expected.get(j)).size(), loaded.locate(query, actual.get(j)).size());
+			}
+			assertEquals(index.count(query), loaded.count(query));
+		}
+	}
+
+	public void testSaveLoad() throws IOException {
+		Random random = new Random(31);
+		QualifiedSequenceList sequences = simulateSequences(random);
+		FMIndex index = buildIndex(sequences, false, 1);
+		File file = File.createTempFile("fmindex", ".fmi");
+		file.deleteOnExit();
+		index.save(file.getAbsolutePath());
+		assertEquals(FMIndex.BINARY_FORMAT_VERSION, ByteBuffer.wrap(Files.readAllBytes(file.toPath()), 8, 4).getInt());
+		FMIndex loaded = FMIndex.load(sequences, file.getAbsolutePath());
+		assertEquals(index.getNumberOfInternalIndexes(), loaded.getNumberOfInternalIndexes());
+		assertNull(loaded.getBidirectionalIndex());
+		assertEquals(0, loaded.getPrefixTableLength());
+		//Text format of previous versions
+		File textFile = File.createTempFile("fmindex", ".txt.gz");
+		textFile.deleteOnExit();
+		index.saveText(textFile.getAbsolutePath());
+		assertFalse(FMIndex.isBinaryFormat(textFile.getAbsolutePath()));
+		FMIndex loadedText = FMIndex.load(sequences, textFile.getAbsolutePath());
+		assertEquals(index.getNumberOfInternalIndexes(), loadedText.getNumberOfInternalIndexes());
+		for(int i=0;i<200;i++) {
+			String query;
+			if(i%2==0) query = simulateQuery(random, sequences);
+			else {
+				String seq = sequences.get(random.nextInt(sequences.size())).getCharacters().toString();
+				int length = 1+random.nextInt(20);
+				int start = random.nextInt(seq.length()-length);
+				query = seq.substring(start, start+length);
+			}
+			List<String> expected = naiveHits(query, sequences);
+			assertEquals(query, expected, encodeHits(index.exactSearch(query)));
+			assertEquals(query, expected, encodeHits(loaded.exactSearch(query)));
+			assertEquals(query, expected, encodeHits(loadedText.exactSearch(query)));
+			assertEquals(index.count(query), loaded.count(query));
+		}
+		file.delete();
+		textFile.delete();
+	}
+
+	public void testParallelBuild() throws IOException {
+		Random random = new Random(23);
+		QualifiedSequenceList sequences = new QualifiedSequenceList();
+		for(int i=0;i<4;i++) {
+			for(QualifiedSequence seq:simulateSequences(random)) sequences.add(new QualifiedSequence(seq.getName()+"_"+i, seq.getCharacters()));
+		}
+		for(boolean bidirectional:new boolean[] {false, true}) {
+			FMIndex serial = buildIndex(sequences, bidirectional, 1);
+			FMIndex parallel = buildIndex(sequences, bidirectional, 4);
+			assertTrue(serial.getNumberOfInternalIndexes()>4);
+			assertEquals(serial.getNumberOfInternalIndexes(), parallel.getNumberOfInternalIndexes());
+			assertTrue(Arrays.equals(saveIndex(serial), saveIndex(parallel)));
+			for(int i=0;i<200;i++) {
+				String query = simulateQuery(random, sequences);
+				assertEquals(query, encodeHits(serial.exactSearch(query)), encodeHits(parallel.exactSearch(query)));
+				assertEquals(serial.count(query), parallel.count(query));
+				if(bidirectional) assertEquals(encode(serial.getBidirectionalIndex().findSMEMs(query, 1)), encode(parallel.getBidirectionalIndex().findSMEMs(query, 1)));
+			}
+		}
+	}
+
+	private static byte [] saveIndex(FMIndex index) throws IOException {
+		File file = File.createTempFile("fmindex", ".fmi");
+		file.deleteOnExit();
+		index.save(file.getAbsolutePath());
+		byte [] bytes = Files.readAllBytes(file.toPath());
+		file.delete();
+		return bytes;
+	}
+
+	static FMIndex buildIndex(QualifiedSequenceList sequences, boolean bidirectional, int numThreads) {
+		FMIndex index = new FMIndex();
+		index.setMaxChunkLength(MAX_CHUNK_LENGTH);
+		index.setNumThreads(numThreads);
+		index.setBuildBidirectional(bidirectional);
+		index.loadQualifiedSequences(sequences, null);
+		return index;
+	}
+
+	/**
+	 * Simulates random sequences with runs of N and segments shared between sequences
+	 */
+	static QualifiedSequenceList simulateSequences(Random random) {
+		QualifiedSequenceList sequences = new QualifiedSequenceList();
+		String repeat = randomBases(random, 40);
+		for(int i=0;i<6;i++) {
+			StringBuilder seq = new StringBuilder(randomBases(random, 150+random.nextInt(250)));
+			int pos = random.nextInt(seq.length()-10);
+			for(int j=0;j<1+random.nextInt(4);j++) seq.setCharAt(pos+j, 'N');
+			if(random.nextBoolean()) seq.insert(random.nextInt(seq.length()), repeat);
+			sequences.add(new QualifiedSequence("seq"+i, new DNAMaskedSequence(seq.toString())));
+		}
+		return sequences;
+	}
+
+	/**
+	 * Simulates a query from a segment of one sequence, from the junction of two consecutive sequences or at random
+	 */
+	static String simulateQuery(Random random, List<QualifiedSequence> sequences) {
+		int type = random.nextInt(3);
+		StringBuilder query;
+		if(type==2) query = new StringBuilder(randomBases(random, 10+random.nextInt(50)));
+		else {
+			int i = random.nextInt(sequences.size()-1);
+			String seq = sequences.get(i).getCharacters().toString();
+			if(type==1) seq += sequences.get(i+1).getCharacters().toString();
+			int length = 20+random.nextInt(100);
+			int start = (type==1)?Math.max(0, sequences.get(i).getLength()-length/2):random.nextInt(seq.length()-length);
+			query = new StringBuilder(seq.substring(start, start+length));
+			for(int j=0;j<3;j++) {
+				int pos = random.nextInt(query.length());
+				if(random.nextInt(4)==0) query.setCharAt(pos, 'N');
+				else query.setCharAt(pos, BASES.charAt(random.nextInt(4)));
+			}
+		}
+		return query.toString();
+	}
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder answer = new StringBuilder(length);
+		for(int i=0;i<length;i++) answer.append(BASES.charAt(random.nextInt(4)));
+		return answer.toString();
+	}
+
+	/**
+	 * @return List<String> Concatenated sequences of each internal index
+	 */
+	private static List<String> getInternalTexts(List<QualifiedSequence> sequences) {
+		List<String> texts = new ArrayList<>();
+		StringBuilder text = new StringBuilder();
+		for(QualifiedSequence seq:sequences) {
+			if(text.length()>0 && text.length()+seq.getLength()>MAX_CHUNK_LENGTH) {
+				texts.add(text.toString());
+				text = new StringBuilder();
+			}
+			text.append(seq.getCharacters());
+		}
+		texts.add(text.toString());
+		return texts;
+	}
+
+	private static long countOccurrences(String pattern, List<String> texts) {
+		long count = 0;
+		for(String text:texts) {
+			for(int i=text.indexOf(pattern);i>=0;i=text.indexOf(pattern, i+1)) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Calculates the SMEMs of the query from the longest match starting at each position.
+	 * The longest match starting at each position is a SMEM if it is not contained in the longest match starting at the previous position
+	 */
+	private static List<String> naiveSMEMs(String query, List<String> texts, int minLength) {
+		List<String> answer = new ArrayList<>();
+		int previousEnd = 0;
+		for(int s=0;s<query.length();s++) {
+			int e = s;
+			while(e<query.length() && BASES.indexOf(query.charAt(e))>=0 && countOccurrences(query.substring(s, e+1), texts)>0) e++;
+			if(e>previousEnd && e-s>=minLength) answer.add(s+"-"+e+":"+countOccurrences(query.substring(s, e), texts));
+			previousEnd = Math.max(previousEnd, e);
+		}
+		return answer;
+	}
+
+	private static List<String> naiveHits(String query, List<QualifiedSequence> sequences) {
+		List<String> answer = new ArrayList<>();
+		for(int i=0;i<sequences.size();i++) {
+			String seq = sequences.get(i).getCharacters().toString();
+			for(int j=seq.indexOf(query);j>=0;j=seq.indexOf(query, j+1)) answer.add(i+":"+j);
+		}
+		Collections.sort(answer);
+		return answer;
+	}
+
+	private static List<String> encodeHits(List<UngappedSearchHit> hits) {
+		List<String> answer = new ArrayList<>();
+		for(UngappedSearchHit hit:hits) answer.add(hit.getSequenceIdx()+":"+hit.getStart());
+		Collections.sort(answer);
+		return answer;
+	}
+
+	private static List<String> encode(List<BidirectionalFMIndex.Match> matches) {
+		List<String> answer = new ArrayList<>();
+		for(BidirectionalFMIndex.Match m:matches) answer.add(m.getQueryStart()+"-"+m.getQueryEnd()+":"+m.getSize());
+		return answer;
+	}
+}
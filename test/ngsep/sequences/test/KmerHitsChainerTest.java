@@ -0,0 +1,75 @@
+package ngsep.sequences.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ngsep.sequences.KmerHitsChainer;
+import ngsep.sequences.UngappedSearchHit;
+
+public class KmerHitsChainerTest extends TestCase {
+	private String kmer = "ACGTACGTACGTACG";
+
+	public void testChains() {
+		List<UngappedSearchHit> hits = new ArrayList<>();
+		//Main chain with a small deletion in the query
+		for(int i=0;i<50;i++) hits.add(createHit(20*i, 1000+20*i+(i>=25?3:0)));
+		//Secondary chain in a repeat
+		for(int i=10;i<20;i++) hits.add(createHit(20*i, 50000+20*i));
+		//Hits not co-linear with the main chain
+		hits.add(createHit(105, 900));
+		hits.add(createHit(505, 500000));
+		KmerHitsChainer chainer = new KmerHitsChainer();
+		List<List<UngappedSearchHit>> chains = chainer.findChains(hits);
+		assertEquals(2, chains.size());
+		List<UngappedSearchHit> best = chains.get(0);
+		assertEquals(50, best.size());
+		for(int i=0;i<best.size();i++) {
+			assertEquals(20*i, best.get(i).getQueryIdx());
+			assertEquals(1000+20*i+(i>=25?3:0), best.get(i).getStart());
+		}
+		List<UngappedSearchHit> second = chains.get(1);
+		assertEquals(10, second.size());
+		assertEquals(50200, second.get(0).getStart());
+		chainer.setMaxChains(1);
+		assertEquals(1, chainer.findChains(hits).size());
+	}
+
+	public void testOverlappingHits() {
+		List<UngappedSearchHit> hits = new ArrayList<>();
+		//Twenty overlapping hits matching 110 bases
+		for(int i=0;i<20;i++) hits.add(createHit(5*i, 1000+5*i));
+		//Eight hits separated by gaps in a different region matching 120 bases
+		for(int i=0;i<8;i++) hits.add(createHit(20*i, 9000+20*i));
+		KmerHitsChainer chainer = new KmerHitsChainer();
+		List<List<UngappedSearchHit>> chains = chainer.findChains(hits);
+		assertEquals(2, chains.size());
+		assertEquals(8, chains.get(0).size());
+		assertEquals(9000, chains.get(0).get(0).getStart());
+		assertEquals(20, chains.get(1).size());
+	}
+
+	public void testDiagonalShift() {
+		List<UngappedSearchHit> hits = new ArrayList<>();
+		for(int i=0;i<20;i++) hits.add(createHit(20*i, 1000+20*i));
+		//Close in the query but shifted 300bp in the subject
+		hits.add(createHit(390, 1690));
+		KmerHitsChainer chainer = new KmerHitsChainer();
+		List<List<UngappedSearchHit>> chains = chainer.findChains(hits);
+		assertEquals(1, chains.size());
+		List<UngappedSearchHit> best = chains.get(0);
+		assertEquals(20, best.size());
+		assertEquals(1380, best.get(19).getStart());
+		//Hits farther than the maximum gap are not chained
+		chainer.setMaxGap(100);
+		hits.add(createHit(600, 1600));
+		chains = chainer.findChains(hits);
+		assertEquals(20, chains.get(0).size());
+	}
+
+	private UngappedSearchHit createHit(int queryIdx, int start) {
+		UngappedSearchHit hit = new UngappedSearchHit(kmer, 0, start);
+		hit.setQueryIdx(queryIdx);
+		return hit;
+	}
+}
@@ -0,0 +1,77 @@
+package ngsep.sequences.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.KmersBloomFilter;
+import ngsep.sequences.LongCodeDNAKmersMapImpl;
+
+public class KmersBloomFilterTest extends TestCase {
+	private static final byte KMER_LENGTH = 25;
+
+	public void testFalsePositiveRate() {
+		Random random = new Random(42);
+		int n = 200000;
+		KmersBloomFilter filter = new KmersBloomFilter(n, 0.01);
+		for(int i=0;i<n;i++) {
+			long code = random.nextLong() & ((1L<<(2*KMER_LENGTH))-1);
+			filter.add(code);
+			assertTrue(filter.add(code));
+		}
+		int falsePositives = 0;
+		for(int i=0;i<n;i++) {
+			if(filter.contains(random.nextLong() & ((1L<<(2*KMER_LENGTH))-1))) falsePositives++;
+		}
+		assertTrue("False positives: "+falsePositives, falsePositives<0.02*n);
+		assertTrue(filter.add("ACGTTTGCA"+"ACGTTTGCA")==false);
+		assertTrue(filter.add("ACGTTTGCA"+"ACGTTTGCA"));
+	}
+
+	public void testSingletonsFilteredMap() {
+		Random random = new Random(7);
+		LongCodeDNAKmersMapImpl map = new LongCodeDNAKmersMapImpl(KMER_LENGTH);
+		map.setSingletonFilter(new KmersBloomFilter(20000, 0.001));
+		long [] codes = new long[10000];
+		int [] counts = new int[codes.length];
+		for(int i=0;i<codes.length;i++) {
+			codes[i] = random.nextLong() & ((1L<<(2*KMER_LENGTH))-1);
+			counts[i] = 1+random.nextInt(5);
+			for(int j=0;j<counts[i];j++) map.addCodeOccurance(codes[i]);
+		}
+		int wrong = 0;
+		for(int i=0;i<codes.length;i++) {
+			int count = map.getCount(codes[i]);
+			if(counts[i]==1 && count==0) continue;
+			if(counts[i]>1 && count==counts[i]) continue;
+			//False positives of the filter only add one occurrence
+			assertEquals(counts[i]+1, count);
+			wrong++;
+		}
+		assertTrue("Wrong counts: "+wrong, wrong<0.005*codes.length);
+	}
+
+	public void testConcurrentOccurrences() throws InterruptedException {
+		Random random = new Random(11);
+		LongCodeDNAKmersMapImpl map = new LongCodeDNAKmersMapImpl(KMER_LENGTH);
+		map.setSingletonFilter(new KmersBloomFilter(100000, 0.0001));
+		long [] codes = new long[50000];
+		for(int i=0;i<codes.length;i++) codes[i] = random.nextLong() & ((1L<<(2*KMER_LENGTH))-1);
+		int numThreads = 4;
+		List<Thread> threads = new ArrayList<>();
+		for(int t=0;t<numThreads;t++) {
+			Thread thread = new Thread(()-> {
+				for(long code:codes) map.addCodeOccurance(code);
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread:threads) thread.join();
+		for(long code:codes) {
+			int count = map.getCount(code);
+			//False positives of the filter only add one occurrence
+			assertTrue("Unexpected count "+count+" for code "+code, count==numThreads || count==numThreads+1);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package ngsep.sequences.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.math.Distribution;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.KmersDiskCounter;
+import ngsep.sequences.LongCodeDNAKmersMapImpl;
+import ngsep.sequences.io.KmerCountsFileReader;
+
+public class KmersDiskCounterTest extends TestCase {
+	private static final String BASES = "ACGT";
+
+	public void testCounts() throws Exception {
+		Random random = new Random(42);
+		StringBuilder genome = new StringBuilder();
+		for(int i=0;i<20000;i++) genome.append(BASES.charAt(random.nextInt(4)));
+		String [] reads = new String[200];
+		for(int i=0;i<reads.length;i++) {
+			int start = random.nextInt(genome.length()-1000);
+			char [] read = genome.substring(start, start+1000).toCharArray();
+			for(int j=0;j<read.length;j++) if(random.nextDouble()<0.01) read[j] = BASES.charAt(random.nextInt(4));
+			//Non DNA characters split the k-mers
+			if(i%5==0) read[random.nextInt(read.length)] = 'N';
+			reads[i] = new String(read)+"AAAAAAAAAATTTTTTTTTT";
+		}
+		for(int kmerLength:new int[] {10,15,20,31}) {
+			for(boolean canonical:new boolean[] {false,true}) {
+				LongCodeDNAKmersMapImpl map = new LongCodeDNAKmersMapImpl((byte)kmerLength, canonical);
+				File file = File.createTempFile("kmersCounterTest", ".bin");
+				file.deleteOnExit();
+				Distribution dist;
+				//Minimum memory to save many sorted runs in each bin
+				try (KmersDiskCounter counter = new KmersDiskCounter(kmerLength, canonical, 1, null)) {
+					for(String read:reads) {
+						String reverse = DNAMaskedSequence.getReverseComplement(read).toString();
+						counter.addSequence(read);
+						if(!canonical) counter.addSequence(reverse);
+						for(int i=0;i+kmerLength<=read.length();i++) {
+							String kmer = read.substring(i, i+kmerLength);
+							if(kmer.indexOf('N')<0) map.addOcurrance(kmer);
+							if(canonical || kmer.indexOf('N')>=0) continue;
+							map.addOcurrance(reverse.substring(read.length()-i-kmerLength, read.length()-i));
+						}
+					}
+					dist = counter.saveCounts(file.getAbsolutePath(), 2, 2);
+				}
+				assertTrue(Arrays.equals(map.calculateAbundancesDistribution().getDistribution(), dist.getDistribution()));
+				int saved = 0;
+				long lastCode = -1;
+				try (KmerCountsFileReader reader = new KmerCountsFileReader(file.getAbsolutePath())) {
+					assertEquals(kmerLength, reader.getKmerLength());
+					assertEquals(canonical, reader.isCanonical());
+					while(reader.next()) {
+						assertTrue(reader.getCode()>lastCode);
+						lastCode = reader.getCode();
+						assertTrue(reader.getCount()>=2);
+						assertEquals(map.getCount(reader.getCode()), reader.getCount());
+						saved++;
+					}
+				}
+				map.filterKmers(2);
+				assertEquals(map.size(), saved);
+				file.delete();
+			}
+		}
+	}
+
+	public void testMergeRounds() throws Exception {
+		Random random = new Random(7);
+		int kmerLength = 25;
+		LongCodeDNAKmersMapImpl map = new LongCodeDNAKmersMapImpl((byte)kmerLength, true);
+		File file = File.createTempFile("kmersCounterTest", ".bin");
+		file.deleteOnExit();
+		File tmpDirectory = Files.createTempDirectory("kmersCounterTest").toFile();
+		tmpDirectory.deleteOnExit();
+		try (KmersDiskCounter counter = new KmersDiskCounter(kmerLength, true, 1, tmpDirectory)) {
+			//Two runs merged at the same time by each thread
+			counter.setMaxOpenRuns(8);
+			for(int i=0;i<3000;i++) {
+				StringBuilder read = new StringBuilder();
+				for(int j=0;j<1000;j++) read.append(BASES.charAt(random.nextInt(4)));
+				counter.addSequence(read);
+				for(int j=0;j+kmerLength<=read.length();j++) map.addOcurrance(read.substring(j, j+kmerLength));
+			}
+			counter.saveCounts(file.getAbsolutePath(), 1, 4);
+		}
+		assertEquals(0, tmpDirectory.list().length);
+		tmpDirectory.delete();
+		int saved = 0;
+		try (KmerCountsFileReader reader = new KmerCountsFileReader(file.getAbsolutePath())) {
+			while(reader.next()) {
+				assertEquals(map.getCount(reader.getCode()), reader.getCount());
+				saved++;
+			}
+		}
+		assertEquals(map.size(), saved);
+		file.delete();
+	}
+}
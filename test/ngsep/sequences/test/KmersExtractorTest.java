@@ -0,0 +1,193 @@
+package ngsep.sequences.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.KmersExtractor;
+import ngsep.sequences.KmersMap;
+import ngsep.sequences.KmersMapAnalyzer;
+import ngsep.sequences.LongCodeDNAKmersMapImpl;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.RawRead;
+import ngsep.sequences.ReadsFileErrorsCorrector;
+import ngsep.sequences.ShortArrayDNAKmersMapImpl;
+
+public class KmersExtractorTest extends TestCase {
+	private static final String BASES = "ACGT";
+
+	public void testReverseComplementCodes() {
+		Random random = new Random(7);
+		for(int kmerLength=1;kmerLength<=31;kmerLength++) {
+			for(int i=0;i<100;i++) {
+				String kmer = randomSequence(random, kmerLength);
+				String reverse = DNAMaskedSequence.getReverseComplement(kmer).toString();
+				long code = KmersExtractor.extractDNAKmerCodesArray(kmer, kmerLength, 0, kmerLength)[0];
+				long reverseCode = KmersExtractor.extractDNAKmerCodesArray(reverse, kmerLength, 0, kmerLength)[0];
+				assertEquals(reverseCode, KmersExtractor.getReverseComplementCode(code, kmerLength));
+				assertEquals(Math.min(code, reverseCode), KmersExtractor.extractCanonicalDNAKmerCodesArray(kmer, kmerLength, 0, kmerLength)[0]);
+			}
+		}
+	}
+
+	public void testCanonicalCounts() {
+		Random random = new Random(42);
+		String genome = randomSequence(random, 10000);
+		List<QualifiedSequence> reads = new ArrayList<>();
+		for(int i=0;i<150;i++) {
+			int start = random.nextInt(genome.length()-2000);
+			char [] read = genome.substring(start, start+2000).toCharArray();
+			for(int j=0;j<read.length;j++) if(random.nextDouble()<0.01) read[j] = BASES.charAt(random.nextInt(4));
+			String readStr = new String(read);
+			if(i%2==1) readStr = DNAMaskedSequence.getReverseComplement(readStr).toString();
+			//Palindromic k-mers
+			if(i%10==0) readStr+="AAAAAATTTTTT"+"AAAAAAAAAATTTTTTTTTT";
+			reads.add(new QualifiedSequence("read"+i, readStr));
+		}
+		for(int kmerLength:new int[] {11,12,20,21}) {
+			KmersMap doubled = countKmers(reads, kmerLength, false);
+			KmersMap canonical = countKmers(reads, kmerLength, true);
+			assertTrue(canonical.size()<doubled.size());
+			assertTrue(Arrays.equals(doubled.calculateAbundancesDistribution().getDistribution(), canonical.calculateAbundancesDistribution().getDistribution()));
+			for(QualifiedSequence read:reads) {
+				String forward = read.getCharacters().toString();
+				String reverse = DNAMaskedSequence.getReverseComplement(forward).toString();
+				for(String seq:new String[] {forward,reverse}) {
+					for(int i=0;i+kmerLength<=seq.length();i++) {
+						String kmer = seq.substring(i, i+kmerLength);
+						assertEquals(doubled.getCount(kmer), canonical.getCount(kmer));
+					}
+				}
+			}
+			KmersMapAnalyzer analyzerDoubled = new KmersMapAnalyzer(doubled, false);
+			KmersMapAnalyzer analyzerCanonical = new KmersMapAnalyzer(canonical, false);
+			assertEquals(analyzerDoubled.getMode(), analyzerCanonical.getMode());
+			assertEquals(analyzerDoubled.getExpectedAssemblyLength(), analyzerCanonical.getExpectedAssemblyLength());
+			assertEquals(analyzerDoubled.getModeLocalSD(), analyzerCanonical.getModeLocalSD());
+			for(int count=1;count<=analyzerDoubled.getMode()+analyzerDoubled.getModeLocalSD();count++) {
+				assertEquals(analyzerDoubled.getRanking(count), analyzerCanonical.getRanking(count));
+			}
+			long [] codesDoubled = analyzerDoubled.extractKmerCodesInLocalSDZone();
+			long [] codesCanonical = analyzerCanonical.extractKmerCodesInLocalSDZone();
+			Arrays.sort(codesDoubled);
+			Arrays.sort(codesCanonical);
+			assertTrue(Arrays.equals(codesDoubled, codesCanonical));
+		}
+	}
+
+	public void testSaveCanonicalAndLoad() throws IOException {
+		Random random = new Random(11);
+		List<QualifiedSequence> reads = new ArrayList<>();
+		for(int i=0;i<50;i++) {
+			String read = randomSequence(random, 300);
+			//Palindromic k-mers
+			if(i%10==0) read+="AAAAAATTTTTT"+"AAAAAAAAAATTTTTTTTTT";
+			reads.add(new QualifiedSequence("read"+i, read));
+		}
+		for(int kmerLength:new int[] {12,20}) {
+			KmersMap doubled = countKmers(reads, kmerLength, false);
+			File dir = Files.createTempDirectory("kmersExtractorTest").toFile();
+			dir.deleteOnExit();
+			String prefix = dir.getAbsolutePath()+File.separator+"canonical";
+			KmersExtractor extractor = new KmersExtractor();
+			extractor.setKmerLength(kmerLength);
+			extractor.setCanonical(true);
+			extractor.setMinKmerCount(1);
+			extractor.setOutputPrefix(prefix);
+			extractor.processQualifiedSequences(reads);
+			extractor.saveResults();
+			//Maps loaded by the errors corrector are not canonical
+			KmersMap loaded = ReadsFileErrorsCorrector.loadKmersMap(prefix+"_kmers.txt.gz", kmerLength);
+			assertEquals(doubled.size(), loaded.size());
+			for(QualifiedSequence read:reads) {
+				String forward = read.getCharacters().toString();
+				String reverse = DNAMaskedSequence.getReverseComplement(forward).toString();
+				for(String seq:new String[] {forward,reverse}) {
+					for(int i=0;i+kmerLength<=seq.length();i++) {
+						String kmer = seq.substring(i, i+kmerLength);
+						assertEquals(kmer, doubled.getCount(kmer), loaded.getCount(kmer));
+					}
+				}
+			}
+			for(File file:dir.listFiles()) file.delete();
+			dir.delete();
+		}
+	}
+
+	public void testParallelCounts() throws IOException {
+		Random random = new Random(23);
+		String genome = randomSequence(random, 200000);
+		File fastq = File.createTempFile("kmersExtractorTest", ".fastq");
+		fastq.deleteOnExit();
+		//Short reads fill several batches and one long read is split in segments
+		try (PrintStream out = new PrintStream(fastq)) {
+			for(int i=0;i<15000;i++) {
+				int start = random.nextInt(genome.length()-150);
+				char [] read = genome.substring(start, start+150).toCharArray();
+				for(int j=0;j<read.length;j++) if(random.nextDouble()<0.01) read[j] = BASES.charAt(random.nextInt(4));
+				printFastq(out, "read"+i, new String(read));
+			}
+			printFastq(out, "longRead", genome+randomSequence(random, 900000));
+		}
+		for(int kmerLength:new int[] {12,21}) {
+			KmersExtractor serial = countKmers(fastq, kmerLength, 1);
+			KmersExtractor parallel = countKmers(fastq, kmerLength, 4);
+			if(kmerLength<=15) assertTrue(parallel.getKmersMap() instanceof ShortArrayDNAKmersMapImpl);
+			else assertTrue(parallel.getKmersMap() instanceof LongCodeDNAKmersMapImpl);
+			Map<String,Integer> expected = getCounts(serial.getKmersMap());
+			assertTrue(expected.size()>genome.length());
+			assertEquals(expected, getCounts(parallel.getKmersMap()));
+		}
+		fastq.delete();
+	}
+
+	private void printFastq(PrintStream out, String name, String sequence) {
+		out.println("@"+name);
+		out.println(sequence);
+		out.println("+");
+		out.println(RawRead.generateFixedQSString('5', sequence.length()));
+	}
+
+	private KmersExtractor countKmers(File fastq, int kmerLength, int numThreads) throws IOException {
+		KmersExtractor extractor = new KmersExtractor();
+		extractor.setKmerLength(kmerLength);
+		extractor.setNumThreads(numThreads);
+		extractor.processFastqFile(fastq.getAbsolutePath());
+		return extractor;
+	}
+
+	private Map<String,Integer> getCounts(KmersMap map) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		map.save(new PrintStream(os));
+		Map<String,Integer> counts = new HashMap<>();
+		for(String line:os.toString().split("\n")) {
+			String [] items = line.split("\t");
+			assertNull(counts.put(items[0], Integer.parseInt(items[1])));
+		}
+		return counts;
+	}
+
+	private KmersMap countKmers(List<QualifiedSequence> reads, int kmerLength, boolean canonical) {
+		KmersExtractor extractor = new KmersExtractor();
+		extractor.setKmerLength(kmerLength);
+		extractor.setCanonical(canonical);
+		extractor.processQualifiedSequences(reads);
+		return extractor.getKmersMap();
+	}
+
+	private String randomSequence(Random random, int length) {
+		StringBuilder sequence = new StringBuilder(length);
+		for(int i=0;i<length;i++) sequence.append(BASES.charAt(random.nextInt(4)));
+		return sequence.toString();
+	}
+}
@@ -0,0 +1,56 @@
+package ngsep.sequences.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.math.Distribution;
+import ngsep.sequences.AbstractLimitedSequence;
+import ngsep.sequences.DNASequence;
+import ngsep.sequences.LongCodeDNAKmersMapImpl;
+
+public class LongCodeDNAKmersMapImplTest extends TestCase {
+	private static final byte KMER_LENGTH = 25;
+
+	public void testCounts() {
+		Random random = new Random(42);
+		LongCodeDNAKmersMapImpl map = new LongCodeDNAKmersMapImpl(KMER_LENGTH);
+		Map<Long,Integer> expected = new HashMap<>();
+		//Few distinct codes to force repeated occurrences and growth of the partitions
+		long [] codes = new long[50000];
+		for(int i=0;i<codes.length;i++) codes[i] = random.nextLong() & ((1L<<(2*KMER_LENGTH))-1);
+		for(int i=0;i<300000;i++) {
+			long code = codes[random.nextInt(codes.length)];
+			map.addCodeOccurance(code);
+			expected.merge(code, 1, Integer::sum);
+		}
+		//Removal of k-mers setting count to zero
+		for(int i=0;i<1000;i++) {
+			long code = codes[i];
+			map.setCount(decode(code), 0);
+			expected.remove(code);
+		}
+		assertEquals(expected.size(), map.size());
+		for(long code:codes) {
+			Integer count = expected.get(code);
+			assertEquals(count==null?0:count.intValue(), map.getCount(code));
+			assertEquals(count==null?0:count.intValue(), map.getCount(decode(code)));
+		}
+		Distribution dist = map.calculateAbundancesDistribution();
+		assertEquals(expected.size(), (int)dist.getCount());
+		map.filterKmers(6);
+		int retained = 0;
+		for(int count:expected.values()) if(count>=6) retained++;
+		assertEquals(retained, map.size());
+		for(long code:codes) {
+			Integer count = expected.get(code);
+			int expectedCount = (count==null || count<6)?0:count;
+			assertEquals(expectedCount, map.getCount(code));
+		}
+	}
+
+	private String decode(long code) {
+		return new String(AbstractLimitedSequence.getSequence(code, KMER_LENGTH, DNASequence.EMPTY_DNA_SEQUENCE));
+	}
+}
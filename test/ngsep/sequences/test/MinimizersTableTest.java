@@ -1,13 +1,22 @@
 package ngsep.sequences.test;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import junit.framework.TestCase;
 import ngsep.sequences.KmersExtractor;
 import ngsep.sequences.MinimizersTable;
 import ngsep.sequences.MinimizersTableEntry;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.UngappedSearchHit;
 
 public class MinimizersTableTest extends TestCase {
 	private String sequence = "CTCAACTAGATCGCACAACGTCGGAATGGTTTCATCCACAGATTGAATTTTTGGTTGCTGTATCAGTCCTTGAATGATGTCCATTCTTGATAGGAGGGTTGTTATAGATATTAATCACTCGAAGTCGTGAACAAGAAATTGTCTTCTCTCCAGTATTCAGTCTCTGTGAT";
@@ -35,4 +44,90 @@ public class MinimizersTableTest extends TestCase {
 			}
 		}
 	}
+	public void testSaveLoad() throws IOException {
+		Random random = new Random(37);
+		List<QualifiedSequence> sequences = simulateSequences(random, 6, 20000);
+		MinimizersTable table = new MinimizersTable(15, 5);
+		table.addSequences(sequences, 1);
+		File file = File.createTempFile("minimizers", ".mzt");
+		file.deleteOnExit();
+		table.save(file.getAbsolutePath());
+		MinimizersTable loaded = MinimizersTable.load(file.getAbsolutePath());
+		assertEquals(table.size(), loaded.size());
+		assertEquals(table.getTotalEntries(), loaded.getTotalEntries());
+		assertEquals(table.getNumberOfSequences(), loaded.getNumberOfSequences());
+		for(int i=0;i<sequences.size();i++) assertEquals(table.getSequenceLength(i), loaded.getSequenceLength(i));
+		int totalHits = 0;
+		for(int i=0;i<100;i++) {
+			String query = simulateQuery(random, sequences);
+			List<String> expected = encode(table.match(-1, query));
+			assertEquals(query, expected, encode(loaded.match(-1, query)));
+			totalHits+=expected.size();
+		}
+		assertTrue(totalHits>1000);
+		file.delete();
+	}
+	public void testParallelAddSequences() throws IOException {
+		Random random = new Random(41);
+		List<QualifiedSequence> sequences = simulateSequences(random, 6, 20000);
+		//Sequence longer than the length of the segments processed by each thread
+		sequences.addAll(simulateSequences(random, 1, 100000));
+		MinimizersTable single = new MinimizersTable(15, 5);
+		single.addSequences(sequences, 1);
+		MinimizersTable singleSegments = new MinimizersTable(15, 5);
+		singleSegments.setSequenceSegmentLength(7001);
+		singleSegments.addSequences(sequences, 1);
+		MinimizersTable parallel = new MinimizersTable(15, 5);
+		parallel.setSequenceSegmentLength(7001);
+		parallel.addSequences(sequences, 4);
+		byte [] expected = saveTable(single);
+		assertTrue(Arrays.equals(expected, saveTable(singleSegments)));
+		assertTrue(Arrays.equals(expected, saveTable(parallel)));
+		for(int i=0;i<100;i++) {
+			String query = simulateQuery(random, sequences);
+			List<String> expectedHits = encode(single.match(-1, query));
+			assertEquals(query, expectedHits, encode(singleSegments.match(-1, query)));
+			assertEquals(query, expectedHits, encode(parallel.match(-1, query)));
+		}
+	}
+	private byte [] saveTable(MinimizersTable table) throws IOException {
+		File file = File.createTempFile("minimizers", ".mzt");
+		file.deleteOnExit();
+		table.save(file.getAbsolutePath());
+		byte [] answer = Files.readAllBytes(file.toPath());
+		file.delete();
+		return answer;
+	}
+	/**
+	 * Simulates random sequences. A segment of the first sequence is repeated in the second sequence
+	 */
+	static List<QualifiedSequence> simulateSequences(Random random, int n, int length) {
+		List<QualifiedSequence> sequences = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			StringBuilder seq = new StringBuilder(length);
+			for(int j=0;j<length;j++) seq.append("ACGT".charAt(random.nextInt(4)));
+			if(i==1) seq.replace(1000, 3000, sequences.get(0).getCharacters().subSequence(5000, 7000).toString());
+			sequences.add(new QualifiedSequence("seq"+i, seq.toString()));
+		}
+		return sequences;
+	}
+	/**
+	 * Simulates a query from a segment of one of the given sequences with substitutions
+	 */
+	static String simulateQuery(Random random, List<QualifiedSequence> sequences) {
+		String seq = sequences.get(random.nextInt(sequences.size())).getCharacters().toString();
+		int length = 50+random.nextInt(2000);
+		int start = random.nextInt(seq.length()-length);
+		StringBuilder query = new StringBuilder(seq.substring(start, start+length));
+		for(int j=0;j<length/50;j++) query.setCharAt(random.nextInt(length), "ACGT".charAt(random.nextInt(4)));
+		return query.toString();
+	}
+	static List<String> encode(Map<Integer,List<UngappedSearchHit>> hits) {
+		List<String> answer = new ArrayList<>();
+		for(List<UngappedSearchHit> subjectHits:hits.values()) {
+			for(UngappedSearchHit hit:subjectHits) answer.add(hit.getSequenceIdx()+":"+hit.getStart()+":"+hit.getQueryIdx()+":"+hit.getQuery()+":"+hit.getWeight());
+		}
+		Collections.sort(answer);
+		return answer;
+	}
 }
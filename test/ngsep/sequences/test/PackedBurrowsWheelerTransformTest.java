@@ -0,0 +1,63 @@
+package ngsep.sequences.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.PackedBurrowsWheelerTransform;
+
+public class PackedBurrowsWheelerTransformTest extends TestCase {
+
+	public void testRankTwoBits() throws IOException {
+		checkRanks("ACGT");
+	}
+
+	public void testRankThreeBits() throws IOException {
+		checkRanks("ACGNT");
+	}
+
+	private void checkRanks(String alphabet) throws IOException {
+		Random random = new Random(alphabet.length());
+		int [] lengths = {1, 2, 100, 255, 256, 257, 3000, 5000};
+		for(int length:lengths) {
+			int [] specialRows = {0, length/2, length-1, random.nextInt(length)};
+			for(int specialRow:specialRows) {
+				byte [] bwt = new byte[length];
+				for(int i=0;i<length;i++) bwt[i] = (byte)alphabet.charAt(random.nextInt(alphabet.length()));
+				bwt[specialRow] = '$';
+				PackedBurrowsWheelerTransform packed = PackedBurrowsWheelerTransform.pack(bwt, alphabet, specialRow);
+				assertEquals(length, packed.length());
+				checkRanks(bwt, alphabet, specialRow, packed);
+				//Transform backed by saved data
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				packed.save(new DataOutputStream(bytes));
+				PackedBurrowsWheelerTransform loaded = PackedBurrowsWheelerTransform.load(length, alphabet.length(), specialRow, ByteBuffer.wrap(bytes.toByteArray()).asLongBuffer());
+				checkRanks(bwt, alphabet, specialRow, loaded);
+			}
+		}
+	}
+
+	private void checkRanks(byte [] bwt, String alphabet, int specialRow, PackedBurrowsWheelerTransform packed) {
+		int alphabetSize = alphabet.length();
+		int [] expected = new int[alphabetSize];
+		int [] counts = new int[alphabetSize];
+		packed.rankAll(-1, counts);
+		for(int code=0;code<alphabetSize;code++) assertEquals(0, counts[code]);
+		for(int row=0;row<bwt.length;row++) {
+			int code = alphabet.indexOf(bwt[row]);
+			if(row==specialRow) assertEquals(-1, packed.getCode(row));
+			else {
+				assertEquals(code, packed.getCode(row));
+				expected[code]++;
+			}
+			packed.rankAll(row, counts);
+			for(int c=0;c<alphabetSize;c++) {
+				assertEquals("Row: "+row+" code: "+c, expected[c], packed.rank(c, row));
+				assertEquals("Row: "+row+" code: "+c, expected[c], counts[c]);
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package ngsep.sequences.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.PairwiseAlignmentAffineGap;
+
+public class PairwiseAlignmentAffineGapTest extends TestCase {
+	private static final String BASES = "ACGT";
+	private static final int READ_LENGTH = 150;
+	private static final int PADDING = 20;
+
+	public void testBandedWithinBand() {
+		Random random = new Random(3);
+		for(boolean freeEnds:new boolean[] {false, true}) {
+			PairwiseAlignmentAffineGap full = createAligner(-1, freeEnds);
+			PairwiseAlignmentAffineGap banded = createAligner(10, freeEnds);
+			int n = 500;
+			for(int i=0;i<n;i++) {
+				String window = randomBases(random, READ_LENGTH+2*PADDING);
+				String reference = freeEnds?window:window.substring(PADDING, PADDING+READ_LENGTH);
+				String read = simulateRead(random, window.substring(PADDING), 1+random.nextInt(5));
+				assertSameAlignment(full.getAlignment(read, reference), banded.getAlignment(read, reference));
+			}
+			//Most alignments are calculated only within the band
+			assertTrue("Overflows: "+banded.getBandOverflows(), banded.getBandOverflows()<n/2);
+			assertEquals(0, full.getBandOverflows());
+			assertTrue(banded.getCalculatedCells()<full.getCalculatedCells()/2);
+		}
+	}
+
+	public void testBandFallback() {
+		Random random = new Random(5);
+		for(boolean freeEnds:new boolean[] {false, true}) {
+			PairwiseAlignmentAffineGap full = createAligner(-1, freeEnds);
+			PairwiseAlignmentAffineGap banded = createAligner(2, freeEnds);
+			int n = 100;
+			for(int i=0;i<n;i++) {
+				String window = randomBases(random, READ_LENGTH+2*PADDING);
+				String reference = freeEnds?window:window.substring(PADDING, PADDING+READ_LENGTH);
+				//Indels longer than the band
+				String read = simulateRead(random, window.substring(PADDING), 20+random.nextInt(10));
+				String [] expected = full.getAlignment(read, reference);
+				String [] actual = banded.getAlignment(read, reference);
+				assertSameAlignment(expected, actual);
+				assertTrue(getCigar(actual), getCigar(actual).matches(".*[0-9]{2}[ID].*"));
+			}
+			//The best alignments leave the band. Hence, all of them are calculated with the full matrices
+			assertEquals(n, banded.getBandOverflows());
+		}
+		//Bands wider than the matrices are not calculated
+		PairwiseAlignmentAffineGap full = createAligner(-1, false);
+		PairwiseAlignmentAffineGap banded = createAligner(100, false);
+		String reference = randomBases(random, 50);
+		String read = reference.substring(0, 20)+reference.substring(30);
+		assertSameAlignment(full.getAlignment(read, reference), banded.getAlignment(read, reference));
+		assertEquals(0, banded.getBandOverflows());
+		assertEquals(full.getCalculatedCells(), banded.getCalculatedCells());
+	}
+
+	private PairwiseAlignmentAffineGap createAligner(int maxIndelLength, boolean freeEnds) {
+		PairwiseAlignmentAffineGap aligner = new PairwiseAlignmentAffineGap(READ_LENGTH+2*PADDING);
+		aligner.setForceStart2(!freeEnds);
+		aligner.setForceEnd2(!freeEnds);
+		aligner.setMaxIndelLength(maxIndelLength);
+		return aligner;
+	}
+
+	/**
+	 * Simulates a read from the start of the given segment with mismatches and one indel of the given length
+	 */
+	private String simulateRead(Random random, String segment, int indelLength) {
+		StringBuilder read = new StringBuilder(segment);
+		int pos = READ_LENGTH/3+random.nextInt(READ_LENGTH/6);
+		if(random.nextBoolean()) read.delete(pos, pos+indelLength);
+		else read.insert(pos, randomBases(random, indelLength));
+		read.setLength(READ_LENGTH);
+		for(int i=0;i<READ_LENGTH;i++) {
+			if(random.nextInt(50)==0) read.setCharAt(i, BASES.charAt(random.nextInt(4)));
+		}
+		return read.toString();
+	}
+
+	private void assertSameAlignment(String [] expected, String [] actual) {
+		assertEquals(getCigar(expected), getCigar(actual));
+		assertEquals(getScore(expected), getScore(actual));
+		assertEquals(expected[0], actual[0]);
+		assertEquals(expected[1], actual[1]);
+	}
+
+	/**
+	 * Calculates the CIGAR of the first sequence against the second sequence
+	 */
+	private static String getCigar(String [] alignment) {
+		StringBuilder cigar = new StringBuilder();
+		char lastOp = 0;
+		int count = 0;
+		for(int i=0;i<alignment[0].length();i++) {
+			char op = 'M';
+			if(alignment[0].charAt(i)=='-') op = 'D';
+			else if (alignment[1].charAt(i)=='-') op = 'I';
+			if(op!=lastOp && count>0) {
+				cigar.append(count).append(lastOp);
+				count = 0;
+			}
+			lastOp = op;
+			count++;
+		}
+		if(count>0) cigar.append(count).append(lastOp);
+		return cigar.toString();
+	}
+
+	/**
+	 * Calculates the score of the alignment with the default scores of the aligner
+	 * without penalizing gaps at the ends of the second sequence
+	 */
+	private static int getScore(String [] alignment) {
+		String s1 = alignment[0];
+		String s2 = alignment[1];
+		int first = 0;
+		while(first<s1.length() && s1.charAt(first)=='-') first++;
+		int last = s1.length()-1;
+		while(last>=0 && s1.charAt(last)=='-') last--;
+		int score = 0;
+		for(int i=first;i<=last;i++) {
+			char c1 = s1.charAt(i);
+			char c2 = s2.charAt(i);
+			if(c1=='-' || c2=='-') {
+				boolean open = i==first || (c1=='-')!=(s1.charAt(i-1)=='-') || (c2=='-')!=(s2.charAt(i-1)=='-');
+				score -= open?3:1;
+			} else if (c1==c2) score++;
+			else score--;
+		}
+		return score;
+	}
+
+	private static String randomBases(Random random, int length) {
+		StringBuilder bases = new StringBuilder(length);
+		for(int i=0;i<length;i++) bases.append(BASES.charAt(random.nextInt(4)));
+		return bases.toString();
+	}
+}
@@ -0,0 +1,32 @@
+package ngsep.sequences.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.sequences.SAISSuffixArrayGenerator;
+
+public class SAISSuffixArrayGeneratorTest extends TestCase {
+	public void testSmallSequences () {
+		assertTrue(Arrays.equals(new int[] {0}, new SAISSuffixArrayGenerator("").getSuffixArray()));
+		assertTrue(Arrays.equals(new int[] {1,0}, new SAISSuffixArrayGenerator("A").getSuffixArray()));
+		assertTrue(Arrays.equals(new int[] {11,10,7,4,1,0,9,8,6,3,5,2}, new SAISSuffixArrayGenerator("MISSISSIPPI").getSuffixArray()));
+	}
+	public void testRandomSequences () {
+		Random random = new Random(7);
+		String [] alphabets = {"A","AC","ACGT","ACGTN"};
+		for(int i=0;i<2000;i++) {
+			String alphabet = alphabets[i%alphabets.length];
+			StringBuilder sequence = new StringBuilder();
+			int n = random.nextInt(200);
+			for(int j=0;j<n;j++) sequence.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			String s = sequence.toString();
+			int [] suffixArray = new SAISSuffixArrayGenerator(s).getSuffixArray();
+			assertEquals(n+1, suffixArray.length);
+			assertEquals(n, suffixArray[0]);
+			for(int j=1;j<suffixArray.length;j++) {
+				assertTrue(s.substring(suffixArray[j-1]).compareTo(s.substring(suffixArray[j]))<0);
+			}
+		}
+	}
+}